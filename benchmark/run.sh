@@ -0,0 +1,24 @@
+#!/bin/sh
+# Compile the library against the stand-ins in stubs/, along with the
+# benchmarks, and run one of them on a plain JVM. Every checker is
+# compiled, so that any of them can be named on the command line.
+#
+# Usage: benchmark/run.sh [main class] [arguments...]
+#
+# The main class is in sofia.graphics.collision, and defaults to
+# CollisionBenchmark.
+
+set -e
+
+here=$(cd "$(dirname "$0")" && pwd)
+out="$here/build"
+
+rm -rf "$out"
+mkdir -p "$out"
+javac -nowarn -encoding UTF-8 -d "$out" \
+    -sourcepath "$here/src:$here/../src:$here/stubs" \
+    $(find "$here/src" "$here/../src/sofia/graphics/collision" -name '*.java')
+
+main=${1:-CollisionBenchmark}
+[ $# -gt 0 ] && shift
+exec java -cp "$out" "sofia.graphics.collision.$main" "$@"
@@ -0,0 +1,286 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks that the collision checkers' queries do not allocate, by counting
+ * the bytes the running thread allocates during each query once the JIT
+ * has warmed up.
+ *
+ * <p>The queries that return a single shape or take a visitor must not
+ * allocate at all. The queries that return a set must allocate nothing
+ * beyond the set itself, which belongs to the caller; the bytes needed
+ * for the set are measured by adding the same shapes to a new set of
+ * its own.
+ *
+ * <p>Run it with {@code benchmark/run.sh AllocationCheck}, optionally
+ * followed by the number of shapes and then the names of the checker
+ * classes, for example {@code benchmark/run.sh AllocationCheck 5000
+ * IBSPColChecker}. It needs a HotSpot JVM, for
+ * {@code com.sun.management.ThreadMXBean}, and exits with status 1 if any
+ * query allocates more than it should.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class AllocationCheck
+{
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker" };
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+    /** The number of queries of each kind made per round. */
+    private static final int QUERIES = 5000;
+    /**
+     * The average number of bytes per query allowed beyond the result set,
+     * in the best round. A round can catch the JIT recompiling a method and
+     * running it unoptimized for a while, so only the best one counts.
+     */
+    private static final double TOLERANCE = 1;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 4;
+    private static final float MAX_SIZE = 24;
+
+    private final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long thread = Thread.currentThread().getId();
+    /** The bytes counted by reading the allocation counter twice. */
+    private long overhead;
+
+    private final CollisionChecker checker;
+    private final int size;
+    private final float worldSize;
+    private final Random random = new Random(42);
+    private final RectangleShape[] shapes;
+    /** The shapes a query found, copied out of its set. */
+    private Shape[] buffer = new Shape[64];
+
+    /** Results are summed here, so that the work cannot be optimized away. */
+    private long sink;
+    /**
+     * The last copy of a query's set, kept so that it escapes, as the
+     * query's own set does, and so is allocated in full.
+     */
+    private Set<Shape> copied;
+    private final ShapeVisitor<Shape> counter = new ShapeVisitor<Shape>() {
+        public boolean visit(Shape shape)
+        {
+            sink++;
+            return true;
+        }
+    };
+
+
+    // ----------------------------------------------------------
+    /**
+     * The queries checked.
+     */
+    private enum Query
+    {
+        getObjectsAt,
+        getOneObjectAt,
+        forEachObjectAt,
+        getIntersectingObjects,
+        getOneIntersectingObject,
+        forEachIntersectingObject,
+        getObjectsInRange,
+        forEachObjectInRange,
+        getNeighbors
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a check of one checker, filled with a given number of shapes.
+     */
+    public AllocationCheck(CollisionChecker checker, int size)
+    {
+        this.checker = checker;
+        this.size = size;
+        this.worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+
+        shapes = new RectangleShape[size];
+        for (int i = 0; i < size; i++) {
+            float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            shapes[i] = new RectangleShape(x, y, x + width, y + height);
+            checker.addObject(shapes[i]);
+        }
+        checker.startSequence();
+
+        // A shape builds the outline collisions are tested against when it
+        // is first tested, and keeps it until it moves; build them all now,
+        // so that it is not counted against whichever query came first
+        for (Shape shape : shapes) {
+            sink += shape.intersects(shape) ? 1 : 0;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = 5000;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                size = Integer.parseInt(arg);
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        System.out.printf("%-20s %-26s %12s %12s%n",
+            "checker", "query", "bytes/query", "beyond set");
+        boolean passed = true;
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            CollisionChecker checker =
+                cls.getDeclaredConstructor().newInstance();
+            passed &= new AllocationCheck(checker, size).run();
+        }
+        if (! passed) {
+            System.out.println("FAILED: a query allocated");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check every query and print the results.
+     *
+     * @return True if no query allocated more than it should
+     */
+    public boolean run()
+    {
+        long before = allocated();
+        overhead = allocated() - before;
+
+        boolean passed = true;
+        for (Query query : Query.values()) {
+            double total = 0;
+            double beyond = Double.POSITIVE_INFINITY;
+            for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+                long[] bytes = measure(query, QUERIES);
+                double roundBeyond = (double) (bytes[0] - bytes[1]) / QUERIES;
+                if (round >= 0 && roundBeyond < beyond) {
+                    total = (double) bytes[0] / QUERIES;
+                    beyond = roundBeyond;
+                }
+            }
+            boolean ok = beyond < TOLERANCE;
+            passed &= ok;
+            System.out.printf("%-20s %-26s %12.1f %12.1f%s%n",
+                checker.getClass().getSimpleName(), query, total, beyond,
+                ok ? "" : "  <-- allocates");
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+        return passed;
+    }
+
+    /**
+     * Run a query a number of times.
+     *
+     * @return The bytes allocated by the queries, and the bytes needed for
+     *         sets holding what the queries that return sets found
+     */
+    private long[] measure(Query query, int count)
+    {
+        long[] bytes = new long[2];
+        for (int i = 0; i < count; i++) {
+            Shape shape = shapes[random.nextInt(size)];
+            float x = shape.getX() + random.nextFloat() * 20 - 10;
+            float y = shape.getY() + random.nextFloat() * 20 - 10;
+
+            long before = allocated();
+            Set<Shape> found = null;
+            switch (query) {
+                case getObjectsAt:
+                    found = checker.getObjectsAt(x, y, null);
+                    break;
+                case getOneObjectAt:
+                    sink += (checker.getOneObjectAt(
+                        null, x, y, null) != null) ? 1 : 0;
+                    break;
+                case forEachObjectAt:
+                    checker.forEachObjectAt(x, y, null, counter);
+                    break;
+                case getIntersectingObjects:
+                    found = checker.getIntersectingObjects(shape, null);
+                    break;
+                case getOneIntersectingObject:
+                    sink += (checker.getOneIntersectingObject(
+                        shape, null) != null) ? 1 : 0;
+                    break;
+                case forEachIntersectingObject:
+                    checker.forEachIntersectingObject(shape, null, counter);
+                    break;
+                case getObjectsInRange:
+                    found = checker.getObjectsInRange(x, y, 50, null);
+                    break;
+                case forEachObjectInRange:
+                    checker.forEachObjectInRange(x, y, 50, null, counter);
+                    break;
+                default:
+                    found = checker.getNeighbors(shape, 30, true, null);
+                    break;
+            }
+            bytes[0] += allocated() - before - overhead;
+
+            if (found != null) {
+                int n = 0;
+                for (Shape each : found) {
+                    if (n == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, n * 2);
+                    }
+                    buffer[n++] = each;
+                }
+                before = allocated();
+                copied = copy(buffer, n);
+                bytes[1] += allocated() - before - overhead;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Add shapes to a new set one at a time, as the queries fill theirs.
+     */
+    private static Set<Shape> copy(Shape[] shapes, int count)
+    {
+        Set<Shape> result = new HashSet<Shape>();
+        for (int i = 0; i < count; i++) {
+            result.add(shapes[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of bytes the thread has allocated so far.
+     */
+    private long allocated()
+    {
+        return threads.getThreadAllocatedBytes(thread);
+    }
+}
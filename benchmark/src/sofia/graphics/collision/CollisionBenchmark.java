@@ -0,0 +1,437 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Times the collision checkers on a plain JVM. Every checker is filled with
+ * the same shapes, laid out uniformly or in clusters, and each operation is
+ * timed over several rounds after a warm-up; the median round is reported
+ * in nanoseconds per operation.
+ *
+ * <p>The operations are adding, moving (jitter, linear drift and teleport)
+ * and removing shapes, and every query on {@link CollisionChecker}.
+ *
+ * <p>Run it with {@code benchmark/run.sh CollisionBenchmark}, optionally
+ * followed by the shape counts and then the names of the checker classes,
+ * for example {@code benchmark/run.sh CollisionBenchmark 1000,10000
+ * IBSPColChecker GridColChecker}.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class CollisionBenchmark
+{
+    private static final int[] DEFAULT_SIZES = { 100, 1000, 10000, 100000 };
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker" };
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+    /** The number of queries of each kind made per round. */
+    private static final int QUERIES = 5000;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 4;
+    private static final float MAX_SIZE = 24;
+    private static final int CLUSTERS = 16;
+
+    private final Class<? extends CollisionChecker> checkerClass;
+    private final int size;
+    private final boolean clustered;
+    private final float worldSize;
+    private final Random random = new Random(42);
+
+    private RectangleShape[] shapes;
+    private float[] velocities;
+    private float[] clusterCentres;
+
+    /** Results are summed here, so that the work cannot be optimized away. */
+    private long sink;
+
+
+    /**
+     * Create a benchmark of one checker, at one size and layout.
+     */
+    public CollisionBenchmark(Class<? extends CollisionChecker> checkerClass,
+            int size, boolean clustered)
+    {
+        this.checkerClass = checkerClass;
+        this.size = size;
+        this.clustered = clustered;
+        this.worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int[] sizes = DEFAULT_SIZES;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                String[] parts = arg.split(",");
+                sizes = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    sizes[i] = Integer.parseInt(parts[i]);
+                }
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        System.out.printf("%-20s %7s %-9s %-30s %12s%n",
+            "checker", "shapes", "layout", "operation", "ns/op");
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            for (int size : sizes) {
+                new CollisionBenchmark(cls, size, false).run();
+                new CollisionBenchmark(cls, size, true).run();
+            }
+        }
+    }
+
+    /**
+     * Time every operation and print the results.
+     */
+    public void run()
+        throws Exception
+    {
+        createShapes();
+
+        report("addObject", timeAdd());
+        report("updateObjectLocation jitter", timeMove(Movement.JITTER));
+        report("updateObjectLocation drift", timeMove(Movement.DRIFT));
+        report("updateObjectLocation teleport", timeMove(Movement.TELEPORT));
+        report("removeObject", timeRemove());
+
+        final CollisionChecker checker = newFullChecker();
+
+        final ShapeVisitor<Shape> counter = new ShapeVisitor<Shape>() {
+            public boolean visit(Shape shape)
+            {
+                sink++;
+                return true;
+            }
+        };
+        final PairVisitor pairCounter = new PairVisitor() {
+            public void visitPair(Shape first, Shape second)
+            {
+                sink++;
+            }
+        };
+
+        for (final Query query : Query.values()) {
+            report(query.toString(), timeQueries(checker, query, counter,
+                pairCounter));
+        }
+        empty(checker);
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private enum Movement
+    {
+        /** Every shape moves up to 2 pixels either way. */
+        JITTER,
+        /** Every shape moves steadily in its own direction. */
+        DRIFT,
+        /** Every shape moves to a new random place. */
+        TELEPORT
+    }
+
+
+    // ----------------------------------------------------------
+    private enum Query
+    {
+        getObjectsAt,
+        getOneObjectAt,
+        forEachObjectAt,
+        getIntersectingObjects,
+        getOneIntersectingObject,
+        forEachIntersectingObject,
+        getObjectsInRange,
+        forEachObjectInRange,
+        getNearestObjects,
+        getNeighbors,
+        getObjectsInDirection,
+        raycastFirst,
+        sweepFirst,
+        getObjects,
+        findCollidingPairs
+    }
+
+
+    private void createShapes()
+    {
+        clusterCentres = new float[CLUSTERS * 2];
+        for (int i = 0; i < clusterCentres.length; i++) {
+            clusterCentres[i] = random.nextFloat() * worldSize;
+        }
+
+        shapes = new RectangleShape[size];
+        velocities = new float[size * 2];
+        for (int i = 0; i < size; i++) {
+            float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float x = randomX();
+            float y = randomY();
+            shapes[i] = new RectangleShape(x, y, x + width, y + height);
+            velocities[i * 2] = random.nextFloat() * 8 - 4;
+            velocities[i * 2 + 1] = random.nextFloat() * 8 - 4;
+        }
+    }
+
+    private float randomX()
+    {
+        if (clustered) {
+            return clusterCentres[random.nextInt(CLUSTERS) * 2]
+                + (float) random.nextGaussian() * worldSize / 32;
+        }
+        return random.nextFloat() * worldSize;
+    }
+
+    private float randomY()
+    {
+        if (clustered) {
+            return clusterCentres[random.nextInt(CLUSTERS) * 2 + 1]
+                + (float) random.nextGaussian() * worldSize / 32;
+        }
+        return random.nextFloat() * worldSize;
+    }
+
+    private CollisionChecker newChecker()
+        throws Exception
+    {
+        return checkerClass.getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Create a checker holding every shape.
+     */
+    private CollisionChecker newFullChecker()
+        throws Exception
+    {
+        CollisionChecker checker = newChecker();
+        for (Shape shape : shapes) {
+            checker.addObject(shape);
+        }
+        checker.startSequence();
+        return checker;
+    }
+
+    /**
+     * Remove every shape from a checker that is finished with. A shape
+     * keeps its place in the tree of the BSP checker holding it, so it
+     * must leave one before joining another.
+     */
+    private void empty(CollisionChecker checker)
+    {
+        for (Shape shape : shapes) {
+            checker.removeObject(shape);
+        }
+    }
+
+    private double timeAdd()
+        throws Exception
+    {
+        double[] times = new double[ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+            CollisionChecker checker = newChecker();
+            long start = System.nanoTime();
+            for (Shape shape : shapes) {
+                checker.addObject(shape);
+            }
+            checker.startSequence();
+            long time = System.nanoTime() - start;
+            empty(checker);
+            if (round >= 0) {
+                times[round] = (double) time / size;
+            }
+        }
+        return median(times);
+    }
+
+    private double timeRemove()
+        throws Exception
+    {
+        double[] times = new double[ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+            CollisionChecker checker = newFullChecker();
+            long start = System.nanoTime();
+            empty(checker);
+            checker.startSequence();
+            long time = System.nanoTime() - start;
+            if (round >= 0) {
+                times[round] = (double) time / size;
+            }
+        }
+        return median(times);
+    }
+
+    /**
+     * Time moving every shape once per round, each round being one frame.
+     */
+    private double timeMove(Movement movement)
+        throws Exception
+    {
+        CollisionChecker checker = newFullChecker();
+        double[] times = new double[ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                RectangleShape shape = shapes[i];
+                float x;
+                float y;
+                switch (movement) {
+                    case JITTER:
+                        x = shape.getX() + random.nextFloat() * 4 - 2;
+                        y = shape.getY() + random.nextFloat() * 4 - 2;
+                        break;
+                    case DRIFT:
+                        x = wrap(shape.getX() + velocities[i * 2]);
+                        y = wrap(shape.getY() + velocities[i * 2 + 1]);
+                        break;
+                    default:
+                        x = randomX();
+                        y = randomY();
+                        break;
+                }
+                shape.setPosition(x, y);
+                checker.updateObjectLocation(shape);
+            }
+            checker.startSequence();
+            long time = System.nanoTime() - start;
+            if (round >= 0) {
+                times[round] = (double) time / size;
+            }
+        }
+        empty(checker);
+        return median(times);
+    }
+
+    private float wrap(float position)
+    {
+        if (position < 0) {
+            return position + worldSize;
+        }
+        if (position > worldSize) {
+            return position - worldSize;
+        }
+        return position;
+    }
+
+    private double timeQueries(CollisionChecker checker, Query query,
+            ShapeVisitor<Shape> counter, PairVisitor pairCounter)
+    {
+        List<Shape> moved = new ArrayList<Shape>();
+        for (int i = 0; i < size; i += 10) {
+            moved.add(shapes[i]);
+        }
+
+        // Queries over every shape are run fewer times, so that the
+        // largest sizes finish in reasonable time
+        int count = QUERIES;
+        if (query == Query.getObjects || query == Query.findCollidingPairs) {
+            count = Math.max(1, QUERIES / size);
+        }
+
+        double[] times = new double[ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                Shape shape = shapes[random.nextInt(size)];
+                float x = shape.getX() + random.nextFloat() * 20 - 10;
+                float y = shape.getY() + random.nextFloat() * 20 - 10;
+                float angle = random.nextFloat() * 360;
+                switch (query) {
+                    case getObjectsAt:
+                        sink += checker.getObjectsAt(x, y, null).size();
+                        break;
+                    case getOneObjectAt:
+                        sink += (checker.getOneObjectAt(
+                            null, x, y, null) != null) ? 1 : 0;
+                        break;
+                    case forEachObjectAt:
+                        checker.forEachObjectAt(x, y, null, counter);
+                        break;
+                    case getIntersectingObjects:
+                        sink += checker.getIntersectingObjects(
+                            shape, null).size();
+                        break;
+                    case getOneIntersectingObject:
+                        sink += (checker.getOneIntersectingObject(
+                            shape, null) != null) ? 1 : 0;
+                        break;
+                    case forEachIntersectingObject:
+                        checker.forEachIntersectingObject(shape, null, counter);
+                        break;
+                    case getObjectsInRange:
+                        sink += checker.getObjectsInRange(
+                            x, y, 50, null).size();
+                        break;
+                    case forEachObjectInRange:
+                        checker.forEachObjectInRange(x, y, 50, null, counter);
+                        break;
+                    case getNearestObjects:
+                        sink += checker.getNearestObjects(
+                            x, y, 8, null).size();
+                        break;
+                    case getNeighbors:
+                        sink += checker.getNeighbors(
+                            shape, 30, true, null).size();
+                        break;
+                    case getObjectsInDirection:
+                        sink += checker.getObjectsInDirection(
+                            x, y, angle, 200, null).size();
+                        break;
+                    case raycastFirst:
+                        sink += (checker.raycastFirst(
+                            x, y, angle, 200, null) != null) ? 1 : 0;
+                        break;
+                    case sweepFirst:
+                        sink += (checker.sweepFirst(shape, 40, 25, null)
+                            != null) ? 1 : 0;
+                        break;
+                    case getObjects:
+                        sink += checker.getObjects(null).size();
+                        break;
+                    default:
+                        checker.findCollidingPairs(moved, pairCounter);
+                        break;
+                }
+            }
+            long time = System.nanoTime() - start;
+            if (round >= 0) {
+                times[round] = (double) time / count;
+            }
+        }
+        return median(times);
+    }
+
+    private static double median(double[] times)
+    {
+        double[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private void report(String operation, double nanos)
+    {
+        System.out.printf("%-20s %7d %-9s %-30s %12.1f%n",
+            checkerClass.getSimpleName(), size,
+            clustered ? "clustered" : "uniform", operation, nanos);
+    }
+}
@@ -0,0 +1,265 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks that the pair search and the intersection queries honour
+ * collision categories, masks and ignored pairs, against a test of every
+ * pair with {@link Shape#canCollideWith(Shape)}. Each shape is in one of
+ * four categories with a random mask, and between frames some shapes
+ * move, some change category or mask, and pairs start and stop ignoring
+ * each other, so that the categories kept in the trees' nodes go stale
+ * and must still never hide a pair.
+ *
+ * <p>Run it with {@code benchmark/run.sh FilterCheck}, optionally
+ * followed by the number of shapes and then the names of the checker
+ * classes. It exits with status 1 on the first mismatch.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class FilterCheck
+{
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker",
+        "ScanColChecker", "AdaptiveColChecker" };
+
+    private static final int FRAMES = 100;
+    private static final int QUERIES = 100;
+    private static final int CATEGORIES = 4;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 25 * 25;
+    private static final float MIN_SIZE = 5;
+    private static final float MAX_SIZE = 35;
+
+    private final CollisionChecker checker;
+    private final Random random = new Random(5);
+    private final List<RectangleShape> shapes = new ArrayList<RectangleShape>();
+    private final Map<Shape, Integer> ids = new IdentityHashMap<Shape, Integer>();
+
+    private final Set<Long> found = new HashSet<Long>();
+    private final PairVisitor collector = new PairVisitor() {
+        public void visitPair(Shape a, Shape b)
+        {
+            if (! found.add(key(a, b))) {
+                throw new IllegalStateException("pair reported twice");
+            }
+        }
+    };
+    private final Set<Shape> visited = new HashSet<Shape>();
+    private final ShapeVisitor<Shape> visitCollector = new ShapeVisitor<Shape>() {
+        public boolean visit(Shape shape)
+        {
+            visited.add(shape);
+            return true;
+        }
+    };
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a check of one checker, filled with a given number of shapes.
+     */
+    public FilterCheck(CollisionChecker checker, int size)
+    {
+        this.checker = checker;
+        float worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        for (int i = 0; i < size; i++) {
+            float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            RectangleShape shape =
+                new RectangleShape(x, y, x + width, y + height);
+            shape.setCollisionCategories(1 << random.nextInt(CATEGORIES));
+            shape.setCollisionMask(random.nextInt(1 << CATEGORIES));
+            shapes.add(shape);
+            ids.put(shape, i);
+            checker.addObject(shape);
+        }
+        for (int i = 0; i < size / 8; i++) {
+            pick().ignoreCollisionsWith(pick());
+        }
+        checker.startSequence();
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = 800;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                size = Integer.parseInt(arg);
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        boolean passed = true;
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            CollisionChecker checker =
+                cls.getDeclaredConstructor().newInstance();
+            passed &= new FilterCheck(checker, size).run(cls.getSimpleName());
+        }
+        if (! passed) {
+            System.out.println("FAILED: a query disagreed with the scan");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Change the shapes and their filters for a number of frames,
+     * searching for pairs and intersections each frame.
+     *
+     * @return True if every search matched the scan
+     */
+    public boolean run(String label)
+    {
+        long pairs = 0;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            Set<Shape> moved = change();
+            checker.startSequence();
+
+            found.clear();
+            checker.findCollidingPairs(moved, collector);
+            Set<Long> expected = new HashSet<Long>();
+            for (Shape shape : moved) {
+                for (Shape other : collidingWith(shape)) {
+                    expected.add(key(shape, other));
+                }
+            }
+            String failure = null;
+            if (! found.equals(expected)) {
+                failure = "findCollidingPairs found " + found.size()
+                    + " pairs, expected " + expected.size();
+            }
+            pairs += found.size();
+
+            for (int q = 0; failure == null && q < QUERIES; q++) {
+                failure = checkIntersecting(pick());
+            }
+            if (failure != null) {
+                System.out.println(label + ": " + failure + " (frame "
+                    + frame + ")");
+                return false;
+            }
+        }
+        System.out.println(label + ": OK, " + pairs + " pairs found");
+        return true;
+    }
+
+    /**
+     * Move some shapes, change some filters, and start or stop ignoring
+     * one pair.
+     *
+     * @return The shapes that moved or changed
+     */
+    private Set<Shape> change()
+    {
+        Set<Shape> moved = new HashSet<Shape>();
+        for (int i = 0; i < shapes.size() / 8; i++) {
+            RectangleShape shape = pick();
+            shape.setPosition(shape.getX() + random.nextInt(11) - 5,
+                shape.getY() + random.nextInt(11) - 5);
+            checker.updateObjectLocation(shape);
+            moved.add(shape);
+        }
+        for (int i = 0; i < shapes.size() / 80; i++) {
+            RectangleShape shape = pick();
+            if (random.nextBoolean()) {
+                shape.setCollisionCategories(1 << random.nextInt(CATEGORIES));
+            }
+            else {
+                shape.setCollisionMask(random.nextInt(1 << CATEGORIES));
+            }
+            checker.updateObjectFilter(shape);
+            moved.add(shape);
+        }
+
+        RectangleShape a = pick();
+        RectangleShape b = pick();
+        if (random.nextBoolean()) {
+            a.ignoreCollisionsWith(b);
+        }
+        else {
+            a.stopIgnoringCollisionsWith(b);
+        }
+        checker.updateObjectFilter(a);
+        checker.updateObjectFilter(b);
+        moved.add(a);
+        moved.add(b);
+        return moved;
+    }
+
+    private String checkIntersecting(Shape shape)
+    {
+        Set<Shape> expected = collidingWith(shape);
+
+        Set<Shape> result = checker.getIntersectingObjects(shape, null);
+        result.remove(shape);
+        if (! result.equals(expected)) {
+            return "getIntersectingObjects found " + result.size()
+                + " shapes, expected " + expected.size();
+        }
+
+        visited.clear();
+        checker.forEachIntersectingObject(shape, null, visitCollector);
+        if (! visited.equals(expected)) {
+            return "forEachIntersectingObject found " + visited.size()
+                + " shapes, expected " + expected.size();
+        }
+
+        Shape one = checker.getOneIntersectingObject(shape, null);
+        if ((one == null) ? ! expected.isEmpty() : ! expected.contains(one)) {
+            return "getOneIntersectingObject returned " + one + ", expected "
+                + expected.size() + " candidates";
+        }
+        return null;
+    }
+
+    /**
+     * Find every other shape that a shape can collide with and intersects,
+     * by testing each one.
+     */
+    private Set<Shape> collidingWith(Shape shape)
+    {
+        Set<Shape> result = new HashSet<Shape>();
+        for (Shape other : shapes) {
+            if (other != shape && shape.canCollideWith(other)
+                    && shape.intersects(other)) {
+                result.add(other);
+            }
+        }
+        return result;
+    }
+
+    private RectangleShape pick()
+    {
+        return shapes.get(random.nextInt(shapes.size()));
+    }
+
+    private long key(Shape a, Shape b)
+    {
+        long i = ids.get(a);
+        long j = ids.get(b);
+        return (Math.min(i, j) << 32) | Math.max(i, j);
+    }
+}
@@ -0,0 +1,169 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Measures how an {@link IBSPColChecker}'s index margin trades the work of
+ * keeping the tree up to date against the work of queries, with shapes
+ * that wobble in place: each frame every shape moves up to 1.5 pixels from
+ * its home and turns up to 6 degrees either way, as sprites that bob and
+ * sway do. Each frame then makes a number of intersection queries.
+ *
+ * <p>It prints, for each margin, the time spent updating and publishing
+ * the tree and the time spent on queries, summed over the frames of the
+ * last of three passes, along with the shapes tested per query and the
+ * number of rebuilds. Every tenth frame some of the queries are also
+ * compared with a test of every shape.
+ *
+ * <p>Run it with {@code benchmark/run.sh JitterBenchmark}, optionally
+ * followed by the margins, separated by commas. It exits with status 1 on
+ * the first mismatch.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class JitterBenchmark
+{
+    private static final float[] DEFAULT_MARGINS = { 0, 4, 8 };
+
+    private static final int PASSES = 3;
+    private static final int SHAPES = 3000;
+    private static final int FRAMES = 400;
+    private static final int QUERIES = 2000;
+    private static final int CHECKED_QUERIES = 50;
+    private static final float SIZE = 16;
+    private static final float WORLD_SIZE = 2000;
+    private static final float MAX_MOVE = 1.5f;
+    private static final float MAX_TURN = 6;
+
+    private final IBSPColChecker checker = new IBSPColChecker();
+    private final Random random = new Random(3);
+    private final List<RectangleShape> shapes = new ArrayList<RectangleShape>();
+    private final float[] homes = new float[SHAPES * 2];
+
+    private final GOCollisionQuery shapeQuery = new GOCollisionQuery();
+    /** Results are summed here, so that the work cannot be optimized away. */
+    private long sink;
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a benchmark of a checker with a given index margin.
+     */
+    public JitterBenchmark(float margin)
+    {
+        checker.setIndexMargin(margin);
+        for (int i = 0; i < SHAPES; i++) {
+            homes[i * 2] = random.nextInt((int) WORLD_SIZE);
+            homes[i * 2 + 1] = random.nextInt((int) WORLD_SIZE);
+            shapes.add(new RectangleShape(homes[i * 2], homes[i * 2 + 1],
+                homes[i * 2] + SIZE, homes[i * 2 + 1] + SIZE));
+        }
+        checker.addObjects(new ArrayList<Shape>(shapes));
+        checker.startSequence();
+    }
+
+
+    // ----------------------------------------------------------
+    public static void main(String[] args)
+    {
+        float[] margins = DEFAULT_MARGINS;
+        if (args.length > 0) {
+            String[] parts = args[0].split(",");
+            margins = new float[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                margins[i] = Float.parseFloat(parts[i]);
+            }
+        }
+
+        System.out.printf("%6s %10s %10s %13s %9s%n", "margin", "update ms",
+            "query ms", "tested/query", "rebuilds");
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (float margin : margins) {
+                String result = new JitterBenchmark(margin).run();
+                if (result == null) {
+                    System.out.println("FAILED: a query disagreed with the"
+                        + " scan");
+                    System.exit(1);
+                }
+                if (pass == PASSES - 1) {
+                    System.out.println(result);
+                }
+            }
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Wobble the shapes for a number of frames, querying each frame.
+     *
+     * @return A line of results, or null if a query disagreed with the
+     *         scan
+     */
+    public String run()
+    {
+        long updateTime = 0;
+        long queryTime = 0;
+        checker.resetQueryStats();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < SHAPES; i++) {
+                RectangleShape shape = shapes.get(i);
+                shape.setPosition(
+                    homes[i * 2] + (random.nextFloat() * 2 - 1) * MAX_MOVE,
+                    homes[i * 2 + 1] + (random.nextFloat() * 2 - 1) * MAX_MOVE);
+                shape.setRotation(
+                    (float) (MAX_TURN * Math.sin(frame * 0.1 + i)));
+                checker.updateObjectLocation(shape);
+            }
+            checker.startSequence();
+            long queries = System.nanoTime();
+            updateTime += queries - start;
+
+            for (int q = 0; q < QUERIES; q++) {
+                sink += checker.getIntersectingObjects(pick(), null).size();
+            }
+            queryTime += System.nanoTime() - queries;
+
+            if (frame % 10 == 0 && ! check()) {
+                return null;
+            }
+        }
+
+        // The checked queries are counted too, but are too few to matter
+        QueryStats stats = checker.getQueryStats();
+        return String.format("%6.0f %10d %10d %13.1f %9d",
+            checker.getIndexMargin(), updateTime / 1000000,
+            queryTime / 1000000, stats.getAverageCandidatesTested(),
+            checker.getTreeStats().getRebuildCount());
+    }
+
+    private boolean check()
+    {
+        for (int q = 0; q < CHECKED_QUERIES; q++) {
+            Shape shape = pick();
+            shapeQuery.init(null, shape);
+            Set<Shape> expected = new HashSet<Shape>();
+            for (Shape other : shapes) {
+                if (shapeQuery.checkCollision(other)) {
+                    expected.add(other);
+                }
+            }
+            if (! checker.getIntersectingObjects(shape, null).equals(
+                    expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private RectangleShape pick()
+    {
+        return shapes.get(random.nextInt(SHAPES));
+    }
+}
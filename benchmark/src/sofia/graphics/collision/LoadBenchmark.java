@@ -0,0 +1,274 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Measures how long a collision checker takes to load a level, adding its
+ * shapes one at a time and with {@link CollisionChecker#addObjects(
+ * java.util.Collection)}, and how good the resulting index is. The load
+ * time includes publishing the shapes with
+ * {@link CollisionChecker#startSequence()}, and is the average over a
+ * number of loads after a warm-up. For an {@link IBSPColChecker} it also
+ * prints the depth of the tree and the number of entries stored per shape,
+ * and for every checker the number of shapes tested per intersection
+ * query.
+ *
+ * <p>Before timing, each way of loading is checked against a scan of
+ * every shape: once with the whole level in one batch, and once with the
+ * level added in a large batch, a batch of the same size again, and then
+ * a batch too small to be laid out on its own. A tenth of the shapes are
+ * static.
+ *
+ * <p>Run it with {@code benchmark/run.sh LoadBenchmark}, optionally
+ * followed by the number of shapes and then the names of the checker
+ * classes. It exits with status 1 if a loaded checker disagrees with the
+ * scan.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class LoadBenchmark
+{
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker" };
+
+    private static final int WARMUP_LOADS = 5;
+    private static final int LOADS = 20;
+    private static final int QUERIES = 2000;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 4;
+    private static final float MAX_SIZE = 40;
+
+    private final Class<? extends CollisionChecker> checkerClass;
+    private final Random random = new Random(18);
+    private final List<Shape> shapes = new ArrayList<Shape>();
+
+    private final GOCollisionQuery shapeQuery = new GOCollisionQuery();
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a benchmark of one checker, with a level of a given number of
+     * shapes.
+     */
+    public LoadBenchmark(Class<? extends CollisionChecker> checkerClass,
+            int size)
+    {
+        this.checkerClass = checkerClass;
+        float worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        for (int i = 0; i < size; i++) {
+            float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            RectangleShape shape =
+                new RectangleShape(x, y, x + width, y + height);
+            shape.setStatic(i % 10 == 0);
+            shapes.add(shape);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = 20000;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                size = Integer.parseInt(arg);
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        System.out.printf("%-20s %-14s %8s %6s %11s %12s%n", "checker",
+            "loaded by", "load ms", "depth", "entries/sh", "tested/query");
+        boolean passed = true;
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            passed &= new LoadBenchmark(cls, size).run();
+        }
+        if (! passed) {
+            System.out.println("FAILED: a loaded checker disagreed with the"
+                + " scan");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check and time both ways of loading the level.
+     *
+     * @return True if every loaded checker matched the scan
+     */
+    public boolean run()
+        throws Exception
+    {
+        String label = checkerClass.getSimpleName();
+        String failure = check(load(false), "addObject");
+        if (failure == null) {
+            failure = check(load(true), "addObjects");
+        }
+        if (failure == null) {
+            failure = check(loadInBatches(), "batches");
+        }
+        if (failure != null) {
+            System.out.println(label + ": " + failure);
+            return false;
+        }
+
+        report(label, false);
+        report(label, true);
+        return true;
+    }
+
+    /**
+     * Time a number of loads one way, and print the results.
+     */
+    private void report(String label, boolean bulk)
+        throws Exception
+    {
+        long time = 0;
+        CollisionChecker checker = null;
+        for (int i = -WARMUP_LOADS; i < LOADS; i++) {
+            if (checker != null) {
+                unload(checker);
+            }
+            long start = System.nanoTime();
+            checker = load(bulk);
+            if (i >= 0) {
+                time += System.nanoTime() - start;
+            }
+        }
+
+        String depth = "-";
+        String entries = "-";
+        if (checker instanceof IBSPColChecker) {
+            BSPTreeStats stats = ((IBSPColChecker) checker).getTreeStats();
+            depth = Integer.toString(stats.getMaxDepth());
+            entries = String.format("%.2f",
+                (float) stats.getEntryCount() / stats.getShapeCount());
+        }
+
+        checker.resetQueryStats();
+        for (int q = 0; q < QUERIES; q++) {
+            checker.getIntersectingObjects(
+                shapes.get(random.nextInt(shapes.size())), null);
+        }
+        System.out.printf("%-20s %-14s %8.1f %6s %11s %12.1f%n", label,
+            bulk ? "addObjects" : "addObject", time / 1e6 / LOADS, depth,
+            entries, checker.getQueryStats().getAverageCandidatesTested());
+        unload(checker);
+    }
+
+    /**
+     * Load the whole level into a new checker, in one batch or a shape at
+     * a time, and publish it.
+     */
+    private CollisionChecker load(boolean bulk)
+        throws Exception
+    {
+        CollisionChecker checker =
+            checkerClass.getDeclaredConstructor().newInstance();
+        if (bulk) {
+            checker.addObjects(shapes);
+        }
+        else {
+            for (Shape shape : shapes) {
+                checker.addObject(shape);
+            }
+        }
+        checker.startSequence();
+        return checker;
+    }
+
+    /**
+     * Load the level in two large batches and a small one, publishing
+     * after each.
+     */
+    private CollisionChecker loadInBatches()
+        throws Exception
+    {
+        CollisionChecker checker =
+            checkerClass.getDeclaredConstructor().newInstance();
+        int small = Math.min(shapes.size(), 20);
+        int half = (shapes.size() - small) / 2;
+        checker.addObjects(shapes.subList(0, half));
+        checker.startSequence();
+        checker.addObjects(shapes.subList(half, half * 2));
+        checker.startSequence();
+        checker.addObjects(shapes.subList(half * 2, shapes.size()));
+        checker.startSequence();
+        return checker;
+    }
+
+    /**
+     * Take every shape out of a checker again. A shape keeps track of
+     * where it is in an {@link IBSPColChecker}, so it must not be loaded
+     * into another until it has been taken out of the last.
+     */
+    private void unload(CollisionChecker checker)
+    {
+        for (Shape shape : shapes) {
+            checker.removeObject(shape);
+        }
+        checker.startSequence();
+    }
+
+    /**
+     * Compare a loaded checker's shapes and intersection queries with a
+     * scan of every shape, and then unload it.
+     *
+     * @return A description of the first difference, or null
+     */
+    private String check(CollisionChecker checker, String loadedBy)
+    {
+        try {
+            return compare(checker, loadedBy);
+        }
+        finally {
+            unload(checker);
+        }
+    }
+
+    private String compare(CollisionChecker checker, String loadedBy)
+    {
+        if (! checker.getObjects().equals(new HashSet<Shape>(shapes))) {
+            return "loaded by " + loadedBy + ", it holds "
+                + checker.getObjects().size() + " shapes, expected "
+                + shapes.size();
+        }
+        for (int q = 0; q < QUERIES; q++) {
+            Shape shape = shapes.get(random.nextInt(shapes.size()));
+            shapeQuery.init(null, shape);
+            Set<Shape> expected = new HashSet<Shape>();
+            for (Shape other : shapes) {
+                if (shapeQuery.checkCollision(other)) {
+                    expected.add(other);
+                }
+            }
+            if (! checker.getIntersectingObjects(shape, null).equals(
+                    expected)) {
+                return "loaded by " + loadedBy
+                    + ", getIntersectingObjects disagreed with the scan";
+            }
+        }
+        return null;
+    }
+}
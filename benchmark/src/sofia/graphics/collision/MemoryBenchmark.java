@@ -0,0 +1,220 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Measures how much memory the collision checkers keep and churn through
+ * per shape, along with the time taken to add, move and search the shapes.
+ *
+ * <p>The memory a checker keeps is the heap in use, after garbage
+ * collection, with the checker full, less the heap in use with the same
+ * shapes and no checker. The memory churned is counted on the calling
+ * thread with {@code com.sun.management.ThreadMXBean}: once while every
+ * shape is added, and once per frame while every shape jitters by a pixel
+ * or two, as most shapes do from one frame to the next. Times are the
+ * median over the frames, after a warm-up.
+ *
+ * <p>Run it with {@code benchmark/run.sh MemoryBenchmark}, optionally
+ * followed by the shape counts and then the names of the checker classes,
+ * for example {@code benchmark/run.sh MemoryBenchmark 100000
+ * IBSPColChecker}. Heap figures are only comparable between runs on the
+ * same JVM with the same settings.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class MemoryBenchmark
+{
+    private static final int[] DEFAULT_SIZES = { 10000, 100000 };
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker" };
+
+    private static final int WARMUP_FRAMES = 10;
+    private static final int FRAMES = 20;
+    /** The number of searches made per frame. */
+    private static final int QUERIES = 5000;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 4;
+    private static final float MAX_SIZE = 24;
+
+    private final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long thread = Thread.currentThread().getId();
+
+    private final Class<? extends CollisionChecker> checkerClass;
+    private final int size;
+    private final Random random = new Random(42);
+    private RectangleShape[] shapes;
+
+    /** Results are summed here, so that the work cannot be optimized away. */
+    private long sink;
+    private final ShapeVisitor<Shape> counter = new ShapeVisitor<Shape>() {
+        public boolean visit(Shape shape)
+        {
+            sink++;
+            return true;
+        }
+    };
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a benchmark of one checker, at one size.
+     */
+    public MemoryBenchmark(Class<? extends CollisionChecker> checkerClass,
+            int size)
+    {
+        this.checkerClass = checkerClass;
+        this.size = size;
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int[] sizes = DEFAULT_SIZES;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                String[] parts = arg.split(",");
+                sizes = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    sizes[i] = Integer.parseInt(parts[i]);
+                }
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        System.out.printf("%-20s %7s %11s %11s %10s %11s %10s %10s%n",
+            "checker", "shapes", "kept B/sh", "add B/sh", "add ns/sh",
+            "move B/sh", "move ns/sh", "search ns");
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            for (int size : sizes) {
+                new MemoryBenchmark(cls, size).run();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Fill a checker, move its shapes for a number of frames, and print
+     * the results.
+     */
+    public void run()
+        throws Exception
+    {
+        createShapes();
+        long withoutChecker = usedHeap();
+
+        CollisionChecker checker =
+            checkerClass.getDeclaredConstructor().newInstance();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (Shape shape : shapes) {
+            checker.addObject(shape);
+        }
+        checker.startSequence();
+        double addTime = (double) (System.nanoTime() - start) / size;
+        double addBytes = (double) (allocatedBytes() - allocated) / size;
+
+        double[] moveTimes = new double[FRAMES];
+        double[] moveBytes = new double[FRAMES];
+        double[] searchTimes = new double[FRAMES];
+        for (int frame = -WARMUP_FRAMES; frame < FRAMES; frame++) {
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (RectangleShape shape : shapes) {
+                shape.setPosition(
+                    shape.getX() + random.nextFloat() * 4 - 2,
+                    shape.getY() + random.nextFloat() * 4 - 2);
+                checker.updateObjectLocation(shape);
+            }
+            checker.startSequence();
+            long moveTime = System.nanoTime() - start;
+            long moveAllocated = allocatedBytes() - allocated;
+
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                checker.forEachIntersectingObject(
+                    shapes[random.nextInt(size)], null, counter);
+            }
+            long searchTime = System.nanoTime() - start;
+
+            if (frame >= 0) {
+                moveTimes[frame] = (double) moveTime / size;
+                moveBytes[frame] = (double) moveAllocated / size;
+                searchTimes[frame] = (double) searchTime / QUERIES;
+            }
+        }
+
+        // The checker is still in use here, so none of it can be collected
+        double keptBytes = (double) (usedHeap() - withoutChecker) / size;
+        sink += checker.getObjects(null).size();
+
+        System.out.printf("%-20s %7d %11.1f %11.1f %10.1f %11.1f %10.1f %10.1f%n",
+            checkerClass.getSimpleName(), size, keptBytes, addBytes, addTime,
+            median(moveBytes), median(moveTimes), median(searchTimes));
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private void createShapes()
+    {
+        float worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        shapes = new RectangleShape[size];
+        for (int i = 0; i < size; i++) {
+            float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            shapes[i] = new RectangleShape(x, y, x + width, y + height);
+        }
+    }
+
+    /**
+     * Get the heap in use once garbage has been collected, as nearly as
+     * the JVM will say.
+     */
+    private static long usedHeap()
+        throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private long allocatedBytes()
+    {
+        return threads.getThreadAllocatedBytes(thread);
+    }
+
+    private static double median(double[] values)
+    {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
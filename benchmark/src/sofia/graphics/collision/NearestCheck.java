@@ -0,0 +1,221 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks {@link CollisionChecker#getNearestObjects(float, float, int,
+ * Class)} against the distance to every shape, measured here from
+ * scratch. Points are taken inside and well outside the world, and some
+ * queries ask for more shapes than there are, or for one class of shape
+ * only. Turned shapes are measured in their own unrotated frame.
+ *
+ * <p>Shapes at the same distance may come back in either order, so the
+ * result is checked distance by distance rather than shape by shape.
+ *
+ * <p>Run it with {@code benchmark/run.sh NearestCheck}, optionally
+ * followed by the number of shapes and then the names of the checker
+ * classes. It exits with status 1 on the first mismatch, and then times
+ * 20000 queries for the 5 nearest shapes.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class NearestCheck
+{
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker",
+        "ScanColChecker", "AdaptiveColChecker" };
+
+    private static final int QUERIES = 2000;
+    private static final int TIMED_QUERIES = 20000;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 2;
+    private static final float MAX_SIZE = 60;
+
+    private final CollisionChecker checker;
+    private final float worldSize;
+    private final Random random = new Random(6);
+    private final List<RectangleShape> shapes = new ArrayList<RectangleShape>();
+    private final Matrix inverse = new Matrix();
+    private final float[] point = new float[2];
+
+
+    /**
+     * A kind of shape the queries can ask for on its own.
+     */
+    private static class Marked extends RectangleShape
+    {
+        Marked(float left, float top, float right, float bottom)
+        {
+            super(left, top, right, bottom);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a check of one checker, filled with a given number of shapes.
+     */
+    public NearestCheck(CollisionChecker checker, int size)
+    {
+        this.checker = checker;
+        this.worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        for (int i = 0; i < size; i++) {
+            float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            if (i % 300 == 0) {
+                width = worldSize / 2;
+            }
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            RectangleShape shape = (i % 3 == 0)
+                ? new Marked(x, y, x + width, y + height)
+                : new RectangleShape(x, y, x + width, y + height);
+            if (i % 4 == 0) {
+                shape.setRotation(random.nextFloat() * 360);
+            }
+            shapes.add(shape);
+            checker.addObject(shape);
+        }
+        checker.startSequence();
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = 3000;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                size = Integer.parseInt(arg);
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        boolean passed = true;
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            CollisionChecker checker =
+                cls.getDeclaredConstructor().newInstance();
+            passed &= new NearestCheck(checker, size).run(cls.getSimpleName());
+        }
+        if (! passed) {
+            System.out.println("FAILED: a query disagreed with the scan");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Query the nearest shapes to random points, then time the query.
+     *
+     * @return True if every query matched the scan
+     */
+    public boolean run(String label)
+    {
+        for (int q = 0; q < QUERIES; q++) {
+            final float x = random.nextFloat() * worldSize * 2 - worldSize / 2;
+            final float y = random.nextFloat() * worldSize * 2 - worldSize / 2;
+            int k = (q % 50 == 0) ? shapes.size() * 2 : random.nextInt(20);
+            Class<? extends Shape> cls =
+                (q % 2 == 0) ? null : Marked.class;
+
+            List<Shape> expected = new ArrayList<Shape>();
+            for (Shape shape : shapes) {
+                if (cls == null || cls.isInstance(shape)) {
+                    expected.add(shape);
+                }
+            }
+            Collections.sort(expected, new Comparator<Shape>() {
+                public int compare(Shape a, Shape b)
+                {
+                    return Float.compare(distance(a, x, y), distance(b, x, y));
+                }
+            });
+            expected = expected.subList(0, Math.min(k, expected.size()));
+
+            List<? extends Shape> result =
+                checker.getNearestObjects(x, y, k, cls);
+            String at = "(" + x + ", " + y + ", " + k + ")";
+            if (result.size() != expected.size()
+                    || new HashSet<Shape>(result).size() != result.size()) {
+                System.out.println(label + ": getNearestObjects" + at
+                    + " found " + result.size() + " shapes, expected "
+                    + expected.size());
+                return false;
+            }
+            for (int i = 0; i < result.size(); i++) {
+                Shape shape = result.get(i);
+                if ((cls != null && ! cls.isInstance(shape))
+                        || distance(shape, x, y)
+                            != distance(expected.get(i), x, y)) {
+                    System.out.println(label + ": getNearestObjects" + at
+                        + " returned the wrong shape " + i);
+                    return false;
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        long found = 0;
+        for (int q = 0; q < TIMED_QUERIES; q++) {
+            found += checker.getNearestObjects(random.nextFloat() * worldSize,
+                random.nextFloat() * worldSize, 5, null).size();
+        }
+        long time = System.nanoTime() - start;
+        System.out.printf("%s: OK, %.0f ns per query for the 5 nearest of %d"
+            + " (%d found)%n", label, (double) time / TIMED_QUERIES,
+            shapes.size(), found);
+        return true;
+    }
+
+    /**
+     * Get the squared distance from a point to a shape's unrotated box,
+     * with the point carried into the shape's frame.
+     */
+    private float distance(Shape shape, float x, float y)
+    {
+        RectF bounds = shape.getBounds();
+        float px = x;
+        float py = y;
+        float left = bounds.left;
+        float top = bounds.top;
+        float right = bounds.right;
+        float bottom = bounds.bottom;
+        Matrix transform = shape.getTransform();
+        if (transform != null) {
+            transform.invert(inverse);
+            point[0] = x - bounds.left;
+            point[1] = y - bounds.top;
+            inverse.mapPoints(point);
+            px = point[0];
+            py = point[1];
+            left = 0;
+            top = 0;
+            right = bounds.width();
+            bottom = bounds.height();
+        }
+        float dx = Math.max(0, Math.max(left - px, px - right));
+        float dy = Math.max(0, Math.max(top - py, py - bottom));
+        return dx * dx + dy * dy;
+    }
+}
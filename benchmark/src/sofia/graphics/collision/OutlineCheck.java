@@ -0,0 +1,336 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.LineShape;
+import sofia.graphics.OvalShape;
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks {@link Shape#intersects(Shape)} for ovals, lines and boxes, each
+ * turned half the time, against a reference worked out here from the
+ * shapes' outlines. Two regions overlap if any point of a fine grid over
+ * the overlap of their boxes is inside both; a line meets a region if any
+ * of many points along it is inside the region; and two lines meet if
+ * they cross. Sampling can miss a sliver of overlap, so a pair the
+ * reference disagrees on is accepted only if it lies within half a pixel
+ * of touching, that is, if growing the shapes by a quarter of a pixel
+ * each and shrinking them by as much give different answers.
+ *
+ * <p>Each pair is tested where it is made and again after the first
+ * shape has moved a little, and must give the same answer both ways
+ * round. Once the first shape has moved back,
+ * {@link Shape#intersects(Shape)} and {@link Shape#getTimeOfImpact(Shape,
+ * float, float)} must give exactly the same results as before it moved.
+ * Between them these show that the outlines the shapes keep are rebuilt
+ * whenever they move.
+ *
+ * <p>It then times the test of every pair of 2000 shapes.
+ *
+ * <p>Run it with {@code benchmark/run.sh OutlineCheck}, optionally
+ * followed by the number of pairs. It exits with status 1 on the first
+ * failure.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class OutlineCheck
+{
+    /** How near to touching a pair the reference disagrees on must be. */
+    private static final float NEAR = 0.5f;
+    private static final int LINE_SAMPLES = 4000;
+    private static final int TIMED_SHAPES = 2000;
+    private static final int TIMED_REPEATS = 3;
+
+    private final Random random = new Random(11);
+    private final Matrix inverse = new Matrix();
+    private final float[] point = new float[2];
+
+
+    // ----------------------------------------------------------
+    public static void main(String[] args)
+    {
+        int pairs = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        OutlineCheck check = new OutlineCheck();
+        if (! check.run(pairs)) {
+            System.out.println("FAILED: a test disagreed with the outlines");
+            System.exit(1);
+        }
+        check.time();
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Test a number of random pairs against the reference.
+     *
+     * @return True if every pair matched, or was within half a pixel of
+     *         touching
+     */
+    public boolean run(int pairs)
+    {
+        int tests = 0;
+        int agreed = 0;
+        int touching = 0;
+        for (int t = 0; t < pairs; t++) {
+            Shape first = createShape();
+            Shape second = createShape();
+            String pair = first.getClass().getSimpleName() + " and "
+                + second.getClass().getSimpleName() + " (pair " + t + ")";
+
+            float dx = random.nextFloat() * 80 - 40;
+            float dy = random.nextFloat() * 80 - 40;
+            boolean result = first.intersects(second);
+            float impact = first.getTimeOfImpact(second, dx, dy);
+            float x = first.getX();
+            float y = first.getY();
+            for (int place = 0; place < 2; place++) {
+                boolean placed = first.intersects(second);
+                if (placed != second.intersects(first)) {
+                    System.out.println(pair + ": gave different answers each"
+                        + " way round");
+                    return false;
+                }
+                tests++;
+                if (placed == overlaps(first, second, 0)) {
+                    agreed++;
+                }
+                else if (overlaps(first, second, NEAR)
+                        != overlaps(first, second, -NEAR)) {
+                    touching++;
+                }
+                else {
+                    System.out.println(pair + ": gave " + placed
+                        + ", and the outlines are not near touching");
+                    return false;
+                }
+                first.setPosition(x + random.nextInt(21) - 10,
+                    y + random.nextInt(21) - 10);
+            }
+
+            first.setPosition(x, y);
+            if (first.intersects(second) != result
+                    || Float.floatToIntBits(first.getTimeOfImpact(
+                        second, dx, dy)) != Float.floatToIntBits(impact)) {
+                System.out.println(pair + ": changed after moving away and"
+                    + " back");
+                return false;
+            }
+        }
+        System.out.printf("intersects(): %d/%d match, and the other %d are"
+            + " within %.1f pixels of touching%n", agreed, tests, touching,
+            NEAR);
+        return true;
+    }
+
+    /**
+     * Make an oval, box or line, turned half the time. Half the lines are
+     * drawn right to left.
+     */
+    private Shape createShape()
+    {
+        float x = 100 + random.nextInt(100);
+        float y = 100 + random.nextInt(100);
+        float width = 5 + random.nextInt(80);
+        float height = 5 + random.nextInt(80);
+        Shape shape;
+        switch (random.nextInt(3)) {
+            case 0:
+                shape = new OvalShape(x, y, x + width, y + height);
+                break;
+            case 1:
+                shape = new RectangleShape(x, y, x + width, y + height);
+                break;
+            default:
+                shape = random.nextBoolean()
+                    ? new LineShape(x + width, y, x, y + height)
+                    : new LineShape(x, y, x + width, y + height);
+                break;
+        }
+        if (random.nextBoolean()) {
+            shape.setRotation(random.nextInt(360));
+        }
+        return shape;
+    }
+
+    /**
+     * Check whether two shapes' outlines overlap.
+     *
+     * @param grow  How far the outlines are apart when they are taken to
+     *              touch, or if negative how far they must overlap
+     */
+    private boolean overlaps(Shape first, Shape second, float grow)
+    {
+        if (first instanceof LineShape && second instanceof LineShape) {
+            return linesMeet(ends(first), ends(second), grow);
+        }
+        if (first instanceof LineShape || second instanceof LineShape) {
+            Shape line = (first instanceof LineShape) ? first : second;
+            Shape region = (line == first) ? second : first;
+            float[] ends = ends(line);
+            for (int i = 1; i < LINE_SAMPLES; i++) {
+                float t = (float) i / LINE_SAMPLES;
+                if (isInside(region, ends[0] + t * (ends[2] - ends[0]),
+                        ends[1] + t * (ends[3] - ends[1]), grow)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        RectF area = new RectF(first.getRotatedBounds());
+        area.inset(-Math.abs(grow), -Math.abs(grow));
+        if (! area.intersect(second.getRotatedBounds())) {
+            return false;
+        }
+        float step = Math.max(0.05f,
+            Math.max(area.width(), area.height()) / 400);
+        for (float y = area.top + step / 2; y < area.bottom; y += step) {
+            for (float x = area.left + step / 2; x < area.right; x += step) {
+                if (isInside(first, x, y, grow / 2)
+                        && isInside(second, x, y, grow / 2)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a point is inside a box or oval, carrying the point
+     * into the shape's unturned frame first.
+     *
+     * @param grow  How far to grow the shape on every side, or if negative
+     *              how far to shrink it
+     */
+    private boolean isInside(Shape shape, float x, float y, float grow)
+    {
+        RectF bounds = shape.getBounds();
+        point[0] = x - bounds.left;
+        point[1] = y - bounds.top;
+        Matrix transform = shape.getTransform();
+        if (transform != null) {
+            transform.invert(inverse);
+            inverse.mapPoints(point);
+        }
+        float width = bounds.width();
+        float height = bounds.height();
+        if (shape instanceof OvalShape) {
+            double rx = width / 2 + grow;
+            double ry = height / 2 + grow;
+            if (rx <= 0 || ry <= 0) {
+                return false;
+            }
+            double dx = point[0] - width / 2;
+            double dy = point[1] - height / 2;
+            return (dx * dx) / (rx * rx) + (dy * dy) / (ry * ry) < 1;
+        }
+        return point[0] > -grow && point[0] < width + grow
+            && point[1] > -grow && point[1] < height + grow;
+    }
+
+    /**
+     * Get the ends of a line in view coordinates.
+     */
+    private float[] ends(Shape line)
+    {
+        RectF bounds = line.getBounds();
+        float[] ends = { 0, 0, bounds.right - bounds.left,
+            bounds.bottom - bounds.top };
+        Matrix transform = line.getTransform();
+        if (transform != null) {
+            transform.mapPoints(ends);
+        }
+        for (int i = 0; i < 4; i += 2) {
+            ends[i] += bounds.left;
+            ends[i + 1] += bounds.top;
+        }
+        return ends;
+    }
+
+    /**
+     * Check whether two lines cross, or if grow is positive whether they
+     * come within that distance of each other. If grow is negative, they
+     * must cross with every end at least that far from the other line.
+     */
+    private static boolean linesMeet(float[] a, float[] b, float grow)
+    {
+        if (grow > 0) {
+            return distance(a, b) < grow;
+        }
+        boolean cross = side(b, a[0], a[1]) * side(b, a[2], a[3]) < 0
+            && side(a, b[0], b[1]) * side(a, b[2], b[3]) < 0;
+        if (! cross || grow == 0) {
+            return cross;
+        }
+        return distance(a, b[0], b[1]) >= -grow
+            && distance(a, b[2], b[3]) >= -grow
+            && distance(b, a[0], a[1]) >= -grow
+            && distance(b, a[2], a[3]) >= -grow;
+    }
+
+    private static double side(float[] line, double x, double y)
+    {
+        return (line[2] - line[0]) * (y - line[1])
+            - (line[3] - line[1]) * (x - line[0]);
+    }
+
+    /**
+     * Get the distance between two lines, which do not cross.
+     */
+    private static double distance(float[] a, float[] b)
+    {
+        if (linesMeet(a, b, 0)) {
+            return 0;
+        }
+        return Math.min(
+            Math.min(distance(a, b[0], b[1]), distance(a, b[2], b[3])),
+            Math.min(distance(b, a[0], a[1]), distance(b, a[2], a[3])));
+    }
+
+    /**
+     * Get the distance from a point to a line.
+     */
+    private static double distance(float[] line, double x, double y)
+    {
+        double dx = line[2] - line[0];
+        double dy = line[3] - line[1];
+        double t = ((x - line[0]) * dx + (y - line[1]) * dy)
+            / (dx * dx + dy * dy);
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(x - line[0] - t * dx, y - line[1] - t * dy);
+    }
+
+    /**
+     * Time the test of every pair of a number of shapes, taking the best
+     * of a few repeats.
+     */
+    public void time()
+    {
+        List<Shape> shapes = new ArrayList<Shape>();
+        for (int i = 0; i < TIMED_SHAPES; i++) {
+            shapes.add(createShape());
+        }
+        long best = Long.MAX_VALUE;
+        int hits = 0;
+        for (int repeat = 0; repeat < TIMED_REPEATS; repeat++) {
+            hits = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < shapes.size(); i++) {
+                for (int j = i + 1; j < shapes.size(); j++) {
+                    if (shapes.get(i).intersects(shapes.get(j))) {
+                        hits++;
+                    }
+                }
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        long pairs = (long) TIMED_SHAPES * (TIMED_SHAPES - 1) / 2;
+        System.out.printf("%.1f ns per pair over %d pairs (%d intersect)%n",
+            (double) best / pairs, pairs, hits);
+    }
+}
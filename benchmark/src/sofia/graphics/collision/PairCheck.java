@@ -0,0 +1,252 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks {@link CollisionChecker#findCollidingPairs(Collection,
+ * PairVisitor)} against a test of every moved shape with every other
+ * shape, while shapes are added, removed and moved. A tenth of the shapes
+ * are static, so that pairs of two static shapes must be left out.
+ * {@link IBSPColChecker} is checked a second time with world bounds
+ * covering only the middle of the shapes, so that pairs with overflow
+ * shapes are searched too.
+ *
+ * <p>Every few frames the search is first run with a visitor that throws
+ * at the first pair, and then run again; the second search must still
+ * report every pair once, so a search that leaves state behind when its
+ * visitor throws is caught.
+ *
+ * <p>Run it with {@code benchmark/run.sh PairCheck}, optionally followed
+ * by the number of shapes and then the names of the checker classes. It
+ * exits with status 1 on the first mismatch.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class PairCheck
+{
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker",
+        "ScanColChecker", "AdaptiveColChecker" };
+
+    private static final int FRAMES = 200;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 5;
+    private static final float MAX_SIZE = 45;
+
+    private final CollisionChecker checker;
+    private final float worldSize;
+    private final Random random = new Random(3);
+    private final List<RectangleShape> shapes = new ArrayList<RectangleShape>();
+    private final Map<Shape, Integer> ids = new IdentityHashMap<Shape, Integer>();
+    private int nextId;
+
+    private final Set<Long> found = new HashSet<Long>();
+    private final PairVisitor collector = new PairVisitor() {
+        public void visitPair(Shape a, Shape b)
+        {
+            if (a == b) {
+                throw new IllegalStateException(a + " paired with itself");
+            }
+            if (! found.add(key(a, b))) {
+                throw new IllegalStateException("pair reported twice");
+            }
+        }
+    };
+    private final PairVisitor thrower = new PairVisitor() {
+        public void visitPair(Shape a, Shape b)
+        {
+            throw new VisitorFailed();
+        }
+    };
+
+
+    /**
+     * Thrown by a visitor part way through a search.
+     */
+    private static class VisitorFailed extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a check of one checker, filled with a given number of shapes.
+     */
+    public PairCheck(CollisionChecker checker, int size)
+    {
+        this.checker = checker;
+        this.worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        for (int i = 0; i < size; i++) {
+            add();
+        }
+        checker.startSequence();
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = 1500;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                size = Integer.parseInt(arg);
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        boolean passed = true;
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            CollisionChecker checker =
+                cls.getDeclaredConstructor().newInstance();
+            passed &= new PairCheck(checker, size).run(cls.getSimpleName());
+
+            if (checker instanceof IBSPColChecker) {
+                IBSPColChecker bounded = new IBSPColChecker();
+                PairCheck check = new PairCheck(bounded, size);
+                float quarter = check.worldSize / 4;
+                bounded.setWorldBounds(new android.graphics.RectF(
+                    quarter, quarter, quarter * 3, quarter * 3));
+                passed &= check.run("IBSPColChecker with world bounds");
+            }
+        }
+        if (! passed) {
+            System.out.println("FAILED: a search disagreed with the scan");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Change the shapes and search for pairs for a number of frames.
+     *
+     * @return True if every search matched the scan
+     */
+    public boolean run(String label)
+    {
+        long pairs = 0;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            Set<Shape> moved = change();
+            checker.startSequence();
+
+            if (frame % 5 == 0) {
+                try {
+                    checker.findCollidingPairs(moved, thrower);
+                }
+                catch (VisitorFailed e) {
+                    // Expected whenever there is a pair to report
+                }
+            }
+
+            found.clear();
+            checker.findCollidingPairs(moved, collector);
+            Set<Long> expected = scan(moved);
+            if (! found.equals(expected)) {
+                System.out.println(label + ": found " + found.size()
+                    + " pairs, expected " + expected.size()
+                    + " (frame " + frame + ")");
+                return false;
+            }
+            pairs += found.size();
+        }
+        System.out.println(label + ": OK, " + pairs + " pairs found");
+        return true;
+    }
+
+    /**
+     * Add and remove a few shapes, and move about a quarter of them. One
+     * move in a hundred is a long jump. Another quarter are counted as
+     * moved without moving.
+     *
+     * @return The shapes to search for pairs with
+     */
+    private Set<Shape> change()
+    {
+        Set<Shape> moved = new LinkedHashSet<Shape>();
+        for (int i = random.nextInt(5); i > 0; i--) {
+            moved.add(add());
+        }
+        for (int i = random.nextInt(4); i > 0; i--) {
+            Shape shape = shapes.remove(random.nextInt(shapes.size()));
+            checker.removeObject(shape);
+            moved.remove(shape);
+        }
+        for (RectangleShape shape : shapes) {
+            int choice = random.nextInt(4);
+            if (choice == 0) {
+                int step = (random.nextInt(100) == 0) ? 500 : 6;
+                shape.setPosition(
+                    shape.getX() + random.nextInt(step * 2 + 1) - step,
+                    shape.getY() + random.nextInt(step * 2 + 1) - step);
+                checker.updateObjectLocation(shape);
+                moved.add(shape);
+            }
+            else if (choice == 1) {
+                moved.add(shape);
+            }
+        }
+        return moved;
+    }
+
+    private RectangleShape add()
+    {
+        float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+        float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+        float x = random.nextFloat() * worldSize;
+        float y = random.nextFloat() * worldSize;
+        RectangleShape shape =
+            new RectangleShape(x, y, x + width, y + height);
+        shape.setStatic(random.nextInt(10) == 0);
+        shapes.add(shape);
+        ids.put(shape, nextId++);
+        checker.addObject(shape);
+        return shape;
+    }
+
+    /**
+     * Find every pair the search should report, by testing each moved
+     * shape with every other.
+     */
+    private Set<Long> scan(Set<Shape> moved)
+    {
+        Set<Long> expected = new HashSet<Long>();
+        for (Shape a : moved) {
+            for (Shape b : shapes) {
+                if (a != b && ! (a.isStatic() && b.isStatic())
+                        && a.canCollideWith(b) && a.intersects(b)) {
+                    expected.add(key(a, b));
+                }
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * Get a key for an unordered pair of shapes.
+     */
+    private long key(Shape a, Shape b)
+    {
+        long i = ids.get(a);
+        long j = ids.get(b);
+        return (Math.min(i, j) << 32) | Math.max(i, j);
+    }
+}
@@ -0,0 +1,289 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks that {@link ParallelPairSearch} reports the same contacts as the
+ * checker's own serial search. Two {@link ContactManager}s follow the same
+ * shapes, one fed by each search, and the events they fire each frame
+ * must be identical, in the same order. A fifth of the shapes are static
+ * and some have categories and masks, and the number of moved shapes
+ * varies from a few to half of them, so that frames below and above the
+ * parallel threshold are both covered.
+ *
+ * <p>One shape throws from {@link Shape#canCollideWith(Shape)} on request,
+ * and the check also makes sure that the error reaches the calling thread
+ * from whichever thread searched that shape, and that the next search is
+ * unaffected.
+ *
+ * <p>Run it with {@code benchmark/run.sh ParallelCheck}, optionally
+ * followed by the number of shapes and then the names of the checker
+ * classes. It prints the time spent in each search, and exits with status
+ * 1 on the first difference.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class ParallelCheck
+{
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker" };
+
+    private static final int FRAMES = 60;
+    private static final int THRESHOLD = 50;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 5;
+    private static final float MAX_SIZE = 30;
+
+    private final CollisionChecker checker;
+    private final Random random = new Random(9);
+    private final List<RectangleShape> shapes = new ArrayList<RectangleShape>();
+    private final Map<Shape, Integer> ids = new IdentityHashMap<Shape, Integer>();
+    private final Faulty faulty;
+
+    private final ContactManager serialContacts = new ContactManager();
+    private final ContactManager parallelContacts = new ContactManager();
+    private final ParallelPairSearch search = new ParallelPairSearch();
+
+
+    /**
+     * A shape that fails its collision tests while {@link #failing} is
+     * set.
+     */
+    private static class Faulty extends RectangleShape
+    {
+        volatile boolean failing;
+
+        Faulty(float left, float top, float right, float bottom)
+        {
+            super(left, top, right, bottom);
+        }
+
+        @Override
+        public boolean canCollideWith(Shape other)
+        {
+            if (failing) {
+                throw new IllegalStateException("canCollideWith() failed");
+            }
+            return super.canCollideWith(other);
+        }
+    }
+
+
+    /**
+     * Records the events a contact manager fires, by shape number.
+     */
+    private class EventLog
+        implements ContactListener
+    {
+        final StringBuilder events = new StringBuilder();
+
+        public void contactBegan(Shape first, Shape second)
+        {
+            add('B', first, second);
+        }
+
+        public void contactPersisted(Shape first, Shape second)
+        {
+            add('P', first, second);
+        }
+
+        public void contactEnded(Shape first, Shape second)
+        {
+            add('E', first, second);
+        }
+
+        private void add(char kind, Shape first, Shape second)
+        {
+            events.append(kind).append(ids.get(first)).append(',')
+                .append(ids.get(second)).append(';');
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a check of one checker, filled with a given number of shapes.
+     */
+    public ParallelCheck(CollisionChecker checker, int size)
+    {
+        this.checker = checker;
+        search.setThreshold(THRESHOLD);
+        float worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        Faulty lastFaulty = null;
+        for (int i = 0; i < size; i++) {
+            float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            RectangleShape shape;
+            if (i == size - 1) {
+                // Last, so that it is searched on another thread, and on
+                // top of the first, so that it is always tested
+                RectangleShape first = shapes.get(0);
+                shape = lastFaulty = new Faulty(first.getX(), first.getY(),
+                    first.getX() + width, first.getY() + height);
+            }
+            else {
+                shape = new RectangleShape(x, y, x + width, y + height);
+                shape.setStatic(random.nextInt(5) == 0);
+            }
+            if (random.nextInt(7) == 0) {
+                shape.setCollisionCategories(2);
+            }
+            if (random.nextInt(7) == 0) {
+                shape.setCollisionMask(1);
+            }
+            shapes.add(shape);
+            ids.put(shape, i);
+            checker.addObject(shape);
+            serialContacts.addObject(shape);
+            parallelContacts.addObject(shape);
+        }
+        faulty = lastFaulty;
+        checker.startSequence();
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = 6000;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                size = Integer.parseInt(arg);
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        boolean passed = true;
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            CollisionChecker checker =
+                cls.getDeclaredConstructor().newInstance();
+            passed &= new ParallelCheck(checker, size).run(cls.getSimpleName());
+        }
+        if (! passed) {
+            System.out.println("FAILED: the searches disagreed");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Move the shapes for a number of frames, comparing the events of
+     * both searches each frame.
+     *
+     * @return True if every frame's events matched
+     */
+    public boolean run(String label)
+    {
+        long serialTime = 0;
+        long parallelTime = 0;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            Set<Shape> moved = change(frame);
+            checker.startSequence();
+
+            if (frame == FRAMES / 2 && ! checkFailure(label)) {
+                return false;
+            }
+
+            EventLog serialEvents = new EventLog();
+            serialContacts.beginFrame(moved);
+            long start = System.nanoTime();
+            checker.findCollidingPairs(moved, serialContacts);
+            serialTime += System.nanoTime() - start;
+            serialContacts.endFrame(serialEvents);
+
+            EventLog parallelEvents = new EventLog();
+            parallelContacts.beginFrame(moved);
+            start = System.nanoTime();
+            search.findCollidingPairs(checker, moved, parallelContacts);
+            parallelTime += System.nanoTime() - start;
+            parallelContacts.endFrame(parallelEvents);
+
+            if (! serialEvents.events.toString().equals(
+                    parallelEvents.events.toString())) {
+                System.out.println(label + ": the events differ with "
+                    + moved.size() + " shapes moved (frame " + frame + ")");
+                return false;
+            }
+        }
+        System.out.printf("%s: OK, serial %d ms, parallel %d ms%n", label,
+            serialTime / 1000000, parallelTime / 1000000);
+        return true;
+    }
+
+    /**
+     * Move some of the shapes that are not static, and now and then a
+     * static one. The faulty shape stays put, on top of the first. Every tenth frame, half of them move.
+     *
+     * @return The shapes that moved
+     */
+    private Set<Shape> change(int frame)
+    {
+        Set<Shape> moved = new LinkedHashSet<Shape>();
+        int odds = (frame % 10 == 0) ? 2 : 30;
+        for (RectangleShape shape : shapes) {
+            if (! shape.isStatic() && shape != faulty
+                    && random.nextInt(odds) == 0) {
+                shape.setPosition(shape.getX() + random.nextInt(9) - 4,
+                    shape.getY() + random.nextInt(9) - 4);
+                checker.updateObjectLocation(shape);
+                moved.add(shape);
+            }
+        }
+        if (random.nextInt(3) == 0) {
+            RectangleShape shape = shapes.get(random.nextInt(shapes.size()));
+            if (shape.isStatic()) {
+                shape.setPosition(shape.getX() + 3, shape.getY() + 3);
+                checker.updateObjectLocation(shape);
+                moved.add(shape);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Check that a failure on a search thread is thrown on this one.
+     */
+    private boolean checkFailure(String label)
+    {
+        Set<Shape> all = new LinkedHashSet<Shape>(shapes);
+        faulty.failing = true;
+        try {
+            search.findCollidingPairs(checker, all, new PairVisitor() {
+                public void visitPair(Shape first, Shape second)
+                {
+                    // Not needed
+                }
+            });
+            System.out.println(label + ": a failed test was not reported");
+            return false;
+        }
+        catch (IllegalStateException e) {
+            // Expected
+            return true;
+        }
+        finally {
+            faulty.failing = false;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.ImageShape;
+import sofia.graphics.Shape;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks the pixel-perfect {@link ImageShape#intersects(Shape)} and
+ * {@link ImageShape#contains(float, float)} against a reference worked out
+ * here from the bitmaps' pixels, for pairs of random blob sprites. Half the
+ * pairs are drawn at their natural size without turning, which the masks
+ * test a word at a time, and these must match the reference exactly. The
+ * other half are scaled, turned, or drawn from part of their bitmap, and
+ * the reference for them samples a grid of points a quarter of a pixel
+ * apart, so a few pairs that barely touch may be judged differently; the
+ * check counts how many, and how many of those lie within half a pixel of
+ * touching. Every pair must give the same answer both ways round, and
+ * contains() must always match the reference.
+ *
+ * <p>It then times the test of each overlapping pair of 200 circular
+ * 64x64 sprites, against a loop over the pixels of the overlap, and
+ * prints the best time of 30 repeats.
+ *
+ * <p>Run it with {@code benchmark/run.sh PixelCheck}, optionally followed
+ * by the number of pairs. It exits with status 1 if an aligned pair, a
+ * reversed pair, or a point disagrees.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class PixelCheck
+{
+    private static final int POINTS_PER_PAIR = 20;
+    /** The spacing of the reference's sample points, in pixels. */
+    private static final float STEP = 0.25f;
+    /** How near to touching a pair the reference disagrees on must be. */
+    private static final float NEAR = 0.5f;
+    private static final int OPAQUE = 128;
+
+    private static final int SPRITES = 200;
+    private static final int SPRITE_SIZE = 64;
+    private static final int TIMED_REPEATS = 30;
+
+    private final Random random = new Random(7);
+    private final Matrix inverse = new Matrix();
+    private final float[] point = new float[2];
+
+
+    // ----------------------------------------------------------
+    public static void main(String[] args)
+    {
+        int pairs = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        PixelCheck check = new PixelCheck();
+        if (! check.run(pairs)) {
+            System.out.println("FAILED: a test disagreed with the pixels");
+            System.exit(1);
+        }
+        check.time();
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Test a number of random pairs against the reference.
+     *
+     * @return True if every aligned pair, reversed pair and point matched
+     */
+    public boolean run(int pairs)
+    {
+        int aligned = 0;
+        int other = 0;
+        int otherAgreed = 0;
+        int otherNear = 0;
+        int points = 0;
+        long time = 0;
+        for (int t = 0; t < pairs; t++) {
+            ImageShape[] shapes = (t % 2 == 0) ? alignedPair() : otherPair();
+            ImageShape first = shapes[0];
+            ImageShape second = shapes[1];
+
+            long start = System.nanoTime();
+            boolean result = first.intersects(second);
+            boolean reversed = second.intersects(first);
+            time += System.nanoTime() - start;
+            if (result != reversed) {
+                System.out.println("Pair " + t + " gave " + result
+                    + " one way round and " + reversed + " the other");
+                return false;
+            }
+
+            boolean expected = overlaps(first, second, 0);
+            if (t % 2 == 0) {
+                aligned++;
+                if (result != expected) {
+                    System.out.println("Aligned pair " + t + " gave " + result
+                        + ", expected " + expected);
+                    return false;
+                }
+            }
+            else {
+                other++;
+                if (result == expected) {
+                    otherAgreed++;
+                }
+                else if (expected ? ! overlaps(first, second, -NEAR)
+                        : overlaps(first, second, NEAR)) {
+                    otherNear++;
+                }
+            }
+
+            RectF area = second.getRotatedBounds();
+            for (int q = 0; q < POINTS_PER_PAIR; q++) {
+                float x = area.left - 5
+                    + random.nextFloat() * (area.width() + 10);
+                float y = area.top - 5
+                    + random.nextFloat() * (area.height() + 10);
+                points++;
+                if (second.contains(x, y) != isOpaqueAt(second, x, y)) {
+                    System.out.println("contains(" + x + ", " + y
+                        + ") disagreed in pair " + t);
+                    return false;
+                }
+            }
+        }
+        System.out.printf("Aligned pairs: %d/%d match%n", aligned, aligned);
+        System.out.printf("Scaled, turned or cropped pairs: %d/%d match, and"
+            + " %d of the other %d are within %.1f pixels of touching%n",
+            otherAgreed, other, otherNear, other - otherAgreed, NEAR);
+        System.out.printf("contains(): %d/%d match%n", points, points);
+        System.out.printf("%.2f us per pair, both ways round%n",
+            time / 1000.0 / pairs);
+        return true;
+    }
+
+    /**
+     * Make a pair of sprites at their natural size, unturned, placed so
+     * that their boxes usually overlap.
+     */
+    private ImageShape[] alignedPair()
+    {
+        Bitmap first = blob(8 + random.nextInt(120), 8 + random.nextInt(70));
+        Bitmap second = blob(8 + random.nextInt(90), 8 + random.nextInt(90));
+        int x = 100 + random.nextInt(200) - second.getWidth();
+        int y = 100 + random.nextInt(120) - second.getHeight() / 2;
+        return new ImageShape[] {
+            new ImageShape(first, new RectF(100, 100,
+                100 + first.getWidth(), 100 + first.getHeight())),
+            new ImageShape(second, new RectF(x, y,
+                x + second.getWidth(), y + second.getHeight()))
+        };
+    }
+
+    /**
+     * Make a pair of sprites at random scales, each turned half the time,
+     * and the second sometimes drawn from part of its bitmap.
+     */
+    private ImageShape[] otherPair()
+    {
+        Bitmap first = blob(8 + random.nextInt(120), 8 + random.nextInt(70));
+        Bitmap second = blob(8 + random.nextInt(90), 8 + random.nextInt(90));
+        float firstScale = 0.2f + random.nextFloat() * 2;
+        float secondScale = 0.2f + random.nextFloat() * 2;
+        float x = 60 + random.nextInt(120);
+        float y = 60 + random.nextInt(120);
+        ImageShape[] shapes = {
+            new ImageShape(first, new RectF(100, 100,
+                100 + first.getWidth() * firstScale,
+                100 + first.getHeight() * firstScale)),
+            new ImageShape(second, new RectF(x, y,
+                x + second.getWidth() * secondScale,
+                y + second.getHeight() * secondScale))
+        };
+        for (ImageShape shape : shapes) {
+            if (random.nextBoolean()) {
+                shape.setRotation(random.nextInt(360));
+            }
+        }
+        if (random.nextInt(4) == 0) {
+            int width = second.getWidth();
+            int height = second.getHeight();
+            shapes[1].setSourceBounds(width / 4, height / 4, width, height);
+        }
+        return shapes;
+    }
+
+    /**
+     * Make a bitmap of one to three opaque discs on a transparent
+     * background.
+     */
+    private Bitmap blob(int width, int height)
+    {
+        Bitmap bitmap =
+            Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int discs = 1 + random.nextInt(3);
+        for (int k = 0; k < discs; k++) {
+            float cx = random.nextInt(width);
+            float cy = random.nextInt(height);
+            float radius = 3 + random.nextInt(Math.max(4, width / 2));
+            disc(bitmap, cx, cy, radius);
+        }
+        return bitmap;
+    }
+
+    private static void disc(Bitmap bitmap, float cx, float cy, float radius)
+    {
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            for (int x = 0; x < bitmap.getWidth(); x++) {
+                float dx = x + 0.5f - cx;
+                float dy = y + 0.5f - cy;
+                if (dx * dx + dy * dy < radius * radius) {
+                    bitmap.setPixel(x, y, 0xff000000);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether two sprites both cover any point of a grid over the
+     * overlap of their boxes.
+     *
+     * @param grow  How far to grow each sprite's opaque pixels, in pixels,
+     *              or if negative how far to shrink them
+     */
+    private boolean overlaps(ImageShape first, ImageShape second, float grow)
+    {
+        RectF area = new RectF(first.getRotatedBounds());
+        area.inset(-Math.max(grow, 0), -Math.max(grow, 0));
+        if (! area.intersect(second.getRotatedBounds())) {
+            return false;
+        }
+        for (float y = (float) Math.floor(area.top) + STEP / 2;
+                y < area.bottom; y += STEP) {
+            for (float x = (float) Math.floor(area.left) + STEP / 2;
+                    x < area.right; x += STEP) {
+                if (isOpaqueNear(first, x, y, grow)
+                        && isOpaqueNear(second, x, y, grow)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check a point and the eight points around it at a distance. If the
+     * distance is positive, any of them may be opaque; if negative, all of
+     * them must be.
+     */
+    private boolean isOpaqueNear(ImageShape shape, float x, float y,
+            float distance)
+    {
+        if (distance == 0) {
+            return isOpaqueAt(shape, x, y);
+        }
+        boolean any = distance > 0;
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                if (isOpaqueAt(shape, x + dx * distance, y + dy * distance)
+                        == any) {
+                    return any;
+                }
+            }
+        }
+        return ! any;
+    }
+
+    /**
+     * Check whether a sprite's pixel under a point is opaque, carrying the
+     * point into the sprite's unturned frame first.
+     */
+    private boolean isOpaqueAt(ImageShape shape, float x, float y)
+    {
+        RectF bounds = shape.getBounds();
+        float px = x - bounds.left;
+        float py = y - bounds.top;
+        Matrix transform = shape.getTransform();
+        if (transform != null) {
+            transform.invert(inverse);
+            point[0] = px;
+            point[1] = py;
+            inverse.mapPoints(point);
+            px = point[0];
+            py = point[1];
+        }
+        if (px < 0 || px >= bounds.width() || py < 0
+                || py >= bounds.height()) {
+            return false;
+        }
+
+        Bitmap bitmap = shape.getImage().asBitmap();
+        Rect source = shape.getSourceBounds();
+        if (source == null) {
+            source = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        }
+        int u = source.left
+            + (int) Math.floor(px / bounds.width() * source.width());
+        int v = source.top
+            + (int) Math.floor(py / bounds.height() * source.height());
+        return (bitmap.getPixel(u, v) >>> 24) >= OPAQUE;
+    }
+
+    /**
+     * Time the test of every overlapping pair of a crowd of circular
+     * sprites, against looping over the pixels of each overlap, taking the
+     * best of a number of repeats.
+     */
+    public void time()
+    {
+        Bitmap bitmap = Bitmap.createBitmap(SPRITE_SIZE, SPRITE_SIZE,
+            Bitmap.Config.ARGB_8888);
+        disc(bitmap, SPRITE_SIZE / 2, SPRITE_SIZE / 2, SPRITE_SIZE / 2 - 2);
+        List<ImageShape> sprites = new ArrayList<ImageShape>();
+        for (int i = 0; i < SPRITES; i++) {
+            float x = random.nextInt(300);
+            float y = random.nextInt(300);
+            sprites.add(new ImageShape(bitmap,
+                new RectF(x, y, x + SPRITE_SIZE, y + SPRITE_SIZE)));
+        }
+
+        long maskTime = Long.MAX_VALUE;
+        long pixelTime = Long.MAX_VALUE;
+        int pairs = 0;
+        int maskHits = 0;
+        int pixelHits = 0;
+        for (int repeat = 0; repeat < TIMED_REPEATS; repeat++) {
+            pairs = 0;
+            maskHits = 0;
+            pixelHits = 0;
+            long start = System.nanoTime();
+            for (ImageShape sprite : sprites) {
+                for (ImageShape other : sprites) {
+                    if (sprite != other && RectF.intersects(
+                            sprite.getBounds(), other.getBounds())) {
+                        pairs++;
+                        if (sprite.intersects(other)) {
+                            maskHits++;
+                        }
+                    }
+                }
+            }
+            long middle = System.nanoTime();
+            for (ImageShape sprite : sprites) {
+                for (ImageShape other : sprites) {
+                    if (sprite != other && RectF.intersects(
+                            sprite.getBounds(), other.getBounds())
+                            && pixelsOverlap(bitmap, sprite.getBounds(),
+                                other.getBounds())) {
+                        pixelHits++;
+                    }
+                }
+            }
+            maskTime = Math.min(maskTime, middle - start);
+            pixelTime = Math.min(pixelTime, System.nanoTime() - middle);
+        }
+        System.out.printf("%d overlapping pairs, %d touching (%d by pixel):"
+            + " %.2f us per pair with the masks, %.2f us looping over"
+            + " pixels%n", pairs, maskHits, pixelHits,
+            maskTime / 1000.0 / pairs, pixelTime / 1000.0 / pairs);
+    }
+
+    /**
+     * Check whether two unscaled copies of a bitmap, at whole-pixel
+     * positions, share an opaque pixel.
+     */
+    private static boolean pixelsOverlap(Bitmap bitmap, RectF first,
+            RectF second)
+    {
+        int left = (int) Math.max(first.left, second.left);
+        int top = (int) Math.max(first.top, second.top);
+        int right = (int) Math.min(first.right, second.right);
+        int bottom = (int) Math.min(first.bottom, second.bottom);
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                if ((bitmap.getPixel(x - (int) first.left,
+                        y - (int) first.top) >>> 24) >= OPAQUE
+                    && (bitmap.getPixel(x - (int) second.left,
+                        y - (int) second.top) >>> 24) >= OPAQUE) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
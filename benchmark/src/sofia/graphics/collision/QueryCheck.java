@@ -0,0 +1,297 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks the point and intersection queries against a scan of every
+ * shape, while shapes are added, removed, moved, turned and sent across
+ * the world. Points are often taken on a shape's edges or corners, where
+ * a search that rounded the point the wrong way, or stopped at a split
+ * line, would miss it.
+ *
+ * <p>The scan tests each shape with the same query class the checkers
+ * use, so the two can only disagree if a checker's index left a shape
+ * out, reported one twice, or returned one the query does not accept.
+ *
+ * <p>Run it with {@code benchmark/run.sh QueryCheck}, optionally followed
+ * by the number of shapes and then the names of the checker classes. It
+ * exits with status 1 on the first mismatch.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class QueryCheck
+{
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker",
+        "ScanColChecker", "AdaptiveColChecker" };
+
+    private static final int FRAMES = 100;
+    private static final int QUERIES = 200;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 4;
+    private static final float MAX_SIZE = 40;
+
+    private final CollisionChecker checker;
+    private final float worldSize;
+    private final Random random = new Random(7);
+    private final List<RectangleShape> shapes = new ArrayList<RectangleShape>();
+
+    private final PointCollisionQuery pointQuery = new PointCollisionQuery();
+    private final GOCollisionQuery shapeQuery = new GOCollisionQuery();
+    private final Set<Shape> visited = new HashSet<Shape>();
+    private final ShapeVisitor<Shape> collector = new ShapeVisitor<Shape>() {
+        public boolean visit(Shape shape)
+        {
+            if (! visited.add(shape)) {
+                throw new IllegalStateException(shape + " visited twice");
+            }
+            return true;
+        }
+    };
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a check of one checker, filled with a given number of shapes.
+     */
+    public QueryCheck(CollisionChecker checker, int size)
+    {
+        this.checker = checker;
+        this.worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        for (int i = 0; i < size; i++) {
+            add();
+        }
+        checker.startSequence();
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = 2000;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                size = Integer.parseInt(arg);
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        boolean passed = true;
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            CollisionChecker checker =
+                cls.getDeclaredConstructor().newInstance();
+            passed &= new QueryCheck(checker, size).run(cls.getSimpleName());
+        }
+        if (! passed) {
+            System.out.println("FAILED: a query disagreed with the scan");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Change and query the shapes for a number of frames.
+     *
+     * @return True if every query matched the scan
+     */
+    public boolean run(String label)
+    {
+        long found = 0;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            change();
+            checker.startSequence();
+
+            for (int q = 0; q < QUERIES; q++) {
+                Shape shape = shapes.get(random.nextInt(shapes.size()));
+                String failure = checkPoint(pickPoint(shape, 0), pickPoint(
+                    shape, 1), shape);
+                if (failure == null) {
+                    failure = checkIntersecting(shape);
+                }
+                if (failure != null) {
+                    System.out.println(label + ": " + failure
+                        + " (frame " + frame + ")");
+                    return false;
+                }
+                found += visited.size();
+            }
+        }
+        System.out.println(label + ": OK, " + found + " shapes found");
+        return true;
+    }
+
+    /**
+     * Add a few shapes, remove a few, and move or turn about a quarter.
+     * One move in a hundred sends the shape anywhere in the world.
+     */
+    private void change()
+    {
+        for (int i = random.nextInt(5); i > 0; i--) {
+            add();
+        }
+        for (int i = random.nextInt(5); i > 0; i--) {
+            checker.removeObject(
+                shapes.remove(random.nextInt(shapes.size())));
+        }
+        for (RectangleShape shape : shapes) {
+            if (random.nextInt(4) != 0) {
+                continue;
+            }
+            if (random.nextInt(100) == 0) {
+                shape.setPosition(random.nextFloat() * worldSize,
+                    random.nextFloat() * worldSize);
+            }
+            else {
+                shape.setPosition(
+                    shape.getX() + random.nextInt(13) - 6,
+                    shape.getY() + random.nextInt(13) - 6);
+            }
+            if (random.nextInt(8) == 0) {
+                shape.setRotation(random.nextInt(4) * 30);
+            }
+            checker.updateObjectLocation(shape);
+        }
+    }
+
+    /**
+     * Add a shape on whole pixels, so that points on its edges are exact.
+     */
+    private void add()
+    {
+        int width = (int) (MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE));
+        int height = (int) (MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE));
+        int x = random.nextInt((int) worldSize);
+        int y = random.nextInt((int) worldSize);
+        RectangleShape shape =
+            new RectangleShape(x, y, x + width, y + height);
+        if (random.nextInt(4) == 0) {
+            shape.setRotation(random.nextInt(12) * 30);
+        }
+        shapes.add(shape);
+        checker.addObject(shape);
+    }
+
+    /**
+     * Pick one coordinate of a point on or near a shape: on an edge, at
+     * the middle, or a little way outside.
+     *
+     * @param axis  0 for the X co-ordinate, 1 for the Y co-ordinate
+     */
+    private float pickPoint(Shape shape, int axis)
+    {
+        android.graphics.RectF b = shape.getBounds();
+        float low = (axis == 0) ? b.left : b.top;
+        float high = (axis == 0) ? b.right : b.bottom;
+        switch (random.nextInt(5)) {
+            case 0:
+                return low;
+            case 1:
+                return high;
+            case 2:
+                return (float) Math.floor(high) - 0.5f;
+            case 3:
+                return (low + high) / 2;
+            default:
+                return low - 3 + random.nextFloat() * (high - low + 6);
+        }
+    }
+
+    private String checkPoint(float x, float y, Shape self)
+    {
+        pointQuery.init(x, y, null);
+        Set<Shape> expected = scan(pointQuery, null);
+        String at = "(" + x + ", " + y + ")";
+
+        Set<Shape> result = checker.getObjectsAt(x, y, null);
+        if (! result.equals(expected)) {
+            return "getObjectsAt" + at + " " + describe(result, expected);
+        }
+
+        visited.clear();
+        checker.forEachObjectAt(x, y, null, collector);
+        if (! visited.equals(expected)) {
+            return "forEachObjectAt" + at + " " + describe(visited, expected);
+        }
+
+        Shape one = checker.getOneObjectAt(self, x, y, null);
+        expected.remove(self);
+        if ((one == null) ? ! expected.isEmpty() : ! expected.contains(one)) {
+            return "getOneObjectAt" + at + " returned " + one + ", expected "
+                + expected.size() + " candidates";
+        }
+        return null;
+    }
+
+    private String checkIntersecting(Shape shape)
+    {
+        // Unlike the other two queries, this one has always included the
+        // shape itself
+        shapeQuery.init(null, shape);
+        Set<Shape> expected = scan(shapeQuery, null);
+        Set<Shape> result = checker.getIntersectingObjects(shape, null);
+        if (! result.equals(expected)) {
+            return "getIntersectingObjects(" + shape + ") "
+                + describe(result, expected);
+        }
+        expected.remove(shape);
+
+        visited.clear();
+        checker.forEachIntersectingObject(shape, null, collector);
+        if (! visited.equals(expected)) {
+            return "forEachIntersectingObject(" + shape + ") "
+                + describe(visited, expected);
+        }
+
+        Shape one = checker.getOneIntersectingObject(shape, null);
+        if ((one == null) ? ! expected.isEmpty() : ! expected.contains(one)) {
+            return "getOneIntersectingObject(" + shape + ") returned " + one
+                + ", expected " + expected.size() + " candidates";
+        }
+        return null;
+    }
+
+    /**
+     * Find every shape but one matching a query, by testing each one.
+     */
+    private Set<Shape> scan(CollisionQuery query, Shape excluded)
+    {
+        Set<Shape> expected = new HashSet<Shape>();
+        for (Shape shape : shapes) {
+            if (shape != excluded && query.checkCollision(shape)) {
+                expected.add(shape);
+            }
+        }
+        return expected;
+    }
+
+    private static String describe(Set<Shape> result, Set<Shape> expected)
+    {
+        int missed = 0;
+        for (Shape shape : expected) {
+            if (! result.contains(shape)) {
+                missed++;
+            }
+        }
+        return "found " + result.size() + " shapes, expected "
+            + expected.size() + ", missing " + missed;
+    }
+}
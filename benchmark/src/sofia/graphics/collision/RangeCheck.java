@@ -0,0 +1,239 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks the range and neighbour queries against a brute-force scan, on
+ * shapes that are turned, moved and turned again. These queries find
+ * shapes by their location, which for a turned shape can lie outside its
+ * rotated bounds, so a checker that indexed the rotated bounds alone would
+ * miss them.
+ *
+ * <p>Every shape is tested against the same query the checker uses, so
+ * the scan and the checker can only disagree if the checker's index left
+ * a matching shape out, or reported one twice. {@link IBSPColChecker} is
+ * checked a second time with world bounds covering only the middle of the
+ * shapes, so that the overflow list is searched too.
+ *
+ * <p>Run it with {@code benchmark/run.sh RangeCheck}, optionally followed
+ * by the number of shapes and then the names of the checker classes. It
+ * exits with status 1 on the first mismatch.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class RangeCheck
+{
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker",
+        "ScanColChecker", "AdaptiveColChecker" };
+
+    private static final int FRAMES = 20;
+    private static final int QUERIES = 500;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 4;
+    /** Long thin shapes swing their location well clear of their box. */
+    private static final float MAX_SIZE = 80;
+
+    private final CollisionChecker checker;
+    private final int size;
+    private final float worldSize;
+    private final Random random = new Random(42);
+    private final RectangleShape[] shapes;
+
+    private final InRangeQuery inRangeQuery = new InRangeQuery();
+    private final NeighbourCollisionQuery neighbourQuery =
+        new NeighbourCollisionQuery();
+    private final Set<Shape> visited = new HashSet<Shape>();
+    private final ShapeVisitor<Shape> collector = new ShapeVisitor<Shape>() {
+        public boolean visit(Shape shape)
+        {
+            if (! visited.add(shape)) {
+                throw new IllegalStateException(shape + " visited twice");
+            }
+            return true;
+        }
+    };
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a check of one checker, filled with a given number of shapes.
+     */
+    public RangeCheck(CollisionChecker checker, int size)
+    {
+        this.checker = checker;
+        this.size = size;
+        this.worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+
+        shapes = new RectangleShape[size];
+        for (int i = 0; i < size; i++) {
+            float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float height = MIN_SIZE + random.nextFloat() * MIN_SIZE;
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            shapes[i] = new RectangleShape(x, y, x + width, y + height);
+            if (i % 2 == 0) {
+                shapes[i].setRotation(random.nextFloat() * 360);
+            }
+            checker.addObject(shapes[i]);
+        }
+        checker.startSequence();
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = 2000;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                size = Integer.parseInt(arg);
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        boolean passed = true;
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            CollisionChecker checker =
+                cls.getDeclaredConstructor().newInstance();
+            passed &= new RangeCheck(checker, size).run(cls.getSimpleName());
+
+            if (checker instanceof IBSPColChecker) {
+                IBSPColChecker bounded = new IBSPColChecker();
+                RangeCheck check = new RangeCheck(bounded, size);
+                float quarter = check.worldSize / 4;
+                bounded.setWorldBounds(new android.graphics.RectF(
+                    quarter, quarter, quarter * 3, quarter * 3));
+                passed &= check.run("IBSPColChecker with world bounds");
+            }
+        }
+        if (! passed) {
+            System.out.println("FAILED: a query disagreed with the scan");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Move, turn and query the shapes for a number of frames.
+     *
+     * @return True if every query matched the scan
+     */
+    public boolean run(String label)
+    {
+        long found = 0;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            for (int i = 0; i < size / 10; i++) {
+                RectangleShape shape = shapes[random.nextInt(size)];
+                shape.setPosition(
+                    shape.getX() + random.nextFloat() * 40 - 20,
+                    shape.getY() + random.nextFloat() * 40 - 20);
+                if (random.nextBoolean()) {
+                    shape.setRotation(random.nextFloat() * 360);
+                }
+                checker.updateObjectLocation(shape);
+            }
+            checker.startSequence();
+
+            for (int q = 0; q < QUERIES; q++) {
+                Shape shape = shapes[random.nextInt(size)];
+                float x = shape.getX() + random.nextFloat() * 60 - 30;
+                float y = shape.getY() + random.nextFloat() * 60 - 30;
+                float r = random.nextFloat() * 50;
+                boolean diag = random.nextBoolean();
+
+                String failure = checkRange(x, y, r);
+                if (failure == null) {
+                    failure = checkNeighbours(shape, r, diag);
+                }
+                if (failure != null) {
+                    System.out.println(label + ": " + failure
+                        + " (frame " + frame + ")");
+                    return false;
+                }
+                found += visited.size();
+            }
+        }
+        System.out.println(label + ": OK, " + found + " shapes found");
+        return true;
+    }
+
+    private String checkRange(float x, float y, float r)
+    {
+        inRangeQuery.init(x, y, r);
+        Set<Shape> expected = scan(inRangeQuery);
+
+        Set<Shape> result = checker.getObjectsInRange(x, y, r, null);
+        if (! result.equals(expected)) {
+            return "getObjectsInRange(" + x + ", " + y + ", " + r + ") "
+                + describe(result, expected);
+        }
+
+        visited.clear();
+        checker.forEachObjectInRange(x, y, r, null, collector);
+        if (! visited.equals(expected)) {
+            return "forEachObjectInRange(" + x + ", " + y + ", " + r + ") "
+                + describe(visited, expected);
+        }
+        return null;
+    }
+
+    private String checkNeighbours(Shape shape, float distance, boolean diag)
+    {
+        neighbourQuery.init(shape.getX(), shape.getY(), distance, diag, null);
+        Set<Shape> expected = scan(neighbourQuery);
+
+        Set<Shape> result = checker.getNeighbors(shape, distance, diag, null);
+        if (! result.equals(expected)) {
+            return "getNeighbors(" + shape.getX() + ", " + shape.getY()
+                + ", " + distance + ", " + diag + ") "
+                + describe(result, expected);
+        }
+        return null;
+    }
+
+    /**
+     * Find every shape matching a query, by testing each one.
+     */
+    private Set<Shape> scan(CollisionQuery query)
+    {
+        Set<Shape> expected = new HashSet<Shape>();
+        for (Shape shape : shapes) {
+            if (query.checkCollision(shape)) {
+                expected.add(shape);
+            }
+        }
+        return expected;
+    }
+
+    private static String describe(Set<Shape> result, Set<Shape> expected)
+    {
+        int missed = 0;
+        for (Shape shape : expected) {
+            if (! result.contains(shape)) {
+                missed++;
+            }
+        }
+        return "found " + result.size() + " shapes, expected "
+            + expected.size() + ", missing " + missed;
+    }
+}
@@ -0,0 +1,180 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks {@link CollisionChecker#getObjectsInDirection(float, float, float,
+ * float, Class)} and {@link CollisionChecker#raycastFirst(float, float,
+ * float, float, Class)} against a raycast offered every shape in turn.
+ * The shapes include turned shapes and a few long ones crossing much of
+ * the world, and the rays include ones along the axes and ones far longer
+ * than the world, which the grid answers by testing each occupied cell.
+ *
+ * <p>The shapes found must match, in order of distance, and the nearest
+ * hit must be at the same distance as the nearest shape found by the scan.
+ *
+ * <p>Run it with {@code benchmark/run.sh RayCheck}, optionally followed
+ * by the number of shapes and then the names of the checker classes. It
+ * exits with status 1 on the first mismatch.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class RayCheck
+{
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker",
+        "ScanColChecker", "AdaptiveColChecker" };
+
+    private static final int QUERIES = 3000;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 2;
+    private static final float MAX_SIZE = 60;
+
+    private final CollisionChecker checker;
+    private final float worldSize;
+    private final Random random = new Random(5);
+    private final List<RectangleShape> shapes = new ArrayList<RectangleShape>();
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a check of one checker, filled with a given number of shapes.
+     */
+    public RayCheck(CollisionChecker checker, int size)
+    {
+        this.checker = checker;
+        this.worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        for (int i = 0; i < size; i++) {
+            float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            if (i % 300 == 0) {
+                width = worldSize / 2;
+            }
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            RectangleShape shape =
+                new RectangleShape(x, y, x + width, y + height);
+            if (i % 4 == 0) {
+                shape.setRotation(random.nextFloat() * 360);
+            }
+            shapes.add(shape);
+            checker.addObject(shape);
+        }
+        checker.startSequence();
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = 3000;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                size = Integer.parseInt(arg);
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        boolean passed = true;
+        for (String name : names) {
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            CollisionChecker checker =
+                cls.getDeclaredConstructor().newInstance();
+            passed &= new RayCheck(checker, size).run(cls.getSimpleName());
+        }
+        if (! passed) {
+            System.out.println("FAILED: a raycast disagreed with the scan");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Cast rays from random points in random directions.
+     *
+     * @return True if every raycast matched the scan
+     */
+    public boolean run(String label)
+    {
+        int hits = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            float angle = (q % 10 == 0)
+                ? 90 * random.nextInt(4) : random.nextFloat() * 360;
+            float length = (q % 7 == 0)
+                ? worldSize * 50 : random.nextFloat() * worldSize / 2;
+
+            String ray = "(" + x + ", " + y + ", " + angle + ", " + length
+                + ")";
+            RayQuery scan = new RayQuery(x, y, angle, length, null, false);
+            for (Shape shape : shapes) {
+                scan.offer(shape);
+            }
+            List<Shape> expected = new ArrayList<Shape>(scan.<Shape>getHits());
+
+            List<Shape> result = new ArrayList<Shape>(
+                checker.getObjectsInDirection(x, y, angle, length, null));
+            if (! new HashSet<Shape>(result).equals(
+                    new HashSet<Shape>(expected))) {
+                System.out.println(label + ": getObjectsInDirection" + ray
+                    + " found " + result.size() + " shapes, expected "
+                    + expected.size());
+                return false;
+            }
+            for (int i = 0; i < result.size(); i++) {
+                if (distance(result.get(i), x, y, angle, length)
+                        != distance(expected.get(i), x, y, angle, length)) {
+                    System.out.println(label + ": getObjectsInDirection"
+                        + ray + " returned shape " + i + " out of order");
+                    return false;
+                }
+            }
+
+            RaycastHit<Shape> hit =
+                checker.raycastFirst(x, y, angle, length, null);
+            if ((hit == null) ? ! expected.isEmpty()
+                    : expected.isEmpty() || hit.getDistance()
+                        != distance(expected.get(0), x, y, angle, length)) {
+                System.out.println(label + ": raycastFirst" + ray
+                    + " returned " + ((hit == null) ? "no hit"
+                        : "a hit at " + hit.getDistance()));
+                return false;
+            }
+            if (hit != null) {
+                hits++;
+            }
+        }
+        System.out.println(label + ": OK, " + hits + " hits");
+        return true;
+    }
+
+    /**
+     * Get the distance along a ray at which it hits a shape.
+     */
+    private static float distance(Shape shape, float x, float y,
+            float angle, float length)
+    {
+        RayQuery query = new RayQuery(x, y, angle, length, null, true);
+        query.offer(shape);
+        return query.<Shape>getNearest().getDistance();
+    }
+}
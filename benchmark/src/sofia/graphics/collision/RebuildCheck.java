@@ -0,0 +1,243 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks that rebuilding an {@link IBSPColChecker}'s tree never changes
+ * what its queries find. Shapes drift steadily across the world, which
+ * leaves the incrementally grown tree deep and uneven, while the
+ * intersection and point queries, and every tenth frame the pair search,
+ * are compared against a scan of every shape.
+ *
+ * <p>The check runs three times: with rebuilds turned off, with rebuilds
+ * made in the publishing thread, and with the layout worked out on the
+ * shared background thread and swapped in at a later publish. The last
+ * two use a policy that asks for a rebuild whenever the tree is a few
+ * levels deeper than a balanced one, so that many rebuilds are swapped in
+ * while shapes keep moving.
+ *
+ * <p>Run it with {@code benchmark/run.sh RebuildCheck}, optionally
+ * followed by the number of shapes. It prints the tree's measurements at
+ * the end of each run, and exits with status 1 on the first mismatch.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class RebuildCheck
+{
+    private static final int FRAMES = 600;
+    private static final int QUERIES = 200;
+    private static final float SIZE = 10;
+    private static final float MAX_SPEED = 4;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 20 * 20;
+
+    /** Asks for a rebuild once the tree is 4 levels deeper than balanced. */
+    private static final RebalancePolicy EAGER = new RebalancePolicy() {
+        public boolean shouldRebalance(BSPTreeStats current,
+                BSPTreeStats lastRebuilt)
+        {
+            return current.getImbalance() > 4;
+        }
+    };
+
+    private final IBSPColChecker checker;
+    private final boolean background;
+    private final float worldSize;
+    private final Random random = new Random(2);
+    private final List<RectangleShape> shapes = new ArrayList<RectangleShape>();
+    private final float[] velocities;
+
+    private final PointCollisionQuery pointQuery = new PointCollisionQuery();
+    private final GOCollisionQuery shapeQuery = new GOCollisionQuery();
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a check of one checker, filled with a given number of shapes.
+     *
+     * @param background  True if rebuilds are made on another thread, so
+     *                    that the frames should leave it time to finish
+     */
+    public RebuildCheck(IBSPColChecker checker, int size, boolean background)
+    {
+        this.checker = checker;
+        this.background = background;
+        this.worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        velocities = new float[size * 2];
+        for (int i = 0; i < size; i++) {
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            RectangleShape shape = new RectangleShape(x, y, x + SIZE, y + SIZE);
+            shapes.add(shape);
+            checker.addObject(shape);
+            velocities[i * 2] = (random.nextFloat() * 2 - 1) * MAX_SPEED;
+            velocities[i * 2 + 1] = (random.nextFloat() * 2 - 1) * MAX_SPEED;
+        }
+        checker.startSequence();
+    }
+
+
+    // ----------------------------------------------------------
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+
+        IBSPColChecker never = new IBSPColChecker();
+        never.setRebalancePolicy(RebalancePolicy.NEVER);
+        IBSPColChecker inline = new IBSPColChecker();
+        inline.setRebalancePolicy(EAGER);
+        IBSPColChecker background = new IBSPColChecker();
+        background.setRebalancePolicy(EAGER);
+        background.setRebuildExecutor(
+            IBSPColChecker.getSharedRebuildExecutor());
+
+        boolean passed = new RebuildCheck(never, size, false).run("never")
+            && new RebuildCheck(inline, size, false).run("inline")
+            && new RebuildCheck(background, size, true).run("background");
+        if (passed && (never.getTreeStats().getRebuildCount() != 0
+                || inline.getTreeStats().getRebuildCount() == 0
+                || background.getTreeStats().getRebuildCount() == 0)) {
+            System.out.println("Rebuilds were not made as configured");
+            passed = false;
+        }
+        if (! passed) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Drift the shapes for a number of frames, querying each frame.
+     *
+     * @return True if every query matched the scan
+     */
+    public boolean run(String label)
+        throws InterruptedException
+    {
+        for (int frame = 0; frame < FRAMES; frame++) {
+            for (int i = 0; i < shapes.size(); i++) {
+                RectangleShape shape = shapes.get(i);
+                shape.setPosition(
+                    wrap(shape.getX() + velocities[i * 2]),
+                    wrap(shape.getY() + velocities[i * 2 + 1]));
+                checker.updateObjectLocation(shape);
+            }
+            if (frame % 50 == 49) {
+                // The last shape goes, so that the velocities still line up
+                checker.removeObject(shapes.remove(shapes.size() - 1));
+            }
+            checker.startSequence();
+
+            String failure = checkQueries();
+            if (failure == null && frame % 10 == 0) {
+                failure = checkPairs();
+            }
+            if (failure == null && checker.getObjects().size() != shapes.size()) {
+                failure = "holds " + checker.getObjects().size()
+                    + " shapes, expected " + shapes.size();
+            }
+            if (failure != null) {
+                System.out.println(label + ": " + failure + " (frame "
+                    + frame + ")");
+                return false;
+            }
+            if (background) {
+                // Leave the rebuild thread time to finish a layout
+                Thread.sleep(1);
+            }
+        }
+        System.out.println(label + ": OK, " + checker.getTreeStats());
+        return true;
+    }
+
+    private float wrap(float position)
+    {
+        if (position < 0) {
+            return position + worldSize;
+        }
+        if (position > worldSize) {
+            return position - worldSize;
+        }
+        return position;
+    }
+
+    private String checkQueries()
+    {
+        for (int q = 0; q < QUERIES; q++) {
+            Shape shape = shapes.get(random.nextInt(shapes.size()));
+            shapeQuery.init(null, shape);
+            Set<Shape> expected = scan(shapeQuery);
+            if (! checker.getIntersectingObjects(shape, null).equals(expected)) {
+                return "getIntersectingObjects disagreed with the scan";
+            }
+
+            float x = shape.getX() + random.nextFloat() * 30 - 15;
+            float y = shape.getY() + random.nextFloat() * 30 - 15;
+            pointQuery.init(x, y, null);
+            expected = scan(pointQuery);
+            if (! checker.getObjectsAt(x, y, null).equals(expected)) {
+                return "getObjectsAt disagreed with the scan";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Search for the pairs of every shape, and compare them with a test
+     * of every pair.
+     */
+    private String checkPairs()
+    {
+        final Map<Shape, Integer> ids = new IdentityHashMap<Shape, Integer>();
+        for (int i = 0; i < shapes.size(); i++) {
+            ids.put(shapes.get(i), i);
+        }
+        final Set<Long> found = new HashSet<Long>();
+        final boolean[] twice = new boolean[1];
+        checker.findCollidingPairs(new ArrayList<Shape>(shapes),
+            new PairVisitor() {
+                public void visitPair(Shape a, Shape b)
+                {
+                    twice[0] |= ! found.add(key(ids.get(a), ids.get(b)));
+                }
+            });
+
+        Set<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < shapes.size(); i++) {
+            for (int j = i + 1; j < shapes.size(); j++) {
+                if (shapes.get(i).intersects(shapes.get(j))) {
+                    expected.add(key(i, j));
+                }
+            }
+        }
+        if (twice[0] || ! found.equals(expected)) {
+            return "findCollidingPairs found " + found.size()
+                + " pairs, expected " + expected.size();
+        }
+        return null;
+    }
+
+    private Set<Shape> scan(CollisionQuery query)
+    {
+        Set<Shape> expected = new HashSet<Shape>();
+        for (Shape shape : shapes) {
+            if (query.checkCollision(shape)) {
+                expected.add(shape);
+            }
+        }
+        return expected;
+    }
+
+    private static long key(int i, int j)
+    {
+        return ((long) Math.min(i, j) << 32) | Math.max(i, j);
+    }
+}
@@ -0,0 +1,244 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Compares the time a frame takes with a tree, with a
+ * {@link ScanColChecker}, and with an {@link AdaptiveColChecker} switching
+ * between the two, for small scenes. Every shape moves each frame, and
+ * each frame makes one pair search for all of them and 20 point queries.
+ * The time is the average over the last of three passes, the first two
+ * warming up.
+ *
+ * <p>Before timing, it checks that an {@link AdaptiveColChecker} finds
+ * the same pairs and points as a {@link ScanColChecker} while shapes are
+ * added one at a time to twice its threshold, and then removed until it
+ * has switched back to scanning.
+ *
+ * <p>Run it with {@code benchmark/run.sh ScanBenchmark}, optionally
+ * followed by the shape counts, separated by commas. It exits with status
+ * 1 if the check fails.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class ScanBenchmark
+{
+    private static final int[] DEFAULT_SIZES = { 16, 64, 256, 1024 };
+
+    private static final int PASSES = 3;
+    private static final int QUERIES = 20;
+    private static final float SIZE = 24;
+    private static final float MAX_SPEED = 2;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 60 * 60;
+
+    private final int size;
+    private final float worldSize;
+    private final Random random;
+    private final List<Shape> shapes = new ArrayList<Shape>();
+    private final float[] velocities;
+
+    /** Results are summed here, so that the work cannot be optimized away. */
+    private long sink;
+    private final PairVisitor counter = new PairVisitor() {
+        public void visitPair(Shape first, Shape second)
+        {
+            sink++;
+        }
+    };
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a scene of a given number of shapes, the same each time for
+     * the same number.
+     */
+    public ScanBenchmark(int size)
+    {
+        this.size = size;
+        this.worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        random = new Random(size);
+        velocities = new float[size * 2];
+        for (int i = 0; i < size; i++) {
+            float x = random.nextFloat() * (worldSize - SIZE);
+            float y = random.nextFloat() * (worldSize - SIZE);
+            shapes.add(new RectangleShape(x, y, x + SIZE, y + SIZE));
+            velocities[i * 2] = (random.nextFloat() * 2 - 1) * MAX_SPEED;
+            velocities[i * 2 + 1] = (random.nextFloat() * 2 - 1) * MAX_SPEED;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    public static void main(String[] args)
+    {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            String[] parts = args[0].split(",");
+            sizes = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                sizes[i] = Integer.parseInt(parts[i]);
+            }
+        }
+
+        String failure = checkSwitching();
+        if (failure != null) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+        System.out.println("AdaptiveColChecker: OK, matched the scan"
+            + " across switches");
+
+        System.out.printf("%7s %12s %12s %12s%n", "shapes", "tree us",
+            "scan us", "adaptive us");
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (int size : sizes) {
+                int frames = Math.max(200, 200000 / size);
+                double tree = new ScanBenchmark(size).run(
+                    new IBSPColChecker(), frames);
+                double scan = new ScanBenchmark(size).run(
+                    new ScanColChecker(), frames);
+                double adaptive = new ScanBenchmark(size).run(
+                    new AdaptiveColChecker(), frames);
+                if (pass == PASSES - 1) {
+                    System.out.printf("%7d %12.1f %12.1f %12.1f%n", size,
+                        tree / 1000, scan / 1000, adaptive / 1000);
+                }
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Move the shapes for a number of frames in a checker.
+     *
+     * @return The average time per frame, in nanoseconds
+     */
+    public double run(CollisionChecker checker, int frames)
+    {
+        for (Shape shape : shapes) {
+            checker.addObject(shape);
+        }
+        checker.startSequence();
+
+        long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            for (int i = 0; i < size; i++) {
+                Shape shape = shapes.get(i);
+                float x = shape.getX() + velocities[i * 2];
+                float y = shape.getY() + velocities[i * 2 + 1];
+                if (x < 0 || x + SIZE > worldSize) {
+                    velocities[i * 2] = -velocities[i * 2];
+                }
+                if (y < 0 || y + SIZE > worldSize) {
+                    velocities[i * 2 + 1] = -velocities[i * 2 + 1];
+                }
+                shape.setPosition(x, y);
+                checker.updateObjectLocation(shape);
+            }
+            checker.startSequence();
+
+            checker.findCollidingPairs(shapes, counter);
+            for (int q = 0; q < QUERIES; q++) {
+                Shape shape = shapes.get(q % size);
+                sink += checker.getObjectsAt(shape.getX() + 3,
+                    shape.getY() + 3, null).size();
+            }
+        }
+        return (double) (System.nanoTime() - start) / frames;
+    }
+
+    /**
+     * Grow an adaptive checker past its threshold one shape at a time,
+     * and shrink it again, comparing it with a scan as it goes.
+     *
+     * @return A description of the first difference, or null
+     */
+    private static String checkSwitching()
+    {
+        int threshold = 64;
+        AdaptiveColChecker adaptive =
+            new AdaptiveColChecker(new IBSPColChecker(), threshold);
+        ScanColChecker scan = new ScanColChecker();
+        ScanBenchmark scene = new ScanBenchmark(threshold * 2);
+        List<Shape> shapes = scene.shapes;
+
+        boolean switched = false;
+        for (int i = 0; i < shapes.size(); i++) {
+            adaptive.addObject(shapes.get(i));
+            scan.addObject(shapes.get(i));
+            String failure = compare(adaptive, scan, shapes.subList(0, i + 1),
+                scene.random);
+            if (failure != null) {
+                return failure + " after adding " + (i + 1) + " shapes";
+            }
+            switched |= ! adaptive.isScanning();
+        }
+        for (int i = shapes.size() - 1; i > 0; i--) {
+            adaptive.removeObject(shapes.get(i));
+            scan.removeObject(shapes.get(i));
+            String failure = compare(adaptive, scan, shapes.subList(0, i),
+                scene.random);
+            if (failure != null) {
+                return failure + " after removing down to " + i + " shapes";
+            }
+        }
+        if (! switched || ! adaptive.isScanning()) {
+            return "AdaptiveColChecker did not switch to the tree and back";
+        }
+        return null;
+    }
+
+    /**
+     * Jitter the shapes a checker holds, and compare its pairs and point
+     * queries with a scan's.
+     */
+    private static String compare(CollisionChecker checker,
+            ScanColChecker scan, List<Shape> shapes, Random random)
+    {
+        for (Shape shape : shapes) {
+            if (random.nextInt(4) == 0) {
+                shape.setPosition(shape.getX() + random.nextInt(5) - 2,
+                    shape.getY() + random.nextInt(5) - 2);
+                checker.updateObjectLocation(shape);
+                scan.updateObjectLocation(shape);
+            }
+        }
+        checker.startSequence();
+        scan.startSequence();
+
+        if (! pairs(checker, shapes).equals(pairs(scan, shapes))) {
+            return "findCollidingPairs disagreed with the scan";
+        }
+        for (int q = 0; q < QUERIES; q++) {
+            Shape shape = shapes.get(random.nextInt(shapes.size()));
+            float x = shape.getX() + random.nextFloat() * 40 - 8;
+            float y = shape.getY() + random.nextFloat() * 40 - 8;
+            if (! checker.getObjectsAt(x, y, null).equals(
+                    scan.getObjectsAt(x, y, null))) {
+                return "getObjectsAt disagreed with the scan";
+            }
+        }
+        return null;
+    }
+
+    private static Set<List<Shape>> pairs(CollisionChecker checker,
+            List<Shape> shapes)
+    {
+        final Set<List<Shape>> found = new HashSet<List<Shape>>();
+        checker.findCollidingPairs(shapes, new PairVisitor() {
+            public void visitPair(Shape first, Shape second)
+            {
+                // Either may be reported first
+                found.add(Arrays.asList(first, second));
+                found.add(Arrays.asList(second, first));
+            }
+        });
+        return found;
+    }
+}
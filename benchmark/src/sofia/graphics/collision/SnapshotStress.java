@@ -0,0 +1,274 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks that queries running on other threads while an
+ * {@link IBSPColChecker} is being changed only ever see whole snapshots.
+ *
+ * <p>One writer thread moves, adds and removes shapes, publishing a new
+ * snapshot with {@link CollisionChecker#startSequence()} after each frame.
+ * Shapes are always added and removed in the same numbers within a frame,
+ * so every snapshot holds the same number of shapes, and some are added and
+ * removed in pairs, so that every snapshot holding one of a pair holds the
+ * other too. Reader threads meanwhile search the whole world over and over,
+ * failing if a search finds the wrong number of shapes, finds a shape
+ * twice, or finds one of a pair without the other.
+ *
+ * <p>Run it with {@code benchmark/run.sh SnapshotStress}, optionally
+ * followed by the number of shapes, the number of reader threads and the
+ * number of seconds to run for, for example {@code benchmark/run.sh
+ * SnapshotStress 10000 4 30}. It exits with status 1 if any search saw a
+ * torn tree.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class SnapshotStress
+{
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 4;
+    private static final float MAX_SIZE = 60;
+    /** The share of the shapes moved each frame. */
+    private static final int MOVED_PER_FRAME = 10;
+    /** The share of the shapes replaced by new ones each frame. */
+    private static final int REPLACED_PER_FRAME = 100;
+    /** The number of pairs replaced each frame. */
+    private static final int PAIRS_PER_FRAME = 4;
+
+    private final int size;
+    private final float worldSize;
+    private final IBSPColChecker checker = new IBSPColChecker();
+    private final Random random = new Random(42);
+    /** Only touched by the writer. */
+    private final List<Body> bodies = new ArrayList<Body>();
+
+    private volatile boolean running = true;
+    private volatile String failure;
+    private volatile long frames;
+
+
+    // ----------------------------------------------------------
+    /**
+     * A shape that may be one of a pair.
+     */
+    private static class Body extends RectangleShape
+    {
+        private Body twin;
+
+        public Body(float left, float top, float right, float bottom)
+        {
+            super(left, top, right, bottom);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a stress test over a given number of shapes.
+     */
+    public SnapshotStress(int size)
+    {
+        this.size = size;
+        this.worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        // Rebuilding in the background swaps whole trees in between frames
+        checker.setRebuildExecutor(IBSPColChecker.getSharedRebuildExecutor());
+    }
+
+
+    // ----------------------------------------------------------
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        int readers = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+        SnapshotStress stress = new SnapshotStress(size);
+        String failure = stress.run(readers, seconds * 1000L);
+        if (failure != null) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+        System.out.println("OK " + stress.frames + " frames");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Run the writer and readers for a while.
+     *
+     * @return A description of the first torn tree seen, or null
+     */
+    public String run(int readers, long millis)
+        throws InterruptedException
+    {
+        for (int i = 0; i < size - PAIRS_PER_FRAME * 2; i++) {
+            addBody();
+        }
+        for (int i = 0; i < PAIRS_PER_FRAME; i++) {
+            addPair();
+        }
+        checker.startSequence();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread("reader " + i) {
+                public void run()
+                {
+                    read();
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        long end = System.currentTimeMillis() + millis;
+        while (failure == null && System.currentTimeMillis() < end) {
+            writeFrame();
+        }
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return failure;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Move, replace and re-pair shapes, then publish the frame.
+     */
+    private void writeFrame()
+    {
+        for (int i = 0; i < size / MOVED_PER_FRAME; i++) {
+            Body body = bodies.get(random.nextInt(bodies.size()));
+            if (random.nextInt(10) == 0) {
+                body.setPosition(random.nextFloat() * worldSize,
+                    random.nextFloat() * worldSize);
+            }
+            else {
+                body.setPosition(
+                    clamp(body.getX() + random.nextFloat() * 8 - 4),
+                    clamp(body.getY() + random.nextFloat() * 8 - 4));
+            }
+            checker.updateObjectLocation(body);
+        }
+
+        for (int i = 0; i < size / REPLACED_PER_FRAME; i++) {
+            Body body = bodies.get(random.nextInt(bodies.size()));
+            if (body.twin == null) {
+                removeBody(body);
+                addBody();
+            }
+        }
+
+        int pairs = 0;
+        for (int i = 0; pairs < PAIRS_PER_FRAME && i < bodies.size(); i++) {
+            Body body = bodies.get(random.nextInt(bodies.size()));
+            if (body.twin != null) {
+                removeBody(body.twin);
+                removeBody(body);
+                addPair();
+                pairs++;
+            }
+        }
+
+        checker.startSequence();
+        frames++;
+    }
+
+    private Body addBody()
+    {
+        float x = random.nextFloat() * worldSize;
+        float y = random.nextFloat() * worldSize;
+        float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+        float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+        Body body = new Body(x, y, x + width, y + height);
+        bodies.add(body);
+        checker.addObject(body);
+        return body;
+    }
+
+    private void addPair()
+    {
+        Body first = addBody();
+        Body second = addBody();
+        first.twin = second;
+        second.twin = first;
+    }
+
+    private void removeBody(Body body)
+    {
+        bodies.remove(body);
+        checker.removeObject(body);
+    }
+
+    private float clamp(float position)
+    {
+        return Math.max(0, Math.min(worldSize, position));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Search the whole world until stopped, checking each result.
+     */
+    private void read()
+    {
+        RectangleShape probe = new RectangleShape(-MAX_SIZE, -MAX_SIZE,
+            worldSize + MAX_SIZE * 2, worldSize + MAX_SIZE * 2);
+        final Set<Shape> seen = new HashSet<Shape>();
+        final List<Shape> duplicates = new ArrayList<Shape>();
+        ShapeVisitor<Shape> visitor = new ShapeVisitor<Shape>() {
+            public boolean visit(Shape shape)
+            {
+                if (! seen.add(shape)) {
+                    duplicates.add(shape);
+                }
+                return true;
+            }
+        };
+
+        while (running && failure == null) {
+            seen.clear();
+            duplicates.clear();
+            checker.forEachIntersectingObject(probe, null, visitor);
+            if (! duplicates.isEmpty()) {
+                fail("forEachIntersectingObject visited a shape twice");
+            }
+            check("forEachIntersectingObject", seen);
+            check("getObjects", checker.getObjects());
+        }
+    }
+
+    /**
+     * Check that a search found every shape, and each pair whole.
+     */
+    private void check(String query, Set<Shape> found)
+    {
+        if (found.size() != size) {
+            fail(query + " found " + found.size() + " shapes, not " + size);
+            return;
+        }
+        for (Shape shape : found) {
+            Body twin = ((Body) shape).twin;
+            if (twin != null && ! found.contains(twin)) {
+                fail(query + " found one of a pair without the other");
+                return;
+            }
+        }
+    }
+
+    private synchronized void fail(String message)
+    {
+        if (failure == null) {
+            failure = message + " (frame " + frames + ")";
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.LineShape;
+import sofia.graphics.OvalShape;
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks the swept collision tests, in two parts.
+ *
+ * <p>First, {@link Shape#getTimeOfImpact(Shape, float, float)} is compared
+ * for random pairs of ovals, lines and boxes, turned half the time, with
+ * the first position of the moving shape, out of evenly spaced samples
+ * along its path, at which the two intersect. The time must never be
+ * later than that position, and an impact the samples find must never be
+ * missed. Times earlier than the samples, and impacts between them, are
+ * counted, along with how many hits intersect when the shape is carried a
+ * little past the time.
+ *
+ * <p>Second, {@link CollisionChecker#sweepFirst(Shape, float, float,
+ * Class)} is compared on each checker with the earliest impact found by
+ * sweeping the shape against every other shape it can collide with.
+ * Some shapes are static, some are in another category, a few are long
+ * and thin, and some sweeps ask for one class of shape only. Once the
+ * sweeps have been checked, they are timed on their own.
+ *
+ * <p>Run it with {@code benchmark/run.sh SweepCheck}, optionally followed
+ * by the number of shapes in each checker and then the names of the
+ * checker classes. It exits with status 1 on the first failure.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class SweepCheck
+{
+    private static final String[] DEFAULT_CHECKERS = {
+        "IBSPColChecker", "GridColChecker", "AABBTreeColChecker",
+        "ScanColChecker", "AdaptiveColChecker" };
+
+    private static final int PAIRS = 20000;
+    private static final int SAMPLES = 4000;
+    /** How far past the time a hit is carried to see that it intersects. */
+    private static final float PAST = 0.05f;
+    private static final int SWEEPS = 4000;
+    private static final int TIMED_PASSES = 3;
+    private static final float WORLD_SIZE = 2000;
+    private static final float MAX_SWEEP = 300;
+
+    private final Random random = new Random(5);
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args)
+        throws Exception
+    {
+        int size = 2000;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                size = Integer.parseInt(arg);
+            }
+            else {
+                names.add(arg);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList(DEFAULT_CHECKERS));
+        }
+
+        SweepCheck check = new SweepCheck();
+        boolean passed = check.checkTimeOfImpact();
+        for (String name : names) {
+            if (! passed) {
+                break;
+            }
+            Class<? extends CollisionChecker> cls =
+                (Class<? extends CollisionChecker>) Class.forName(
+                    name.contains(".")
+                        ? name : "sofia.graphics.collision." + name);
+            CollisionChecker checker =
+                cls.getDeclaredConstructor().newInstance();
+            passed = check.checkSweepFirst(checker, size,
+                cls.getSimpleName());
+        }
+        if (! passed) {
+            System.out.println("FAILED: a sweep disagreed with the"
+                + " reference");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Compare the time of impact of random pairs with sampled positions.
+     *
+     * @return True if no time was late and no impact was missed
+     */
+    public boolean checkTimeOfImpact()
+    {
+        int swept = 0;
+        int hits = 0;
+        int between = 0;
+        int early = 0;
+        int past = 0;
+        int notPast = 0;
+        int notPastWithLine = 0;
+        for (int t = 0; t < PAIRS; t++) {
+            Shape first = createShape(100, 100, false);
+            Shape second = createShape(100, 100, false);
+            if (first.intersects(second)) {
+                continue;
+            }
+            float dx = random.nextInt(300) - 150;
+            float dy = random.nextInt(300) - 150;
+            swept++;
+
+            float time = first.getTimeOfImpact(second, dx, dy);
+            float sampled = sampleImpact(first, second, dx, dy);
+            String pair = first.getClass().getSimpleName() + " and "
+                + second.getClass().getSimpleName() + " (pair " + t + ")";
+            if (sampled >= 0 && time < 0) {
+                System.out.println(pair + ": missed an impact at "
+                    + sampled);
+                return false;
+            }
+            if (sampled >= 0 && time > sampled + 1e-4f) {
+                System.out.println(pair + ": impact at " + time
+                    + ", but the shapes intersect at " + sampled);
+                return false;
+            }
+            if (time < 0) {
+                continue;
+            }
+
+            hits++;
+            if (sampled < 0) {
+                between++;
+            }
+            else if (time < sampled - 1f / SAMPLES - 1e-4f) {
+                early++;
+            }
+            float length = (float) Math.hypot(dx, dy);
+            if (intersectsAt(first, second, dx, dy,
+                    Math.min(1, time + PAST / length))) {
+                past++;
+            }
+            else {
+                notPast++;
+                if (first instanceof LineShape
+                        || second instanceof LineShape) {
+                    notPastWithLine++;
+                }
+            }
+        }
+        System.out.printf("getTimeOfImpact(): %d sweeps, %d hits, none late"
+            + " or missed; %d between samples and %d earlier than them%n",
+            swept, hits, between, early);
+        System.out.printf("  %d hits intersect %.2f px past the time, and %d"
+            + " do not (%d of them with a line)%n", past, PAST, notPast,
+            notPastWithLine);
+        return true;
+    }
+
+    /**
+     * Find the first of a number of evenly spaced positions along a path
+     * at which a shape intersects another.
+     *
+     * @return The fraction of the path, or -1 if there is none
+     */
+    private static float sampleImpact(Shape shape, Shape other, float dx,
+            float dy)
+    {
+        for (int i = 0; i <= SAMPLES; i++) {
+            float t = (float) i / SAMPLES;
+            if (intersectsAt(shape, other, dx, dy, t)) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check whether a shape intersects another once it has moved a
+     * fraction of the way along a path, and move it back.
+     */
+    private static boolean intersectsAt(Shape shape, Shape other, float dx,
+            float dy, float t)
+    {
+        float x = shape.getX();
+        float y = shape.getY();
+        shape.setPosition(x + dx * t, y + dy * t);
+        boolean intersects = shape.intersects(other);
+        shape.setPosition(x, y);
+        return intersects;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Compare sweepFirst() on a checker with sweeping every shape.
+     *
+     * @return True if every sweep matched
+     */
+    public boolean checkSweepFirst(CollisionChecker checker, int size,
+            String label)
+    {
+        List<Shape> shapes = new ArrayList<Shape>();
+        for (int i = 0; i < size; i++) {
+            Shape shape = createShape(-200, WORLD_SIZE, i % 200 == 0);
+            if (i % 5 == 0) {
+                shape.setCollisionCategories(2);
+            }
+            shape.setStatic(i % 7 == 0);
+            shapes.add(shape);
+            checker.addObject(shape);
+        }
+        checker.startSequence();
+
+        int hits = 0;
+        for (int q = 0; q < SWEEPS; q++) {
+            Shape mover = shapes.get(random.nextInt(size));
+            float dx = random.nextInt((int) MAX_SWEEP * 2) - MAX_SWEEP;
+            float dy = random.nextInt((int) MAX_SWEEP * 2) - MAX_SWEEP;
+            Class<? extends Shape> cls =
+                (q % 5 == 0) ? RectangleShape.class : null;
+
+            Shape expected = null;
+            float expectedTime = 2;
+            for (Shape shape : shapes) {
+                if (shape == mover || ! mover.canCollideWith(shape)
+                        || (cls != null && ! cls.isInstance(shape))) {
+                    continue;
+                }
+                float t = mover.getTimeOfImpact(shape, dx, dy);
+                if (t >= 0 && t < expectedTime) {
+                    expectedTime = t;
+                    expected = shape;
+                }
+            }
+
+            SweepHit<? extends Shape> hit =
+                checker.sweepFirst(mover, dx, dy, cls);
+            String sweep = "sweepFirst(" + dx + ", " + dy + ") in sweep " + q;
+            if ((hit == null) != (expected == null)
+                    || (hit != null && hit.getTime() != expectedTime)) {
+                System.out.println(label + ": " + sweep + " returned "
+                    + ((hit == null) ? "no hit" : "a hit at " + hit.getTime())
+                    + ", expected "
+                    + ((expected == null) ? "none" : "one at " + expectedTime));
+                return false;
+            }
+            if (hit != null) {
+                hits++;
+                if (Math.abs(hit.getX() - (mover.getX() + dx * expectedTime))
+                        > 1e-3f
+                    || Math.abs(hit.getY() - (mover.getY() + dy * expectedTime))
+                        > 1e-3f) {
+                    System.out.println(label + ": " + sweep
+                        + " gave the wrong position");
+                    return false;
+                }
+            }
+        }
+
+        // Timed apart from the scan, once the sweeps have warmed up
+        long time = 0;
+        for (int pass = 0; pass < TIMED_PASSES; pass++) {
+            time = 0;
+            for (int q = 0; q < SWEEPS; q++) {
+                Shape mover = shapes.get(random.nextInt(size));
+                float dx = random.nextInt((int) MAX_SWEEP * 2) - MAX_SWEEP;
+                float dy = random.nextInt((int) MAX_SWEEP * 2) - MAX_SWEEP;
+                long start = System.nanoTime();
+                checker.sweepFirst(mover, dx, dy, null);
+                time += System.nanoTime() - start;
+            }
+        }
+        System.out.printf("%s: OK, %d hits, %.1f us per sweep%n", label,
+            hits, time / 1000.0 / SWEEPS);
+        return true;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Make an oval, box or line, turned half the time.
+     *
+     * @param origin  The least coordinate of the shape's position
+     * @param spread  The range of positions
+     * @param thin    True to make the shape long and thin
+     */
+    private Shape createShape(float origin, float spread, boolean thin)
+    {
+        float x = origin + random.nextInt((int) spread);
+        float y = origin + random.nextInt((int) spread);
+        float width = thin ? 1200 : 3 + random.nextInt(80);
+        float height = thin ? 4 : 3 + random.nextInt(80);
+        Shape shape;
+        switch (random.nextInt(3)) {
+            case 0:
+                shape = new OvalShape(x, y, x + width, y + height);
+                break;
+            case 1:
+                shape = new RectangleShape(x, y, x + width, y + height);
+                break;
+            default:
+                shape = new LineShape(x, y, x + width, y + height);
+                break;
+        }
+        if (random.nextBoolean()) {
+            shape.setRotation(random.nextInt(360));
+        }
+        return shape;
+    }
+}
@@ -0,0 +1,262 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.RectangleShape;
+import sofia.graphics.Shape;
+import sofia.graphics.ZIndexComparator;
+import sofia.graphics.internal.TouchIndex;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Checks that a {@link TouchIndex} finds the shapes at a point front to
+ * back, against a test of every shape sorted by the drawing order. Between
+ * rounds of queries, shapes move and turn, are taken out and put back
+ * with a new z-index, and change z-index in place. A few shapes are large
+ * enough to be kept in the index's list of oversized shapes. Both every
+ * shape and only the shapes that handle touches are indexed in turn.
+ *
+ * <p>It then times finding the front-most shape at a point, against
+ * asking an {@link IBSPColChecker} for every shape there and picking the
+ * front-most with the drawing order, as hit-testing did before the index.
+ *
+ * <p>Run it with {@code benchmark/run.sh TouchCheck}, optionally followed
+ * by the number of shapes. It exits with status 1 on the first mismatch.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class TouchCheck
+{
+    private static final int ROUNDS = 200;
+    private static final int QUERIES = 100;
+    private static final int TIMED_QUERIES = 200000;
+    private static final int Z_RANGE = 1000000;
+    /** The average area of the world each shape has to itself. */
+    private static final float AREA_PER_SHAPE = 40 * 40;
+    private static final float MIN_SIZE = 5;
+    private static final float MAX_SIZE = 100;
+
+    private final ZIndexComparator order = new ZIndexComparator();
+    private final TouchIndex index = new TouchIndex(order);
+    private final float worldSize;
+    private final Random random = new Random(3);
+    private final List<RectangleShape> shapes = new ArrayList<RectangleShape>();
+
+
+    /**
+     * A shape that handles touches.
+     */
+    private static class Touchable extends RectangleShape
+    {
+        Touchable(float left, float top, float right, float bottom)
+        {
+            super(left, top, right, bottom);
+        }
+
+        public void onTouchDown()
+        {
+            // Only needs to exist
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a check of an index over a given number of shapes.
+     */
+    public TouchCheck(int size)
+    {
+        worldSize = (float) Math.sqrt(size * AREA_PER_SHAPE);
+        for (int i = 0; i < size; i++) {
+            float width = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            float height = MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE);
+            if (i % 100 == 0) {
+                width = TouchIndex.CELL_SIZE * 10;
+                height = TouchIndex.CELL_SIZE * 10;
+            }
+            float x = random.nextFloat() * worldSize;
+            float y = random.nextFloat() * worldSize;
+            RectangleShape shape = random.nextBoolean()
+                ? new Touchable(x, y, x + width, y + height)
+                : new RectangleShape(x, y, x + width, y + height);
+            if (i % 5 == 0) {
+                shape.setRotation(random.nextFloat() * 360);
+            }
+            shape.setZIndex(random.nextInt(Z_RANGE));
+            shapes.add(shape);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    public static void main(String[] args)
+    {
+        int size = (args.length > 0) ? Integer.parseInt(args[0]) : 3000;
+        TouchCheck check = new TouchCheck(size);
+        if (! check.run(false) || ! check.run(true)) {
+            System.out.println("FAILED: the index disagreed with the scan");
+            System.exit(1);
+        }
+        check.time();
+        System.out.println("OK");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Change the shapes for a number of rounds, querying the index after
+     * each.
+     *
+     * @param touchableOnly  True to index only the shapes that handle
+     *                       touches
+     * @return True if every query matched the scan
+     */
+    public boolean run(boolean touchableOnly)
+    {
+        String label = touchableOnly ? "touchable only" : "every shape";
+        index.setTouchableOnly(touchableOnly);
+        for (Shape shape : shapes) {
+            index.add(shape);
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            change();
+            for (int q = 0; q < QUERIES; q++) {
+                float x = random.nextFloat() * (worldSize + 200) - 100;
+                float y = random.nextFloat() * (worldSize + 200) - 100;
+                if (q % 10 == 0) {
+                    // On a corner or edge of a shape
+                    Shape shape = pick();
+                    x = (q % 20 == 0) ? shape.getX()
+                        : shape.getX() + shape.getWidth();
+                    y = shape.getY();
+                }
+                String failure = check(x, y, touchableOnly);
+                if (failure != null) {
+                    System.out.println(label + ": " + failure + " at (" + x
+                        + ", " + y + "), round " + round);
+                    return false;
+                }
+            }
+        }
+        System.out.println(label + ": OK");
+        return true;
+    }
+
+    /**
+     * Move, turn and reorder some of the shapes.
+     */
+    private void change()
+    {
+        for (int k = 0; k < 50; k++) {
+            RectangleShape shape = pick();
+            shape.setPosition(shape.getX() + random.nextFloat() * 200 - 100,
+                shape.getY() + random.nextFloat() * 200 - 100);
+            if (shape.getRotation() != 0) {
+                shape.setRotation(random.nextFloat() * 360);
+            }
+            index.update(shape);
+        }
+        for (int k = 0; k < 10; k++) {
+            RectangleShape shape = pick();
+            index.remove(shape);
+            shape.setZIndex(random.nextInt(Z_RANGE));
+            index.add(shape);
+        }
+        for (int k = 0; k < 5; k++) {
+            RectangleShape shape = pick();
+            shape.setZIndex(random.nextInt(Z_RANGE));
+            index.reorder(shape);
+        }
+    }
+
+    private String check(float x, float y, boolean touchableOnly)
+    {
+        List<Shape> expected = new ArrayList<Shape>();
+        Touchable expectedTouchable = null;
+        for (Shape shape : shapes) {
+            if (shape.contains(x, y)
+                    && (! touchableOnly || TouchIndex.isTouchable(shape))) {
+                expected.add(shape);
+            }
+        }
+        Collections.sort(expected, Collections.reverseOrder(order));
+        for (Shape shape : expected) {
+            if (shape instanceof Touchable) {
+                expectedTouchable = (Touchable) shape;
+                break;
+            }
+        }
+
+        List<Shape> result = new ArrayList<Shape>();
+        index.getShapesAt(x, y, null, result);
+        if (! result.equals(expected)) {
+            return "getShapesAt found " + result.size() + " shapes, expected "
+                + expected.size();
+        }
+        Shape first = index.getShapeAt(x, y, null);
+        if (first != (expected.isEmpty() ? null : expected.get(0))) {
+            return "getShapeAt returned the wrong shape";
+        }
+        if (index.getShapeAt(x, y, Touchable.class) != expectedTouchable) {
+            return "getShapeAt(Touchable) returned the wrong shape";
+        }
+        return null;
+    }
+
+    /**
+     * Time finding the front-most shape at random points with the index,
+     * and with a collision checker and the drawing order.
+     */
+    public void time()
+    {
+        index.setTouchableOnly(false);
+        IBSPColChecker checker = new IBSPColChecker();
+        for (Shape shape : shapes) {
+            index.add(shape);
+            checker.addObject(shape);
+        }
+        checker.startSequence();
+
+        float[] points = new float[TIMED_QUERIES * 2];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextFloat() * worldSize;
+        }
+
+        int indexHits = 0;
+        long start = System.nanoTime();
+        for (int q = 0; q < TIMED_QUERIES; q++) {
+            if (index.getShapeAt(points[q * 2], points[q * 2 + 1], null)
+                    != null) {
+                indexHits++;
+            }
+        }
+        long indexTime = System.nanoTime() - start;
+
+        int checkerHits = 0;
+        start = System.nanoTime();
+        for (int q = 0; q < TIMED_QUERIES; q++) {
+            Shape front = null;
+            for (Shape shape : checker.getObjectsAt(
+                    points[q * 2], points[q * 2 + 1], null)) {
+                if (front == null || order.compare(shape, front) > 0) {
+                    front = shape;
+                }
+            }
+            if (front != null) {
+                checkerHits++;
+            }
+        }
+        long checkerTime = System.nanoTime() - start;
+
+        System.out.printf("getShapeAt: %.0f ns per query with the index,"
+            + " %.0f ns with the collision checker (%d and %d hits)%n",
+            (double) indexTime / TIMED_QUERIES,
+            (double) checkerTime / TIMED_QUERIES, indexHits, checkerHits);
+    }
+
+    private RectangleShape pick()
+    {
+        return shapes.get(random.nextInt(shapes.size()));
+    }
+}
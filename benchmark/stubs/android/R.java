@@ -0,0 +1,10 @@
+package android;
+
+public final class R
+{
+    public static final class attr
+    {
+        public static final int colorBackground = 0x01010031;
+        public static final int textColorPrimary = 0x01010036;
+    }
+}
@@ -0,0 +1,26 @@
+package android.content;
+
+import android.content.res.Resources;
+
+public abstract class Context
+{
+    public Resources getResources()
+    {
+        return null;
+    }
+
+    public Resources.Theme getTheme()
+    {
+        return null;
+    }
+
+    public String getPackageName()
+    {
+        return "";
+    }
+
+    public Context getApplicationContext()
+    {
+        return this;
+    }
+}
@@ -0,0 +1,35 @@
+package android.content.res;
+
+import android.util.DisplayMetrics;
+import java.io.InputStream;
+
+public class Resources
+{
+    public static Resources getSystem()
+    {
+        return null;
+    }
+
+    public DisplayMetrics getDisplayMetrics()
+    {
+        return null;
+    }
+
+    public int getIdentifier(String name, String type, String pkg)
+    {
+        return 0;
+    }
+
+    public InputStream openRawResource(int id)
+    {
+        return null;
+    }
+
+    public class Theme
+    {
+        public TypedArray obtainStyledAttributes(int[] attrs)
+        {
+            return null;
+        }
+    }
+}
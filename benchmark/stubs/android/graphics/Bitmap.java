@@ -0,0 +1,122 @@
+package android.graphics;
+
+/**
+ * Held in memory as an array of ARGB pixels, so that image shapes can be
+ * tested against their opaque pixels.
+ */
+public final class Bitmap
+{
+    public enum Config
+    {
+        ARGB_8888, RGB_565, ALPHA_8
+    }
+
+    private int width;
+    private int height;
+    private int[] pixels;
+    private boolean hasAlpha = true;
+
+
+    public static Bitmap createBitmap(int width, int height, Config config)
+    {
+        Bitmap bitmap = new Bitmap();
+        bitmap.width = width;
+        bitmap.height = height;
+        bitmap.pixels = new int[width * height];
+        return bitmap;
+    }
+
+    public static Bitmap createBitmap(Bitmap source, int x, int y, int width,
+        int height)
+    {
+        Bitmap bitmap = createBitmap(width, height, Config.ARGB_8888);
+        source.getPixels(bitmap.pixels, 0, width, x, y, width, height);
+        return bitmap;
+    }
+
+    public static Bitmap createScaledBitmap(Bitmap source, int width,
+        int height, boolean filter)
+    {
+        return source;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getPixel(int x, int y)
+    {
+        return pixels[y * width + x];
+    }
+
+    public void setPixel(int x, int y, int color)
+    {
+        pixels[y * width + x] = color;
+    }
+
+    public void getPixels(int[] dest, int offset, int stride, int x, int y,
+        int w, int h)
+    {
+        for (int row = 0; row < h; row++)
+        {
+            System.arraycopy(pixels, (y + row) * width + x,
+                dest, offset + row * stride, w);
+        }
+    }
+
+    public void setPixels(int[] src, int offset, int stride, int x, int y,
+        int w, int h)
+    {
+        for (int row = 0; row < h; row++)
+        {
+            System.arraycopy(src, offset + row * stride,
+                pixels, (y + row) * width + x, w);
+        }
+    }
+
+    public boolean hasAlpha()
+    {
+        return hasAlpha;
+    }
+
+    public void setHasAlpha(boolean hasAlpha)
+    {
+        this.hasAlpha = hasAlpha;
+    }
+
+    public Config getConfig()
+    {
+        return Config.ARGB_8888;
+    }
+
+    public boolean isMutable()
+    {
+        return true;
+    }
+
+    public boolean isRecycled()
+    {
+        return false;
+    }
+
+    public void recycle()
+    {
+        // Nothing to release
+    }
+
+    public int getGenerationId()
+    {
+        return 0;
+    }
+
+    public Bitmap copy(Config config, boolean mutable)
+    {
+        return createBitmap(this, 0, 0, width, height);
+    }
+}
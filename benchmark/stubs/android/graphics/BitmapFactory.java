@@ -0,0 +1,37 @@
+package android.graphics;
+
+import android.content.res.Resources;
+import java.io.InputStream;
+
+public class BitmapFactory
+{
+    public static class Options
+    {
+        public boolean inScaled;
+        public boolean inJustDecodeBounds;
+        public int inDensity;
+        public int inTargetDensity;
+        public int outWidth;
+        public int outHeight;
+    }
+
+    public static Bitmap decodeResource(Resources res, int id)
+    {
+        return null;
+    }
+
+    public static Bitmap decodeResource(Resources res, int id, Options opts)
+    {
+        return null;
+    }
+
+    public static Bitmap decodeStream(InputStream stream)
+    {
+        return null;
+    }
+
+    public static Bitmap decodeFile(String path)
+    {
+        return null;
+    }
+}
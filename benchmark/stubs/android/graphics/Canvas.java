@@ -0,0 +1,114 @@
+package android.graphics;
+
+/**
+ * Draws nothing; the benchmarks never render.
+ */
+public class Canvas
+{
+    public Canvas()
+    {
+        // Nothing to set up
+    }
+
+    public Canvas(Bitmap bitmap)
+    {
+        // Nothing to set up
+    }
+
+    public int save()
+    {
+        return 0;
+    }
+
+    public void restore()
+    {
+        // Nothing to restore
+    }
+
+    public boolean concat(Matrix matrix)
+    {
+        return true;
+    }
+
+    public void translate(float dx, float dy)
+    {
+        // Nothing to draw
+    }
+
+    public void scale(float sx, float sy)
+    {
+        // Nothing to draw
+    }
+
+    public void rotate(float degrees)
+    {
+        // Nothing to draw
+    }
+
+    public boolean clipRect(RectF rect)
+    {
+        return true;
+    }
+
+    public int getWidth()
+    {
+        return 0;
+    }
+
+    public int getHeight()
+    {
+        return 0;
+    }
+
+    public void drawColor(int color)
+    {
+        // Nothing to draw
+    }
+
+    public void drawRect(RectF rect, Paint paint)
+    {
+        // Nothing to draw
+    }
+
+    public void drawRoundRect(RectF rect, float rx, float ry, Paint paint)
+    {
+        // Nothing to draw
+    }
+
+    public void drawOval(RectF oval, Paint paint)
+    {
+        // Nothing to draw
+    }
+
+    public void drawArc(RectF oval, float startAngle, float sweepAngle,
+        boolean useCenter, Paint paint)
+    {
+        // Nothing to draw
+    }
+
+    public void drawLine(float startX, float startY, float stopX, float stopY,
+        Paint paint)
+    {
+        // Nothing to draw
+    }
+
+    public void drawPath(Path path, Paint paint)
+    {
+        // Nothing to draw
+    }
+
+    public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint)
+    {
+        // Nothing to draw
+    }
+
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint)
+    {
+        // Nothing to draw
+    }
+
+    public void drawText(String text, float x, float y, Paint paint)
+    {
+        // Nothing to draw
+    }
+}
@@ -0,0 +1,6 @@
+package android.graphics;
+
+public class ColorFilter
+{
+    // Never applied
+}
@@ -0,0 +1,224 @@
+package android.graphics;
+
+/**
+ * A 2D affine transform, enough of one for shapes to map their rotated
+ * corners and bounds. It maps (x, y) to (a x + b y + c, d x + e y + f).
+ */
+public class Matrix
+{
+    private float a = 1;
+    private float b;
+    private float c;
+    private float d;
+    private float e = 1;
+    private float f;
+
+
+    public Matrix()
+    {
+        // The identity
+    }
+
+    public Matrix(Matrix src)
+    {
+        if (src != null)
+        {
+            set(src);
+        }
+    }
+
+    public void set(Matrix src)
+    {
+        a = src.a;
+        b = src.b;
+        c = src.c;
+        d = src.d;
+        e = src.e;
+        f = src.f;
+    }
+
+    public void reset()
+    {
+        a = 1;
+        b = 0;
+        c = 0;
+        d = 0;
+        e = 1;
+        f = 0;
+    }
+
+    public boolean isIdentity()
+    {
+        return a == 1 && b == 0 && c == 0 && d == 0 && e == 1 && f == 0;
+    }
+
+    public void getValues(float[] values)
+    {
+        values[0] = a;
+        values[1] = b;
+        values[2] = c;
+        values[3] = d;
+        values[4] = e;
+        values[5] = f;
+        values[6] = 0;
+        values[7] = 0;
+        values[8] = 1;
+    }
+
+    public boolean postTranslate(float dx, float dy)
+    {
+        post(1, 0, dx, 0, 1, dy);
+        return true;
+    }
+
+    public boolean preTranslate(float dx, float dy)
+    {
+        pre(1, 0, dx, 0, 1, dy);
+        return true;
+    }
+
+    public boolean postScale(float sx, float sy)
+    {
+        post(sx, 0, 0, 0, sy, 0);
+        return true;
+    }
+
+    public boolean preScale(float sx, float sy)
+    {
+        pre(sx, 0, 0, 0, sy, 0);
+        return true;
+    }
+
+    public boolean postRotate(float degrees)
+    {
+        double radians = Math.toRadians(degrees);
+        float cos = (float) Math.cos(radians);
+        float sin = (float) Math.sin(radians);
+        post(cos, -sin, 0, sin, cos, 0);
+        return true;
+    }
+
+    public boolean postRotate(float degrees, float px, float py)
+    {
+        postTranslate(-px, -py);
+        postRotate(degrees);
+        postTranslate(px, py);
+        return true;
+    }
+
+    public boolean setRotate(float degrees, float px, float py)
+    {
+        reset();
+        return postRotate(degrees, px, py);
+    }
+
+    public boolean postConcat(Matrix other)
+    {
+        post(other.a, other.b, other.c, other.d, other.e, other.f);
+        return true;
+    }
+
+    public boolean invert(Matrix inverse)
+    {
+        float det = a * e - b * d;
+        if (det == 0)
+        {
+            return false;
+        }
+        float ia = e / det;
+        float ib = -b / det;
+        float id = -d / det;
+        float ie = a / det;
+        float ic = -(ia * c + ib * f);
+        float iff = -(id * c + ie * f);
+        inverse.a = ia;
+        inverse.b = ib;
+        inverse.c = ic;
+        inverse.d = id;
+        inverse.e = ie;
+        inverse.f = iff;
+        return true;
+    }
+
+    public void mapPoints(float[] pts)
+    {
+        mapPoints(pts, pts);
+    }
+
+    public void mapPoints(float[] dst, float[] src)
+    {
+        for (int i = 0; i + 1 < src.length; i += 2)
+        {
+            float x = src[i];
+            float y = src[i + 1];
+            dst[i] = a * x + b * y + c;
+            dst[i + 1] = d * x + e * y + f;
+        }
+    }
+
+    public boolean mapRect(RectF rect)
+    {
+        return mapRect(rect, rect);
+    }
+
+    public boolean mapRect(RectF dst, RectF src)
+    {
+        float[] pts = {
+            src.left, src.top, src.right, src.top,
+            src.left, src.bottom, src.right, src.bottom };
+        mapPoints(pts);
+        float left = pts[0];
+        float top = pts[1];
+        float right = pts[0];
+        float bottom = pts[1];
+        for (int i = 2; i < pts.length; i += 2)
+        {
+            left = Math.min(left, pts[i]);
+            right = Math.max(right, pts[i]);
+            top = Math.min(top, pts[i + 1]);
+            bottom = Math.max(bottom, pts[i + 1]);
+        }
+        dst.set(left, top, right, bottom);
+        return true;
+    }
+
+    /**
+     * This = m * this, applying m after the current transform.
+     */
+    private void post(float ma, float mb, float mc, float md, float me,
+        float mf)
+    {
+        float na = ma * a + mb * d;
+        float nb = ma * b + mb * e;
+        float nc = ma * c + mb * f + mc;
+        float nd = md * a + me * d;
+        float ne = md * b + me * e;
+        float nf = md * c + me * f + mf;
+        a = na;
+        b = nb;
+        c = nc;
+        d = nd;
+        e = ne;
+        f = nf;
+    }
+
+    /**
+     * This = this * m, applying m before the current transform.
+     */
+    private void pre(float ma, float mb, float mc, float md, float me,
+        float mf)
+    {
+        float na = a * ma + b * md;
+        float nb = a * mb + b * me;
+        float nc = a * mc + b * mf + c;
+        float nd = d * ma + e * md;
+        float ne = d * mb + e * me;
+        float nf = d * mc + e * mf + f;
+        a = na;
+        b = nb;
+        c = nc;
+        d = nd;
+        e = ne;
+        f = nf;
+    }
+}
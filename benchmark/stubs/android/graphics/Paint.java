@@ -0,0 +1,181 @@
+package android.graphics;
+
+public class Paint
+{
+    public static final int ANTI_ALIAS_FLAG = 1;
+
+    public enum Style
+    {
+        FILL, STROKE, FILL_AND_STROKE
+    }
+
+    public enum Align
+    {
+        LEFT, CENTER, RIGHT
+    }
+
+    public enum Cap
+    {
+        BUTT, ROUND, SQUARE
+    }
+
+    public enum Join
+    {
+        MITER, ROUND, BEVEL
+    }
+
+    public static class FontMetrics
+    {
+        public float ascent;
+        public float descent;
+        public float top;
+        public float bottom;
+        public float leading;
+    }
+
+    private float strokeWidth;
+    private float textSize;
+    private Typeface typeface;
+    private Cap cap = Cap.BUTT;
+    private Join join = Join.MITER;
+
+
+    public Paint()
+    {
+        // Nothing to set up
+    }
+
+    public Paint(int flags)
+    {
+        // Nothing to set up
+    }
+
+    public Paint(Paint paint)
+    {
+        strokeWidth = paint.strokeWidth;
+        textSize = paint.textSize;
+        typeface = paint.typeface;
+        cap = paint.cap;
+        join = paint.join;
+    }
+
+    public void setStyle(Style style)
+    {
+        // Never drawn
+    }
+
+    public void setColor(int color)
+    {
+        // Never drawn
+    }
+
+    public void setAlpha(int alpha)
+    {
+        // Never drawn
+    }
+
+    public void setAntiAlias(boolean antiAlias)
+    {
+        // Never drawn
+    }
+
+    public void setDither(boolean dither)
+    {
+        // Never drawn
+    }
+
+    public void setFilterBitmap(boolean filter)
+    {
+        // Never drawn
+    }
+
+    public ColorFilter setColorFilter(ColorFilter filter)
+    {
+        return filter;
+    }
+
+    public float getStrokeWidth()
+    {
+        return strokeWidth;
+    }
+
+    public void setStrokeWidth(float width)
+    {
+        strokeWidth = width;
+    }
+
+    public void setStrokeMiter(float miter)
+    {
+        // Never drawn
+    }
+
+    public Cap getStrokeCap()
+    {
+        return cap;
+    }
+
+    public void setStrokeCap(Cap cap)
+    {
+        this.cap = cap;
+    }
+
+    public Join getStrokeJoin()
+    {
+        return join;
+    }
+
+    public void setStrokeJoin(Join join)
+    {
+        this.join = join;
+    }
+
+    public float getTextSize()
+    {
+        return textSize;
+    }
+
+    public void setTextSize(float size)
+    {
+        textSize = size;
+    }
+
+    public Typeface getTypeface()
+    {
+        return typeface;
+    }
+
+    public void setTypeface(Typeface typeface)
+    {
+        this.typeface = typeface;
+    }
+
+    public void setTextAlign(Align align)
+    {
+        // Never drawn
+    }
+
+    public float measureText(String text)
+    {
+        return 0;
+    }
+
+    public void getTextBounds(String text, int start, int end, Rect bounds)
+    {
+        bounds.set(0, 0, 0, 0);
+    }
+
+    public float ascent()
+    {
+        return 0;
+    }
+
+    public float descent()
+    {
+        return 0;
+    }
+
+    public FontMetrics getFontMetrics()
+    {
+        return new FontMetrics();
+    }
+}
@@ -0,0 +1,46 @@
+package android.graphics;
+
+public class PointF
+{
+    public float x;
+    public float y;
+
+
+    public PointF()
+    {
+        // At the origin
+    }
+
+    public PointF(float x, float y)
+    {
+        this.x = x;
+        this.y = y;
+    }
+
+    public final void set(float x, float y)
+    {
+        this.x = x;
+        this.y = y;
+    }
+
+    public final void offset(float dx, float dy)
+    {
+        x += dx;
+        y += dy;
+    }
+
+    public final boolean equals(float x, float y)
+    {
+        return this.x == x && this.y == y;
+    }
+
+    public final float length()
+    {
+        return length(x, y);
+    }
+
+    public static float length(float x, float y)
+    {
+        return (float) Math.sqrt(x * x + y * y);
+    }
+}
@@ -0,0 +1,9 @@
+package android.graphics;
+
+public class PorterDuff
+{
+    public enum Mode
+    {
+        SRC_ATOP, SRC_IN, SRC_OVER, DST_IN, MULTIPLY
+    }
+}
@@ -0,0 +1,10 @@
+package android.graphics;
+
+public class PorterDuffColorFilter
+    extends ColorFilter
+{
+    public PorterDuffColorFilter(int color, PorterDuff.Mode mode)
+    {
+        // Never applied
+    }
+}
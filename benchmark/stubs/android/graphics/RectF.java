@@ -0,0 +1,159 @@
+package android.graphics;
+
+/**
+ * The lightweight stand-in every shape's bounds are held in. It behaves as
+ * Android's does for everything the library calls.
+ */
+public class RectF
+{
+    public float left;
+    public float top;
+    public float right;
+    public float bottom;
+
+
+    public RectF()
+    {
+        // Empty
+    }
+
+    public RectF(float left, float top, float right, float bottom)
+    {
+        set(left, top, right, bottom);
+    }
+
+    public RectF(RectF r)
+    {
+        set(r);
+    }
+
+    public final float width()
+    {
+        return right - left;
+    }
+
+    public final float height()
+    {
+        return bottom - top;
+    }
+
+    public final float centerX()
+    {
+        return (left + right) * 0.5f;
+    }
+
+    public final float centerY()
+    {
+        return (top + bottom) * 0.5f;
+    }
+
+    public final boolean isEmpty()
+    {
+        return left >= right || top >= bottom;
+    }
+
+    public void set(float left, float top, float right, float bottom)
+    {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public void set(RectF src)
+    {
+        set(src.left, src.top, src.right, src.bottom);
+    }
+
+    public void offset(float dx, float dy)
+    {
+        left += dx;
+        top += dy;
+        right += dx;
+        bottom += dy;
+    }
+
+    public void offsetTo(float newLeft, float newTop)
+    {
+        right += newLeft - left;
+        bottom += newTop - top;
+        left = newLeft;
+        top = newTop;
+    }
+
+    public void inset(float dx, float dy)
+    {
+        left += dx;
+        top += dy;
+        right -= dx;
+        bottom -= dy;
+    }
+
+    public void sort()
+    {
+        if (left > right)
+        {
+            float temp = left;
+            left = right;
+            right = temp;
+        }
+        if (top > bottom)
+        {
+            float temp = top;
+            top = bottom;
+            bottom = temp;
+        }
+    }
+
+    public boolean contains(float x, float y)
+    {
+        return left < right && top < bottom
+            && x >= left && x < right && y >= top && y < bottom;
+    }
+
+    public boolean contains(RectF r)
+    {
+        return left <= r.left && top <= r.top
+            && right >= r.right && bottom >= r.bottom;
+    }
+
+    public boolean intersects(float l, float t, float r, float b)
+    {
+        return left < r && l < right && top < b && t < bottom;
+    }
+
+    public static boolean intersects(RectF a, RectF b)
+    {
+        return a.left < b.right && b.left < a.right
+            && a.top < b.bottom && b.top < a.bottom;
+    }
+
+    public boolean intersect(RectF r)
+    {
+        if (!intersects(r.left, r.top, r.right, r.bottom))
+        {
+            return false;
+        }
+        left = Math.max(left, r.left);
+        top = Math.max(top, r.top);
+        right = Math.min(right, r.right);
+        bottom = Math.min(bottom, r.bottom);
+        return true;
+    }
+
+    public void union(RectF r)
+    {
+        left = Math.min(left, r.left);
+        top = Math.min(top, r.top);
+        right = Math.max(right, r.right);
+        bottom = Math.max(bottom, r.bottom);
+    }
+
+    public void union(float x, float y)
+    {
+        left = Math.min(left, x);
+        top = Math.min(top, y);
+        right = Math.max(right, x);
+        bottom = Math.max(bottom, y);
+    }
+}
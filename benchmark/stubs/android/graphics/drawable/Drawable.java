@@ -0,0 +1,43 @@
+package android.graphics.drawable;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Rect;
+
+public abstract class Drawable
+{
+    public void draw(Canvas canvas)
+    {
+        // Never drawn
+    }
+
+    public void setBounds(int left, int top, int right, int bottom)
+    {
+        // Never drawn
+    }
+
+    public void setBounds(Rect bounds)
+    {
+        // Never drawn
+    }
+
+    public void setAlpha(int alpha)
+    {
+        // Never drawn
+    }
+
+    public void setColorFilter(ColorFilter filter)
+    {
+        // Never drawn
+    }
+
+    public int getIntrinsicWidth()
+    {
+        return 0;
+    }
+
+    public int getIntrinsicHeight()
+    {
+        return 0;
+    }
+}
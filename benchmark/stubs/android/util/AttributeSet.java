@@ -0,0 +1,6 @@
+package android.util;
+
+public interface AttributeSet
+{
+    // No attributes are ever read
+}
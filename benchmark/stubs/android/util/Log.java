@@ -0,0 +1,38 @@
+package android.util;
+
+public final class Log
+{
+    public static int v(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int d(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int i(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int w(String tag, String msg)
+    {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg)
+    {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr)
+    {
+        System.err.println(tag + ": " + msg);
+        tr.printStackTrace();
+        return 0;
+    }
+}
@@ -0,0 +1,32 @@
+package android.view;
+
+public class KeyEvent
+{
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int KEYCODE_DPAD_UP = 19;
+    public static final int KEYCODE_DPAD_DOWN = 20;
+    public static final int KEYCODE_DPAD_LEFT = 21;
+    public static final int KEYCODE_DPAD_RIGHT = 22;
+    public static final int KEYCODE_DPAD_CENTER = 23;
+
+    private final int action;
+    private final int code;
+
+
+    public KeyEvent(int action, int code)
+    {
+        this.action = action;
+        this.code = code;
+    }
+
+    public int getAction()
+    {
+        return action;
+    }
+
+    public int getKeyCode()
+    {
+        return code;
+    }
+}
@@ -0,0 +1,62 @@
+package android.view;
+
+public final class MotionEvent
+{
+    public static final int ACTION_MASK = 0xff;
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_MOVE = 2;
+    public static final int ACTION_CANCEL = 3;
+    public static final int ACTION_POINTER_DOWN = 5;
+    public static final int ACTION_POINTER_UP = 6;
+
+    private int action;
+    private float x;
+    private float y;
+
+
+    public static MotionEvent obtain(long downTime, long eventTime,
+        int action, float x, float y, int metaState)
+    {
+        MotionEvent event = new MotionEvent();
+        event.action = action;
+        event.x = x;
+        event.y = y;
+        return event;
+    }
+
+    public int getAction()
+    {
+        return action;
+    }
+
+    public int getPointerCount()
+    {
+        return 1;
+    }
+
+    public float getX()
+    {
+        return x;
+    }
+
+    public float getY()
+    {
+        return y;
+    }
+
+    public float getX(int pointerIndex)
+    {
+        return x;
+    }
+
+    public float getY(int pointerIndex)
+    {
+        return y;
+    }
+
+    public void recycle()
+    {
+        // Not pooled
+    }
+}
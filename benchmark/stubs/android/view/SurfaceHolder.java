@@ -0,0 +1,23 @@
+package android.view;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+public interface SurfaceHolder
+{
+    public interface Callback
+    {
+        void surfaceCreated(SurfaceHolder holder);
+
+        void surfaceChanged(SurfaceHolder holder, int format, int width,
+            int height);
+
+        void surfaceDestroyed(SurfaceHolder holder);
+    }
+
+    void addCallback(Callback callback);
+
+    Canvas lockCanvas(Rect dirty);
+
+    void unlockCanvasAndPost(Canvas canvas);
+}
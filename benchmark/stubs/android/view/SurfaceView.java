@@ -0,0 +1,28 @@
+package android.view;
+
+import android.content.Context;
+import android.util.AttributeSet;
+
+public class SurfaceView
+    extends View
+{
+    public SurfaceView(Context context)
+    {
+        super(context);
+    }
+
+    public SurfaceView(Context context, AttributeSet attrs)
+    {
+        super(context, attrs);
+    }
+
+    public SurfaceView(Context context, AttributeSet attrs, int defStyle)
+    {
+        super(context, attrs, defStyle);
+    }
+
+    public SurfaceHolder getHolder()
+    {
+        return null;
+    }
+}
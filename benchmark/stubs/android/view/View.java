@@ -0,0 +1,109 @@
+package android.view;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+
+public class View
+{
+    private final Context context;
+
+
+    public View(Context context)
+    {
+        this.context = context;
+    }
+
+    public View(Context context, AttributeSet attrs)
+    {
+        this.context = context;
+    }
+
+    public View(Context context, AttributeSet attrs, int defStyle)
+    {
+        this.context = context;
+    }
+
+    public Context getContext()
+    {
+        return context;
+    }
+
+    public Resources getResources()
+    {
+        return (context == null) ? null : context.getResources();
+    }
+
+    public int getWidth()
+    {
+        return 0;
+    }
+
+    public int getHeight()
+    {
+        return 0;
+    }
+
+    public Drawable getBackground()
+    {
+        return null;
+    }
+
+    public void setBackgroundColor(int color)
+    {
+        // Never drawn
+    }
+
+    public void setFocusableInTouchMode(boolean focusable)
+    {
+        // No input
+    }
+
+    public void invalidate()
+    {
+        // Never drawn
+    }
+
+    public boolean post(Runnable action)
+    {
+        action.run();
+        return true;
+    }
+
+    public boolean postDelayed(Runnable action, long delayMillis)
+    {
+        return false;
+    }
+
+    public boolean removeCallbacks(Runnable action)
+    {
+        return true;
+    }
+
+    public boolean dispatchTouchEvent(MotionEvent event)
+    {
+        return onTouchEvent(event);
+    }
+
+    public boolean onTouchEvent(MotionEvent event)
+    {
+        return false;
+    }
+
+    public boolean dispatchKeyEvent(KeyEvent event)
+    {
+        return false;
+    }
+
+    public boolean onKeyDown(int keyCode, KeyEvent event)
+    {
+        return false;
+    }
+
+    protected void onLayout(boolean changed, int left, int top, int right,
+        int bottom)
+    {
+        // Nothing to lay out
+    }
+}
@@ -0,0 +1,28 @@
+package android.view.animation;
+
+/**
+ * Linear; the benchmarks never run animations.
+ */
+public class AccelerateDecelerateInterpolator
+    implements Interpolator
+{
+    public AccelerateDecelerateInterpolator()
+    {
+        // Linear
+    }
+
+    public AccelerateDecelerateInterpolator(float factor)
+    {
+        // Linear
+    }
+
+    public AccelerateDecelerateInterpolator(float tension, float extraTension)
+    {
+        // Linear
+    }
+
+    public float getInterpolation(float input)
+    {
+        return input;
+    }
+}
@@ -0,0 +1,28 @@
+package android.view.animation;
+
+/**
+ * Linear; the benchmarks never run animations.
+ */
+public class AccelerateInterpolator
+    implements Interpolator
+{
+    public AccelerateInterpolator()
+    {
+        // Linear
+    }
+
+    public AccelerateInterpolator(float factor)
+    {
+        // Linear
+    }
+
+    public AccelerateInterpolator(float tension, float extraTension)
+    {
+        // Linear
+    }
+
+    public float getInterpolation(float input)
+    {
+        return input;
+    }
+}
@@ -0,0 +1,28 @@
+package android.view.animation;
+
+/**
+ * Linear; the benchmarks never run animations.
+ */
+public class AnticipateInterpolator
+    implements Interpolator
+{
+    public AnticipateInterpolator()
+    {
+        // Linear
+    }
+
+    public AnticipateInterpolator(float factor)
+    {
+        // Linear
+    }
+
+    public AnticipateInterpolator(float tension, float extraTension)
+    {
+        // Linear
+    }
+
+    public float getInterpolation(float input)
+    {
+        return input;
+    }
+}
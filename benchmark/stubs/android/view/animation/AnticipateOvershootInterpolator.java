@@ -0,0 +1,28 @@
+package android.view.animation;
+
+/**
+ * Linear; the benchmarks never run animations.
+ */
+public class AnticipateOvershootInterpolator
+    implements Interpolator
+{
+    public AnticipateOvershootInterpolator()
+    {
+        // Linear
+    }
+
+    public AnticipateOvershootInterpolator(float factor)
+    {
+        // Linear
+    }
+
+    public AnticipateOvershootInterpolator(float tension, float extraTension)
+    {
+        // Linear
+    }
+
+    public float getInterpolation(float input)
+    {
+        return input;
+    }
+}
@@ -0,0 +1,28 @@
+package android.view.animation;
+
+/**
+ * Linear; the benchmarks never run animations.
+ */
+public class BounceInterpolator
+    implements Interpolator
+{
+    public BounceInterpolator()
+    {
+        // Linear
+    }
+
+    public BounceInterpolator(float factor)
+    {
+        // Linear
+    }
+
+    public BounceInterpolator(float tension, float extraTension)
+    {
+        // Linear
+    }
+
+    public float getInterpolation(float input)
+    {
+        return input;
+    }
+}
@@ -0,0 +1,28 @@
+package android.view.animation;
+
+/**
+ * Linear; the benchmarks never run animations.
+ */
+public class CycleInterpolator
+    implements Interpolator
+{
+    public CycleInterpolator()
+    {
+        // Linear
+    }
+
+    public CycleInterpolator(float factor)
+    {
+        // Linear
+    }
+
+    public CycleInterpolator(float tension, float extraTension)
+    {
+        // Linear
+    }
+
+    public float getInterpolation(float input)
+    {
+        return input;
+    }
+}
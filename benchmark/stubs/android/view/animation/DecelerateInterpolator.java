@@ -0,0 +1,28 @@
+package android.view.animation;
+
+/**
+ * Linear; the benchmarks never run animations.
+ */
+public class DecelerateInterpolator
+    implements Interpolator
+{
+    public DecelerateInterpolator()
+    {
+        // Linear
+    }
+
+    public DecelerateInterpolator(float factor)
+    {
+        // Linear
+    }
+
+    public DecelerateInterpolator(float tension, float extraTension)
+    {
+        // Linear
+    }
+
+    public float getInterpolation(float input)
+    {
+        return input;
+    }
+}
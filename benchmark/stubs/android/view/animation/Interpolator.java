@@ -0,0 +1,6 @@
+package android.view.animation;
+
+public interface Interpolator
+{
+    float getInterpolation(float input);
+}
@@ -0,0 +1,28 @@
+package android.view.animation;
+
+/**
+ * Linear; the benchmarks never run animations.
+ */
+public class LinearInterpolator
+    implements Interpolator
+{
+    public LinearInterpolator()
+    {
+        // Linear
+    }
+
+    public LinearInterpolator(float factor)
+    {
+        // Linear
+    }
+
+    public LinearInterpolator(float tension, float extraTension)
+    {
+        // Linear
+    }
+
+    public float getInterpolation(float input)
+    {
+        return input;
+    }
+}
@@ -0,0 +1,28 @@
+package android.view.animation;
+
+/**
+ * Linear; the benchmarks never run animations.
+ */
+public class OvershootInterpolator
+    implements Interpolator
+{
+    public OvershootInterpolator()
+    {
+        // Linear
+    }
+
+    public OvershootInterpolator(float factor)
+    {
+        // Linear
+    }
+
+    public OvershootInterpolator(float tension, float extraTension)
+    {
+        // Linear
+    }
+
+    public float getInterpolation(float input)
+    {
+        return input;
+    }
+}
@@ -0,0 +1,72 @@
+package sofia.graphics;
+
+/**
+ * Stands in for the sofia-core class of the same name.
+ */
+public class Color
+{
+    public static final Color black = new Color(0xff000000);
+    public static final Color white = new Color(0xffffffff);
+    public static final Color red = new Color(0xffff0000);
+    public static final Color green = new Color(0xff008000);
+    public static final Color blue = new Color(0xff0000ff);
+
+    private final int raw;
+
+
+    private Color(int raw)
+    {
+        this.raw = raw;
+    }
+
+    public static Color fromRawColor(int raw)
+    {
+        return new Color(raw);
+    }
+
+    public static Color rgb(int red, int green, int blue)
+    {
+        return rgb(red, green, blue, 0xff);
+    }
+
+    public static Color rgb(int red, int green, int blue, int alpha)
+    {
+        return new Color(
+            (alpha << 24) | (red << 16) | (green << 8) | blue);
+    }
+
+    public static int toRawColor(Color color)
+    {
+        return color.raw;
+    }
+
+    public int toRawColor()
+    {
+        return raw;
+    }
+
+    public int alpha()
+    {
+        return raw >>> 24;
+    }
+
+    public int red()
+    {
+        return (raw >> 16) & 0xff;
+    }
+
+    public int green()
+    {
+        return (raw >> 8) & 0xff;
+    }
+
+    public int blue()
+    {
+        return raw & 0xff;
+    }
+
+    public Color withAlpha(int alpha)
+    {
+        return new Color((raw & 0x00ffffff) | (alpha << 24));
+    }
+}
@@ -0,0 +1,9 @@
+package sofia.graphics;
+
+public final class R
+{
+    public static final class drawable
+    {
+        public static final int sofia_default_image = 0x7f020000;
+    }
+}
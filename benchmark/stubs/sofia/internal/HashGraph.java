@@ -0,0 +1,60 @@
+package sofia.internal;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Stands in for the sofia-core class of the same name, holding no edges.
+ */
+public class HashGraph<V>
+{
+    public void addVertex(V vertex)
+    {
+        // No edges are ever added in the benchmarks
+    }
+
+    public void addEdge(V from, V to)
+    {
+        // No edges are ever added in the benchmarks
+    }
+
+    public void removeEdge(V from, V to)
+    {
+        // No edges are ever added in the benchmarks
+    }
+
+    public boolean isEmpty()
+    {
+        return true;
+    }
+
+    public boolean isSource(V vertex)
+    {
+        return true;
+    }
+
+    public int vertexCount()
+    {
+        return 0;
+    }
+
+    public int edgeCount()
+    {
+        return 0;
+    }
+
+    public Set<V> vertexSet()
+    {
+        return Collections.emptySet();
+    }
+
+    public Set<V> sourceVertexSet()
+    {
+        return Collections.emptySet();
+    }
+
+    public Set<V> outVertexSet(V vertex)
+    {
+        return Collections.emptySet();
+    }
+}
@@ -0,0 +1,11 @@
+package sofia.internal;
+
+import android.graphics.Bitmap;
+
+public class JarResources
+{
+    public static Bitmap getBitmap(Object... args)
+    {
+        return null;
+    }
+}
@@ -0,0 +1,50 @@
+package sofia.internal;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Stands in for the sofia-core class of the same name.
+ */
+public class Reversed<T>
+    implements Iterable<T>
+{
+    private final T[] items;
+
+
+    private Reversed(T[] items)
+    {
+        this.items = items;
+    }
+
+    public static <T> Reversed<T> reversed(T[] items)
+    {
+        return new Reversed<T>(items);
+    }
+
+    public Iterator<T> iterator()
+    {
+        return new Iterator<T>() {
+            private int next = items.length - 1;
+
+            public boolean hasNext()
+            {
+                return next >= 0;
+            }
+
+            public T next()
+            {
+                if (next < 0)
+                {
+                    throw new NoSuchElementException();
+                }
+                return items[next--];
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,23 @@
+package sofia.internal.events;
+
+/**
+ * Stands in for the sofia-core class of the same name. No handlers are
+ * ever found, so no events are dispatched.
+ */
+public class EventDispatcher
+{
+    public EventDispatcher(String method)
+    {
+        // Nothing is looked up
+    }
+
+    public boolean isSupportedBy(Object receiver, Object... args)
+    {
+        return false;
+    }
+
+    public boolean dispatch(Object receiver, Object... args)
+    {
+        return false;
+    }
+}
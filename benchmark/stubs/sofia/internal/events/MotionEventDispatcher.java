@@ -0,0 +1,10 @@
+package sofia.internal.events;
+
+public class MotionEventDispatcher
+    extends EventDispatcher
+{
+    public MotionEventDispatcher(String method)
+    {
+        super(method);
+    }
+}
@@ -0,0 +1,10 @@
+package sofia.internal.events;
+
+public class OptionalEventDispatcher
+    extends EventDispatcher
+{
+    public OptionalEventDispatcher(String method)
+    {
+        super(method);
+    }
+}
@@ -0,0 +1,10 @@
+package sofia.internal.events;
+
+public class ReversibleEventDispatcher
+    extends EventDispatcher
+{
+    public ReversibleEventDispatcher(String method)
+    {
+        super(method);
+    }
+}
@@ -1,5 +1,6 @@
 package sofia.app;
 
+import java.util.List;
 import java.util.Set;
 
 import android.graphics.PointF;
@@ -9,6 +10,7 @@ import sofia.graphics.Shape;
 import sofia.graphics.ShapeManipulating;
 import sofia.graphics.ShapeQuerying;
 import sofia.graphics.ShapeView;
+import sofia.graphics.collision.ShapeVisitor;
 
 // -------------------------------------------------------------------------
 /**
@@ -292,4 +294,44 @@ public abstract class ShapeScreen
     {
         return shapeView.getShapesAt(point, cls);
     }
+
+
+    // ----------------------------------------------------------
+    public <MyShape extends Shape> int forEachShapeAt(float x, float y,
+            Class<MyShape> cls, ShapeVisitor<? super MyShape> visitor)
+    {
+        return shapeView.forEachShapeAt(x, y, cls, visitor);
+    }
+
+
+    // ----------------------------------------------------------
+    public <MyShape extends Shape> int forEachIntersecting(Shape shape,
+            Class<MyShape> cls, ShapeVisitor<? super MyShape> visitor)
+    {
+        return shapeView.forEachIntersecting(shape, cls, visitor);
+    }
+
+
+    // ----------------------------------------------------------
+    public <MyShape extends Shape> int forEachInRange(float x, float y,
+            float r, Class<MyShape> cls, ShapeVisitor<? super MyShape> visitor)
+    {
+        return shapeView.forEachInRange(x, y, r, cls, visitor);
+    }
+
+
+    // ----------------------------------------------------------
+    public <MyShape extends Shape> List<MyShape> getNearestShapes(float x,
+            float y, int k, Class<MyShape> cls)
+    {
+        return shapeView.getNearestShapes(x, y, k, cls);
+    }
+
+
+    // ----------------------------------------------------------
+    public <MyShape extends Shape> MyShape getNearestShape(float x, float y,
+            Class<MyShape> cls)
+    {
+        return shapeView.getNearestShape(x, y, cls);
+    }
 }
@@ -0,0 +1,33 @@
+package sofia.graphics;
+
+// -------------------------------------------------------------------------
+/**
+ * Defines how a {@link ShapeView} finds the collisions between shapes that
+ * it reports through the {@code onCollisionWith} and
+ * {@code onCollisionBetween} events.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public enum CollisionMode
+{
+    //~ Constants .............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Each shape that moved during a frame is looked up in the view's
+     * collision checker to find the shapes it intersects. This is the
+     * default, and works well when only a few shapes move at a time.
+     */
+    QUERY,
+
+
+    // ----------------------------------------------------------
+    /**
+     * All overlapping pairs of shapes are found at once by a
+     * sweep-and-prune broadphase that keeps the bounds of every shape in
+     * sorted lists and updates them incrementally from frame to frame. This
+     * is usually faster when many shapes move every frame.
+     */
+    SWEEP_AND_PRUNE
+}
@@ -1,5 +1,6 @@
 package sofia.graphics;
 
+import sofia.graphics.internal.AlphaMask;
 import sofia.internal.JarResources;
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -385,6 +386,7 @@ public class Image
         // TODO: deal with copy-on-write if the bitmap is not mutable
 
         bitmap.setPixel(x, y, color.toRawColor());
+        AlphaMask.forget(bitmap);
     }
 
 
@@ -428,6 +430,7 @@ public class Image
             rawPixels[i] = pixels[i].toRawColor();
         }
         bitmap.setPixels(rawPixels, 0, width, 0, 0, width, height);
+        AlphaMask.forget(bitmap);
     }
 
 
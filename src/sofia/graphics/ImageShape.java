@@ -1,7 +1,9 @@
 package sofia.graphics;
 
+import sofia.graphics.internal.AlphaMask;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
@@ -12,6 +14,12 @@ import android.graphics.RectF;
 /**
  * A shape that renders itself using a bitmap image.
  *
+ * <p>By default, collisions and touches are tested against the pixels of
+ * the image that are actually drawn, so that two sprites only collide
+ * where their opaque pixels overlap, and a touch on a transparent part of a
+ * sprite goes to the shape behind it. See {@link #setPixelPerfect(boolean)}.
+ * </p>
+ *
  * @author  Tony Allevato
  * @author  Last changed by $Author: edwards $
  * @version $Date: 2012/08/04 16:32 $
@@ -23,6 +31,10 @@ public class ImageShape
 
     private Image image;
     private Rect sourceBounds;
+    private boolean pixelPerfect = true;
+
+    /** The most times a mask is halved for a shape drawn small. */
+    private static final int MAX_MASK_LEVEL = 6;
 
 
     //~ Constructors ..........................................................
@@ -200,6 +212,7 @@ public class ImageShape
     {
         this.image = newImage;
         sourceBounds = null;
+        notifyParentOfCollisionFilterChange();
         conditionallyRepaint();
     }
 
@@ -247,6 +260,7 @@ public class ImageShape
     public void setSourceBounds(Rect newSourceBounds)
     {
         this.sourceBounds = newSourceBounds;
+        notifyParentOfCollisionFilterChange();
         conditionallyRepaint();
     }
 
@@ -274,6 +288,80 @@ public class ImageShape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether collisions and touches are tested
+     * against the opaque pixels of the image, rather than against the
+     * shape's whole bounding box.
+     *
+     * @return true if collisions and touches are pixel-perfect
+     */
+    public boolean isPixelPerfect()
+    {
+        return pixelPerfect;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets whether collisions and touches are tested against the opaque
+     * pixels of the image, rather than against the shape's whole bounding
+     * box. A pixel is opaque if its alpha is at least
+     * {@link AlphaMask#ALPHA_THRESHOLD}. The default is true.
+     *
+     * @param newPixelPerfect true to make collisions and touches
+     *     pixel-perfect
+     */
+    public void setPixelPerfect(boolean newPixelPerfect)
+    {
+        pixelPerfect = newPixelPerfect;
+        notifyParentOfCollisionFilterChange();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether the specified pixel location is
+     * contained in the receiver. Once the image has been loaded, and unless
+     * pixel-perfect testing has been turned off, only the opaque pixels of
+     * the image contain the location.
+     *
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
+     * @return True if the shape contains the point, otherwise false.
+     */
+    @Override
+    public boolean contains(float x, float y)
+    {
+        if (!super.contains(x, y))
+        {
+            return false;
+        }
+
+        AlphaMask mask = getAlphaMask();
+        return mask == null
+            || isOpaqueAt(mask, getMaskTransform(0, true), getSource(), x, y);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Determine whether this shape intersects another. The bounding boxes
+     * are compared first; if they overlap, then unless pixel-perfect
+     * testing has been turned off, the shapes only intersect where an
+     * opaque pixel of the image overlaps the other shape, or an opaque
+     * pixel of its image.
+     *
+     * @param otherShape The other shape to check against.
+     * @return True if this shape and the other shape intersect.
+     */
+    @Override
+    public boolean intersects(Shape otherShape)
+    {
+        return super.intersects(otherShape) && pixelsOverlap(otherShape);
+    }
+
+
     // ----------------------------------------------------------
     @Override
     public void draw(Canvas canvas)
@@ -314,6 +402,293 @@ public class ImageShape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the mask of the image's opaque pixels.
+     *
+     * @return the mask, or null if the image is wholly opaque, has not yet
+     *     been loaded, or pixel-perfect testing is turned off
+     */
+    private AlphaMask getAlphaMask()
+    {
+        Bitmap bm = (pixelPerfect && image != null) ? image.asBitmap() : null;
+        return (bm == null) ? null : AlphaMask.forBitmap(bm);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the part of the bitmap that is drawn.
+     */
+    private Rect getSource()
+    {
+        if (sourceBounds != null)
+        {
+            return sourceBounds;
+        }
+        Bitmap bm = image.asBitmap();
+        return new Rect(0, 0, bm.getWidth(), bm.getHeight());
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of times to halve the mask so that each of its pixels
+     * covers no more than about one pixel on the screen.
+     */
+    private int getMaskLevel()
+    {
+        float scale = getScale();
+        int level = 0;
+        while (level < MAX_MASK_LEVEL && scale * 2 <= 1)
+        {
+            scale *= 2;
+            level++;
+        }
+        return level;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the size on the screen of one pixel of the bitmap, along its
+     * shorter side.
+     */
+    private float getScale()
+    {
+        Rect source = getSource();
+        return Math.min(
+            Math.abs(getBounds().width() / source.width()),
+            Math.abs(getBounds().height() / source.height()));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether this shape's mask, at the level it is
+     * tested at, has smaller pixels on the screen than another's. The
+     * finer mask is the one sampled, so that a test gives the same answer
+     * whichever shape it is asked of.
+     */
+    private boolean isFinerThan(ImageShape other)
+    {
+        float size = getScale() * (1 << getMaskLevel());
+        float otherSize = other.getScale() * (1 << other.getMaskLevel());
+        if (size != otherSize)
+        {
+            return size < otherSize;
+        }
+        return System.identityHashCode(this)
+            < System.identityHashCode(other);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the transformation from a level of the mask to the view, taking
+     * in the scaling, source bounds and rotation that drawing applies, as
+     * the nine values of a {@link Matrix}.
+     *
+     * @param level the number of times the mask has been halved
+     * @param inverse true to get the transformation from the view to the
+     *     mask instead
+     */
+    private float[] getMaskTransform(int level, boolean inverse)
+    {
+        RectF sortedBounds = new RectF(getBounds());
+        sortedBounds.sort();
+        Rect source = getSource();
+
+        Matrix xform = getTransform();
+        if (xform == null)
+        {
+            // Only scaling and translation, which are quicker to work out
+            // directly
+            float pixelX = sortedBounds.width() / source.width();
+            float pixelY = sortedBounds.height() / source.height();
+            float scaleX = pixelX * (1 << level);
+            float scaleY = pixelY * (1 << level);
+            float offsetX = sortedBounds.left - source.left * pixelX;
+            float offsetY = sortedBounds.top - source.top * pixelY;
+            if (inverse)
+            {
+                return new float[] {
+                    1 / scaleX, 0, -offsetX / scaleX,
+                    0, 1 / scaleY, -offsetY / scaleY,
+                    0, 0, 1 };
+            }
+            return new float[] {
+                scaleX, 0, offsetX, 0, scaleY, offsetY, 0, 0, 1 };
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.postScale(1 << level, 1 << level);
+        matrix.postTranslate(-source.left, -source.top);
+        matrix.postScale(sortedBounds.width() / source.width(),
+            sortedBounds.height() / source.height());
+        matrix.postTranslate(sortedBounds.left, sortedBounds.top);
+
+        // The xform is in bounding-box-relative coords.
+        matrix.postTranslate(-getBounds().left, -getBounds().top);
+        matrix.postConcat(xform);
+        matrix.postTranslate(getBounds().left, getBounds().top);
+
+        if (inverse)
+        {
+            Matrix inverted = new Matrix();
+            matrix.invert(inverted);
+            matrix = inverted;
+        }
+
+        float[] values = new float[9];
+        matrix.getValues(values);
+        return values;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether a point in the view falls on an
+     * opaque pixel of the drawn part of a mask.
+     */
+    private static boolean isOpaqueAt(
+        AlphaMask mask, float[] toMask, Rect source, float x, float y)
+    {
+        int u = (int) Math.floor(toMask[0] * x + toMask[1] * y + toMask[2]);
+        int v = (int) Math.floor(toMask[3] * x + toMask[4] * y + toMask[5]);
+        return u >= source.left && u < source.right
+            && v >= source.top && v < source.bottom
+            && mask.isOpaque(u, v);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Determine whether an opaque pixel of this shape's image overlaps
+     * another shape, whose bounding box is known to overlap this one's.
+     * When both images are unrotated and drawn at the same scale, their
+     * masks are compared a row of 64 pixels at a time. Otherwise, each
+     * opaque pixel of the finer of the two masks within the overlap is
+     * tested against the other shape.
+     */
+    private boolean pixelsOverlap(Shape other)
+    {
+        AlphaMask mask = getAlphaMask();
+        ImageShape otherImage =
+            (other instanceof ImageShape) ? (ImageShape) other : null;
+        AlphaMask otherMask =
+            (otherImage == null) ? null : otherImage.getAlphaMask();
+        if (mask == null)
+        {
+            // Only the other image's pixels, if any, need testing
+            return otherMask == null || otherImage.pixelsOverlap(this);
+        }
+
+        RectF area = new RectF(getRotatedBounds());
+        if (!area.intersect(other.getRotatedBounds()))
+        {
+            return false;
+        }
+
+        // The overlap, in pixels of the mask level being tested
+        int level = getMaskLevel();
+        AlphaMask levelMask = mask.getLevel(level);
+        float[] toMask = getMaskTransform(level, true);
+        Rect source = getSource();
+        float[] corners = {
+            area.left, area.top, area.right, area.top,
+            area.left, area.bottom, area.right, area.bottom };
+        float minU = Float.POSITIVE_INFINITY;
+        float minV = Float.POSITIVE_INFINITY;
+        float maxU = Float.NEGATIVE_INFINITY;
+        float maxV = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < corners.length; i += 2)
+        {
+            float u = toMask[0] * corners[i] + toMask[1] * corners[i + 1]
+                + toMask[2];
+            float v = toMask[3] * corners[i] + toMask[4] * corners[i + 1]
+                + toMask[5];
+            minU = Math.min(minU, u);
+            minV = Math.min(minV, v);
+            maxU = Math.max(maxU, u);
+            maxV = Math.max(maxV, v);
+        }
+        int left = Math.max((int) Math.floor(minU), source.left >> level);
+        int top = Math.max((int) Math.floor(minV), source.top >> level);
+        int right = Math.min((int) Math.ceil(maxU),
+            (source.right + (1 << level) - 1) >> level);
+        int bottom = Math.min((int) Math.ceil(maxV),
+            (source.bottom + (1 << level) - 1) >> level);
+
+        if (otherMask != null
+            && getTransform() == null && otherImage.getTransform() == null)
+        {
+            float[] otherToMask = otherImage.getMaskTransform(level, true);
+            if (Math.abs(otherToMask[0] - toMask[0])
+                    <= Math.abs(toMask[0]) * 0.001f
+                && Math.abs(otherToMask[4] - toMask[4])
+                    <= Math.abs(toMask[4]) * 0.001f)
+            {
+                // The same scale, so the masks differ only by an offset
+                int dx = Math.round(otherToMask[2] - toMask[2]);
+                int dy = Math.round(otherToMask[5] - toMask[5]);
+                Rect otherSource = otherImage.getSource();
+                left = Math.max(left, (otherSource.left >> level) - dx);
+                top = Math.max(top, (otherSource.top >> level) - dy);
+                right = Math.min(right,
+                    ((otherSource.right + (1 << level) - 1) >> level) - dx);
+                bottom = Math.min(bottom,
+                    ((otherSource.bottom + (1 << level) - 1) >> level) - dy);
+                return levelMask.overlaps(otherMask.getLevel(level), dx, dy,
+                    left, top, right, bottom);
+            }
+        }
+
+        if (otherMask != null && otherImage.isFinerThan(this))
+        {
+            return otherImage.pixelsOverlap(this);
+        }
+
+        float[] toView = getMaskTransform(level, false);
+        float[] otherToMask = (otherMask == null)
+            ? null : otherImage.getMaskTransform(0, true);
+        Rect otherSource = (otherMask == null) ? null : otherImage.getSource();
+        for (int v = top; v < bottom; v++)
+        {
+            for (int u = left; u < right; u += 64)
+            {
+                long opaque = levelMask.getBits(u, v);
+                int count = right - u;
+                if (count < 64)
+                {
+                    opaque &= (1L << count) - 1;
+                }
+
+                while (opaque != 0)
+                {
+                    // Test the centre of each opaque pixel
+                    float pu = u + Long.numberOfTrailingZeros(opaque) + 0.5f;
+                    float pv = v + 0.5f;
+                    opaque &= opaque - 1;
+                    float x = toView[0] * pu + toView[1] * pv + toView[2];
+                    float y = toView[3] * pu + toView[4] * pv + toView[5];
+                    if (!area.contains(x, y))
+                    {
+                        continue;
+                    }
+                    if (otherMask == null
+                        ? other.contains(x, y)
+                        : isOpaqueAt(otherMask, otherToMask, otherSource, x, y))
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+
     // ----------------------------------------------------------
     private void loadBitmapIfNecessary()
     {
@@ -1,5 +1,6 @@
 package sofia.graphics;
 
+import sofia.graphics.internal.CollisionGeometry;
 import android.graphics.Paint;
 import android.graphics.Canvas;
 import android.graphics.PointF;
@@ -117,6 +118,22 @@ public class LineShape extends StrokedShape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Creates the outline of the line, which collisions are tested against:
+     * the segment between its endpoints, without the width of the stroke.
+     *
+     * @return The outline of the line.
+     */
+    @Override
+    /* package */ CollisionGeometry createCollisionGeometry()
+    {
+        float[][] corners = getRotatedCorners();
+        return CollisionGeometry.segment(
+            corners[0][0], corners[0][1], corners[2][0], corners[2][1]);
+    }
+
+
     // ----------------------------------------------------------
     private static float distanceSquared(
         float x1, float y1, float x2, float y2)
@@ -1,5 +1,6 @@
 package sofia.graphics;
 
+import sofia.graphics.internal.CollisionGeometry;
 import android.graphics.Paint;
 import android.graphics.Canvas;
 import android.graphics.PointF;
@@ -143,6 +144,27 @@ public class OvalShape extends FillableShape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Creates the outline of the oval, which collisions are tested against:
+     * the ellipse itself, rather than its bounding box.
+     *
+     * @return The outline of the oval.
+     */
+    @Override
+    /* package */ CollisionGeometry createCollisionGeometry()
+    {
+        RectF bounds = getBounds();
+
+        // The centre turns with the shape, about its pivot
+        float[][] corners = getRotatedCorners();
+        return CollisionGeometry.ellipse(
+            (corners[0][0] + corners[2][0]) / 2,
+            (corners[0][1] + corners[2][1]) / 2,
+            bounds.width() / 2, bounds.height() / 2, getRotation());
+    }
+
+
     // ----------------------------------------------------------
     @Override
     public void draw(Canvas canvas)
@@ -1,8 +1,10 @@
 package sofia.graphics;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
+import sofia.graphics.internal.CollisionGeometry;
 import sofia.graphics.internal.GeometryUtils;
 import sofia.graphics.internal.animation.AlphaTransformer;
 import sofia.graphics.internal.animation.AnimationState;
@@ -39,6 +41,17 @@ public abstract class Shape
 {
     //~ Fields ................................................................
 
+    /**
+     * The collision categories a shape is in when it is created.
+     */
+    public static final int DEFAULT_COLLISION_CATEGORIES = 1;
+
+    /**
+     * The collision mask a shape has when it is created, which lets it
+     * collide with shapes in every category.
+     */
+    public static final int DEFAULT_COLLISION_MASK = 0xFFFFFFFF;
+
     private static long ADD_TO_PARENT_COUNTER = 0;
 
     private RectF bounds;
@@ -52,7 +65,20 @@ public abstract class Shape
     private PointF positionAnchor;
     private Matrix transform;
     private Matrix inverseTransform;
-    private float[][] rotatedCorners;
+    // Built on whichever thread first needs it, as collisions may be
+    // tested on several threads at once
+    private volatile float[][] rotatedCorners;
+    private volatile RectF rotatedBounds;
+    private volatile CollisionGeometry collisionGeometry;
+    /** Incremented whenever the position, size or rotation changes. */
+    private volatile int geometryVersion;
+    private int collisionCategories;
+    private int collisionMask;
+    // Replaced rather than changed, as collisions may be tested on several
+    // threads at once
+    private volatile Set<Shape> ignoredShapes;
+    private boolean isStatic;
+    private boolean bullet;
 
     // Collision checker hook, for future location-based query extensions
     @SuppressWarnings("unused")
@@ -86,6 +112,8 @@ public abstract class Shape
         this.visible = true;
         this.color = Color.white;
         this.positionAnchor = new PointF(0, 0);
+        this.collisionCategories = DEFAULT_COLLISION_CATEGORIES;
+        this.collisionMask = DEFAULT_COLLISION_MASK;
     }
 
 
@@ -325,6 +353,47 @@ public abstract class Shape
         }
         inverseTransform = null;
         rotatedCorners = null;
+        rotatedBounds = null;
+        geometryVersion++;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the smallest axis-aligned rectangle that contains the shape once
+     * it has been rotated. For a shape that is not rotated, this is the same
+     * as its bounding rectangle. This is the area the collision checkers
+     * index the shape by. The returned rectangle must not be modified.
+     *
+     * @return The bounding rectangle of the rotated shape.
+     */
+    public RectF getRotatedBounds()
+    {
+        RectF bounds = getBounds();
+        if (getTransform() == null
+            && bounds.left <= bounds.right && bounds.top <= bounds.bottom)
+        {
+            return bounds;
+        }
+
+        RectF result = rotatedBounds;
+        if (result == null)
+        {
+            // Rotated, or given from corner to corner in the other
+            // direction, as lines may be
+            float[][] corners = getRotatedCorners();
+            result = new RectF(corners[0][0], corners[0][1],
+                corners[0][0], corners[0][1]);
+            for (int i = 1; i < corners.length; i++)
+            {
+                result.left = Math.min(result.left, corners[i][0]);
+                result.top = Math.min(result.top, corners[i][1]);
+                result.right = Math.max(result.right, corners[i][0]);
+                result.bottom = Math.max(result.bottom, corners[i][1]);
+            }
+            rotatedBounds = result;
+        }
+        return result;
     }
 
 
@@ -540,7 +609,14 @@ public abstract class Shape
                 inverseTransform = new Matrix();
                 xform.invert(inverseTransform);
             }
+
+            // The transform is in bounding-box-relative coords.
+            RectF bounds = getBounds();
+            point[0] -= bounds.left;
+            point[1] -= bounds.top;
             inverseTransform.mapPoints(point);
+            point[0] += bounds.left;
+            point[1] += bounds.top;
         }
 
         return point;
@@ -573,6 +649,12 @@ public abstract class Shape
      */
     public boolean contains(float x, float y)
     {
+        if (getTransform() == null)
+        {
+            // Nothing to undo, so skip allocating a transformed point
+            return getBounds().contains(x, y);
+        }
+
         float[] point = inverseTransformPoint(x, y);
         return getBounds().contains(point[0], point[1]);
     }
@@ -646,6 +728,276 @@ public abstract class Shape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the collision categories of the receiver, as a set of bits. Each
+     * of the 32 bits stands for one category (or layer) of shapes, such as
+     * scenery, players or bullets; a shape may be in several at once.
+     *
+     * By default, shapes are created in category 1 only (that is, with
+     * {@link #DEFAULT_COLLISION_CATEGORIES}).
+     *
+     * @return The collision categories of the shape.
+     * @see #canCollideWith(Shape)
+     */
+    public int getCollisionCategories()
+    {
+        return collisionCategories;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the collision categories of the receiver.
+     *
+     * @param newCategories The new collision categories of the shape, as a
+     *     set of bits.
+     * @see #canCollideWith(Shape)
+     */
+    public void setCollisionCategories(int newCategories)
+    {
+        collisionCategories = newCategories;
+        notifyParentOfCollisionFilterChange();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the collision mask of the receiver: the set of collision
+     * categories that the shape can collide with.
+     *
+     * By default, shapes are created with every bit set (that is, with
+     * {@link #DEFAULT_COLLISION_MASK}), so they can collide with shapes in
+     * any category.
+     *
+     * @return The collision mask of the shape.
+     * @see #canCollideWith(Shape)
+     */
+    public int getCollisionMask()
+    {
+        return collisionMask;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the collision mask of the receiver.
+     *
+     * @param newMask The new collision mask of the shape, as a set of bits.
+     * @see #canCollideWith(Shape)
+     */
+    public void setCollisionMask(int newMask)
+    {
+        collisionMask = newMask;
+        notifyParentOfCollisionFilterChange();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stops collisions between the receiver and another shape from being
+     * reported, whatever their categories and masks. This works both ways:
+     * the other shape ignores the receiver too. The shapes stop ignoring
+     * each other when either one is removed from its view.
+     *
+     * @param other The shape to ignore.
+     */
+    public void ignoreCollisionsWith(Shape other)
+    {
+        addIgnoredShape(other);
+        other.addIgnoredShape(this);
+
+        notifyParentOfCollisionFilterChange();
+        other.notifyParentOfCollisionFilterChange();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Allows collisions between the receiver and another shape to be
+     * reported again, after a call to {@link #ignoreCollisionsWith(Shape)}.
+     *
+     * @param other The shape to stop ignoring.
+     */
+    public void stopIgnoringCollisionsWith(Shape other)
+    {
+        removeIgnoredShape(other);
+        other.removeIgnoredShape(this);
+
+        notifyParentOfCollisionFilterChange();
+        other.notifyParentOfCollisionFilterChange();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Adds a shape to the set of shapes the receiver ignores, by replacing
+     * the set, so that other threads testing collisions never see it
+     * change.
+     */
+    private synchronized void addIgnoredShape(Shape other)
+    {
+        Set<Shape> ignored = ignoredShapes;
+        if (ignored == null || !ignored.contains(other))
+        {
+            Set<Shape> copy = (ignored == null)
+                ? new HashSet<Shape>() : new HashSet<Shape>(ignored);
+            copy.add(other);
+            ignoredShapes = Collections.unmodifiableSet(copy);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Removes a shape from the set of shapes the receiver ignores, by
+     * replacing the set.
+     */
+    private synchronized void removeIgnoredShape(Shape other)
+    {
+        Set<Shape> ignored = ignoredShapes;
+        if (ignored != null && ignored.contains(other))
+        {
+            Set<Shape> copy = new HashSet<Shape>(ignored);
+            copy.remove(other);
+            ignoredShapes = copy.isEmpty()
+                ? null : Collections.unmodifiableSet(copy);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stops the receiver and every shape it ignores from ignoring each
+     * other, so that a removed shape and the shapes it ignored no longer
+     * hold on to one another.
+     */
+    /* package */ void clearIgnoredShapes()
+    {
+        Set<Shape> ignored;
+        synchronized (this)
+        {
+            ignored = ignoredShapes;
+            ignoredShapes = null;
+        }
+
+        // The other shapes are changed without holding the receiver's lock,
+        // so that two shapes removed at once cannot deadlock
+        if (ignored != null)
+        {
+            for (Shape other : ignored)
+            {
+                other.removeIgnoredShape(this);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether the receiver and another shape are
+     * allowed to collide. This is the case when each shape is in at least
+     * one of the categories in the other's collision mask, and neither shape
+     * has been told to ignore the other. Collision events are only fired for
+     * pairs of shapes that can collide, and queries for the shapes
+     * intersecting a shape only find shapes that it can collide with.
+     *
+     * @param other The other shape.
+     * @return True if the two shapes can collide, otherwise false.
+     */
+    public boolean canCollideWith(Shape other)
+    {
+        return (collisionCategories & other.collisionMask) != 0
+            && (other.collisionCategories & collisionMask) != 0
+            && !isIgnoring(other);
+    }
+
+
+    // ----------------------------------------------------------
+    private boolean isIgnoring(Shape other)
+    {
+        Set<Shape> ignored = ignoredShapes;
+        return ignored != null && ignored.contains(other);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether the receiver is static: scenery, such
+     * as walls and platforms, that rarely or never moves. Static shapes are
+     * kept apart from moving shapes in the collision checker, so that they
+     * cost nothing each frame while they stay still, and collisions between
+     * two static shapes are never reported. A static shape can still be
+     * moved, but each move is more expensive than for other shapes.
+     *
+     * Shapes are not static by default.
+     *
+     * @return True if the shape is static, otherwise false.
+     */
+    public boolean isStatic()
+    {
+        return isStatic;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets a value indicating whether the receiver is static.
+     *
+     * @param newStatic True if the shape should be static, otherwise false.
+     * @see #isStatic()
+     */
+    public void setStatic(boolean newStatic)
+    {
+        if (isStatic != newStatic)
+        {
+            isStatic = newStatic;
+
+            ShapeView view = getParentView();
+
+            if (view != null)
+            {
+                view.onStaticChanged(this);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether the receiver is a bullet: a small,
+     * fast shape whose motion is swept when it is animated with
+     * {@link Animator#moveBy(float, float)}, so that it stops at the first
+     * shape in its way instead of passing through thin shapes between
+     * frames. The bullet is stopped just inside the shape it hits, so that
+     * the collision is reported as usual; shapes the bullet already
+     * intersects do not stop it.
+     *
+     * Shapes are not bullets by default, since each swept step costs a
+     * query against the view's other shapes.
+     *
+     * @return True if the shape is a bullet, otherwise false.
+     */
+    public boolean isBullet()
+    {
+        return bullet;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets a value indicating whether the receiver is a bullet.
+     *
+     * @param newBullet True if the shape should be a bullet, otherwise
+     *                  false.
+     * @see #isBullet()
+     */
+    public void setBullet(boolean newBullet)
+    {
+        bullet = newBullet;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Sets the time that this shape was last added to its parent. Used
@@ -938,6 +1290,8 @@ public abstract class Shape
     protected void notifyParentOfPositionChange()
     {
         rotatedCorners = null;
+        rotatedBounds = null;
+        geometryVersion++;
         ShapeView view = getParentView();
 
         if (view != null)
@@ -947,6 +1301,23 @@ public abstract class Shape
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Called when the shape's collision categories, mask or ignored shapes
+     * have changed, or anything else that decides which shapes it
+     * intersects, so that its collisions can be found again.
+     */
+    /* package */ void notifyParentOfCollisionFilterChange()
+    {
+        ShapeView view = getParentView();
+
+        if (view != null)
+        {
+            view.onCollisionFilterChanged(this);
+        }
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Returns a human-readable string representation of the shape.
@@ -963,104 +1334,150 @@ public abstract class Shape
 
 
     // ----------------------------------------------------------
-    private void updateRotatedCorners()
+    /**
+     * Gets the corners of the bounding box, turned by the shape's rotation,
+     * in order around the edge starting from the top left. The returned
+     * array must not be modified.
+     */
+    /* package */ float[][] getRotatedCorners()
     {
-        if (rotatedCorners == null)
+        float[][] corners = rotatedCorners;
+        if (corners == null)
         {
             RectF bounds = getBounds();
-            rotatedCorners = new float[][] {
+            // In order around the edge
+            corners = new float[][] {
                 { bounds.left,  bounds.top    },
                 { bounds.right, bounds.top    },
-                { bounds.left,  bounds.bottom },
-                { bounds.right, bounds.bottom }
+                { bounds.right, bounds.bottom },
+                { bounds.left,  bounds.bottom }
             };
 
             Matrix xform = getTransform();
             if (xform != null)
             {
-                for (float[] pt : rotatedCorners)
+                // The transform is in bounding-box-relative coords.
+                for (float[] pt : corners)
                 {
+                    pt[0] -= bounds.left;
+                    pt[1] -= bounds.top;
                     xform.mapPoints(pt);
+                    pt[0] += bounds.left;
+                    pt[1] += bounds.top;
                 }
             }
+            rotatedCorners = corners;
         }
+        return corners;
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Check whether all of the vertexes in the "other" rotated rectangle
-     * are on the outside of any one of the edges in "my" rotated rectangle.
-     *
-     * @param myBox    The rotated corners of "my" bounding box.
-     * @param otherBox The rotated corners of the "other" bounding box.
+     * Determine whether this shape intersects another, based on their
+     * outlines. By default, a shape's outline is its bounding box, turned
+     * by its rotation; shapes such as ovals and lines have outlines that
+     * match their geometry. Shapes whose edges only touch do not intersect.
      *
-     * @return True if all corners of the "other" rectangle are on the
-     *         outside of any of  the edges of "my" rectangle.
+     * @param otherShape The other shape to check against.
+     * @return True if this shape and the other shape intersect.
      */
-    private static boolean checkOutside(float [][] myBox, float[][] otherBox)
+    public boolean intersects(Shape otherShape)
     {
-        vloop:
-        for (int v = 0; v < 4; v++)
+        if (otherShape instanceof ImageShape && !(this instanceof ImageShape))
         {
-            int v1 = (v + 1) & 3; // wrap at 4 back to 0
-            float edgeX = myBox[v][0] - myBox[v1][0];
-            float edgeY = myBox[v][1] - myBox[v1][1];
-            float reX = -edgeY;
-            float reY = edgeX;
+            // Let the image test its opaque pixels
+            return otherShape.intersects(this);
+        }
 
-            if (reX == 0.0 && reY == 0.0)
-            {
-                continue vloop;
-            }
+        return CollisionGeometry.intersects(
+            getCollisionGeometry(), otherShape.getCollisionGeometry());
+    }
 
-            for (int e = 0; e < 4; e++)
-            {
-                float scalar = reX * (otherBox[e][0] - myBox[v1][0])
-                    + reY * (otherBox[e][1] - myBox[v1][1]);
-                if (scalar < 0)
-                {
-                    continue vloop;
-                }
-            }
 
-            // If we got here, we have an edge with all vertexes from the
-            // other rect on the outside:
-            return true;
-        }
+    // ----------------------------------------------------------
+    /**
+     * Determine how far this shape can move along a displacement before it
+     * first intersects another, based on their outlines. Images are swept
+     * by their outlines, not by their opaque pixels. Shapes that already
+     * intersect, or that only touch along the way, have no impact.
+     *
+     * @param otherShape The other shape, which is taken to stay still.
+     * @param dx The horizontal distance this shape moves.
+     * @param dy The vertical distance this shape moves.
+     * @return The fraction of the displacement, from 0 up to but not
+     *         including 1, at which the shapes begin to intersect, or -1 if
+     *         they do not.
+     */
+    public float getTimeOfImpact(Shape otherShape, float dx, float dy)
+    {
+        return CollisionGeometry.timeOfImpact(getCollisionGeometry(),
+            dx, dy, otherShape.getCollisionGeometry());
+    }
+
 
-        return false;
+    // ----------------------------------------------------------
+    /**
+     * Gets a count that goes up whenever the shape's position, size or
+     * rotation is changed, so that a caller can tell whether it has been
+     * changed since it last looked.
+     *
+     * @return The shape's geometry version.
+     */
+    /* package */ int getGeometryVersion()
+    {
+        return geometryVersion;
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Determine whether this shape intersects another, based on their
-     * bounding boxes.
+     * Gets the outline of the shape that collisions are tested against,
+     * building it again if the shape has moved, changed size or turned
+     * since it was last built.
      *
-     * @param otherShape The other shape to check against.
-     * @return True if this shape and the other shape intersect.
+     * @return The shape's outline.
      */
-    public boolean intersects(Shape otherShape)
+    /* package */ CollisionGeometry getCollisionGeometry()
     {
-        if (rotation == 0.0 && otherShape.rotation == 0.0)
+        CollisionGeometry geometry = collisionGeometry;
+        int version = geometryVersion;
+        RectF bounds = getBounds();
+        if (geometry == null || !geometry.isCurrent(version, bounds))
         {
-            return RectF.intersects(getBounds(), otherShape.getBounds());
+            geometry = createCollisionGeometry();
+            geometry.stamp(version, bounds);
+            collisionGeometry = geometry;
         }
-        else
+        return geometry;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates the outline of the shape, in view coordinates, that collisions
+     * are tested against. This is called again whenever the shape has
+     * moved, changed size or turned. By default, the outline is the
+     * bounding box, turned by the shape's rotation. Shapes in this package
+     * whose geometry is different, such as ovals and lines, override this
+     * method to return a closer outline. It is not visible outside the
+     * package, as the outline's type is internal.
+     *
+     * @return The outline of the shape.
+     */
+    /* package */ CollisionGeometry createCollisionGeometry()
+    {
+        if (getTransform() == null)
         {
-            updateRotatedCorners();
-            otherShape.updateRotatedCorners();
-            if (checkOutside(rotatedCorners, otherShape.rotatedCorners))
-            {
-                return false;
-            }
-            if (checkOutside(otherShape.rotatedCorners, rotatedCorners))
-            {
-                return false;
-            }
-            return true;
+            RectF bounds = getBounds();
+            return CollisionGeometry.box(
+                bounds.left, bounds.top, bounds.right, bounds.bottom);
         }
+
+        float[][] corners = getRotatedCorners();
+        return CollisionGeometry.polygon(
+            corners[0][0], corners[0][1], corners[1][0], corners[1][1],
+            corners[2][0], corners[2][1], corners[3][0], corners[3][1]);
     }
 
 
@@ -1080,13 +1497,13 @@ public abstract class Shape
         boolean right  = false;
         boolean bottom = false;
 
-        updateRotatedCorners();
+        float[][] corners = getRotatedCorners();
         for (int i = 0; i < 4; i++)
         {
-            left   = left   || (rotatedCorners[i][0] <  bounds.left  );
-            top    = top    || (rotatedCorners[i][1] <  bounds.top   );
-            right  = right  || (rotatedCorners[i][0] >= bounds.right );
-            bottom = bottom || (rotatedCorners[i][1] >= bounds.bottom);
+            left   = left   || (corners[i][0] <  bounds.left  );
+            top    = top    || (corners[i][1] <  bounds.top   );
+            right  = right  || (corners[i][0] >= bounds.right );
+            bottom = bottom || (corners[i][1] >= bounds.bottom);
         }
 
         return new ViewEdges(left, top, right, bottom);
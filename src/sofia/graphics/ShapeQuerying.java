@@ -1,7 +1,10 @@
 package sofia.graphics;
 
+import java.util.List;
 import java.util.Set;
 
+import sofia.graphics.collision.ShapeVisitor;
+
 import android.graphics.PointF;
 
 //-------------------------------------------------------------------------
@@ -145,4 +148,100 @@ public interface ShapeQuerying
      */
     <MyShape extends Shape> Set<MyShape> getShapesAt(
         PointF point, Class<MyShape> cls);
+
+
+    // ----------------------------------------------------------
+    /**
+     * Visit each shape of the specified type overlapping the specified
+     * location, without creating a set to hold them. The visitor can stop
+     * the search early by returning false; a
+     * {@link sofia.graphics.collision.ShapeCollector} can be used to gather
+     * shapes into a reusable list, up to a limit.
+     * @param x The x-coordinate of the location to check.
+     * @param y The y-coordinate of the location to check.
+     * @param cls Class of shape to look for (passing 'null' will find any
+     *            object).
+     * @param visitor The visitor that receives each shape found.
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return The number of shapes visited.
+     */
+    <MyShape extends Shape> int forEachShapeAt(
+        float x, float y, Class<MyShape> cls,
+        ShapeVisitor<? super MyShape> visitor);
+
+
+    // ----------------------------------------------------------
+    /**
+     * Visit each shape of the specified type that intersects the given
+     * shape, without creating a set to hold them. The given shape itself is
+     * not visited, nor are shapes it cannot collide with (see
+     * {@link Shape#canCollideWith(Shape)}).
+     * @param shape The shape to check against.
+     * @param cls Class of shape to look for (passing 'null' will find any
+     *            object).
+     * @param visitor The visitor that receives each shape found.
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return The number of shapes visited.
+     */
+    <MyShape extends Shape> int forEachIntersecting(
+        Shape shape, Class<MyShape> cls,
+        ShapeVisitor<? super MyShape> visitor);
+
+
+    // ----------------------------------------------------------
+    /**
+     * Visit each shape of the specified type whose location lies within the
+     * specified circle, without creating a set to hold them.
+     * @param x The x-coordinate of the center of the circle.
+     * @param y The y-coordinate of the center of the circle.
+     * @param r The radius of the circle.
+     * @param cls Class of shape to look for (passing 'null' will find any
+     *            object).
+     * @param visitor The visitor that receives each shape found.
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return The number of shapes visited.
+     */
+    <MyShape extends Shape> int forEachInRange(
+        float x, float y, float r, Class<MyShape> cls,
+        ShapeVisitor<? super MyShape> visitor);
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the shapes of the specified type nearest to the specified
+     * location, nearest first. The distance to a shape is measured to the
+     * nearest point of its bounds, so it is 0 for shapes containing the
+     * location, and a large shape counts as near as soon as any part of it
+     * is.
+     * @param x The x-coordinate of the location.
+     * @param y The y-coordinate of the location.
+     * @param k The largest number of shapes to return.
+     * @param cls Class of shape to look for (passing 'null' will find any
+     *            object).
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return Up to k shapes, ordered by their distance from the location.
+     */
+    <MyShape extends Shape> List<MyShape> getNearestShapes(
+        float x, float y, int k, Class<MyShape> cls);
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the shape of the specified type nearest to the specified
+     * location, measuring the distance to the nearest point of its bounds.
+     * @param x The x-coordinate of the location.
+     * @param y The y-coordinate of the location.
+     * @param cls Class of shape to look for (passing 'null' will find any
+     *            object).
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return The nearest shape, or null if there are no shapes of the
+     *         specified type.
+     */
+    <MyShape extends Shape> MyShape getNearestShape(
+        float x, float y, Class<MyShape> cls);
 }
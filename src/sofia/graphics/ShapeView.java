@@ -2,8 +2,11 @@ package sofia.graphics;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -13,6 +16,7 @@ import java.util.concurrent.ArrayBlockingQueue;
 import sofia.graphics.internal.GeometryUtils;
 import sofia.graphics.internal.ShapeAnimationManager;
 import sofia.graphics.internal.ShapeSorter;
+import sofia.graphics.internal.TouchIndex;
 import sofia.internal.events.EventDispatcher;
 import sofia.internal.events.MotionEventDispatcher;
 import sofia.internal.events.ReversibleEventDispatcher;
@@ -43,6 +47,13 @@ public class ShapeView
 {
     //~ Fields ................................................................
 
+    /**
+     * The number of frames a shape must report changes without actually
+     * moving before it is put to sleep, by default: none, as shapes do not
+     * sleep unless asked to.
+     */
+    public static final int DEFAULT_SLEEP_THRESHOLD = 0;
+
     private ShapeSet shapes;
     private boolean needsLayout;
     private boolean surfaceCreated;
@@ -77,13 +88,28 @@ public class ShapeView
             new EventDispatcher("onCollisionWith");
     private static final ReversibleEventDispatcher onCollisionBetween =
             new ReversibleEventDispatcher("onCollisionBetween");
+    private static final EventDispatcher onCollisionEnded =
+            new EventDispatcher("onCollisionEnded");
+    private static final ReversibleEventDispatcher onCollisionEndedBetween =
+            new ReversibleEventDispatcher("onCollisionEnded");
 
     private sofia.graphics.collision.CollisionChecker collisionChecker;
+    private CollisionMode collisionMode;
+    private sofia.graphics.collision.SweepAndPrune broadphase;
+    private sofia.graphics.collision.ParallelPairSearch parallelSearch;
+    private volatile sofia.graphics.collision.QueryCache queryCache;
+    private TouchIndex touchIndex;
+    private List<Shape> touchedShapes;
     private Shape shapeBeingDragged;
     private Set<Shape> unresolvedShapes;
     private Set<Shape> shapesWithPositionChanges;
-    private Map<Shape, Set<Shape>> activeCollisions;
+    private sofia.graphics.collision.ContactManager contactManager;
+    private sofia.graphics.collision.ContactListener contactListener;
+    private sofia.graphics.collision.PairVisitor broadphaseFilter;
     private Map<Shape, ViewEdges> activeEdgeCollisions;
+    private Map<Shape, SleepState> sleepStates;
+    private int sleepThreshold;
+    private RectF worldBounds;
 
 
     //~ Constructors ..........................................................
@@ -150,6 +176,8 @@ public class ShapeView
         array.recycle();
 
         shapes = new ShapeSet(this);
+        touchIndex = new TouchIndex(shapes.getDrawingOrder());
+        touchedShapes = new ArrayList<Shape>();
 //        gestureDetector = new GestureDetector(new ShapeGestureListener());
 
         gestureDetectors = new ArrayList<Object>();
@@ -161,10 +189,15 @@ public class ShapeView
         animationManager.start();
 
         collisionChecker = new sofia.graphics.collision.IBSPColChecker();
+        collisionMode = CollisionMode.QUERY;
         shapesWithPositionChanges = new HashSet<Shape>();
         unresolvedShapes = new HashSet<Shape>();
-        activeCollisions = new HashMap<Shape, Set<Shape>>();
+        contactManager = new sofia.graphics.collision.ContactManager();
+        contactListener = new CollisionEventListener();
+        broadphaseFilter = new BroadphaseFilter();
         activeEdgeCollisions = new HashMap<Shape, ViewEdges>();
+        sleepStates = new HashMap<Shape, SleepState>();
+        sleepThreshold = DEFAULT_SLEEP_THRESHOLD;
 
         setFocusableInTouchMode(true);
     }
@@ -227,6 +260,117 @@ public class ShapeView
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Get the collision checker this view uses to answer location queries
+     * and to detect collisions between shapes.
+     * @return This view's collision checker.
+     */
+    public sofia.graphics.collision.CollisionChecker getCollisionChecker()
+    {
+        return collisionChecker;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Change the collision checker this view uses to answer location
+     * queries and to detect collisions between shapes. Any shapes already
+     * registered with the current checker are moved to the new one.
+     *
+     * By default, a view uses a
+     * {@link sofia.graphics.collision.IBSPColChecker}. A
+     * {@link sofia.graphics.collision.GridColChecker} is usually faster for
+     * scenes with many similarly sized shapes that move every frame, and an
+     * {@link sofia.graphics.collision.AABBTreeColChecker} copes best with
+     * many shapes that jitter or move only a little at a time. For scenes
+     * of a few hundred shapes or fewer, an
+     * {@link sofia.graphics.collision.AdaptiveColChecker} scans a flat
+     * array of bounds, and only builds a tree once the scene grows.
+     *
+     * @param checker The new collision checker.
+     */
+    public void setCollisionChecker(
+        sofia.graphics.collision.CollisionChecker checker)
+    {
+        if (checker == null)
+        {
+            throw new IllegalArgumentException(
+                "The collision checker must not be null.");
+        }
+
+        synchronized (shapes)
+        {
+            collisionChecker.startSequence();
+            Set<Shape> moved = collisionChecker.getObjects();
+            for (Shape shape : moved)
+            {
+                collisionChecker.removeObject(shape);
+            }
+            if (worldBounds != null)
+            {
+                applyWorldBounds(checker);
+            }
+            checker.addObjects(moved);
+            collisionChecker = checker;
+            invalidateQueryCache();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the way this view finds collisions between shapes.
+     * @return This view's collision mode.
+     * @see #setCollisionMode(CollisionMode)
+     */
+    public CollisionMode getCollisionMode()
+    {
+        return collisionMode;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Change the way this view finds collisions between shapes. This only
+     * affects how the {@code onCollisionWith} and {@code onCollisionBetween}
+     * events are detected; location queries such as
+     * {@link #getShapesAt(float, float)} always use the view's collision
+     * checker.
+     *
+     * @param mode The new collision mode.
+     */
+    public void setCollisionMode(CollisionMode mode)
+    {
+        if (mode == null)
+        {
+            throw new IllegalArgumentException(
+                "The collision mode must not be null.");
+        }
+
+        synchronized (shapes)
+        {
+            if (mode == CollisionMode.SWEEP_AND_PRUNE)
+            {
+                if (broadphase == null)
+                {
+                    broadphase = new sofia.graphics.collision.SweepAndPrune();
+                    collisionChecker.startSequence();
+                    for (Shape shape : collisionChecker.getObjects())
+                    {
+                        broadphase.addObject(shape);
+                    }
+                }
+            }
+            else
+            {
+                broadphase = null;
+            }
+            collisionMode = mode;
+        }
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Gets a set that represents all the shapes currently in this view. Note
@@ -325,6 +469,7 @@ public class ShapeView
 
         synchronized (shapes)
         {
+            List<Shape> resolved = new ArrayList<Shape>();
             for (Shape shape : addedShapes)
             {
                 shape.setParent(this);
@@ -334,8 +479,7 @@ public class ShapeView
                     GeometryUtils.resolveGeometry(shape.getBounds(), shape);
                     if (GeometryUtils.isGeometryResolved(shape.getBounds()))
                     {
-                        collisionChecker.addObject(shape);
-                        shapesWithPositionChanges.add(shape);
+                        resolved.add(shape);
                     }
                     else
                     {
@@ -349,6 +493,7 @@ public class ShapeView
                     unresolvedShapes.add(shape);
                 }
             }
+            registerShapes(resolved);
         }
 
         if (needsRepaint)
@@ -367,7 +512,7 @@ public class ShapeView
             {
                 shape.setParent(null);
 
-                collisionChecker.removeObject(shape);
+                unregisterShape(shape);
                 shapesWithPositionChanges.remove(shape);
             }
         }
@@ -376,6 +521,58 @@ public class ShapeView
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Start tracking shapes whose geometry has been resolved for collision
+     * detection. The shapes are handed to the collision checker together,
+     * so that a large batch, such as a whole level, can be laid out at
+     * once.
+     * @param added The shapes to track.
+     */
+    private void registerShapes(Collection<Shape> added)
+    {
+        if (added.isEmpty())
+        {
+            return;
+        }
+
+        collisionChecker.addObjects(added);
+        invalidateQueryCache();
+        for (Shape shape : added)
+        {
+            contactManager.addObject(shape);
+            touchIndex.add(shape);
+            if (broadphase != null)
+            {
+                broadphase.addObject(shape);
+            }
+            shapesWithPositionChanges.add(shape);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stop tracking a shape for collision detection, and end any ignoring
+     * between it and other shapes.
+     * @param shape The shape to stop tracking.
+     */
+    private void unregisterShape(Shape shape)
+    {
+        collisionChecker.removeObject(shape);
+        invalidateQueryCache();
+        contactManager.removeObject(shape);
+        touchIndex.remove(shape);
+        sleepStates.remove(shape);
+        activeEdgeCollisions.remove(shape);
+        shape.clearIgnoredShapes();
+        if (broadphase != null)
+        {
+            broadphase.removeObject(shape);
+        }
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Get one shape (if any) that overlaps the specified location.  If
@@ -407,8 +604,15 @@ public class ShapeView
     public <MyShape extends Shape> MyShape getShapeAt(
         float x, float y, Class<MyShape> cls)
     {
+        if (!touchIndex.isTouchableOnly())
+        {
+            // The touch index holds every shape, front to back
+            touchIndex.setOrder(shapes.getDrawingOrder());
+            return touchIndex.getShapeAt(x, y, cls);
+        }
+
         MyShape result = null;
-        for (MyShape candidate : collisionChecker.getObjectsAt(x, y, cls))
+        for (MyShape candidate : getShapesAt(x, y, cls))
         {
             // If multiple candidates, pick the one drawn last (in front)
             if (result == null
@@ -454,6 +658,48 @@ public class ShapeView
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether touches are only hit-tested against
+     * shapes that handle them.
+     *
+     * @return True if only shapes that handle touches are hit-tested.
+     * @see #setTouchableShapesOnly(boolean)
+     */
+    public boolean getTouchableShapesOnly()
+    {
+        return touchIndex.isTouchableOnly();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets whether touches are only hit-tested against shapes that handle
+     * them, that is, shapes whose class has an {@code onTouchDown},
+     * {@code onTouchMove} or {@code onTouchUp} method. Touches are passed
+     * to the shapes under them from front to back, using an index of the
+     * shapes kept in drawing order. By default only the shapes that handle
+     * touches are indexed, so that scenery costs nothing to keep up to
+     * date, and the shape at a point is found with the collision checker.
+     * Indexing every shape lets {@link #getShapeAt(float, float, Class)} use
+     * the same index instead.
+     *
+     * @param touchableOnly True to hit-test only shapes that handle
+     *                      touches.
+     */
+    public void setTouchableShapesOnly(boolean touchableOnly)
+    {
+        synchronized (shapes)
+        {
+            touchIndex.setTouchableOnly(touchableOnly);
+            for (Shape shape : collisionChecker.getObjects())
+            {
+                touchIndex.add(shape);
+            }
+        }
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Get all the shapes overlapping the specified location.
@@ -482,7 +728,23 @@ public class ShapeView
     public <MyShape extends Shape> Set<MyShape> getShapesAt(
         float x, float y, Class<MyShape> cls)
     {
-        return collisionChecker.getObjectsAt(x, y, cls);
+        sofia.graphics.collision.QueryCache cache = queryCache;
+        if (cache == null)
+        {
+            return collisionChecker.getObjectsAt(x, y, cls);
+        }
+
+        Set<MyShape> result = cache.lookup(
+            sofia.graphics.collision.QueryCache.SHAPES_AT, null, cls,
+            x, y, 0, 0);
+        if (result == null)
+        {
+            result = Collections.unmodifiableSet(
+                collisionChecker.getObjectsAt(x, y, cls));
+            cache.put(sofia.graphics.collision.QueryCache.SHAPES_AT, null, cls,
+                x, y, 0, 0, result);
+        }
+        return result;
     }
 
 
@@ -516,10 +778,80 @@ public class ShapeView
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Visit each shape of the specified type overlapping the specified
+     * location, without creating a set to hold them. The visitor can stop
+     * the search early by returning false; a
+     * {@link sofia.graphics.collision.ShapeCollector} can be used to gather
+     * shapes into a reusable list, up to a limit.
+     * @param x The x-coordinate of the location to check.
+     * @param y The y-coordinate of the location to check.
+     * @param cls Class of shape to look for (passing 'null' will find any
+     *            object).
+     * @param visitor The visitor that receives each shape found.
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return The number of shapes visited.
+     */
+    public <MyShape extends Shape> int forEachShapeAt(
+        float x, float y, Class<MyShape> cls,
+        sofia.graphics.collision.ShapeVisitor<? super MyShape> visitor)
+    {
+        return collisionChecker.forEachObjectAt(x, y, cls, visitor);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Visit each shape of the specified type that intersects the given
+     * shape, without creating a set to hold them. The given shape itself is
+     * not visited, nor are shapes it cannot collide with (see
+     * {@link Shape#canCollideWith(Shape)}).
+     * @param shape The shape to check against.
+     * @param cls Class of shape to look for (passing 'null' will find any
+     *            object).
+     * @param visitor The visitor that receives each shape found.
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return The number of shapes visited.
+     */
+    public <MyShape extends Shape> int forEachIntersecting(
+        Shape shape, Class<MyShape> cls,
+        sofia.graphics.collision.ShapeVisitor<? super MyShape> visitor)
+    {
+        return collisionChecker.forEachIntersectingObject(shape, cls, visitor);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Visit each shape of the specified type whose location lies within the
+     * specified circle, without creating a set to hold them.
+     * @param x The x-coordinate of the center of the circle.
+     * @param y The y-coordinate of the center of the circle.
+     * @param r The radius of the circle.
+     * @param cls Class of shape to look for (passing 'null' will find any
+     *            object).
+     * @param visitor The visitor that receives each shape found.
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return The number of shapes visited.
+     */
+    public <MyShape extends Shape> int forEachInRange(
+        float x, float y, float r, Class<MyShape> cls,
+        sofia.graphics.collision.ShapeVisitor<? super MyShape> visitor)
+    {
+        return collisionChecker.forEachObjectInRange(x, y, r, cls, visitor);
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Return all the shapes that intersect the given shape. This takes the
-     * graphical extent of objects into consideration.
+     * graphical extent of objects into consideration. Only shapes that the
+     * given shape can collide with are found (see
+     * {@link Shape#canCollideWith(Shape)}).
      *
      * @param shape A Shape in the view.
      * @param cls Class of other shapes to find (null or Object.class will
@@ -531,14 +863,32 @@ public class ShapeView
     public <MyShape extends Shape> Set<MyShape> getIntersectingShapes(
         Shape shape, Class<MyShape> cls)
     {
-        return collisionChecker.getIntersectingObjects(shape, cls);
+        sofia.graphics.collision.QueryCache cache = queryCache;
+        if (cache == null)
+        {
+            return collisionChecker.getIntersectingObjects(shape, cls);
+        }
+
+        Set<MyShape> result = cache.lookup(
+            sofia.graphics.collision.QueryCache.INTERSECTING, shape, cls,
+            0, 0, 0, 0);
+        if (result == null)
+        {
+            result = Collections.unmodifiableSet(
+                collisionChecker.getIntersectingObjects(shape, cls));
+            cache.put(sofia.graphics.collision.QueryCache.INTERSECTING,
+                shape, cls, 0, 0, 0, 0, result);
+        }
+        return result;
     }
 
 
     // ----------------------------------------------------------
     /**
      * Return all the shapes that intersect the given shape. This takes the
-     * graphical extent of objects into consideration.
+     * graphical extent of objects into consideration. Only shapes that the
+     * given shape can collide with are found (see
+     * {@link Shape#canCollideWith(Shape)}).
      *
      * @param shape A Shape in the view.
      * @param cls Class of other shapes to find (null or Object.class will
@@ -572,7 +922,75 @@ public class ShapeView
     public <MyShape extends Shape> Set<MyShape> getShapesInRange(
         float x, float y, float r, Class<MyShape> cls)
     {
-        return collisionChecker.getObjectsInRange(x, y, r, cls);
+        sofia.graphics.collision.QueryCache cache = queryCache;
+        if (cache == null)
+        {
+            return collisionChecker.getObjectsInRange(x, y, r, cls);
+        }
+
+        Set<MyShape> result = cache.lookup(
+            sofia.graphics.collision.QueryCache.IN_RANGE, null, cls,
+            x, y, r, 0);
+        if (result == null)
+        {
+            result = Collections.unmodifiableSet(
+                collisionChecker.getObjectsInRange(x, y, r, cls));
+            cache.put(sofia.graphics.collision.QueryCache.IN_RANGE, null, cls,
+                x, y, r, 0, result);
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the shapes of the specified type nearest to the specified
+     * location, nearest first. The distance to a shape is measured to the
+     * nearest point of its bounds, so it is 0 for shapes containing the
+     * location, and a large shape counts as near as soon as any part of it
+     * is. The collision checker is searched outwards from the location
+     * once, rather than with a series of growing range queries.
+     *
+     * @param x The x-coordinate of the location.
+     * @param y The y-coordinate of the location.
+     * @param k The largest number of shapes to return.
+     * @param cls Class of shape to look for (null or Object.class will find
+     *            all classes).
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return Up to k shapes, ordered by their distance from the location.
+     */
+    public <MyShape extends Shape> List<MyShape> getNearestShapes(
+        float x, float y, int k, Class<MyShape> cls)
+    {
+        if (k < 0)
+        {
+            throw new IllegalArgumentException(
+                "The number of shapes must not be less than 0. It was: " + k);
+        }
+        return collisionChecker.getNearestObjects(x, y, k, cls);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the shape of the specified type nearest to the specified
+     * location, measuring the distance to the nearest point of its bounds.
+     *
+     * @param x The x-coordinate of the location.
+     * @param y The y-coordinate of the location.
+     * @param cls Class of shape to look for (null or Object.class will find
+     *            all classes).
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return The nearest shape, or null if there are no shapes of the
+     *         specified type.
+     */
+    public <MyShape extends Shape> MyShape getNearestShape(
+        float x, float y, Class<MyShape> cls)
+    {
+        List<MyShape> nearest = collisionChecker.getNearestObjects(x, y, 1, cls);
+        return nearest.isEmpty() ? null : nearest.get(0);
     }
 
 
@@ -599,31 +1017,122 @@ public class ShapeView
             throw new IllegalArgumentException(
                 "Distance must not be less than 0.0. It was: " + distance);
         }
-        return collisionChecker.getNeighbors(shape, distance, diag, cls);
+        sofia.graphics.collision.QueryCache cache = queryCache;
+        if (cache == null)
+        {
+            return collisionChecker.getNeighbors(shape, distance, diag, cls);
+        }
+
+        Set<MyShape> result = cache.lookup(
+            sofia.graphics.collision.QueryCache.NEIGHBORS, shape, cls,
+            distance, diag ? 1 : 0, 0, 0);
+        if (result == null)
+        {
+            result = Collections.unmodifiableSet(
+                collisionChecker.getNeighbors(shape, distance, diag, cls));
+            cache.put(sofia.graphics.collision.QueryCache.NEIGHBORS, shape, cls,
+                distance, diag ? 1 : 0, 0, 0, result);
+        }
+        return result;
     }
 
 
     // ----------------------------------------------------------
     /**
      * Return all objects that intersect a straight line from the location at
-     * a specified angle. The angle is clockwise.
+     * a specified angle, nearest first. The angle is in degrees, clockwise
+     * from the positive x-axis.
      *
      * @param x x-coordinate.
      * @param y y-coordinate.
-     * @param angle The angle relative to current rotation of the object.
-     *            (0-359).
-     * @param length How far we want to look (in cells).
+     * @param angle The direction of the line (0-359).
+     * @param length How far we want to look (in pixels).
      * @param cls Class of objects to look for (null or Object.class will find
      *            all classes).
      * @param <MyShape> The type of shape to look for, as specified
      *                  in the cls parameter.
-     * @return A collection of all objects found.
+     * @return A collection of all objects found, ordered by their distance
+     *         along the line.
      */
     public <MyShape extends Shape> Set<MyShape> getShapesInDirection(
         float x, float y, float angle, float length, Class<MyShape> cls)
     {
-        return collisionChecker.getObjectsInDirection(
-            x, y, angle, length, cls);
+        sofia.graphics.collision.QueryCache cache = queryCache;
+        if (cache == null)
+        {
+            return collisionChecker.getObjectsInDirection(
+                x, y, angle, length, cls);
+        }
+
+        Set<MyShape> result = cache.lookup(
+            sofia.graphics.collision.QueryCache.IN_DIRECTION, null, cls,
+            x, y, angle, length);
+        if (result == null)
+        {
+            result = Collections.unmodifiableSet(
+                collisionChecker.getObjectsInDirection(
+                    x, y, angle, length, cls));
+            cache.put(sofia.graphics.collision.QueryCache.IN_DIRECTION, null,
+                cls, x, y, angle, length, result);
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the nearest object that intersects a straight line from the
+     * location at a specified angle. This is cheaper than
+     * {@link #getShapesInDirection(float, float, float, float, Class)} when
+     * only the first object in the way matters, such as for line-of-sight
+     * checks, because the search stops as soon as no nearer object can
+     * exist.
+     *
+     * @param x x-coordinate.
+     * @param y y-coordinate.
+     * @param angle The direction of the line, in degrees clockwise from the
+     *            positive x-axis (0-359).
+     * @param length How far we want to look (in pixels).
+     * @param cls Class of objects to look for (null or Object.class will find
+     *            all classes).
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return The nearest object hit, with the distance to it, or null if
+     *         the line hits nothing.
+     */
+    public <MyShape extends Shape>
+        sofia.graphics.collision.RaycastHit<MyShape> raycastFirst(
+        float x, float y, float angle, float length, Class<MyShape> cls)
+    {
+        return collisionChecker.raycastFirst(x, y, angle, length, cls);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the first object that a shape would hit if it moved in a
+     * straight line by the given displacement. This is useful for fast
+     * shapes, which can pass right through thin shapes between frames if
+     * only their positions are tested; see {@link Shape#setBullet(boolean)}
+     * to have animated shapes stopped at the first shape hit. Only objects
+     * that the shape can collide with are considered, and not those it
+     * already intersects.
+     *
+     * @param shape The shape that moves; it is not moved.
+     * @param dx The horizontal distance the shape moves.
+     * @param dy The vertical distance the shape moves.
+     * @param cls Class of objects to look for (null or Object.class will find
+     *            all classes).
+     * @param <MyShape> The type of shape to look for, as specified
+     *                  in the cls parameter.
+     * @return The first object hit, with the fraction of the displacement
+     *         covered before touching it, or null if the shape hits nothing.
+     */
+    public <MyShape extends Shape>
+        sofia.graphics.collision.SweepHit<MyShape> sweepFirst(
+        Shape shape, float dx, float dy, Class<MyShape> cls)
+    {
+        return collisionChecker.sweepFirst(shape, dx, dy, cls);
     }
 
 
@@ -634,6 +1143,7 @@ public class ShapeView
         // breaking the partial order of the set!
 
         shapes.updateZIndex(shape, newZIndex);
+        touchIndex.reorder(shape);
 //        remove(shape);
 //        add(shape);
     }
@@ -654,35 +1164,369 @@ public class ShapeView
 
     // ----------------------------------------------------------
     /**
-     * Gets the background color of the view.
+     * Called by a shape in this view when its collision categories, mask or
+     * ignored shapes have changed. The shape's collisions are found again on
+     * the next repaint, as if it had moved.
      *
-     * @return the background {@link Color} of the view
+     * @param shape the shape whose collision filter was changed
      */
-    public Color getBackgroundColor()
+    public void onCollisionFilterChanged(Shape shape)
     {
-        return backgroundColor;
+        synchronized (shapes)
+        {
+            if (GeometryUtils.isGeometryResolved(shape.getBounds()))
+            {
+                collisionChecker.updateObjectFilter(shape);
+                invalidateQueryCache();
+                sleepStates.remove(shape);
+                shapesWithPositionChanges.add(shape);
+            }
+        }
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Sets the background color of the view.
+     * Called by a shape in this view when it has become static, or stopped
+     * being static. The shape is woken up, and its collisions are found
+     * again on the next repaint, as if it had moved.
      *
-     * @param color the desired background {@link Color}
+     * @param shape the shape that became static or stopped being static
      */
-    public void setBackgroundColor(Color color)
+    public void onStaticChanged(Shape shape)
     {
-        backgroundColor = color;
-        //setBackgroundColor(color.toRawColor());
-
-        conditionallyRepaint();
+        synchronized (shapes)
+        {
+            if (GeometryUtils.isGeometryResolved(shape.getBounds()))
+            {
+                collisionChecker.updateObjectStatic(shape);
+                invalidateQueryCache();
+                sleepStates.remove(shape);
+                shapesWithPositionChanges.add(shape);
+            }
+        }
     }
 
 
     // ----------------------------------------------------------
-    public ShapeParent getShapeParent()
-    {
-        return null;
+    /**
+     * Gets the cache that remembers the results of location queries within
+     * a frame, or null if query results are not cached.
+     *
+     * @return The query cache, or null.
+     * @see #setQueryCaching(boolean)
+     */
+    public sofia.graphics.collision.QueryCache getQueryCache()
+    {
+        return queryCache;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets whether the results of location queries are remembered until
+     * the shapes next change. When they are, asking
+     * {@link #getShapesAt(float, float, Class)},
+     * {@link #getIntersectingShapes(Shape, Class)},
+     * {@link #getShapesInRange(float, float, float, Class)},
+     * {@link #getNeighbors(Shape, float, boolean, Class)} or
+     * {@link #getShapesInDirection(float, float, float, float, Class)} the
+     * same question twice in one frame only searches the collision checker
+     * once. The cache is emptied whenever a repaint applies changes to the
+     * shapes' positions, and whenever shapes are added or removed. While
+     * caching is on, these methods return sets that cannot be modified, and
+     * that may be shared with other callers.
+     *
+     * Caching is off by default. The cache's hit and miss counts show
+     * whether it pays off.
+     *
+     * @param caching True to cache query results, otherwise false.
+     */
+    public void setQueryCaching(boolean caching)
+    {
+        synchronized (shapes)
+        {
+            if (!caching)
+            {
+                queryCache = null;
+            }
+            else if (queryCache == null)
+            {
+                queryCache = new sofia.graphics.collision.QueryCache();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets whether the results of location queries are remembered until
+     * the shapes next change.
+     *
+     * @return True if query results are cached, otherwise false.
+     * @see #setQueryCaching(boolean)
+     */
+    public boolean isQueryCaching()
+    {
+        return queryCache != null;
+    }
+
+
+    // ----------------------------------------------------------
+    private void invalidateQueryCache()
+    {
+        sofia.graphics.collision.QueryCache cache = queryCache;
+        if (cache != null)
+        {
+            cache.invalidate();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of shapes that must move in one frame before the
+     * search for their collisions is split across several threads. The
+     * collisions found, and the order their events are fired in, are the
+     * same either way; the handlers are always called on the thread that
+     * repaints the view. This only applies in the
+     * {@link CollisionMode#QUERY} collision mode. The search is never split
+     * unless a threshold has been set.
+     *
+     * @return The threshold, or 0 if the search is never split.
+     */
+    public int getParallelCollisionThreshold()
+    {
+        return (parallelSearch == null) ? 0 : parallelSearch.getThreshold();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the number of shapes that must move in one frame before the
+     * search for their collisions is split across several threads.
+     *
+     * <p>Once the search is split, shapes are tested against each other on
+     * several threads at once, so the {@link Shape#intersects(Shape)} and
+     * {@link Shape#canCollideWith(Shape)} methods of every shape in the view
+     * must be safe to call concurrently. The built-in shapes' are; a
+     * subclass that overrides either must keep them so.</p>
+     *
+     * @param threshold The threshold, or 0 to never split the search.
+     * @see #getParallelCollisionThreshold()
+     */
+    public void setParallelCollisionThreshold(int threshold)
+    {
+        if (threshold < 0)
+        {
+            throw new IllegalArgumentException(
+                "The parallel collision threshold must not be negative.");
+        }
+
+        synchronized (shapes)
+        {
+            if (threshold == 0)
+            {
+                parallelSearch = null;
+            }
+            else
+            {
+                if (parallelSearch == null)
+                {
+                    parallelSearch =
+                        new sofia.graphics.collision.ParallelPairSearch();
+                }
+                parallelSearch.setThreshold(threshold);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the known extent of the world, if one has been set.
+     *
+     * @return The world bounds, or null if none have been set.
+     * @see #setWorldBounds(RectF)
+     */
+    public RectF getWorldBounds()
+    {
+        return (worldBounds == null) ? null : new RectF(worldBounds);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the known extent of the world, such as the full size of a
+     * scrolling level. A {@link sofia.graphics.collision.IBSPColChecker},
+     * used on its own or by a
+     * {@link sofia.graphics.collision.AdaptiveColChecker}, then sizes its
+     * tree to fit the world once, rather than growing it whenever a shape
+     * wanders outside, and keeps shapes that leave the world in a separate
+     * list. Shapes may still go anywhere; collisions
+     * outside the world are found as usual, just less efficiently. The
+     * other collision checkers have no fixed extent, and ignore the world
+     * bounds.
+     *
+     * @param bounds The world bounds, or null to let the collision checker
+     *     fit itself to the shapes.
+     */
+    public void setWorldBounds(RectF bounds)
+    {
+        synchronized (shapes)
+        {
+            worldBounds = (bounds == null) ? null : new RectF(bounds);
+            applyWorldBounds(collisionChecker);
+            invalidateQueryCache();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void applyWorldBounds(
+        sofia.graphics.collision.CollisionChecker checker)
+    {
+        if (checker instanceof sofia.graphics.collision.IBSPColChecker)
+        {
+            ((sofia.graphics.collision.IBSPColChecker) checker)
+                .setWorldBounds(worldBounds);
+        }
+        else if (checker instanceof sofia.graphics.collision.AdaptiveColChecker)
+        {
+            ((sofia.graphics.collision.AdaptiveColChecker) checker)
+                .setWorldBounds(worldBounds);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of frames in a row that a shape must report changes
+     * to its position without actually moving before it is put to sleep.
+     * A sleeping shape is left out of the work done each frame for moved
+     * shapes: it is not updated in the collision checker, and no collisions
+     * are looked for on its behalf, although moving shapes still collide
+     * with it. It wakes up as soon as it really moves. Any change to its
+     * position, size or rotation counts as moving, even one that leaves
+     * its bounds where they were.
+     *
+     * @return The sleep threshold, in frames, or 0 if shapes never sleep.
+     */
+    public int getSleepThreshold()
+    {
+        return sleepThreshold;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the number of frames in a row that a shape must report changes
+     * to its position without actually moving before it is put to sleep.
+     *
+     * @param frames The sleep threshold, in frames, or 0 to stop shapes
+     *     from ever sleeping.
+     * @see #getSleepThreshold()
+     */
+    public void setSleepThreshold(int frames)
+    {
+        if (frames < 0)
+        {
+            throw new IllegalArgumentException(
+                "The sleep threshold must not be negative.");
+        }
+
+        synchronized (shapes)
+        {
+            sleepThreshold = frames;
+            if (frames == 0)
+            {
+                sleepStates.clear();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether a shape in this view is asleep.
+     *
+     * @param shape The shape to check.
+     * @return True if the shape is asleep, otherwise false.
+     * @see #getSleepThreshold()
+     */
+    public boolean isSleeping(Shape shape)
+    {
+        synchronized (shapes)
+        {
+            SleepState state = sleepStates.get(shape);
+            return sleepThreshold > 0 && state != null
+                && state.stillFrames >= sleepThreshold;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Drop the shapes that have reported changes without moving for long
+     * enough from the set of moved shapes, putting them to sleep.
+     */
+    private void dropSleepingShapes()
+    {
+        Iterator<Shape> it = shapesWithPositionChanges.iterator();
+        while (it.hasNext())
+        {
+            Shape shape = it.next();
+            SleepState state = sleepStates.get(shape);
+            if (state == null)
+            {
+                sleepStates.put(shape, new SleepState(shape));
+            }
+            else if (state.isStill(shape))
+            {
+                if (++state.stillFrames >= sleepThreshold)
+                {
+                    it.remove();
+                }
+            }
+            else
+            {
+                state.record(shape);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the background color of the view.
+     *
+     * @return the background {@link Color} of the view
+     */
+    public Color getBackgroundColor()
+    {
+        return backgroundColor;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the background color of the view.
+     *
+     * @param color the desired background {@link Color}
+     */
+    public void setBackgroundColor(Color color)
+    {
+        backgroundColor = color;
+        //setBackgroundColor(color.toRawColor());
+
+        conditionallyRepaint();
+    }
+
+
+    // ----------------------------------------------------------
+    public ShapeParent getShapeParent()
+    {
+        return null;
     }
 
 
@@ -705,30 +1549,52 @@ public class ShapeView
             if (unresolvedShapes.size() > 0)
             {
                 Set<Shape> stillUnresolved = new HashSet<Shape>();
+                List<Shape> resolved = new ArrayList<Shape>();
                 for (Shape shape : unresolvedShapes)
                 {
                     if (GeometryUtils.isGeometryResolved(shape.getBounds()))
                     {
-                        collisionChecker.addObject(shape);
-                        shapesWithPositionChanges.add(shape);
+                        resolved.add(shape);
                     }
                     else
                     {
                         stillUnresolved.add(shape);
                     }
                 }
+                registerShapes(resolved);
                 unresolvedShapes = stillUnresolved;
             }
 
+            if (sleepThreshold > 0)
+            {
+                dropSleepingShapes();
+            }
+
             if (shapesWithPositionChanges.size() > 0)
             {
                 // Second, update all positions in the collision checker
                 for (Shape shape : shapesWithPositionChanges)
                 {
                     collisionChecker.updateObjectLocation(shape);
+                    touchIndex.update(shape);
+                    if (broadphase != null)
+                    {
+                        broadphase.updateObject(shape);
+                    }
                 }
 
-                // Now, fire collision handlers
+                // Let queries from other threads see the new positions
+                collisionChecker.startSequence();
+                invalidateQueryCache();
+
+                // Find every intersecting pair involving a moved shape in
+                // one pass, rather than querying once per moved shape, and
+                // fire the handlers for the contacts that began or ended
+                contactManager.beginFrame(shapesWithPositionChanges);
+                findMovedShapeContacts();
+                contactManager.endFrame(contactListener);
+
+                // Now, check for collisions with walls
                 RectF walls = null;
                 if (getWidth() > 0 && getHeight() > 0)
                 {
@@ -737,74 +1603,6 @@ public class ShapeView
 
                 for (Shape shape : shapesWithPositionChanges)
                 {
-                    // Make sure we don't re-fire on collisions we've
-                    // fired before, until those objects separate
-                    Set<Shape> oldHits = activeCollisions.get(shape);
-                    Set<Shape> newHits = collisionChecker
-                        .getIntersectingObjects(shape, Shape.class);
-
-                    // Determine which collisions should fire events
-                    Set<Shape> hitsToFire = newHits;
-                    if (oldHits != null)
-                    {
-                        hitsToFire = new HashSet<Shape>(newHits);
-                        hitsToFire.removeAll(oldHits);
-                    }
-
-                    // Remember current collisions as "active"
-                    if (newHits.size() > 0)
-                    {
-                        activeCollisions.put(shape, newHits);
-                    }
-                    else
-                    {
-                        activeCollisions.remove(shape);
-                    }
-
-                    // OK, just for brand new collisions now ...
-                    for (Shape other : hitsToFire)
-                    {
-                        // Make sure that, if the other shape is moving too,
-                        // we only fire this event once by pre-marking it
-                        // as currently active for the other shape
-                        Set<Shape> othersHits = activeCollisions.get(other);
-                        if (othersHits == null)
-                        {
-                            othersHits = new HashSet<Shape>();
-                            activeCollisions.put(other, othersHits);
-                        }
-                        othersHits.add(shape);
-
-                        boolean eventHandled =
-                            // Handle event on shapes
-                            onCollisionWith.dispatch(shape, other)
-                            || onCollisionWith.dispatch(other, shape)
-
-                            // Handled event on view
-                            || onCollisionBetween.dispatch(this, shape, other);
-
-                        if (!eventHandled)
-                        {
-                            // Handle event on screen
-                            Context ctxt = getContext();
-                            if (ctxt != null)
-                            {
-                                eventHandled = onCollisionBetween
-                                    .dispatch(ctxt, shape, other);
-                            }
-
-//                          ViewParent parent = getParent();
-//                          while (!eventHandled && parent != null)
-//                          {
-//                              eventHandled = eventHandled
-//                                  || onCollisionBetween.callMethodOn(
-//                                      parent, shape, other);
-//                              parent = parent.getParent();
-//                          }
-                        }
-                    }
-
-                    // Now check for collisions with walls
                     ViewEdges edgeCollision = shape.extendsOutside(walls);
                     if (edgeCollision.any())
                     {
@@ -860,6 +1658,88 @@ public class ShapeView
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Pass every intersecting pair involving a moved shape to the contact
+     * manager. Only pairs involving at least one moved shape are needed,
+     * since the collisions of shapes that stayed put are already known.
+     * Each pair is found and tested once, even when both of its shapes have
+     * moved.
+     */
+    private void findMovedShapeContacts()
+    {
+        if (broadphase != null)
+        {
+            // The broadphase reports every pair with overlapping bounds,
+            // moved or not, so filter and test them here
+            broadphase.findOverlappingPairs(broadphaseFilter);
+        }
+        else if (parallelSearch != null)
+        {
+            parallelSearch.findCollidingPairs(collisionChecker,
+                shapesWithPositionChanges, contactManager);
+        }
+        else
+        {
+            collisionChecker.findCollidingPairs(
+                shapesWithPositionChanges, contactManager);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Fire the handlers for two shapes that have started touching.
+     */
+    private void fireCollision(Shape shape, Shape other)
+    {
+        boolean eventHandled =
+            // Handle event on shapes
+            onCollisionWith.dispatch(shape, other)
+            || onCollisionWith.dispatch(other, shape)
+
+            // Handled event on view
+            || onCollisionBetween.dispatch(this, shape, other);
+
+        if (!eventHandled)
+        {
+            // Handle event on screen
+            Context ctxt = getContext();
+            if (ctxt != null)
+            {
+                eventHandled = onCollisionBetween.dispatch(ctxt, shape, other);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Fire the handlers for two shapes that have stopped touching.
+     */
+    private void fireCollisionEnded(Shape shape, Shape other)
+    {
+        boolean eventHandled =
+            // Handle event on shapes
+            onCollisionEnded.dispatch(shape, other)
+            || onCollisionEnded.dispatch(other, shape)
+
+            // Handled event on view
+            || onCollisionEndedBetween.dispatch(this, shape, other);
+
+        if (!eventHandled)
+        {
+            // Handle event on screen
+            Context ctxt = getContext();
+            if (ctxt != null)
+            {
+                eventHandled =
+                    onCollisionEndedBetween.dispatch(ctxt, shape, other);
+            }
+        }
+    }
+
+
     // ----------------------------------------------------------
     /**
      * The real method that performs shape drawing in response to a
@@ -1117,25 +1997,36 @@ public class ShapeView
         }
         else
         {
-            Set<Shape> shapes = collisionChecker.getObjectsAt(
-                    e.getX(), e.getY(), null);
+            // Offer the touch to the shapes under it from front to back,
+            // so that the shape drawn on top gets the first chance at it
+            touchIndex.setOrder(shapes.getDrawingOrder());
+            touchIndex.getShapesAt(e.getX(), e.getY(), null, touchedShapes);
 
-            for (Shape shape : shapes)
+            try
             {
-                eventHandled |= event.dispatch(shape, e);
-
-                if (event == onTouchDown
-                        && onTouchMove.isSupportedBy(shape, e))
+                for (Shape shape : touchedShapes)
                 {
-                    shapeBeingDragged = shape;
-                    break;
-                }
+                    eventHandled |= event.dispatch(shape, e);
 
-                if (eventHandled)
-                {
-                    break;
+                    if (event == onTouchDown
+                            && onTouchMove.isSupportedBy(shape, e))
+                    {
+                        shapeBeingDragged = shape;
+                        break;
+                    }
+
+                    if (eventHandled)
+                    {
+                        break;
+                    }
                 }
             }
+            finally
+            {
+                // A handler that throws must not leave shapes behind for
+                // the next touch to be offered to
+                touchedShapes.clear();
+            }
         }
 
         if (event == onTouchUp)
@@ -1189,6 +2080,100 @@ public class ShapeView
 
     //~ Inner classes .........................................................
 
+    // ----------------------------------------------------------
+    /**
+     * Fires the collision handlers for the contacts that began or ended in
+     * a frame.
+     */
+    private class CollisionEventListener
+        implements sofia.graphics.collision.ContactListener
+    {
+        // ----------------------------------------------------------
+        public void contactBegan(Shape first, Shape second)
+        {
+            fireCollision(first, second);
+        }
+
+
+        // ----------------------------------------------------------
+        public void contactPersisted(Shape first, Shape second)
+        {
+            // Handlers only hear about changes
+        }
+
+
+        // ----------------------------------------------------------
+        public void contactEnded(Shape first, Shape second)
+        {
+            fireCollisionEnded(first, second);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Passes the intersecting pairs reported by the sweep-and-prune
+     * broadphase that involve a moved shape on to the contact manager.
+     */
+    private class BroadphaseFilter
+        implements sofia.graphics.collision.PairVisitor
+    {
+        // ----------------------------------------------------------
+        public void visitPair(Shape first, Shape second)
+        {
+            if ((shapesWithPositionChanges.contains(first)
+                || shapesWithPositionChanges.contains(second))
+                && !(first.isStatic() && second.isStatic())
+                && first.canCollideWith(second)
+                && first.intersects(second))
+            {
+                contactManager.visitPair(first, second);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The bounds, rotation and geometry version a shape had when it last
+     * moved, and how many frames it has since reported changes without
+     * moving. The version catches changes that leave the bounds and
+     * rotation as they were, such as to a subclass's outline.
+     */
+    private static class SleepState
+    {
+        private final RectF bounds = new RectF();
+        private float rotation;
+        private int geometryVersion;
+        private int stillFrames;
+
+
+        public SleepState(Shape shape)
+        {
+            record(shape);
+        }
+
+
+        public void record(Shape shape)
+        {
+            bounds.set(shape.getBounds());
+            rotation = shape.getRotation();
+            geometryVersion = shape.getGeometryVersion();
+            stillFrames = 0;
+        }
+
+
+        public boolean isStill(Shape shape)
+        {
+            RectF now = shape.getBounds();
+            return bounds.left == now.left && bounds.top == now.top
+                && bounds.right == now.right && bounds.bottom == now.bottom
+                && rotation == shape.getRotation()
+                && geometryVersion == shape.getGeometryVersion();
+        }
+    }
+
+
     // ----------------------------------------------------------
     private class RepaintThread extends Thread
     {
@@ -0,0 +1,875 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * A collision checker using a dynamic bounding volume hierarchy of
+ * axis-aligned boxes.
+ *
+ * <p>Each shape is stored in exactly one leaf, whose box is the shape's
+ * bounds enlarged by a margin on every side. As long as a shape moves or
+ * resizes within that enlarged ("fat") box, the tree is not touched at all.
+ * When a shape leaves its fat box, its leaf is removed and re-inserted with
+ * a new fat box. New leaves are placed next to the sibling that grows the
+ * tree's total box perimeter the least, and the tree is kept balanced with
+ * tree rotations on the way back up to the root.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class AABBTreeColChecker implements CollisionChecker
+{
+    /** The fat box margin used by the no-argument constructor. */
+    public static final float DEFAULT_MARGIN = 4;
+
+    private final float margin;
+
+    private AABBTreeNode root;
+    private Map<Shape, AABBTreeNode> leaves = new HashMap<Shape, AABBTreeNode>();
+    private AABBTreeNode[] stack = new AABBTreeNode[64];
+
+    private GOCollisionQuery shapeQuery = new GOCollisionQuery();
+    private NeighbourCollisionQuery neighbourQuery = new NeighbourCollisionQuery();
+    private PointCollisionQuery pointQuery = new PointCollisionQuery();
+    private InRangeQuery inRangeQuery = new InRangeQuery();
+    /** The area searched by the query under way. */
+    private Rect searchArea = new Rect(0, 0, 0, 0);
+    private Set<Shape> pairCandidates = new HashSet<Shape>();
+    /**
+     * The position of each moved shape in the pair search under way, kept
+     * between searches and cleared after each one.
+     */
+    private Map<Shape, Integer> pairOrder = new HashMap<Shape, Integer>();
+    private VisitorQuery.Pool visitorQueries = new VisitorQuery.Pool();
+    private AABBTreeNode[] visitStack = new AABBTreeNode[64];
+    private int visitStackTop;
+
+    private final QueryCounters queryCounters = new QueryCounters();
+    /** The nodes and shapes searched by the query under way. */
+    private int nodesVisited;
+    private int shapesTested;
+
+
+    /**
+     * Create a tree collision checker using {@link #DEFAULT_MARGIN}.
+     */
+    public AABBTreeColChecker()
+    {
+        this(DEFAULT_MARGIN);
+    }
+
+    /**
+     * Create a tree collision checker.
+     *
+     * @param margin  How far, in pixels, each leaf box extends beyond the
+     *                bounds of its shape. Larger margins mean fewer tree
+     *                updates for moving shapes, but more candidates to
+     *                check during queries.
+     */
+    public AABBTreeColChecker(float margin)
+    {
+        if (margin < 0) {
+            throw new IllegalArgumentException(
+                "Margin must not be less than 0. It was: " + margin);
+        }
+        this.margin = margin;
+    }
+
+    /**
+     * Get the distance each leaf box extends beyond the bounds of its shape.
+     */
+    public float getMargin()
+    {
+        return margin;
+    }
+
+    public synchronized void addObject(Shape shape)
+    {
+        if (leaves.containsKey(shape)) {
+            return;
+        }
+
+        AABBTreeNode leaf = new AABBTreeNode();
+        leaf.shape = shape;
+        leaf.categories = shape.getCollisionCategories();
+        setFatBounds(leaf, getShapeBounds(shape));
+        leaves.put(shape, leaf);
+        insertLeaf(leaf);
+    }
+
+    public synchronized void addObjects(Collection<Shape> shapes)
+    {
+        for (Shape shape : shapes) {
+            addObject(shape);
+        }
+    }
+
+    public synchronized void removeObject(Shape shape)
+    {
+        AABBTreeNode leaf = leaves.remove(shape);
+        if (leaf != null) {
+            removeLeaf(leaf);
+        }
+    }
+
+    public synchronized void updateObjectLocation(Shape object)
+    {
+        updateObject(object);
+    }
+
+    public synchronized void updateObjectSize(Shape object)
+    {
+        updateObject(object);
+    }
+
+    public synchronized void updateObjectFilter(Shape object)
+    {
+        AABBTreeNode node = leaves.get(object);
+        if (node == null) {
+            return;
+        }
+
+        node.categories = object.getCollisionCategories();
+        for (node = node.parent; node != null; node = node.parent) {
+            node.categories = node.child1.categories | node.child2.categories;
+        }
+    }
+
+    public void updateObjectStatic(Shape object)
+    {
+        // Nothing to do
+    }
+
+    /**
+     * A shape's position or size has changed - re-insert it only if it has
+     * left its fat box.
+     */
+    private void updateObject(Shape shape)
+    {
+        AABBTreeNode leaf = leaves.get(shape);
+        if (leaf == null) {
+            // Not added yet (or already removed).
+            return;
+        }
+
+        Rect bounds = getShapeBounds(shape);
+        if (leaf.contains(bounds)) {
+            return;
+        }
+
+        removeLeaf(leaf);
+        setFatBounds(leaf, bounds);
+        insertLeaf(leaf);
+    }
+
+    /**
+     * Get the box a shape's leaf is fattened around, as described by
+     * {@link IndexedBounds}.
+     */
+    public final Rect getShapeBounds(Shape shape)
+    {
+        return IndexedBounds.of(shape);
+    }
+
+    /**
+     * Set the search area to a shape's rotated bounds.
+     */
+    private Rect searchArea(Shape shape)
+    {
+        RectF b = shape.getRotatedBounds();
+        return searchArea(b.left, b.top, b.right - b.left, b.bottom - b.top);
+    }
+
+    /**
+     * Set the search area to the one-pixel square at a point, the area
+     * every point query searches for shapes containing the point.
+     */
+    private Rect searchArea(float x, float y)
+    {
+        return searchArea(x, y, 1, 1);
+    }
+
+    private Rect searchArea(float x, float y, float width, float height)
+    {
+        searchArea.set(x, y, width, height);
+        return searchArea;
+    }
+
+    private void setFatBounds(AABBTreeNode leaf, Rect bounds)
+    {
+        leaf.left = bounds.getX() - margin;
+        leaf.top = bounds.getY() - margin;
+        leaf.right = bounds.getRight() + margin;
+        leaf.bottom = bounds.getTop() + margin;
+    }
+
+    /**
+     * Insert a leaf into the tree, next to the sibling that gives the
+     * smallest increase in total box perimeter.
+     */
+    private void insertLeaf(AABBTreeNode leaf)
+    {
+        leaf.parent = null;
+        if (root == null) {
+            root = leaf;
+            return;
+        }
+
+        // Find the best sibling for the new leaf
+        AABBTreeNode index = root;
+        while (! index.isLeaf()) {
+            AABBTreeNode child1 = index.child1;
+            AABBTreeNode child2 = index.child2;
+
+            float cost = index.getCost();
+            float combinedCost = index.getCombinedCost(leaf);
+
+            // Cost of creating a new parent for this node and the new leaf
+            float parentCost = 2 * combinedCost;
+
+            // Minimum cost of pushing the leaf further down the tree
+            float inheritanceCost = 2 * (combinedCost - cost);
+
+            float cost1 = descendCost(child1, leaf) + inheritanceCost;
+            float cost2 = descendCost(child2, leaf) + inheritanceCost;
+
+            if (parentCost < cost1 && parentCost < cost2) {
+                break;
+            }
+
+            index = (cost1 < cost2) ? child1 : child2;
+        }
+
+        AABBTreeNode sibling = index;
+
+        // Create a new parent for the sibling and the leaf
+        AABBTreeNode oldParent = sibling.parent;
+        AABBTreeNode newParent = new AABBTreeNode();
+        newParent.parent = oldParent;
+        newParent.setUnion(leaf, sibling);
+        newParent.height = sibling.height + 1;
+
+        if (oldParent != null) {
+            if (oldParent.child1 == sibling) {
+                oldParent.child1 = newParent;
+            }
+            else {
+                oldParent.child2 = newParent;
+            }
+        }
+        else {
+            root = newParent;
+        }
+        newParent.child1 = sibling;
+        newParent.child2 = leaf;
+        sibling.parent = newParent;
+        leaf.parent = newParent;
+
+        refitUpwards(leaf.parent);
+    }
+
+    /**
+     * The cost of placing the given leaf somewhere below the given node.
+     */
+    private static float descendCost(AABBTreeNode node, AABBTreeNode leaf)
+    {
+        if (node.isLeaf()) {
+            return node.getCombinedCost(leaf);
+        }
+        else {
+            return node.getCombinedCost(leaf) - node.getCost();
+        }
+    }
+
+    /**
+     * Remove a leaf from the tree. Its parent is discarded and replaced by
+     * the leaf's sibling.
+     */
+    private void removeLeaf(AABBTreeNode leaf)
+    {
+        if (leaf == root) {
+            root = null;
+            return;
+        }
+
+        AABBTreeNode parent = leaf.parent;
+        AABBTreeNode grandParent = parent.parent;
+        AABBTreeNode sibling = (parent.child1 == leaf) ? parent.child2 : parent.child1;
+
+        if (grandParent != null) {
+            if (grandParent.child1 == parent) {
+                grandParent.child1 = sibling;
+            }
+            else {
+                grandParent.child2 = sibling;
+            }
+            sibling.parent = grandParent;
+            refitUpwards(grandParent);
+        }
+        else {
+            root = sibling;
+            sibling.parent = null;
+        }
+
+        leaf.parent = null;
+    }
+
+    /**
+     * Walk from the given node back up to the root, rebalancing and fixing
+     * heights and boxes along the way.
+     */
+    private void refitUpwards(AABBTreeNode index)
+    {
+        while (index != null) {
+            index = balance(index);
+
+            AABBTreeNode child1 = index.child1;
+            AABBTreeNode child2 = index.child2;
+            index.height = 1 + Math.max(child1.height, child2.height);
+            index.setUnion(child1, child2);
+
+            index = index.parent;
+        }
+    }
+
+    /**
+     * Perform a left or right rotation if node a is imbalanced.
+     *
+     * @return The node now at a's old position in the tree
+     */
+    private AABBTreeNode balance(AABBTreeNode a)
+    {
+        if (a.isLeaf() || a.height < 2) {
+            return a;
+        }
+
+        AABBTreeNode b = a.child1;
+        AABBTreeNode c = a.child2;
+        int balance = c.height - b.height;
+
+        if (balance > 1) {
+            // Rotate c up
+            AABBTreeNode f = c.child1;
+            AABBTreeNode g = c.child2;
+
+            c.child1 = a;
+            c.parent = a.parent;
+            a.parent = c;
+            replaceChild(c.parent, a, c);
+
+            if (f.height > g.height) {
+                c.child2 = f;
+                a.child2 = g;
+                g.parent = a;
+                a.setUnion(b, g);
+                c.setUnion(a, f);
+                a.height = 1 + Math.max(b.height, g.height);
+                c.height = 1 + Math.max(a.height, f.height);
+            }
+            else {
+                c.child2 = g;
+                a.child2 = f;
+                f.parent = a;
+                a.setUnion(b, f);
+                c.setUnion(a, g);
+                a.height = 1 + Math.max(b.height, f.height);
+                c.height = 1 + Math.max(a.height, g.height);
+            }
+            return c;
+        }
+
+        if (balance < -1) {
+            // Rotate b up
+            AABBTreeNode d = b.child1;
+            AABBTreeNode e = b.child2;
+
+            b.child1 = a;
+            b.parent = a.parent;
+            a.parent = b;
+            replaceChild(b.parent, a, b);
+
+            if (d.height > e.height) {
+                b.child2 = d;
+                a.child1 = e;
+                e.parent = a;
+                a.setUnion(c, e);
+                b.setUnion(a, d);
+                a.height = 1 + Math.max(c.height, e.height);
+                b.height = 1 + Math.max(a.height, d.height);
+            }
+            else {
+                b.child2 = e;
+                a.child1 = d;
+                d.parent = a;
+                a.setUnion(c, d);
+                b.setUnion(a, e);
+                a.height = 1 + Math.max(c.height, d.height);
+                b.height = 1 + Math.max(a.height, e.height);
+            }
+            return b;
+        }
+
+        return a;
+    }
+
+    /**
+     * Replace a child of the given parent (or the root, if the parent is
+     * null) with another node.
+     */
+    private void replaceChild(AABBTreeNode parent, AABBTreeNode oldChild, AABBTreeNode newChild)
+    {
+        if (parent == null) {
+            root = newChild;
+        }
+        else if (parent.child1 == oldChild) {
+            parent.child1 = newChild;
+        }
+        else {
+            parent.child2 = newChild;
+        }
+    }
+
+    /**
+     * Get the height of the tree (0 for a tree with a single leaf, -1 for an
+     * empty tree).
+     */
+    public synchronized int getHeight()
+    {
+        return (root == null) ? -1 : root.height;
+    }
+
+    private void push(int top, AABBTreeNode node)
+    {
+        if (top == stack.length) {
+            stack = Arrays.copyOf(stack, top * 2);
+        }
+        stack[top] = node;
+    }
+
+    /**
+     * Collect every shape whose leaf box overlaps the given area and which
+     * matches the given query. Subtrees with no shapes in any of the given
+     * collision categories are skipped.
+     */
+    private void getIntersectingObjects(Rect r, CollisionQuery query, int mask,
+            Set<Shape> resultSet)
+    {
+        if (root == null) {
+            return;
+        }
+
+        int top = 0;
+        push(top++, root);
+        while (top > 0) {
+            AABBTreeNode node = stack[--top];
+            stack[top] = null;
+            nodesVisited++;
+            if (node.overlaps(r) && (node.categories & mask) != 0) {
+                if (node.isLeaf()) {
+                    shapesTested++;
+                    if (query.checkCollision(node.shape)) {
+                        resultSet.add(node.shape);
+                    }
+                }
+                else {
+                    push(top++, node.child1);
+                    push(top++, node.child2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find a single shape whose leaf box overlaps the given area and which
+     * matches the given query, skipping subtrees with no shapes in any of the
+     * given collision categories.
+     *
+     * @param ignore  Do not return this shape
+     */
+    private Shape getOneIntersectingObject(Rect r, CollisionQuery query, int mask,
+            Shape ignore)
+    {
+        if (root == null) {
+            return null;
+        }
+
+        int top = 0;
+        push(top++, root);
+        while (top > 0) {
+            AABBTreeNode node = stack[--top];
+            stack[top] = null;
+            nodesVisited++;
+            if (node.overlaps(r) && (node.categories & mask) != 0) {
+                if (node.isLeaf()) {
+                    shapesTested++;
+                    if (node.shape != ignore && query.checkCollision(node.shape)) {
+                        Arrays.fill(stack, 0, top, null);
+                        return node.shape;
+                    }
+                }
+                else {
+                    push(top++, node.child1);
+                    push(top++, node.child2);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Offer every shape whose leaf box overlaps the query's area to the
+     * query. Visiting queries have their own stack, separate from the one
+     * used by the other queries, and a query run from inside a visitor
+     * pushes its nodes above those of the query that called it.
+     *
+     * @return The number of shapes visited
+     */
+    private int visitObjects(VisitorQuery query)
+    {
+        int base = visitStackTop;
+        int count;
+        try {
+            if (root != null) {
+                pushVisit(root);
+            }
+
+            while (visitStackTop > base && ! query.isStopped()) {
+                AABBTreeNode node = visitStack[--visitStackTop];
+                visitStack[visitStackTop] = null;
+                nodesVisited++;
+                if ((node.categories & query.mask) != 0
+                        && query.overlaps(node.left, node.top, node.right, node.bottom)) {
+                    if (node.isLeaf()) {
+                        shapesTested++;
+                        query.offer(node.shape);
+                    }
+                    else {
+                        pushVisit(node.child1);
+                        pushVisit(node.child2);
+                    }
+                }
+            }
+        }
+        finally {
+            while (visitStackTop > base) {
+                visitStack[--visitStackTop] = null;
+            }
+            count = visitorQueries.release(query);
+            countQuery();
+        }
+        return count;
+    }
+
+    private void pushVisit(AABBTreeNode node)
+    {
+        if (visitStackTop == visitStack.length) {
+            visitStack = Arrays.copyOf(visitStack, visitStackTop * 2);
+        }
+        visitStack[visitStackTop++] = node;
+    }
+
+    public synchronized <T extends Shape> int forEachObjectAt(float x, float y,
+            Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitorQuery query = visitorQueries.obtain();
+        query.initPoint(x, y, cls, visitor);
+        return visitObjects(query);
+    }
+
+    public synchronized <T extends Shape> int forEachIntersectingObject(Shape shape,
+            Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitorQuery query = visitorQueries.obtain();
+        query.initIntersecting(shape, cls, visitor);
+        return visitObjects(query);
+    }
+
+    public synchronized <T extends Shape> int forEachObjectInRange(float x, float y,
+            float r, Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitorQuery query = visitorQueries.obtain();
+        query.initInRange(x, y, r, cls, visitor);
+        return visitObjects(query);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getObjectsAt(float x, float y, Class<T> cls)
+    {
+        pointQuery.init(x, y, cls);
+        Set<Shape> result = new HashSet<Shape>();
+        getIntersectingObjects(searchArea(x, y), pointQuery,
+                Shape.DEFAULT_COLLISION_MASK, result);
+        countQuery();
+        return (Set<T>) result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getIntersectingObjects(Shape shape,
+            Class<T> cls)
+    {
+        shapeQuery.init(cls, shape);
+        Set<Shape> result = new HashSet<Shape>();
+        getIntersectingObjects(searchArea(shape), shapeQuery,
+                shape.getCollisionMask(), result);
+        countQuery();
+        return (Set<T>) result;
+    }
+
+    /**
+     * Queries each moved shape in turn. A pair of moved shapes is only
+     * reported from the side of whichever comes first in the collection.
+     * Static shapes are stored with the others, but never paired with each
+     * other.
+     */
+    public synchronized void findCollidingPairs(Collection<Shape> moved,
+            PairVisitor visitor)
+    {
+        Map<Shape, Integer> order = pairOrder;
+        try {
+            for (Shape shape : moved) {
+                if (leaves.containsKey(shape) && ! order.containsKey(shape)) {
+                    order.put(shape, order.size());
+                }
+            }
+
+            for (Map.Entry<Shape, Integer> entry : order.entrySet()) {
+                Shape shape = entry.getKey();
+                shapeQuery.init(null, shape);
+                pairCandidates.clear();
+                getIntersectingObjects(searchArea(shape), shapeQuery,
+                        shape.getCollisionMask(), pairCandidates);
+
+                for (Shape other : pairCandidates) {
+                    Integer otherOrder = order.get(other);
+                    if ((otherOrder == null || otherOrder > entry.getValue())
+                            && ! (shape.isStatic() && other.isStatic())) {
+                        visitor.visitPair(shape, other);
+                    }
+                }
+            }
+        }
+        finally {
+            order.clear();
+            pairCandidates.clear();
+            // The pair search is not counted as queries
+            nodesVisited = 0;
+            shapesTested = 0;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getObjectsInRange(float x, float y, float r,
+            Class<T> cls)
+    {
+        float size = 2 * r;
+        Rect rect = searchArea(x - r, y - r, size, size);
+
+        Set<Shape> result = new HashSet<Shape>();
+        inRangeQuery.init(x, y, r, cls);
+        getIntersectingObjects(rect, inRangeQuery,
+                Shape.DEFAULT_COLLISION_MASK, result);
+        countQuery();
+        return (Set<T>) result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getNeighbors(Shape shape, float distance,
+            boolean diag, Class<T> cls)
+    {
+        float x = shape.getX();
+        float y = shape.getY();
+
+        Rect r = searchArea(x - distance, y - distance, distance * 2 + 1,
+            distance * 2 + 1);
+
+        neighbourQuery.init(x, y, distance, diag, cls);
+        Set<Shape> result = new HashSet<Shape>();
+        getIntersectingObjects(r, neighbourQuery, Shape.DEFAULT_COLLISION_MASK,
+                result);
+        countQuery();
+        return (Set<T>) result;
+    }
+
+    public synchronized <T extends Shape> Set<T> getObjectsInDirection(float x,
+            float y, float angle, float length, Class<T> cls)
+    {
+        RayQuery query = new RayQuery(x, y, angle, length, cls, false);
+        raycast(query);
+        countQuery();
+        return query.getHits();
+    }
+
+    public synchronized <T extends Shape> RaycastHit<T> raycastFirst(float x,
+            float y, float angle, float length, Class<T> cls)
+    {
+        RayQuery query = new RayQuery(x, y, angle, length, cls, true);
+        raycast(query);
+        countQuery();
+        return query.getNearest();
+    }
+
+    public synchronized <T extends Shape> SweepHit<T> sweepFirst(Shape shape,
+            float dx, float dy, Class<T> cls)
+    {
+        SweepQuery sweep = new SweepQuery(shape, dx, dy);
+        VisitorQuery query = visitorQueries.obtain();
+        query.initSwept(shape, dx, dy, cls, sweep);
+        visitObjects(query);
+        return sweep.getFirst();
+    }
+
+    /**
+     * Offer every shape whose leaf box the ray passes through to a raycast.
+     * Of two children, the one the ray enters first is searched first, and
+     * boxes the ray only enters beyond the raycast's current limit are
+     * skipped.
+     */
+    private void raycast(RayQuery query)
+    {
+        if (root == null) {
+            return;
+        }
+
+        int top = 0;
+        push(top++, root);
+        while (top > 0) {
+            AABBTreeNode node = stack[--top];
+            stack[top] = null;
+            nodesVisited++;
+            if (enter(query, node) == RayQuery.MISS) {
+                continue;
+            }
+
+            if (node.isLeaf()) {
+                shapesTested++;
+                query.offer(node.shape);
+                continue;
+            }
+
+            float enter1 = enter(query, node.child1);
+            float enter2 = enter(query, node.child2);
+            if (enter1 != RayQuery.MISS && enter2 != RayQuery.MISS) {
+                if (enter1 <= enter2) {
+                    push(top++, node.child2);
+                    push(top++, node.child1);
+                }
+                else {
+                    push(top++, node.child1);
+                    push(top++, node.child2);
+                }
+            }
+            else if (enter1 != RayQuery.MISS) {
+                push(top++, node.child1);
+            }
+            else if (enter2 != RayQuery.MISS) {
+                push(top++, node.child2);
+            }
+        }
+    }
+
+    public synchronized <T extends Shape> List<T> getNearestObjects(float x,
+            float y, int k, Class<T> cls)
+    {
+        NearestQuery query = new NearestQuery(x, y, k, cls);
+        if (root != null) {
+            query.push(distance(query, root), root, -1);
+        }
+        while (! query.isDone() && query.pop()) {
+            AABBTreeNode node = (AABBTreeNode) query.poppedItem;
+            if (node == null) {
+                // A shape, which is now in the results
+                continue;
+            }
+
+            nodesVisited++;
+            if (node.isLeaf()) {
+                shapesTested++;
+                query.offer(node.shape);
+            }
+            else {
+                query.push(distance(query, node.child1), node.child1, -1);
+                query.push(distance(query, node.child2), node.child2, -1);
+            }
+        }
+        countQuery();
+        return query.getResults();
+    }
+
+    /**
+     * Count a query that has finished, along with the nodes and shapes it
+     * searched.
+     */
+    private void countQuery()
+    {
+        queryCounters.countQuery();
+        queryCounters.record(nodesVisited, shapesTested);
+        nodesVisited = 0;
+        shapesTested = 0;
+    }
+
+    public QueryStats getQueryStats()
+    {
+        return queryCounters.getStats();
+    }
+
+    public void resetQueryStats()
+    {
+        queryCounters.reset();
+    }
+
+    private static float distance(NearestQuery query, AABBTreeNode node)
+    {
+        return query.boxDistance(node.left, node.top, node.right, node.bottom);
+    }
+
+    private static float enter(RayQuery query, AABBTreeNode node)
+    {
+        return query.enter(node.left, node.top, node.right, node.bottom);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getObjects(Class<T> cls)
+    {
+        Set<T> set = new HashSet<T>();
+        for (Shape shape : leaves.keySet()) {
+            if (cls == null || cls.isInstance(shape)) {
+                set.add((T) shape);
+            }
+        }
+        return set;
+    }
+
+    public Set<Shape> getObjects()
+    {
+        return getObjects(null);
+    }
+
+    public final void startSequence()
+    {
+        // Nothing necessary.
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> T getOneObjectAt(Shape object, float dx, float dy,
+            Class<T> cls)
+    {
+        pointQuery.init(dx, dy, cls);
+        T found = (T) getOneIntersectingObject(searchArea(dx, dy),
+                pointQuery, Shape.DEFAULT_COLLISION_MASK, object);
+        countQuery();
+        return found;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> T getOneIntersectingObject(Shape shape, Class<T> cls)
+    {
+        shapeQuery.init(cls, shape);
+        T found = (T) getOneIntersectingObject(searchArea(shape),
+                shapeQuery, shape.getCollisionMask(), shape);
+        countQuery();
+        return found;
+    }
+}
@@ -0,0 +1,98 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+
+//-------------------------------------------------------------------------
+/**
+ * A node in the dynamic bounding volume tree used by
+ * {@link AABBTreeColChecker}. Leaf nodes hold exactly one shape together
+ * with an enlarged ("fat") box around it; internal nodes always have two
+ * children and a box enclosing both of them.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class AABBTreeNode
+{
+    float left;
+    float top;
+    float right;
+    float bottom;
+
+    AABBTreeNode parent;
+    AABBTreeNode child1;
+    AABBTreeNode child2;
+
+    /** Leaves have height 0. */
+    int height;
+
+    /**
+     * The collision categories of the leaf's shape, or of all the shapes
+     * below an internal node.
+     */
+    int categories;
+
+    /** The shape held by a leaf, or null for an internal node. */
+    Shape shape;
+
+
+    boolean isLeaf()
+    {
+        return child1 == null;
+    }
+
+    /**
+     * Set this node's box to the union of the boxes of two other nodes, and
+     * its categories to theirs combined.
+     */
+    void setUnion(AABBTreeNode a, AABBTreeNode b)
+    {
+        categories = a.categories | b.categories;
+        left = Math.min(a.left, b.left);
+        top = Math.min(a.top, b.top);
+        right = Math.max(a.right, b.right);
+        bottom = Math.max(a.bottom, b.bottom);
+    }
+
+    /**
+     * Half the perimeter of this node's box, used as the cost metric when
+     * choosing where to insert new leaves.
+     */
+    float getCost()
+    {
+        return (right - left) + (bottom - top);
+    }
+
+    /**
+     * Half the perimeter of the union of this node's box and another's.
+     */
+    float getCombinedCost(AABBTreeNode other)
+    {
+        return (Math.max(right, other.right) - Math.min(left, other.left))
+            + (Math.max(bottom, other.bottom) - Math.min(top, other.top));
+    }
+
+    /**
+     * Check whether this node's box (inclusive of its edges) overlaps the
+     * given rectangle.
+     */
+    boolean overlaps(Rect r)
+    {
+        return left <= r.getRight() && r.getX() <= right
+            && top <= r.getTop() && r.getY() <= bottom;
+    }
+
+    /**
+     * Check whether this node's box completely contains the given rectangle.
+     */
+    boolean contains(Rect r)
+    {
+        return left <= r.getX() && top <= r.getY()
+            && right >= r.getRight() && bottom >= r.getTop();
+    }
+
+    public String toString()
+    {
+        return "aabb (" + left + "," + top + ")-(" + right + "," + bottom + ")";
+    }
+}
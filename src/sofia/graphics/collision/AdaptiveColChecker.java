@@ -0,0 +1,350 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * A collision checker that scans a flat array of bounds while there are few
+ * shapes, and moves them into a tree once there are many.
+ *
+ * <p>Below the threshold the shapes are kept in a {@link ScanColChecker};
+ * once as many shapes as the threshold have been added they are all moved
+ * into the tree checker, which is an {@link IBSPColChecker} unless another
+ * is given. They only move back once fewer than half the threshold remain,
+ * so that a scene hovering around the threshold does not move its shapes
+ * back and forth.
+ *
+ * <p>Changes must come from one thread at a time, as for the other
+ * checkers. Queries go to whichever checker holds the shapes when they
+ * start, and the shapes are only handed over once the other checker holds
+ * them all.
+ *
+ * <p>World bounds given to {@link #setWorldBounds(RectF)} are passed on to
+ * the tree checker, if it is an {@link IBSPColChecker}, whether or not it
+ * holds the shapes at the time, so that it already fits the world when
+ * they are moved into it.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class AdaptiveColChecker implements CollisionChecker
+{
+    /**
+     * The number of shapes at which they are moved into the tree, by
+     * default.
+     */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private final ScanColChecker scan = new ScanColChecker();
+    private final CollisionChecker tree;
+    private volatile CollisionChecker active = scan;
+    private int threshold;
+    private Set<Shape> shapes = new HashSet<Shape>();
+
+
+    /**
+     * Create a checker that moves the shapes into an
+     * {@link IBSPColChecker} at {@link #DEFAULT_THRESHOLD} shapes.
+     */
+    public AdaptiveColChecker()
+    {
+        this(new IBSPColChecker(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Create a checker.
+     *
+     * @param tree       The checker to move the shapes into once there are
+     *                   many of them, which must be empty
+     * @param threshold  The number of shapes at which they are moved into
+     *                   the tree, which must be at least 1
+     */
+    public AdaptiveColChecker(CollisionChecker tree, int threshold)
+    {
+        if (tree == null || ! tree.getObjects().isEmpty()) {
+            throw new IllegalArgumentException(
+                "The tree checker must not be null or hold any shapes.");
+        }
+        this.tree = tree;
+        setThreshold(threshold);
+    }
+
+    /**
+     * Get the checker the shapes are moved into once there are many of
+     * them.
+     */
+    public CollisionChecker getTreeChecker()
+    {
+        return tree;
+    }
+
+    /**
+     * Check whether the shapes are currently being scanned, rather than
+     * held in the tree.
+     */
+    public boolean isScanning()
+    {
+        return active == scan;
+    }
+
+    /**
+     * Get the number of shapes at which they are moved into the tree.
+     */
+    public synchronized int getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * Set the number of shapes at which they are moved into the tree. The
+     * shapes are moved straight away if the new threshold calls for it.
+     *
+     * @param threshold  The threshold, which must be at least 1
+     */
+    public synchronized void setThreshold(int threshold)
+    {
+        if (threshold < 1) {
+            throw new IllegalArgumentException(
+                "The threshold must be at least 1.");
+        }
+        this.threshold = threshold;
+        switchIfNeeded();
+    }
+
+    /**
+     * Get the area the tree checker's root covers, if it is fixed.
+     *
+     * @return The world bounds, or null if the tree grows as needed or the
+     *         tree checker is not an {@link IBSPColChecker}
+     */
+    public RectF getWorldBounds()
+    {
+        if (tree instanceof IBSPColChecker) {
+            return ((IBSPColChecker) tree).getWorldBounds();
+        }
+        return null;
+    }
+
+    /**
+     * Fix the area the tree checker's root covers, as
+     * {@link IBSPColChecker#setWorldBounds(RectF)} does. Other tree
+     * checkers have no fixed extent, and ignore the world bounds.
+     *
+     * @param bounds  The extent of the world, or null to let the tree grow
+     *                to fit the shapes
+     */
+    public synchronized void setWorldBounds(RectF bounds)
+    {
+        if (tree instanceof IBSPColChecker) {
+            ((IBSPColChecker) tree).setWorldBounds(bounds);
+        }
+    }
+
+    public synchronized void addObject(Shape shape)
+    {
+        if (shapes.add(shape)) {
+            active.addObject(shape);
+            switchIfNeeded();
+        }
+    }
+
+    public synchronized void addObjects(Collection<Shape> newShapes)
+    {
+        List<Shape> added = new ArrayList<Shape>(newShapes.size());
+        for (Shape shape : newShapes) {
+            if (shapes.add(shape)) {
+                added.add(shape);
+            }
+        }
+
+        // Move into the tree first, so that a big batch is bulk-loaded
+        // along with the shapes already held
+        if (active == scan && shapes.size() >= threshold) {
+            moveShapes(scan, tree, added);
+        }
+        else {
+            active.addObjects(added);
+        }
+    }
+
+    public synchronized void removeObject(Shape shape)
+    {
+        if (shapes.remove(shape)) {
+            active.removeObject(shape);
+            switchIfNeeded();
+        }
+    }
+
+    /**
+     * Move the shapes to the other checker if there are now too many or too
+     * few of them for the one holding them.
+     */
+    private void switchIfNeeded()
+    {
+        if (active == scan) {
+            if (shapes.size() >= threshold) {
+                moveShapes(scan, tree, Collections.<Shape>emptyList());
+            }
+        }
+        else if (shapes.size() < threshold / 2) {
+            moveShapes(tree, scan, Collections.<Shape>emptyList());
+        }
+    }
+
+    /**
+     * Move every shape from one checker to the other, along with some
+     * shapes that neither holds yet.
+     */
+    private void moveShapes(CollisionChecker from, CollisionChecker to,
+            Collection<Shape> added)
+    {
+        Set<Shape> moving = from.getObjects();
+        List<Shape> all = new ArrayList<Shape>(moving.size() + added.size());
+        all.addAll(moving);
+        all.addAll(added);
+        to.addObjects(all);
+        active = to;
+        for (Shape shape : moving) {
+            from.removeObject(shape);
+        }
+    }
+
+    public void updateObjectLocation(Shape object)
+    {
+        active.updateObjectLocation(object);
+    }
+
+    public void updateObjectSize(Shape object)
+    {
+        active.updateObjectSize(object);
+    }
+
+    public void updateObjectFilter(Shape object)
+    {
+        active.updateObjectFilter(object);
+    }
+
+    public void updateObjectStatic(Shape object)
+    {
+        active.updateObjectStatic(object);
+    }
+
+    public <T extends Shape> Set<T> getObjectsAt(float x, float y, Class<T> cls)
+    {
+        return active.getObjectsAt(x, y, cls);
+    }
+
+    public <T extends Shape> Set<T> getIntersectingObjects(Shape shape,
+            Class<T> cls)
+    {
+        return active.getIntersectingObjects(shape, cls);
+    }
+
+    public <T extends Shape> int forEachObjectAt(float x, float y,
+            Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        return active.forEachObjectAt(x, y, cls, visitor);
+    }
+
+    public <T extends Shape> int forEachIntersectingObject(Shape shape,
+            Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        return active.forEachIntersectingObject(shape, cls, visitor);
+    }
+
+    public void findCollidingPairs(Collection<Shape> moved,
+            PairVisitor visitor)
+    {
+        active.findCollidingPairs(moved, visitor);
+    }
+
+    public <T extends Shape> Set<T> getObjectsInRange(float x, float y,
+            float r, Class<T> cls)
+    {
+        return active.getObjectsInRange(x, y, r, cls);
+    }
+
+    public <T extends Shape> int forEachObjectInRange(float x, float y,
+            float r, Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        return active.forEachObjectInRange(x, y, r, cls, visitor);
+    }
+
+    public <T extends Shape> List<T> getNearestObjects(float x, float y,
+            int k, Class<T> cls)
+    {
+        return active.getNearestObjects(x, y, k, cls);
+    }
+
+    public <T extends Shape> Set<T> getNeighbors(Shape shape, float distance,
+            boolean diag, Class<T> cls)
+    {
+        return active.getNeighbors(shape, distance, diag, cls);
+    }
+
+    public <T extends Shape> Set<T> getObjectsInDirection(float x, float y,
+            float angle, float length, Class<T> cls)
+    {
+        return active.getObjectsInDirection(x, y, angle, length, cls);
+    }
+
+    public <T extends Shape> RaycastHit<T> raycastFirst(float x, float y,
+            float angle, float length, Class<T> cls)
+    {
+        return active.raycastFirst(x, y, angle, length, cls);
+    }
+
+    public <T extends Shape> SweepHit<T> sweepFirst(Shape shape, float dx,
+            float dy, Class<T> cls)
+    {
+        return active.sweepFirst(shape, dx, dy, cls);
+    }
+
+    public <T extends Shape> Set<T> getObjects(Class<T> cls)
+    {
+        return active.getObjects(cls);
+    }
+
+    public Set<Shape> getObjects()
+    {
+        return active.getObjects();
+    }
+
+    public void startSequence()
+    {
+        active.startSequence();
+    }
+
+    public <T extends Shape> T getOneObjectAt(Shape object, float dx,
+            float dy, Class<T> cls)
+    {
+        return active.getOneObjectAt(object, dx, dy, cls);
+    }
+
+    public <T extends Shape> T getOneIntersectingObject(Shape object,
+            Class<T> cls)
+    {
+        return active.getOneIntersectingObject(object, cls);
+    }
+
+    /**
+     * The queries answered by both checkers are counted together.
+     */
+    public QueryStats getQueryStats()
+    {
+        QueryStats scanned = scan.getQueryStats();
+        QueryStats searched = tree.getQueryStats();
+        return new QueryStats(
+            scanned.getQueryCount() + searched.getQueryCount(),
+            scanned.getNodesVisited() + searched.getNodesVisited(),
+            scanned.getCandidatesTested() + searched.getCandidatesTested());
+    }
+
+    public void resetQueryStats()
+    {
+        scan.resetQueryStats();
+        tree.resetQueryStats();
+    }
+}
@@ -28,15 +28,26 @@ import java.util.*;
 /**
  * A node in a BSP tree. Each node covers a rectangular area, and is potentially split
  * down either axis to allow two child nodes. A BSP node area contains one or more
- * Actors (or parts of Actors); in implementation, this is represented as a map of
- * Actor to ActorNode.
+ * Actors (or parts of Actors); in implementation, this is represented as a small
+ * array of ActorNodes. Each ActorNode knows its own index in the array, so it can
+ * be removed without a search.
  *
  * @author Davin McCall
  */
 public final class BSPNode
     implements Iterable<Shape>
 {
-    private Map<Shape, ShapeNode> shapes;
+    // Most nodes only ever hold one actor
+    private ShapeNode[] shapeNodes = new ShapeNode[1];
+    private int shapeCount;
+
+    // Where new ActorNodes come from, and removed ones go; may be null
+    private final BSPNodeCache cache;
+
+    // The collision categories of the actors in this node and its descendants.
+    // Categories are added as actors arrive, but not taken away as they
+    // leave, so this may include some that are no longer there.
+    private int categories;
 
     private BSPNode parent;
     private Rect area;
@@ -48,14 +59,26 @@ public final class BSPNode
     private boolean areaRipple; // area has been set, need to ripple
         // down to children at some stage
 
+    // This node's slot in the checker's latest snapshot, and whether it has
+    // changed since
+    private int snapshotIndex = -1;
+    private boolean changed;
+
     public BSPNode(Rect area, int splitAxis, float splitPos)
+    {
+        this(area, splitAxis, splitPos, null);
+    }
+
+    /**
+     * Create a node whose ActorNodes are taken from, and returned to, the
+     * given cache.
+     */
+    BSPNode(Rect area, int splitAxis, float splitPos, BSPNodeCache cache)
     {
         this.area = area;
         this.splitAxis = splitAxis;
         this.splitPos = splitPos;
-
-        // actorNodes = new LinkedList<ActorNode>();
-        shapes = new HashMap<Shape, ShapeNode>();
+        this.cache = cache;
     }
 
     /**
@@ -64,6 +87,7 @@ public final class BSPNode
      */
     public void setChild(int side, BSPNode child)
     {
+        nodeChanged();
         if (side == IBSPColChecker.PARENT_LEFT) {
             left = child;
             if (child != null) {
@@ -76,12 +100,50 @@ public final class BSPNode
                 child.parent = this;
             }
         }
+        if (child != null) {
+            child.nodeChanged();
+            addCategories(child.categories);
+        }
+    }
+
+    /**
+     * Get the collision categories of the actors in this node and its
+     * descendants. This may include categories of actors that have since
+     * left.
+     */
+    public int getCategories()
+    {
+        return categories;
+    }
+
+    /**
+     * Add collision categories to this node and its ancestors.
+     */
+    public void addCategories(int newCategories)
+    {
+        // The categories in a snapshot are worked out afresh from the
+        // shapes, so a shape's change of categories changes its nodes
+        nodeChanged();
+        BSPNode node = this;
+        while (node != null && (node.categories | newCategories) != node.categories) {
+            node.categories |= newCategories;
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Forget this node's collision categories, when it is reused.
+     */
+    void clearCategories()
+    {
+        categories = 0;
     }
 
     public void setArea(Rect area)
     {
         this.area = area;
         areaRipple = true;
+        nodeChanged();
     }
 
     public void setSplitAxis(int axis)
@@ -89,6 +151,7 @@ public final class BSPNode
         if (axis != splitAxis) {
             splitAxis = axis;
             areaRipple = true;
+            nodeChanged();
         }
     }
 
@@ -97,6 +160,7 @@ public final class BSPNode
         if (pos != splitPos) {
             splitPos = pos;
             areaRipple = true;
+            nodeChanged();
         }
     }
 
@@ -171,6 +235,7 @@ public final class BSPNode
     public void setParent(BSPNode parent)
     {
         this.parent = parent;
+        nodeChanged();
     }
 
     public int getChildSide(BSPNode child)
@@ -190,7 +255,20 @@ public final class BSPNode
 
     public void addShape(Shape shape)
     {
-        shapes.put(shape, new ShapeNode(shape, this));
+        if (findShapeNode(shape) != null) {
+            return;
+        }
+
+        if (shapeCount == shapeNodes.length) {
+            shapeNodes = Arrays.copyOf(shapeNodes, shapeCount * 2);
+        }
+        ShapeNode anode = (cache != null)
+            ? cache.getShapeNode(shape, this)
+            : new ShapeNode(shape, this);
+        anode.setIndex(shapeCount);
+        shapeNodes[shapeCount++] = anode;
+        addCategories(shape.getCollisionCategories());
+        shapeMoved(shape);
     }
 
     /**
@@ -199,7 +277,7 @@ public final class BSPNode
      */
     public boolean containsShape(Shape shape)
     {
-        ShapeNode anode = shapes.get(shape);
+        ShapeNode anode = findShapeNode(shape);
         if (anode != null) {
             anode.mark();
             return true;
@@ -207,14 +285,124 @@ public final class BSPNode
         return false;
     }
 
-    public void shapeRemoved(Shape shape)
+    /**
+     * Find the actor's ActorNode for this node. An actor is in few nodes,
+     * so its own list of ActorNodes is searched rather than this node's
+     * list of actors, which may be long.
+     */
+    private ShapeNode findShapeNode(Shape shape)
+    {
+        ShapeNode anode = IBSPColChecker.getNodeForShape(shape);
+        while (anode != null && anode.getBSPNode() != this) {
+            anode = anode.getNext();
+        }
+        return anode;
+    }
+
+    /**
+     * Remove an actor's ActorNode from this node's lists. Called by the
+     * ActorNode, which has already removed itself from the actor's list.
+     */
+    void shapeRemoved(ShapeNode anode)
+    {
+        int index = anode.getIndex();
+        int last = --shapeCount;
+        shapeNodes[index] = shapeNodes[last];
+        shapeNodes[index].setIndex(index);
+        shapeNodes[last] = null;
+
+        shapeMoved(anode.getShape());
+        if (cache != null) {
+            cache.returnShapeNode(anode);
+        }
+    }
+
+    /**
+     * Forget all the shapes in this node, without updating the shapes' own
+     * lists of nodes. Used when the whole tree is being discarded.
+     */
+    public void clearShapes()
+    {
+        treeReshaped();
+        for (int i = 0; i < shapeCount; i++) {
+            if (cache != null) {
+                cache.returnShapeNode(shapeNodes[i]);
+            }
+            shapeNodes[i] = null;
+        }
+        shapeCount = 0;
+    }
+
+    /**
+     * Record that this node has changed, so that the next snapshot copies
+     * it afresh.
+     */
+    private void nodeChanged()
+    {
+        if (cache != null) {
+            cache.nodeChanged(this);
+        }
+    }
+
+    /**
+     * Record that a shape has joined or left this node. Each entry in a
+     * snapshot lists the other nodes holding the same shape, so every node
+     * the shape is still in has changed too.
+     */
+    private void shapeMoved(Shape shape)
+    {
+        if (cache == null) {
+            return;
+        }
+        cache.nodeChanged(this);
+        for (ShapeNode anode = IBSPColChecker.getNodeForShape(shape);
+                anode != null; anode = anode.getNext()) {
+            cache.nodeChanged(anode.getBSPNode());
+        }
+    }
+
+    /**
+     * Record that the whole tree has changed, so that the next snapshot is
+     * laid out from scratch.
+     */
+    private void treeReshaped()
+    {
+        if (cache != null) {
+            cache.treeReshaped();
+        }
+    }
+
+    /**
+     * Get this node's slot in the checker's latest snapshot, or -1 if it
+     * has been added to the tree since.
+     */
+    int getSnapshotIndex()
     {
-        shapes.remove(shape);
+        return snapshotIndex;
+    }
+
+    void setSnapshotIndex(int snapshotIndex)
+    {
+        this.snapshotIndex = snapshotIndex;
+    }
+
+    /**
+     * Check whether this node is listed among the nodes changed since the
+     * latest snapshot.
+     */
+    boolean isChanged()
+    {
+        return changed;
+    }
+
+    void setChanged(boolean changed)
+    {
+        this.changed = changed;
     }
 
     public int numberShapes()
     {
-        return shapes.size();
+        return shapeCount;
     }
 
     /**
@@ -222,16 +410,52 @@ public final class BSPNode
      */
     public boolean isEmpty()
     {
-        return shapes.isEmpty();
+        return shapeCount == 0;
+    }
+
+    /**
+     * Get one of the shapes in this node, by index. The indices of the
+     * remaining shapes may change when a shape is removed.
+     */
+    public Shape getShape(int index)
+    {
+        return shapeNodes[index].getShape();
     }
 
     public Iterator<Shape> iterator()
     {
-        return shapes.keySet().iterator();
+        return new Iterator<Shape>() {
+            private int next;
+
+            public boolean hasNext()
+            {
+                return next < shapeCount;
+            }
+
+            public Shape next()
+            {
+                if (next >= shapeCount) {
+                    throw new NoSuchElementException();
+                }
+                return shapeNodes[next++].getShape();
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
+    /**
+     * Get a copy of the set of shapes in this node.
+     */
     public Set<Shape> getShapes()
     {
-        return shapes.keySet();
+        Set<Shape> result = new HashSet<Shape>();
+        for (int i = 0; i < shapeCount; i++) {
+            result.add(shapeNodes[i].getShape());
+        }
+        return result;
     }
 }
@@ -21,49 +21,243 @@
  */
 package sofia.graphics.collision;
 
+import sofia.graphics.Shape;
+import java.util.Arrays;
+
 /**
- * A cache for BSP nodes, allowing object re-use. Might help reduce garbage collection
- * impact.
- * 
+ * A cache for BSP nodes and actor nodes, allowing object re-use. Might help reduce
+ * garbage collection impact. Each checker has its own cache, holding every node it
+ * has let go of on a free list, so a tree that shrinks and grows again allocates
+ * nothing.
+ *
+ * <p>As every node of a tree shares its cache, the cache also records how the
+ * tree has changed since the checker last took a snapshot of it: which nodes
+ * have been added or changed, and which snapshot slots the nodes since
+ * removed had held, so that they can be handed to new nodes.
+ *
  * @author Davin McCall
  */
 public class BSPNodeCache
 {
-    private static final int CACHE_SIZE = 1000;
-    
-    private static BSPNode [] cache = new BSPNode[CACHE_SIZE];
-    private static int tail = 0;
-    private static int size = 0;
-    
-    public static BSPNode getBSPNode()
+    private BSPNode[] freeNodes = new BSPNode[16];
+    private int freeNodeCount;
+    private ShapeNode[] freeShapeNodes = new ShapeNode[16];
+    private int freeShapeNodeCount;
+    private long requests;
+    private long hits;
+
+    /** The nodes added or changed since the last snapshot. */
+    private BSPNode[] changedNodes = new BSPNode[16];
+    private int changedCount;
+    /** The slots held by nodes removed since the last snapshot. */
+    private int[] releasedSlots = new int[16];
+    private int releasedSlotCount;
+    /** The slots no node holds in the last snapshot. */
+    private int[] freeSlots = new int[16];
+    private int freeSlotCount;
+    /** Whether the next snapshot must be laid out from scratch. */
+    private boolean reshaped = true;
+
+    public BSPNode getBSPNode()
     {
-        if (size == 0) {
-            return new BSPNode(new Rect(0,0,0,0), 0, 0);
+        requests++;
+        BSPNode node;
+        if (freeNodeCount == 0) {
+            node = new BSPNode(new Rect(0,0,0,0), 0, 0, this);
         }
         else {
-            int ppos = tail - size;
-            if (ppos < 0) {
-                ppos += CACHE_SIZE;
+            hits++;
+            node = freeNodes[--freeNodeCount];
+            freeNodes[freeNodeCount] = null;
+            node.setParent(null);
+            node.clearCategories();
+            // The old area may have been handed on to another node
+            node.setArea(new Rect(0,0,0,0));
+        }
+        nodeChanged(node);
+        return node;
+    }
+
+    public void returnNode(BSPNode node)
+    {
+        if (node.getLeft() != null || node.getRight() != null) {
+            throw new IllegalStateException(
+                "A BSP node must not have children when it is returned.");
+        }
+        int slot = node.getSnapshotIndex();
+        if (slot >= 0) {
+            if (releasedSlotCount == releasedSlots.length) {
+                releasedSlots = Arrays.copyOf(releasedSlots, releasedSlotCount * 2);
             }
+            releasedSlots[releasedSlotCount++] = slot;
+            node.setSnapshotIndex(-1);
+        }
+        node.setChanged(false);
 
-            BSPNode node = cache[ppos];
-            node.setParent(null);
-            size--;
-            return node;
+        if (freeNodeCount == freeNodes.length) {
+            freeNodes = Arrays.copyOf(freeNodes, freeNodeCount * 2);
         }
+        freeNodes[freeNodeCount++] = node;
     }
-    
-    public static void returnNode(BSPNode node)
+
+    /**
+     * Get an actor node for the given shape and BSP node, adding it to the
+     * front of the shape's list.
+     */
+    ShapeNode getShapeNode(Shape shape, BSPNode node)
     {
-        cache[tail++] = node;
-        if (tail == CACHE_SIZE) {
-            tail = 0;
+        requests++;
+        if (freeShapeNodeCount == 0) {
+            return new ShapeNode(shape, node);
         }
-        size = Math.min(size + 1, CACHE_SIZE);
-        
-        if (node.getLeft() != null || node.getRight() != null) {
-            throw new RuntimeException("HHHHH!");
+        hits++;
+        ShapeNode anode = freeShapeNodes[--freeShapeNodeCount];
+        freeShapeNodes[freeShapeNodeCount] = null;
+        anode.init(shape, node);
+        return anode;
+    }
+
+    /**
+     * Take back an actor node that has been removed from its shape's list
+     * and its BSP node.
+     */
+    void returnShapeNode(ShapeNode anode)
+    {
+        anode.release();
+        if (freeShapeNodeCount == freeShapeNodes.length) {
+            freeShapeNodes = Arrays.copyOf(freeShapeNodes, freeShapeNodeCount * 2);
+        }
+        freeShapeNodes[freeShapeNodeCount++] = anode;
+    }
+
+    /**
+     * Record that a node has been added or changed since the last snapshot.
+     * Once the tree has been reshaped, nodes are no longer listed, as the
+     * next snapshot is laid out from scratch.
+     */
+    void nodeChanged(BSPNode node)
+    {
+        if (reshaped || node.isChanged()) {
+            return;
+        }
+        node.setChanged(true);
+        if (changedCount == changedNodes.length) {
+            changedNodes = Arrays.copyOf(changedNodes, changedCount * 2);
+        }
+        changedNodes[changedCount++] = node;
+    }
+
+    /**
+     * Record that the whole tree has changed, so that the next snapshot
+     * must be laid out from scratch.
+     */
+    void treeReshaped()
+    {
+        reshaped = true;
+    }
+
+    /**
+     * Check whether the next snapshot must be laid out from scratch: if the
+     * whole tree has changed, or if so many slots have been left empty
+     * that the snapshot should be packed again.
+     *
+     * @param nodeCount  The number of nodes in the last snapshot
+     */
+    boolean isReshaped(int nodeCount)
+    {
+        return reshaped || freeSlotCount + releasedSlotCount > nodeCount;
+    }
+
+    /**
+     * Get the number of nodes listed as added or changed since the last
+     * snapshot. A node may be listed more than once, but only nodes that
+     * are still marked as changed need copying. Nodes may be added to the
+     * list while a snapshot is being taken.
+     */
+    int getChangedCount()
+    {
+        return changedCount;
+    }
+
+    BSPNode getChangedNode(int index)
+    {
+        return changedNodes[index];
+    }
+
+    /**
+     * Get the number of slots released by nodes removed since the last
+     * snapshot.
+     */
+    int getReleasedSlotCount()
+    {
+        return releasedSlotCount;
+    }
+
+    int getReleasedSlot(int index)
+    {
+        return releasedSlots[index];
+    }
+
+    /**
+     * Take a slot for a node that has been added since the last snapshot.
+     *
+     * @return A free slot, or -1 if the snapshot must grow to hold the node
+     */
+    int takeFreeSlot()
+    {
+        if (freeSlotCount > 0) {
+            return freeSlots[--freeSlotCount];
+        }
+        if (releasedSlotCount > 0) {
+            return releasedSlots[--releasedSlotCount];
         }
-        
+        return -1;
+    }
+
+    /**
+     * Forget the changes, once a snapshot has been taken. The slots that
+     * were released and not taken again are free in the new snapshot.
+     *
+     * @param rebuilt  True if the snapshot was laid out from scratch, so
+     *                 that it has no free slots
+     */
+    void clearChanges(boolean rebuilt)
+    {
+        for (int i = 0; i < changedCount; i++) {
+            changedNodes[i].setChanged(false);
+            changedNodes[i] = null;
+        }
+        changedCount = 0;
+        reshaped = false;
+
+        if (rebuilt) {
+            freeSlotCount = 0;
+        }
+        else {
+            for (int i = 0; i < releasedSlotCount; i++) {
+                if (freeSlotCount == freeSlots.length) {
+                    freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+                }
+                freeSlots[freeSlotCount++] = releasedSlots[i];
+            }
+        }
+        releasedSlotCount = 0;
+    }
+
+    /**
+     * Get the number of BSP nodes and actor nodes asked for.
+     */
+    long getRequestCount()
+    {
+        return requests;
+    }
+
+    /**
+     * Get the number of BSP nodes and actor nodes handed out from the free
+     * lists, rather than created.
+     */
+    long getHitCount()
+    {
+        return hits;
     }
 }
@@ -0,0 +1,462 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * A balanced layout for an {@link IBSPColChecker}'s tree, worked out from
+ * scratch for a fixed set of shapes. The shapes' bounds are copied when the
+ * rebuild is created, so {@link #plan()}, which does the real work, can run
+ * on any thread while the checker carries on;
+ * {@link #apply(BSPNodeCache, Set, List, IBSPColChecker)}
+ * then creates the new nodes while holding the checker's lock.
+ *
+ * <p>The layout is built top-down. Each node's area is split across its
+ * longer side at the leading edge of the shape whose centre is the
+ * median, until each node holds no more than {@link #NODE_CAPACITY}
+ * shapes. As in the tree the checker builds incrementally, a shape that
+ * straddles a split is stored on both sides of it, and a shape that covers
+ * a node's whole area stays in that node.
+ *
+ * <p>Each shape is laid out by its {@linkplain IndexedBounds indexed box},
+ * enlarged by the checker's index margin on every side. The box each shape was laid out by
+ * is handed back to the checker when the layout is applied, so that the
+ * shape can move within it without the tree being changed.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class BSPRebuild
+{
+    /** The most shapes a node holds before it is split. */
+    private static final int NODE_CAPACITY = 2;
+    /** A limit on depth, for shapes that cannot be separated. */
+    private static final int MAX_DEPTH = 64;
+
+    private final Shape[] shapes;
+    /**
+     * left, top, right, bottom of each shape's box, when the rebuild was
+     * created.
+     */
+    private final float[] bounds;
+    private final float[] centres;
+    /** The root's area, or null to fit it to the shapes. */
+    private final Rect area;
+
+    private int nodeCount;
+    private float[] areas = new float[64];
+    private int[] splitAxes = new int[16];
+    private float[] splitPositions = new float[16];
+    private int[] children = new int[32];
+    private int[] nodeStart = new int[16];
+    private int[] nodeEnd = new int[16];
+    /** The shapes of node i are entries[nodeStart[i]] to entries[nodeEnd[i] - 1]. */
+    private int[] entries = new int[16];
+    private int entryCount;
+    private long planNanos;
+
+
+    /**
+     * Start a rebuild. This must be called while holding the checker's lock.
+     */
+    BSPRebuild(Collection<Shape> shapes)
+    {
+        this(shapes, null, 0);
+    }
+
+    /**
+     * Start a rebuild whose root covers a given area, which must contain
+     * all the shapes' boxes. The root is laid out even if there are no
+     * shapes. This must be called while holding the checker's lock.
+     *
+     * @param margin  How far each shape's box extends beyond its rotated
+     *                bounds
+     */
+    BSPRebuild(Collection<Shape> shapes, Rect area, float margin)
+    {
+        this.area = (area == null) ? null
+            : new Rect(area.getX(), area.getY(), area.getWidth(), area.getHeight());
+        int count = shapes.size();
+        this.shapes = shapes.toArray(new Shape[count]);
+        bounds = new float[count * 4];
+        centres = new float[count];
+        for (int i = 0; i < count; i++) {
+            Shape shape = this.shapes[i];
+            float left = IndexedBounds.left(shape) - margin;
+            float top = IndexedBounds.top(shape) - margin;
+            float right = IndexedBounds.right(shape) + margin;
+            float bottom = IndexedBounds.bottom(shape) + margin;
+            if (area != null) {
+                // The margin may not take a shape's box outside the root
+                left = Math.max(left, area.getX());
+                top = Math.max(top, area.getY());
+                right = Math.min(right, area.getRight());
+                bottom = Math.min(bottom, area.getTop());
+            }
+            bounds[i * 4] = left;
+            bounds[i * 4 + 1] = top;
+            // The tree does not cope with shapes of zero width or height;
+            // see IBSPColChecker.addObject()
+            bounds[i * 4 + 2] = (right > left) ? right : left + 0.001f;
+            bounds[i * 4 + 3] = (bottom > top) ? bottom : top + 0.001f;
+        }
+    }
+
+    /**
+     * Work out the layout of the new tree.
+     */
+    void plan()
+    {
+        long start = System.nanoTime();
+        nodeCount = 0;
+        entryCount = 0;
+        if (area != null || shapes.length > 0) {
+            float left;
+            float top;
+            float right;
+            float bottom;
+            if (area != null) {
+                left = area.getX();
+                top = area.getY();
+                right = area.getRight();
+                bottom = area.getTop();
+            }
+            else {
+                left = Float.POSITIVE_INFINITY;
+                top = Float.POSITIVE_INFINITY;
+                right = Float.NEGATIVE_INFINITY;
+                bottom = Float.NEGATIVE_INFINITY;
+                for (int i = 0; i < shapes.length; i++) {
+                    left = Math.min(left, bounds[i * 4]);
+                    top = Math.min(top, bounds[i * 4 + 1]);
+                    right = Math.max(right, bounds[i * 4 + 2]);
+                    bottom = Math.max(bottom, bounds[i * 4 + 3]);
+                }
+            }
+            int[] items = new int[shapes.length];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = i;
+            }
+            build(items, items.length, left, top, right, bottom, 1);
+        }
+        planNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Get the time {@link #plan()} took, in nanoseconds.
+     */
+    long getPlanNanos()
+    {
+        return planNanos;
+    }
+
+    /**
+     * Create the nodes of the new tree. Only shapes that are still in the
+     * checker, and have not moved out of their boxes since the rebuild was
+     * created, are placed in it; the rest are left for the checker to insert
+     * in the usual way.
+     * This must be called while holding the checker's lock, after the old
+     * tree has been cleared.
+     *
+     * @param cache     The checker's node cache
+     * @param present   The shapes now in the checker; those placed in the
+     *                  new tree are removed from it
+     * @param unplaced  Receives the shapes still to be inserted
+     * @param checker   Told the box each placed shape was laid out by
+     * @return The root of the new tree, or null if it is empty
+     */
+    BSPNode apply(BSPNodeCache cache, Set<Shape> present,
+            List<Shape> unplaced, IBSPColChecker checker)
+    {
+        BSPNode[] nodes = new BSPNode[nodeCount];
+        boolean[] placed = new boolean[shapes.length];
+        for (int i = 0; i < nodeCount; i++) {
+            BSPNode node = cache.getBSPNode();
+            node.setArea(new Rect(areas[i * 4], areas[i * 4 + 1],
+                    areas[i * 4 + 2] - areas[i * 4],
+                    areas[i * 4 + 3] - areas[i * 4 + 1]));
+            node.setSplitAxis(splitAxes[i]);
+            node.setSplitPos(splitPositions[i]);
+            nodes[i] = node;
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            if (children[i * 2] >= 0) {
+                nodes[i].setChild(IBSPColChecker.PARENT_LEFT, nodes[children[i * 2]]);
+            }
+            if (children[i * 2 + 1] >= 0) {
+                nodes[i].setChild(IBSPColChecker.PARENT_RIGHT,
+                        nodes[children[i * 2 + 1]]);
+            }
+            for (int k = nodeStart[i]; k < nodeEnd[i]; k++) {
+                int s = entries[k];
+                if (placed[s] || (present.contains(shapes[s]) && isCovered(s))) {
+                    placed[s] = true;
+                    nodes[i].addShape(shapes[s]);
+                }
+            }
+        }
+
+        for (int s = 0; s < shapes.length; s++) {
+            if (placed[s]) {
+                present.remove(shapes[s]);
+                checker.setIndexBounds(shapes[s], bounds[s * 4],
+                    bounds[s * 4 + 1], bounds[s * 4 + 2], bounds[s * 4 + 3]);
+            }
+        }
+        unplaced.addAll(present);
+        present.clear();
+        return (nodeCount > 0) ? nodes[0] : null;
+    }
+
+    /**
+     * Flatten the layout straight into a snapshot, without creating any
+     * nodes. The snapshot holds the shapes as they were when the rebuild was
+     * created; this is how the checker indexes its static shapes.
+     *
+     * @param counters  Counts the work queries on the snapshot do, or null
+     */
+    BSPSnapshot toSnapshot(QueryCounters counters)
+    {
+        float[] nodeAreas = Arrays.copyOf(areas, nodeCount * 4);
+        int[] nodeChildren = Arrays.copyOf(children, nodeCount * 2);
+        int[] categories = new int[nodeCount];
+        Shape[][] nodeShapes = new Shape[nodeCount][];
+        int[][] earlierNodes = new int[nodeCount][];
+        // The nodes each shape has been found in so far, as a linked list
+        // through the entries
+        int[] lastEntry = new int[shapes.length];
+        int[] previousEntry = new int[entryCount];
+        int[] entryNode = new int[entryCount];
+        Arrays.fill(lastEntry, -1);
+
+        // Nodes were numbered in the order they were laid out, so each
+        // node's children come after it
+        for (int i = 0; i < nodeCount; i++) {
+            int count = nodeEnd[i] - nodeStart[i];
+            Shape[] nodeShapeArray = new Shape[count];
+            int earlierCount = 0;
+            for (int e = nodeStart[i]; e < nodeEnd[i]; e++) {
+                int s = entries[e];
+                nodeShapeArray[e - nodeStart[i]] = shapes[s];
+                categories[i] |= shapes[s].getCollisionCategories();
+                for (int p = lastEntry[s]; p >= 0; p = previousEntry[p]) {
+                    earlierCount++;
+                }
+            }
+            nodeShapes[i] = nodeShapeArray;
+
+            if (earlierCount > 0) {
+                int[] earlier = new int[count + 1 + earlierCount];
+                int next = count + 1;
+                for (int e = nodeStart[i]; e < nodeEnd[i]; e++) {
+                    earlier[e - nodeStart[i]] = next;
+                    for (int p = lastEntry[entries[e]]; p >= 0;
+                            p = previousEntry[p]) {
+                        earlier[next++] = entryNode[p];
+                    }
+                }
+                earlier[count] = next;
+                earlierNodes[i] = earlier;
+            }
+
+            for (int e = nodeStart[i]; e < nodeEnd[i]; e++) {
+                int s = entries[e];
+                entryNode[e] = i;
+                previousEntry[e] = lastEntry[s];
+                lastEntry[s] = e;
+            }
+        }
+
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            for (int c = i * 2; c <= i * 2 + 1; c++) {
+                if (nodeChildren[c] >= 0) {
+                    categories[i] |= categories[nodeChildren[c]];
+                }
+            }
+        }
+
+        return new BSPSnapshot(0, shapes.length, nodeCount, nodeAreas,
+                nodeChildren, categories, nodeShapes, earlierNodes,
+                BSPSnapshot.NO_OTHERS, counters);
+    }
+
+    /**
+     * Check whether a shape is still within the box it was laid out by.
+     */
+    private boolean isCovered(int s)
+    {
+        return IndexedBounds.isWithin(shapes[s], bounds[s * 4],
+            bounds[s * 4 + 1], bounds[s * 4 + 2], bounds[s * 4 + 3]);
+    }
+
+    /**
+     * Lay out the node for the given shapes, which all overlap the given
+     * area.
+     *
+     * @return The new node's index
+     */
+    private int build(int[] items, int count, float left, float top,
+            float right, float bottom, int depth)
+    {
+        int node = newNode(left, top, right, bottom);
+        if (count <= NODE_CAPACITY || depth >= MAX_DEPTH) {
+            keep(node, items, 0, count);
+            return node;
+        }
+
+        // Shapes covering the whole area gain nothing from going further
+        // down, as in IBSPColChecker.insertObject()
+        int kept = 0;
+        for (int k = 0; k < count; k++) {
+            int s = items[k];
+            if (bounds[s * 4 + 2] - bounds[s * 4] >= right - left
+                    && bounds[s * 4 + 3] - bounds[s * 4 + 1] >= bottom - top) {
+                items[k] = items[kept];
+                items[kept++] = s;
+            }
+        }
+
+        // Split at the median of the rest, if that lies inside the area
+        int axis = splitAxes[node];
+        float min = (axis == IBSPColChecker.X_AXIS) ? left : top;
+        float max = (axis == IBSPColChecker.X_AXIS) ? right : bottom;
+        for (int k = kept; k < count; k++) {
+            int s = items[k];
+            centres[s] = (bounds[s * 4 + axis] + bounds[s * 4 + 2 + axis]) / 2;
+        }
+        int median = (kept + count) >>> 1;
+        select(items, kept, count, median);
+        // Splitting along the median shape's leading edge, rather than
+        // through its centre, leaves it whole on one side
+        float split = (kept < count) ? bounds[items[median] * 4 + axis] : min;
+        if (split <= min || split >= max) {
+            split = splitPositions[node];
+        }
+
+        // A shape that straddles the split goes to both sides, with the
+        // same edge rule as Rect.getIntersection()
+        int[] leftItems = new int[count - kept];
+        int[] rightItems = new int[count - kept];
+        int leftCount = 0;
+        int rightCount = 0;
+        for (int k = kept; k < count; k++) {
+            int s = items[k];
+            if (bounds[s * 4 + axis] < split) {
+                leftItems[leftCount++] = s;
+            }
+            if (bounds[s * 4 + 2 + axis] > split) {
+                rightItems[rightCount++] = s;
+            }
+        }
+
+        if (leftCount == count || rightCount == count) {
+            // Splitting would not separate anything
+            keep(node, items, 0, count);
+            return node;
+        }
+
+        splitPositions[node] = split;
+        keep(node, items, 0, kept);
+        if (leftCount > 0) {
+            int child = (axis == IBSPColChecker.X_AXIS)
+                ? build(leftItems, leftCount, left, top, split, bottom, depth + 1)
+                : build(leftItems, leftCount, left, top, right, split, depth + 1);
+            children[node * 2] = child;
+        }
+        if (rightCount > 0) {
+            int child = (axis == IBSPColChecker.X_AXIS)
+                ? build(rightItems, rightCount, split, top, right, bottom, depth + 1)
+                : build(rightItems, rightCount, left, split, right, bottom, depth + 1);
+            children[node * 2 + 1] = child;
+        }
+        return node;
+    }
+
+    /**
+     * Store the given shapes in a node.
+     */
+    private void keep(int node, int[] items, int from, int to)
+    {
+        if (entryCount + (to - from) > entries.length) {
+            entries = Arrays.copyOf(entries,
+                    Math.max(entries.length * 2, entryCount + (to - from)));
+        }
+        nodeStart[node] = entryCount;
+        for (int k = from; k < to; k++) {
+            entries[entryCount++] = items[k];
+        }
+        nodeEnd[node] = entryCount;
+    }
+
+    /**
+     * Add a node with no children, split across the middle of its longer
+     * side, as IBSPColChecker does for new nodes.
+     */
+    private int newNode(float left, float top, float right, float bottom)
+    {
+        if (nodeCount == splitAxes.length) {
+            int capacity = nodeCount * 2;
+            areas = Arrays.copyOf(areas, capacity * 4);
+            splitAxes = Arrays.copyOf(splitAxes, capacity);
+            splitPositions = Arrays.copyOf(splitPositions, capacity);
+            children = Arrays.copyOf(children, capacity * 2);
+            nodeStart = Arrays.copyOf(nodeStart, capacity);
+            nodeEnd = Arrays.copyOf(nodeEnd, capacity);
+        }
+
+        int node = nodeCount++;
+        areas[node * 4] = left;
+        areas[node * 4 + 1] = top;
+        areas[node * 4 + 2] = right;
+        areas[node * 4 + 3] = bottom;
+        if (right - left > bottom - top) {
+            splitAxes[node] = IBSPColChecker.X_AXIS;
+            splitPositions[node] = (left + right) / 2;
+        }
+        else {
+            splitAxes[node] = IBSPColChecker.Y_AXIS;
+            splitPositions[node] = (top + bottom) / 2;
+        }
+        children[node * 2] = -1;
+        children[node * 2 + 1] = -1;
+        return node;
+    }
+
+    /**
+     * Partially sort items[lo] to items[hi - 1] by centre, so that the
+     * entry at index n is the one that would be there if fully sorted.
+     */
+    private void select(int[] items, int lo, int hi, int n)
+    {
+        hi--;
+        while (lo < hi) {
+            float pivot = centres[items[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (centres[items[i]] < pivot) {
+                    i++;
+                }
+                while (centres[items[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = items[i];
+                    items[i++] = items[j];
+                    items[j--] = t;
+                }
+            }
+            if (n <= j) {
+                hi = j;
+            }
+            else if (n >= i) {
+                lo = i;
+            }
+            else {
+                return;
+            }
+        }
+    }
+}
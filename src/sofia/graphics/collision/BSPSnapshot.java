@@ -0,0 +1,930 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * An immutable copy of an {@link IBSPColChecker}'s tree, flattened into
+ * arrays. Queries read a snapshot rather than the live tree, so they need no
+ * locks and can run on any thread while the tree is being changed; a new
+ * snapshot is published whenever the checker's changes should become
+ * visible to readers.
+ *
+ * <p>Each node has a numbered slot in the arrays, and each node's shapes are
+ * held in an array of their own. A shape that spans several nodes is in each
+ * of their arrays, and each of its entries lists the lower-numbered nodes
+ * also holding it, so that a walk can tell which of them to report.
+ *
+ * <p>Snapshots are published often, so a new one is not copied from the
+ * whole tree unless the tree has been rebuilt. Otherwise each node keeps its
+ * slot from one snapshot to the next, only the nodes that have been added or
+ * changed are copied, and the shapes of the rest, which are never modified,
+ * are shared with the snapshot before. A removed node's slot is left empty
+ * until a new node takes it.
+ *
+ * <p>The checker's static shapes, and the shapes outside its world bounds,
+ * are kept out of its tree, in separate snapshots: the static shapes laid
+ * out all at once by a {@link BSPRebuild}, and the shapes outside the world
+ * in a {@linkplain #flat(Collection, QueryCounters) flat list}. Every query
+ * on a snapshot of the tree searches those snapshots too.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class BSPSnapshot
+{
+    /** For a tree with no shapes kept out of it. */
+    static final BSPSnapshot[] NO_OTHERS = new BSPSnapshot[0];
+    /** The shapes of an empty node. */
+    private static final Shape[] NO_SHAPES = new Shape[0];
+    /** A snapshot of an empty tree. */
+    static final BSPSnapshot EMPTY = build(null, 0, NO_OTHERS, null);
+
+    /** The checker's modification count when this snapshot was taken. */
+    final int version;
+    /** The number of distinct shapes in the tree. */
+    final int shapeCount;
+    /** The number of levels in the tree, counting the root as 1. */
+    final int maxDepth;
+    /** The sum of every node's depth. */
+    final long depthSum;
+    final int maxShapesPerNode;
+
+    private final int nodeCount;
+    private final int entryCount;
+    /** The root's slot, or -1 if the tree is empty. */
+    private final int root;
+    /** left, top, right, bottom of each node's area. */
+    private final float[] areas;
+    /** Left and right child of each node, or -1. */
+    private final int[] children;
+    /**
+     * The collision categories of all the shapes in each node and its
+     * descendants, so that subtrees holding nothing a query can match are
+     * skipped.
+     */
+    private final int[] categories;
+    /** The shapes in each node, or none in an empty slot. */
+    private final Shape[][] nodeShapes;
+    /**
+     * For each node, the lower-numbered nodes holding each of its shapes,
+     * or null if none of them is in a lower-numbered node. Shape k's
+     * earlier nodes are listed from index earlierNodes[node][k] up to (not
+     * including) earlierNodes[node][k + 1].
+     */
+    private final int[][] earlierNodes;
+    /** Each node's depth, counting the root as 1, or 0 in an empty slot. */
+    private final int[] depths;
+    /** The number of nodes at each depth. */
+    private final int[] depthCounts;
+    /** The number of nodes holding each number of shapes. */
+    private final int[] histogram;
+
+    /** The snapshots of shapes kept out of the tree, searched along with it. */
+    private final BSPSnapshot[] others;
+    /** Counts the work queries do, or null to leave them uncounted. */
+    private final QueryCounters counters;
+    /**
+     * True for a flat list, whose node says nothing about where its shapes
+     * are, so that each shape's own bounds are checked against a search's
+     * area before the shape is tested.
+     */
+    private final boolean flat;
+
+
+    /**
+     * Create a snapshot with no empty slots, working out how deep each node
+     * is and how many shapes it holds. The root must be node 0, and each
+     * node's children must come after it.
+     */
+    BSPSnapshot(int version, int shapeCount, int nodeCount, float[] areas,
+            int[] children, int[] categories, Shape[][] nodeShapes,
+            int[][] earlierNodes, BSPSnapshot[] others,
+            QueryCounters counters)
+    {
+        this.version = version;
+        this.shapeCount = shapeCount;
+        this.nodeCount = nodeCount;
+        this.root = (nodeCount > 0) ? 0 : -1;
+        this.areas = areas;
+        this.children = children;
+        this.categories = categories;
+        this.nodeShapes = nodeShapes;
+        this.earlierNodes = earlierNodes;
+        this.others = others;
+        this.counters = counters;
+        this.flat = nodeCount == 1
+            && areas[0] == Float.NEGATIVE_INFINITY;
+
+        depths = new int[nodeCount];
+        histogram = new int[BSPTreeStats.HISTOGRAM_SIZE];
+        int entries = 0;
+        int maxShapes = 0;
+        int deepest = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            depths[i] = Math.max(depths[i], 1);
+            deepest = Math.max(deepest, depths[i]);
+            for (int c = i * 2; c <= i * 2 + 1; c++) {
+                if (children[c] >= 0) {
+                    depths[children[c]] = depths[i] + 1;
+                }
+            }
+
+            int shapes = nodeShapes[i].length;
+            entries += shapes;
+            maxShapes = Math.max(maxShapes, shapes);
+            histogram[bucket(shapes)]++;
+        }
+        depthCounts = new int[deepest + 1];
+        for (int i = 0; i < nodeCount; i++) {
+            depthCounts[depths[i]]++;
+        }
+        entryCount = entries;
+        maxShapesPerNode = maxShapes;
+        maxDepth = deepest;
+        depthSum = sumDepths(depthCounts);
+    }
+
+    /**
+     * Create a snapshot from arrays that have already been filled in.
+     */
+    private BSPSnapshot(int version, int shapeCount, int entryCount,
+            int maxShapesPerNode, int root, float[] areas, int[] children,
+            int[] categories, Shape[][] nodeShapes, int[][] earlierNodes,
+            int[] depths, int[] depthCounts, int[] histogram,
+            BSPSnapshot[] others, QueryCounters counters)
+    {
+        this.version = version;
+        this.shapeCount = shapeCount;
+        this.entryCount = entryCount;
+        this.maxShapesPerNode = maxShapesPerNode;
+        this.root = root;
+        this.areas = areas;
+        this.children = children;
+        this.categories = categories;
+        this.nodeShapes = nodeShapes;
+        this.earlierNodes = earlierNodes;
+        this.depths = depths;
+        this.depthCounts = depthCounts;
+        this.histogram = histogram;
+        this.others = others;
+        this.counters = counters;
+        this.flat = false;
+
+        int nodes = 0;
+        int deepest = 0;
+        for (int d = 1; d < depthCounts.length; d++) {
+            nodes += depthCounts[d];
+            if (depthCounts[d] > 0) {
+                deepest = d;
+            }
+        }
+        nodeCount = nodes;
+        maxDepth = deepest;
+        depthSum = sumDepths(depthCounts);
+    }
+
+    /**
+     * Copy a whole tree, giving its nodes new slots. This must be called
+     * while holding the checker's lock.
+     *
+     * @param root     The root of the tree, or null if it is empty
+     * @param version  The checker's modification count
+     * @param others   The snapshots of the shapes kept out of the tree
+     * @param counters Counts the work queries do, or null
+     */
+    static BSPSnapshot build(BSPNode root, int version, BSPSnapshot[] others,
+            QueryCounters counters)
+    {
+        // Children are numbered after their parents, and a node's shapes
+        // cannot be copied until all the nodes are numbered
+        BSPNode[] nodes = new BSPNode[16];
+        int nodeCount = 0;
+        if (root != null) {
+            nodes[nodeCount++] = root;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            BSPNode node = nodes[i];
+            node.setSnapshotIndex(i);
+            if (nodeCount + 2 > nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            }
+            if (node.getLeft() != null) {
+                nodes[nodeCount++] = node.getLeft();
+            }
+            if (node.getRight() != null) {
+                nodes[nodeCount++] = node.getRight();
+            }
+        }
+
+        float[] areas = new float[nodeCount * 4];
+        int[] children = new int[nodeCount * 2];
+        int[] categories = new int[nodeCount];
+        Shape[][] nodeShapes = new Shape[nodeCount][];
+        int[][] earlierNodes = new int[nodeCount][];
+        int shapeCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            copyLayout(nodes[i], i, areas, children);
+            nodeShapes[i] = copyShapes(nodes[i]);
+            earlierNodes[i] = findEarlierNodes(nodes[i], i);
+            shapeCount += countFirstEntries(nodeShapes[i], earlierNodes[i]);
+        }
+
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            categories[i] = combineCategories(i, nodeShapes[i], children,
+                categories);
+        }
+
+        return new BSPSnapshot(version, shapeCount, nodeCount, areas,
+                children, categories, nodeShapes, earlierNodes, others,
+                counters);
+    }
+
+    /**
+     * Make a snapshot holding shapes in a single node that covers the whole
+     * plane, so that every query scans them all. As the node's area does not
+     * depend on where the shapes are, it stays right however they move; only
+     * adding, removing or refiltering a shape calls for a new one.
+     *
+     * @param shapes   The shapes
+     * @param counters Counts the work queries do, or null
+     */
+    static BSPSnapshot flat(Collection<Shape> shapes, QueryCounters counters)
+    {
+        Shape[][] nodeShapes = { shapes.toArray(new Shape[shapes.size()]) };
+        float[] areas = { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+            Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+        int[] children = { -1, -1 };
+        int[] categories = new int[1];
+        categories[0] = combineCategories(0, nodeShapes[0], children,
+            categories);
+        return new BSPSnapshot(0, nodeShapes[0].length, 1, areas, children,
+                categories, nodeShapes, new int[1][], NO_OTHERS, counters);
+    }
+
+    /**
+     * Take a snapshot of the same tree after some of its nodes have been
+     * added, removed or changed, copying only those nodes. This must be
+     * called while holding the checker's lock, on the latest snapshot.
+     *
+     * @param rootNode The root of the tree, or null if it is empty
+     * @param version  The checker's modification count
+     * @param changes  Lists the nodes that have changed
+     * @param others   The snapshots of the shapes kept out of the tree
+     */
+    BSPSnapshot update(BSPNode rootNode, int version, BSPNodeCache changes,
+            BSPSnapshot[] others)
+    {
+        // Every node must have a slot before any shapes are copied, as each
+        // entry lists the lower-numbered nodes holding the same shape. The
+        // slots of removed nodes are emptied first, as they may be taken
+        // again by new nodes.
+        int[] released = new int[changes.getReleasedSlotCount()];
+        for (int i = 0; i < released.length; i++) {
+            released[i] = changes.getReleasedSlot(i);
+        }
+        int slotCount = nodeShapes.length;
+        int added = 0;
+        for (int i = 0; i < changes.getChangedCount(); i++) {
+            BSPNode node = changes.getChangedNode(i);
+            if (node.isChanged() && node.getSnapshotIndex() < 0) {
+                int slot = changes.takeFreeSlot();
+                node.setSnapshotIndex((slot >= 0) ? slot : slotCount++);
+                added++;
+            }
+        }
+
+        float[] newAreas = Arrays.copyOf(areas, slotCount * 4);
+        int[] newChildren = Arrays.copyOf(children, slotCount * 2);
+        int[] newCategories = Arrays.copyOf(categories, slotCount);
+        Shape[][] newShapes = Arrays.copyOf(nodeShapes, slotCount);
+        int[][] newEarlier = Arrays.copyOf(earlierNodes, slotCount);
+        int[] newDepths = Arrays.copyOf(depths, slotCount);
+        int[] newDepthCounts = depthCounts.clone();
+        int[] newHistogram = histogram.clone();
+        for (int i = nodeShapes.length; i < slotCount; i++) {
+            newShapes[i] = NO_SHAPES;
+            newChildren[i * 2] = -1;
+            newChildren[i * 2 + 1] = -1;
+        }
+
+        int newShapeCount = shapeCount;
+        int newEntryCount = entryCount;
+        int newMax = maxShapesPerNode;
+        boolean maxMayHaveShrunk = false;
+        for (int slot : released) {
+            Shape[] oldShapes = newShapes[slot];
+            newShapeCount -= countFirstEntries(oldShapes, newEarlier[slot]);
+            newEntryCount -= oldShapes.length;
+            newHistogram[bucket(oldShapes.length)]--;
+            maxMayHaveShrunk |= oldShapes.length == maxShapesPerNode;
+            newDepthCounts[newDepths[slot]]--;
+            newShapes[slot] = NO_SHAPES;
+            newEarlier[slot] = null;
+            newCategories[slot] = 0;
+            newDepths[slot] = 0;
+            newChildren[slot * 2] = -1;
+            newChildren[slot * 2 + 1] = -1;
+        }
+        newHistogram[0] += added;
+
+        // Reading a node's children passes any change of its area down to
+        // them, which lists them as changed in turn
+        BSPNode[] copied = new BSPNode[changes.getChangedCount()];
+        int copiedCount = 0;
+        for (int i = 0; i < changes.getChangedCount(); i++) {
+            BSPNode node = changes.getChangedNode(i);
+            if (! node.isChanged()) {
+                continue;
+            }
+            node.setChanged(false);
+            int index = node.getSnapshotIndex();
+            copyLayout(node, index, newAreas, newChildren);
+
+            Shape[] oldShapes = newShapes[index];
+            Shape[] shapes = copyShapes(node);
+            int[] earlier = findEarlierNodes(node, index);
+            newShapeCount += countFirstEntries(shapes, earlier)
+                - countFirstEntries(oldShapes, newEarlier[index]);
+            newShapes[index] = shapes;
+            newEarlier[index] = earlier;
+            newEntryCount += shapes.length - oldShapes.length;
+            newHistogram[bucket(oldShapes.length)]--;
+            newHistogram[bucket(shapes.length)]++;
+            newMax = Math.max(newMax, shapes.length);
+            maxMayHaveShrunk |= oldShapes.length == maxShapesPerNode
+                && shapes.length < maxShapesPerNode;
+
+            if (copiedCount == copied.length) {
+                copied = Arrays.copyOf(copied, copiedCount * 2 + 1);
+            }
+            copied[copiedCount++] = node;
+        }
+        if (maxMayHaveShrunk && newMax == maxShapesPerNode) {
+            newMax = 0;
+            for (Shape[] shapes : newShapes) {
+                newMax = Math.max(newMax, shapes.length);
+            }
+        }
+
+        // A node that has moved up or down the tree takes its subtree with
+        // it, and once the layout is in place each copied node's categories
+        // are worked out again, along with its ancestors'
+        NodeStack stack = new NodeStack();
+        for (int i = 0; i < copiedCount; i++) {
+            int depth = 0;
+            for (BSPNode node = copied[i]; node != null;
+                    node = node.getParent()) {
+                depth++;
+            }
+            int index = copied[i].getSnapshotIndex();
+            if (newDepths[index] == depth) {
+                continue;
+            }
+            newDepthCounts = setDepth(index, depth, newDepths, newDepthCounts);
+            stack.push(index);
+            while (stack.size() > 0) {
+                int node = stack.pop();
+                for (int c = node * 2; c <= node * 2 + 1; c++) {
+                    int child = newChildren[c];
+                    if (child >= 0 && newDepths[child] != newDepths[node] + 1) {
+                        newDepthCounts = setDepth(child, newDepths[node] + 1,
+                            newDepths, newDepthCounts);
+                        stack.push(child);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < copiedCount; i++) {
+            for (BSPNode node = copied[i]; node != null;
+                    node = node.getParent()) {
+                int index = node.getSnapshotIndex();
+                int combined = combineCategories(index, newShapes[index],
+                    newChildren, newCategories);
+                if (combined == newCategories[index] && node != copied[i]) {
+                    break;
+                }
+                newCategories[index] = combined;
+            }
+        }
+
+        return new BSPSnapshot(version, newShapeCount, newEntryCount, newMax,
+            (rootNode != null) ? rootNode.getSnapshotIndex() : -1, newAreas,
+            newChildren, newCategories, newShapes, newEarlier, newDepths,
+            newDepthCounts, newHistogram, others, counters);
+    }
+
+    /**
+     * Copy a node's area and the slots of its children.
+     */
+    private static void copyLayout(BSPNode node, int index, float[] areas,
+            int[] children)
+    {
+        BSPNode left = node.getLeft();
+        BSPNode right = node.getRight();
+        Rect area = node.getArea();
+        areas[index * 4] = area.getX();
+        areas[index * 4 + 1] = area.getY();
+        areas[index * 4 + 2] = area.getRight();
+        areas[index * 4 + 3] = area.getTop();
+        children[index * 2] = (left != null) ? left.getSnapshotIndex() : -1;
+        children[index * 2 + 1] = (right != null)
+            ? right.getSnapshotIndex() : -1;
+    }
+
+    /**
+     * Set a node's depth, keeping count of the nodes at each depth.
+     *
+     * @return The counts, which are copied into a larger array if the node
+     *         is deeper than any before
+     */
+    private static int[] setDepth(int node, int depth, int[] depths,
+            int[] depthCounts)
+    {
+        if (depth >= depthCounts.length) {
+            depthCounts = Arrays.copyOf(depthCounts, depth * 2);
+        }
+        if (depths[node] > 0) {
+            depthCounts[depths[node]]--;
+        }
+        depthCounts[depth]++;
+        depths[node] = depth;
+        return depthCounts;
+    }
+
+    private static long sumDepths(int[] depthCounts)
+    {
+        long sum = 0;
+        for (int d = 1; d < depthCounts.length; d++) {
+            sum += (long) d * depthCounts[d];
+        }
+        return sum;
+    }
+
+    /**
+     * Copy the shapes a node holds.
+     */
+    private static Shape[] copyShapes(BSPNode node)
+    {
+        int count = node.numberShapes();
+        if (count == 0) {
+            return NO_SHAPES;
+        }
+        Shape[] shapes = new Shape[count];
+        for (int k = 0; k < count; k++) {
+            shapes[k] = node.getShape(k);
+        }
+        return shapes;
+    }
+
+    /**
+     * List the lower-numbered nodes holding each of a node's shapes, as
+     * laid out in {@link #earlierNodes}. Every node the shapes are in must
+     * have a slot.
+     *
+     * @return The list, or null if no shape is in a lower-numbered node
+     */
+    private static int[] findEarlierNodes(BSPNode node, int index)
+    {
+        int count = node.numberShapes();
+        int total = 0;
+        for (int k = 0; k < count; k++) {
+            for (ShapeNode anode = IBSPColChecker.getNodeForShape(
+                    node.getShape(k)); anode != null; anode = anode.getNext()) {
+                if (anode.getBSPNode().getSnapshotIndex() < index) {
+                    total++;
+                }
+            }
+        }
+        if (total == 0) {
+            return null;
+        }
+
+        int[] earlier = new int[count + 1 + total];
+        int next = count + 1;
+        for (int k = 0; k < count; k++) {
+            earlier[k] = next;
+            for (ShapeNode anode = IBSPColChecker.getNodeForShape(
+                    node.getShape(k)); anode != null; anode = anode.getNext()) {
+                int other = anode.getBSPNode().getSnapshotIndex();
+                if (other < index) {
+                    earlier[next++] = other;
+                }
+            }
+        }
+        earlier[count] = next;
+        return earlier;
+    }
+
+    /**
+     * Count the shapes in a node that are in no earlier node.
+     */
+    private static int countFirstEntries(Shape[] shapes, int[] earlier)
+    {
+        if (earlier == null) {
+            return shapes.length;
+        }
+        int count = 0;
+        for (int k = 0; k < shapes.length; k++) {
+            if (earlier[k] == earlier[k + 1]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Combine the categories of a node's shapes with those of its
+     * children.
+     */
+    private static int combineCategories(int node, Shape[] shapes,
+            int[] children, int[] categories)
+    {
+        int combined = 0;
+        for (Shape shape : shapes) {
+            combined |= shape.getCollisionCategories();
+        }
+        for (int c = node * 2; c <= node * 2 + 1; c++) {
+            if (children[c] >= 0) {
+                combined |= categories[children[c]];
+            }
+        }
+        return combined;
+    }
+
+    private static int bucket(int shapes)
+    {
+        return Math.min(shapes, BSPTreeStats.HISTOGRAM_SIZE - 1);
+    }
+
+    /**
+     * Get the number of nodes in the tree.
+     */
+    int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    /**
+     * Get the number of places shapes are stored in the tree.
+     */
+    int getEntryCount()
+    {
+        return entryCount;
+    }
+
+    /**
+     * Count the nodes holding each number of shapes.
+     *
+     * @return The number of nodes holding i shapes at index i, except that
+     *         the last count takes in every node holding at least that many
+     */
+    int[] getShapesPerNodeHistogram()
+    {
+        return histogram.clone();
+    }
+
+    private void record(int nodes, int candidates)
+    {
+        if (counters != null) {
+            counters.record(nodes, candidates);
+        }
+    }
+
+
+    /**
+     * Add every shape in the nodes overlapping an area that matches a query
+     * to a set. Subtrees with no shapes in any of the given collision
+     * categories are skipped. The walk uses the given stack above any
+     * entries already on it, as {@link #visit(VisitorQuery, NodeStack)}
+     * does.
+     */
+    void collect(Rect r, CollisionQuery query, int mask, Set<Shape> result,
+            NodeStack stack)
+    {
+        for (BSPSnapshot other : others) {
+            other.collect(r, query, mask, result, stack);
+        }
+        if (root < 0) {
+            return;
+        }
+
+        int base = stack.size();
+        int nodes = 0;
+        int candidates = 0;
+        try {
+            stack.push(root);
+            while (stack.size() > base) {
+                int node = stack.pop();
+                nodes++;
+                if (overlaps(node, r) && (categories[node] & mask) != 0) {
+                    for (Shape shape : nodeShapes[node]) {
+                        if ((! flat || mayOverlap(shape, r))
+                                && query.checkCollision(shape)) {
+                            result.add(shape);
+                        }
+                    }
+                    candidates += nodeShapes[node].length;
+                    pushChildren(stack, node);
+                }
+            }
+        }
+        finally {
+            stack.truncate(base);
+            record(nodes, candidates);
+        }
+    }
+
+    /**
+     * Add every shape of a given class to a set.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Shape> void collectAll(Class<T> cls, Set<T> result)
+    {
+        for (BSPSnapshot other : others) {
+            other.collectAll(cls, result);
+        }
+        for (Shape[] shapes : nodeShapes) {
+            for (Shape shape : shapes) {
+                if (cls == null || cls.isInstance(shape)) {
+                    result.add((T) shape);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find one shape, other than the one to ignore, that matches a query in
+     * the nodes overlapping an area. Subtrees with no shapes in any of the
+     * given collision categories are skipped.
+     */
+    Shape findOne(Rect r, CollisionQuery query, int mask, Shape ignore,
+            NodeStack stack)
+    {
+        for (BSPSnapshot other : others) {
+            Shape found = other.findOne(r, query, mask, ignore, stack);
+            if (found != null) {
+                return found;
+            }
+        }
+        if (root < 0) {
+            return null;
+        }
+
+        int base = stack.size();
+        int nodes = 0;
+        int candidates = 0;
+        Shape found = null;
+        try {
+            stack.push(root);
+            while (found == null && stack.size() > base) {
+                int node = stack.pop();
+                nodes++;
+                if (overlaps(node, r) && (categories[node] & mask) != 0) {
+                    found = findOneInNode(node, r, query, ignore);
+                    candidates += nodeShapes[node].length;
+                    pushChildren(stack, node);
+                }
+            }
+        }
+        finally {
+            stack.truncate(base);
+            record(nodes, candidates);
+        }
+        return found;
+    }
+
+    /**
+     * Offer every shape in the nodes overlapping the query's area to the
+     * query, until it is stopped. The walk uses the given stack above any
+     * entries already on it, so a visitor may start another walk on the
+     * same stack.
+     */
+    void visit(VisitorQuery query, NodeStack stack)
+    {
+        for (BSPSnapshot other : others) {
+            other.visit(query, stack);
+        }
+        if (root < 0) {
+            return;
+        }
+
+        int base = stack.size();
+        int nodes = 0;
+        int candidates = 0;
+        try {
+            stack.push(root);
+            while (stack.size() > base && ! query.isStopped()) {
+                int node = stack.pop();
+                nodes++;
+                if ((categories[node] & query.mask) == 0
+                        || ! query.overlaps(areas[node * 4], areas[node * 4 + 1],
+                        areas[node * 4 + 2], areas[node * 4 + 3])) {
+                    continue;
+                }
+
+                Shape[] shapes = nodeShapes[node];
+                int[] earlier = earlierNodes[node];
+                for (int k = 0; k < shapes.length; k++) {
+                    candidates++;
+                    if ((earlier == null
+                            || isFirstOverlappingEntry(earlier, k, query))
+                            && ! query.offer(shapes[k])) {
+                        break;
+                    }
+                }
+                pushChildren(stack, node);
+            }
+        }
+        finally {
+            stack.truncate(base);
+            record(nodes, candidates);
+        }
+    }
+
+    /**
+     * Offer the shapes in every node the ray passes through to a raycast,
+     * nearest node first. Nodes that the ray only enters beyond the
+     * raycast's current limit are skipped.
+     */
+    void raycast(RayQuery query, NodeStack stack)
+    {
+        for (BSPSnapshot other : others) {
+            other.raycast(query, stack);
+        }
+        if (root < 0) {
+            return;
+        }
+
+        int base = stack.size();
+        int nodes = 0;
+        int candidates = 0;
+        try {
+            stack.push(root);
+            while (stack.size() > base) {
+                int node = stack.pop();
+                nodes++;
+                if (enter(query, node) == RayQuery.MISS) {
+                    continue;
+                }
+
+                for (Shape shape : nodeShapes[node]) {
+                    query.offer(shape);
+                }
+                candidates += nodeShapes[node].length;
+
+                // The children do not overlap, so searching the one the ray
+                // enters first finds nearer shapes first
+                int left = children[node * 2];
+                int right = children[node * 2 + 1];
+                float leftEnter = (left >= 0) ? enter(query, left) : RayQuery.MISS;
+                float rightEnter = (right >= 0) ? enter(query, right) : RayQuery.MISS;
+                if (leftEnter != RayQuery.MISS && rightEnter != RayQuery.MISS) {
+                    if (leftEnter <= rightEnter) {
+                        stack.push(right);
+                        stack.push(left);
+                    }
+                    else {
+                        stack.push(left);
+                        stack.push(right);
+                    }
+                }
+                else if (leftEnter != RayQuery.MISS) {
+                    stack.push(left);
+                }
+                else if (rightEnter != RayQuery.MISS) {
+                    stack.push(right);
+                }
+            }
+        }
+        finally {
+            stack.truncate(base);
+            record(nodes, candidates);
+        }
+    }
+
+    /**
+     * Find the shapes nearest a point, searching nodes in order of their
+     * distance from it until enough shapes have been found.
+     */
+    void nearest(NearestQuery query)
+    {
+        // Nodes are queued along with the snapshot they belong to, so the
+        // other snapshots' nodes can be searched in the same order
+        if (root >= 0) {
+            query.push(distance(query, root), this, root);
+        }
+        for (BSPSnapshot other : others) {
+            if (other.root >= 0) {
+                query.push(other.distance(query, other.root), other,
+                    other.root);
+            }
+        }
+
+        int nodes = 0;
+        int candidates = 0;
+        while (! query.isDone() && query.pop()) {
+            int node = query.poppedNode;
+            if (node < 0) {
+                // A shape, which is now in the results
+                continue;
+            }
+
+            BSPSnapshot owner = (BSPSnapshot) query.poppedItem;
+            owner.expand(query, node);
+            nodes++;
+            candidates += owner.nodeShapes[node].length;
+        }
+        record(nodes, candidates);
+    }
+
+    /**
+     * Offer a node's shapes to a nearest-neighbour search, and queue its
+     * children.
+     */
+    private void expand(NearestQuery query, int node)
+    {
+        for (Shape shape : nodeShapes[node]) {
+            query.offer(shape);
+        }
+        for (int c = node * 2; c <= node * 2 + 1; c++) {
+            if (children[c] >= 0) {
+                query.push(distance(query, children[c]), this, children[c]);
+            }
+        }
+    }
+
+    private float distance(NearestQuery query, int node)
+    {
+        return query.boxDistance(areas[node * 4], areas[node * 4 + 1],
+                areas[node * 4 + 2], areas[node * 4 + 3]);
+    }
+
+    private float enter(RayQuery query, int node)
+    {
+        return query.enter(areas[node * 4], areas[node * 4 + 1],
+                areas[node * 4 + 2], areas[node * 4 + 3]);
+    }
+
+    /**
+     * A shape that spans several nodes is only offered from its first entry
+     * whose node overlaps the query's area, so that it is visited once
+     * without needing a set of visited shapes.
+     */
+    private boolean isFirstOverlappingEntry(int[] earlier, int shape,
+            VisitorQuery query)
+    {
+        for (int e = earlier[shape]; e < earlier[shape + 1]; e++) {
+            int node = earlier[e];
+            if (query.overlaps(areas[node * 4], areas[node * 4 + 1],
+                    areas[node * 4 + 2], areas[node * 4 + 3])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Shape findOneInNode(int node, Rect r, CollisionQuery query,
+            Shape ignore)
+    {
+        for (Shape shape : nodeShapes[node]) {
+            if (shape != ignore && (! flat || mayOverlap(shape, r))
+                    && query.checkCollision(shape)) {
+                return shape;
+            }
+        }
+        return null;
+    }
+
+    private void pushChildren(NodeStack stack, int node)
+    {
+        if (children[node * 2] >= 0) {
+            stack.push(children[node * 2]);
+        }
+        if (children[node * 2 + 1] >= 0) {
+            stack.push(children[node * 2 + 1]);
+        }
+    }
+
+    /**
+     * The same test as Rect.intersects().
+     */
+    private boolean overlaps(int node, Rect r)
+    {
+        return r.getX() < areas[node * 4 + 2] && areas[node * 4] < r.getRight()
+            && r.getY() < areas[node * 4 + 3] && areas[node * 4 + 1] < r.getTop();
+    }
+
+    /**
+     * Check whether a shape's indexed box overlaps or touches an area, and
+     * so might match a search of it.
+     */
+    private static boolean mayOverlap(Shape shape, Rect r)
+    {
+        return r.getX() <= IndexedBounds.right(shape)
+            && IndexedBounds.left(shape) <= r.getRight()
+            && r.getY() <= IndexedBounds.bottom(shape)
+            && IndexedBounds.top(shape) <= r.getTop();
+    }
+}
@@ -0,0 +1,193 @@
+package sofia.graphics.collision;
+
+//-------------------------------------------------------------------------
+/**
+ * Measurements of the shape of an {@link IBSPColChecker}'s tree, taken when
+ * its latest snapshot was published, together with a record of the
+ * rebuilds the checker has made. A {@link RebalancePolicy} uses these to
+ * decide when the tree should be rebuilt. The checker's static shapes are
+ * kept out of its tree, and are not measured.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public final class BSPTreeStats
+{
+    /**
+     * The number of counts in {@link #getShapesPerNodeHistogram()}.
+     */
+    public static final int HISTOGRAM_SIZE = 9;
+
+    private final int shapeCount;
+    private final int nodeCount;
+    private final int entryCount;
+    private final int maxDepth;
+    private final long depthSum;
+    private final int maxShapesPerNode;
+    private final int[] shapesPerNode;
+    private final int rebuildCount;
+    private final long lastRebuildNanos;
+    private final int rootGrowthCount;
+    private final long nodeRequests;
+    private final long nodeCacheHits;
+
+
+    BSPTreeStats(int shapeCount, int nodeCount, int entryCount, int maxDepth,
+            long depthSum, int maxShapesPerNode, int[] shapesPerNode,
+            int rebuildCount, long lastRebuildNanos, int rootGrowthCount,
+            long nodeRequests, long nodeCacheHits)
+    {
+        this.shapeCount = shapeCount;
+        this.nodeCount = nodeCount;
+        this.entryCount = entryCount;
+        this.maxDepth = maxDepth;
+        this.depthSum = depthSum;
+        this.maxShapesPerNode = maxShapesPerNode;
+        this.shapesPerNode = shapesPerNode;
+        this.rebuildCount = rebuildCount;
+        this.lastRebuildNanos = lastRebuildNanos;
+        this.rootGrowthCount = rootGrowthCount;
+        this.nodeRequests = nodeRequests;
+        this.nodeCacheHits = nodeCacheHits;
+    }
+
+    /**
+     * Get the number of shapes in the tree.
+     */
+    public int getShapeCount()
+    {
+        return shapeCount;
+    }
+
+    /**
+     * Get the number of nodes in the tree.
+     */
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    /**
+     * Get the number of places shapes are stored in the tree. A shape that
+     * straddles the boundary between nodes is stored in each of them, so
+     * this is at least the number of shapes.
+     */
+    public int getEntryCount()
+    {
+        return entryCount;
+    }
+
+    /**
+     * Get the number of levels in the tree, counting the root as 1.
+     */
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * Get the average depth of the tree's nodes, counting the root as 1, or
+     * 0 if the tree is empty.
+     */
+    public float getAverageDepth()
+    {
+        return (nodeCount == 0) ? 0 : (float) depthSum / nodeCount;
+    }
+
+    /**
+     * Get the average number of places each shape is stored in the tree,
+     * which is more than 1 when shapes straddle the boundaries between
+     * nodes, or 0 if the tree is empty.
+     */
+    public float getAverageFragmentsPerShape()
+    {
+        return (shapeCount == 0) ? 0 : (float) entryCount / shapeCount;
+    }
+
+    /**
+     * Get the number of levels a balanced tree holding one shape per node
+     * would need for the same number of shapes.
+     */
+    public int getBalancedDepth()
+    {
+        return 32 - Integer.numberOfLeadingZeros(shapeCount);
+    }
+
+    /**
+     * Get the number of levels by which the tree is deeper than a balanced
+     * tree would be.
+     */
+    public int getImbalance()
+    {
+        return Math.max(0, maxDepth - getBalancedDepth());
+    }
+
+    /**
+     * Get the largest number of shapes stored in any one node.
+     */
+    public int getMaxShapesPerNode()
+    {
+        return maxShapesPerNode;
+    }
+
+    /**
+     * Count the nodes holding each number of shapes.
+     *
+     * @return An array of {@link #HISTOGRAM_SIZE} counts, holding the number
+     *         of nodes with i shapes at index i, except that the last count
+     *         takes in every node with at least that many
+     */
+    public int[] getShapesPerNodeHistogram()
+    {
+        return shapesPerNode.clone();
+    }
+
+    /**
+     * Get the number of times the tree has been rebuilt.
+     */
+    public int getRebuildCount()
+    {
+        return rebuildCount;
+    }
+
+    /**
+     * Get the time taken by the last rebuild, in nanoseconds, or 0 if the
+     * tree has never been rebuilt. When rebuilds run in the background,
+     * only the final step of swapping the new tree in holds up changes to
+     * the tree.
+     */
+    public long getLastRebuildNanos()
+    {
+        return lastRebuildNanos;
+    }
+
+    /**
+     * Get the number of times a shape has been added outside the tree's
+     * area, so that the root had to be replaced by a larger one. The area
+     * doubles in each direction it grows, once per count.
+     */
+    public int getRootGrowthCount()
+    {
+        return rootGrowthCount;
+    }
+
+    /**
+     * Get the fraction of the nodes the tree has needed that were reused
+     * from nodes it let go of, rather than created, or 0 if it has not yet
+     * needed any.
+     */
+    public float getNodeCacheHitRate()
+    {
+        return (nodeRequests == 0) ? 0 : (float) nodeCacheHits / nodeRequests;
+    }
+
+    public String toString()
+    {
+        return shapeCount + " shapes in " + nodeCount + " nodes, depth "
+            + maxDepth + " (balanced " + getBalancedDepth() + ", average "
+            + getAverageDepth() + "), at most " + maxShapesPerNode
+            + " shapes per node, " + getAverageFragmentsPerShape()
+            + " fragments per shape, " + rebuildCount + " rebuilds, "
+            + rootGrowthCount + " root growths";
+    }
+}
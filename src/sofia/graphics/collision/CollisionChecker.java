@@ -22,6 +22,8 @@
 package sofia.graphics.collision;
 
 import sofia.graphics.Shape;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -36,6 +38,14 @@ public interface CollisionChecker
      */
     public void addObject(Shape shape);
 
+    /**
+     * Called when many objects are added into the world at once, such as
+     * when a level is loaded. The effect is the same as adding each in
+     * turn, but a checker may be able to lay the objects out better, or
+     * faster, all together.
+     */
+    public void addObjects(Collection<Shape> shapes);
+
     /**
      * Called when an object is removed from the world
      */
@@ -56,6 +66,21 @@ public interface CollisionChecker
      */
     public void updateObjectSize(Shape object);
 
+    /**
+     * Called when an object's collision categories or mask have changed, or
+     * it has started or stopped ignoring another object.
+     *
+     * @see Shape#canCollideWith(Shape)
+     */
+    public void updateObjectFilter(Shape object);
+
+    /**
+     * Called when an object has become static, or stopped being static.
+     *
+     * @see Shape#isStatic()
+     */
+    public void updateObjectStatic(Shape object);
+
     /**
      * Returns all objects that intersects the given location.
      *
@@ -69,7 +94,8 @@ public interface CollisionChecker
 
     /**
      * Returns all the objects that intersects the given object. This takes the
-     * graphical extent of objects into consideration.
+     * graphical extent of objects into consideration. Only objects that the
+     * given object can collide with are returned.
      *
      * @param shape
      *            A Shape in the world
@@ -79,6 +105,54 @@ public interface CollisionChecker
      */
     public <T extends Shape> Set<T> getIntersectingObjects(Shape shape, Class<T> cls);
 
+    /**
+     * Visits all objects that intersect the given location, without
+     * allocating a result set.
+     *
+     * @param x   X coordinate
+     * @param y   Y coordinate
+     * @param cls
+     *            Class of objects to look for (null or Object.class will find
+     *            all classes)
+     * @param visitor
+     *            Receives each object found, and may stop the query early
+     * @return The number of objects visited
+     */
+    public <T extends Shape> int forEachObjectAt(float x, float y, Class<T> cls,
+            ShapeVisitor<? super T> visitor);
+
+    /**
+     * Visits all the objects that intersect the given object, other than the
+     * object itself, without allocating a result set. Only objects that the
+     * given object can collide with are visited.
+     *
+     * @param shape
+     *            A Shape in the world
+     * @param cls
+     *            Class of objects to look for (null or Object.class will find
+     *            all classes)
+     * @param visitor
+     *            Receives each object found, and may stop the query early
+     * @return The number of objects visited
+     */
+    public <T extends Shape> int forEachIntersectingObject(Shape shape, Class<T> cls,
+            ShapeVisitor<? super T> visitor);
+
+    /**
+     * Finds every pair of intersecting objects in which at least one of the
+     * objects is in the given collection of moved objects. Each unordered
+     * pair is reported exactly once, and an object is never paired with
+     * itself. Pairs of objects that cannot collide are not reported, nor
+     * tested for intersection, and neither are pairs of two static objects.
+     *
+     * @param moved
+     *            The objects that have moved or changed size since they
+     *            were last checked
+     * @param visitor
+     *            Receives each intersecting pair
+     */
+    public void findCollidingPairs(Collection<Shape> moved, PairVisitor visitor);
+
     /**
      * Returns all objects with the logical location within the specified
      * circle. In other words an object A is within the range of an object B if
@@ -96,6 +170,44 @@ public interface CollisionChecker
      */
     public <T extends Shape> Set<T> getObjectsInRange(float x, float y, float r, Class<T> cls);
 
+    /**
+     * Visits all objects with the logical location within the specified
+     * circle, without allocating a result set.
+     *
+     * @param x
+     *            Center of the circle
+     * @param y
+     *            Center of the circle
+     * @param r
+     *            Radius of the circle
+     * @param cls
+     *            Class of objects to look for (null or Object.class will find
+     *            all classes)
+     * @param visitor
+     *            Receives each object found, and may stop the query early
+     * @return The number of objects visited
+     */
+    public <T extends Shape> int forEachObjectInRange(float x, float y, float r,
+            Class<T> cls, ShapeVisitor<? super T> visitor);
+
+    /**
+     * Returns the objects nearest to the given location, nearest first. The
+     * distance to an object is measured to the nearest point of its bounds,
+     * so it is 0 for objects containing the location.
+     *
+     * @param x
+     *            Location
+     * @param y
+     *            Location
+     * @param k
+     *            The largest number of objects to return
+     * @param cls
+     *            Class of objects to look for (null or Object.class will find
+     *            all classes)
+     * @return Up to k objects, fewer if there are not that many
+     */
+    public <T extends Shape> List<T> getNearestObjects(float x, float y, int k, Class<T> cls);
+
     /**
      * Returns the neighbors to the given location. This method only looks at
      * the logical location and not the extent of objects. Hence it is most
@@ -117,20 +229,51 @@ public interface CollisionChecker
     public <T extends Shape> Set<T> getNeighbors(Shape shape, float distance, boolean diag, Class<T> cls);
 
     /**
-     * Return all objects that intersect a straight line from this object at
-     * a specified angle. The angle is clockwise relative to the current
-     * rotation of the object.  <br/>
-     *
-     * If the world is wrapped, the line will wrap around the edges.
+     * Return all objects that intersect a straight line from the given
+     * location at a specified angle, nearest first. The angle is in degrees,
+     * clockwise from the positive x-axis.
      *
      * @param x x-coordinate
      * @param y y-coordinate
-     * @param angle The angle relative to current rotation of the object.
-     * @param length How far we want to look (in cells)
+     * @param angle The direction of the line.
+     * @param length How far we want to look (in pixels)
      * @param cls Class of objects to look for (passing 'null' will find all objects).
      */
     public <T extends Shape> Set<T> getObjectsInDirection(float x, float y, float angle, float length, Class<T> cls);
 
+    /**
+     * Find the nearest object that intersects a straight line from the given
+     * location at a specified angle. The search stops as soon as no nearer
+     * object can exist.
+     *
+     * @param x x-coordinate
+     * @param y y-coordinate
+     * @param angle The direction of the line, in degrees clockwise from the
+     *            positive x-axis.
+     * @param length How far we want to look (in pixels)
+     * @param cls Class of objects to look for (passing 'null' will find all objects).
+     * @return The nearest object hit and its distance, or null if the line
+     *         hits nothing.
+     */
+    public <T extends Shape> RaycastHit<T> raycastFirst(float x, float y, float angle, float length, Class<T> cls);
+
+    /**
+     * Find the first object that a shape would hit if it moved in a
+     * straight line by the given displacement, so that fast shapes can be
+     * stopped at what is in their way rather than passing through it
+     * between frames. Only objects that the shape can collide with are
+     * considered, and not those it already intersects.
+     *
+     * @param shape The shape that moves; it is not moved.
+     * @param dx The horizontal distance the shape moves.
+     * @param dy The vertical distance the shape moves.
+     * @param cls Class of objects to look for (passing 'null' will find all objects).
+     * @return The first object hit and how far the shape moves before it
+     *         touches it, or null if the shape hits nothing.
+     * @see Shape#getTimeOfImpact(Shape, float, float)
+     */
+    public <T extends Shape> SweepHit<T> sweepFirst(Shape shape, float dx, float dy, Class<T> cls);
+
     /**
      * Get all the objects in the world, or all the objects of a particular class.
      * <p>
@@ -179,5 +322,20 @@ public interface CollisionChecker
      */
     public <T extends Shape> T getOneObjectAt(Shape object, float dx, float dy, Class<T> cls);
 
+    /**
+     * Returns one object that intersects the given object, and that the
+     * given object can collide with.
+     */
     public <T extends Shape> T  getOneIntersectingObject(Shape object, Class<T> cls);
-}
\ No newline at end of file
+
+    /**
+     * Get the number of queries made so far, and the number of nodes and
+     * shapes they searched through. The counts run until they are reset.
+     */
+    public QueryStats getQueryStats();
+
+    /**
+     * Set the counts reported by {@link #getQueryStats()} back to 0.
+     */
+    public void resetQueryStats();
+}
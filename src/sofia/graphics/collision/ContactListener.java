@@ -0,0 +1,41 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+
+//-------------------------------------------------------------------------
+/**
+ * Receives the changes to the set of touching shapes found by a
+ * {@link ContactManager} at the end of a frame. Where only one shape of a
+ * pair moved, it is always passed first.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public interface ContactListener
+{
+    /**
+     * Called when two shapes start touching.
+     *
+     * @param first   One shape of the pair
+     * @param second  The other shape of the pair
+     */
+    public void contactBegan(Shape first, Shape second);
+
+    /**
+     * Called when two shapes that were already touching, at least one of
+     * which moved, are still touching.
+     *
+     * @param first   One shape of the pair
+     * @param second  The other shape of the pair
+     */
+    public void contactPersisted(Shape first, Shape second);
+
+    /**
+     * Called when two shapes that were touching, at least one of which
+     * moved, are no longer touching.
+     *
+     * @param first   One shape of the pair
+     * @param second  The other shape of the pair
+     */
+    public void contactEnded(Shape first, Shape second);
+}
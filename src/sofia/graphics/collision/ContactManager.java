@@ -0,0 +1,304 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Keeps track of which pairs of shapes are touching from frame to frame,
+ * and reports the pairs that began touching, are still touching, or
+ * stopped touching in each frame.
+ *
+ * <p>Each shape is given a small integer id, and each touching pair is
+ * kept as a {@code long} key made from the two ids, in an open-addressing
+ * hash table. Once the tables have grown to fit, a frame allocates
+ * nothing.
+ *
+ * <p>A frame starts with {@link #beginFrame(Collection)}, which names the
+ * shapes that moved. Every touching pair involving a moved shape is then
+ * passed to {@link #visitPair(Shape, Shape)}, typically straight from
+ * {@link CollisionChecker#findCollidingPairs(Collection, PairVisitor)}.
+ * Finally {@link #endFrame(ContactListener)} compares the pairs found with
+ * those found before, and tells a listener about the differences. Pairs of
+ * shapes that neither moved are carried over unchanged, and not reported.
+ *
+ * <p>Ended and persisted contacts are reported first, then those that
+ * began, each in the order of the shapes' ids, so the events of a frame do
+ * not depend on the order its pairs were found in.
+ *
+ * <p>The listener is called after the tables are brought up to date and the
+ * lock is released, so it may add, move and remove shapes freely. The
+ * contacts of a removed shape are dropped without being reported.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class ContactManager
+    implements PairVisitor
+{
+    private static final byte BEGAN = 0;
+    private static final byte PERSISTED = 1;
+    private static final byte ENDED = 2;
+
+    private Map<Shape, Integer> ids = new HashMap<Shape, Integer>();
+    private Shape[] shapes = new Shape[16];
+    private int[] contactCounts = new int[16];
+    private boolean[] moved = new boolean[16];
+    private int[] freeIds = new int[16];
+    private int freeIdCount;
+    private int nextId;
+    private int[] movedIds = new int[16];
+    private int movedCount;
+
+    /** The pairs touching as of the end of the last frame. */
+    private PairSet contacts = new PairSet();
+    /** The pairs found touching so far this frame. */
+    private PairSet found = new PairSet();
+
+    // The changes found by endFrame(), waiting to be reported
+    private byte[] eventKinds = new byte[16];
+    private Shape[] eventFirsts = new Shape[16];
+    private Shape[] eventSeconds = new Shape[16];
+    private int eventCount;
+
+
+    /**
+     * Start tracking a shape.
+     */
+    public synchronized void addObject(Shape shape)
+    {
+        getId(shape);
+    }
+
+    /**
+     * Stop tracking a shape, forgetting any contacts it had.
+     */
+    public synchronized void removeObject(Shape shape)
+    {
+        Integer boxed = ids.remove(shape);
+        if (boxed == null) {
+            return;
+        }
+
+        int id = boxed;
+        if (contactCounts[id] > 0) {
+            int count = contacts.copyKeys();
+            for (int i = 0; i < count; i++) {
+                long key = contacts.copiedKey(i);
+                int first = PairSet.first(key);
+                int second = PairSet.second(key);
+                if (first == id || second == id) {
+                    contacts.remove(key);
+                    contactCounts[first]--;
+                    contactCounts[second]--;
+                }
+            }
+        }
+
+        if (moved[id]) {
+            // Leave the id in the moved list, but forget it moved, so that
+            // pairs found for it this frame are dropped
+            moved[id] = false;
+        }
+        shapes[id] = null;
+        if (freeIdCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+        }
+        freeIds[freeIdCount++] = id;
+    }
+
+    /**
+     * Get the number of pairs of shapes touching as of the end of the last
+     * frame.
+     */
+    public synchronized int getContactCount()
+    {
+        return contacts.size();
+    }
+
+    /**
+     * Check whether two shapes were touching as of the end of the last
+     * frame.
+     */
+    public synchronized boolean isTouching(Shape first, Shape second)
+    {
+        Integer id1 = ids.get(first);
+        Integer id2 = ids.get(second);
+        return id1 != null && id2 != null
+            && contacts.contains(PairSet.key(id1, id2));
+    }
+
+    /**
+     * Start a frame.
+     *
+     * @param movedShapes  The shapes that have moved since the last frame
+     */
+    public synchronized void beginFrame(Collection<Shape> movedShapes)
+    {
+        for (Shape shape : movedShapes) {
+            int id = getId(shape);
+            if (moved[id]) {
+                continue;
+            }
+            moved[id] = true;
+            if (movedCount == movedIds.length) {
+                movedIds = Arrays.copyOf(movedIds, movedCount * 2);
+            }
+            movedIds[movedCount++] = id;
+        }
+    }
+
+    /**
+     * Record that two shapes are touching in this frame.
+     */
+    public synchronized void visitPair(Shape first, Shape second)
+    {
+        found.add(PairSet.key(getId(first), getId(second)));
+    }
+
+    /**
+     * Finish a frame, reporting the contacts that began, persisted and
+     * ended to a listener.
+     *
+     * @param listener  Receives the changes, or null to just record them
+     */
+    public void endFrame(ContactListener listener)
+    {
+        int count;
+        synchronized (this) {
+            findChanges();
+            count = eventCount;
+            eventCount = 0;
+        }
+
+        if (listener == null) {
+            clearEvents(count);
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            Shape first = eventFirsts[i];
+            Shape second = eventSeconds[i];
+            switch (eventKinds[i]) {
+                case BEGAN:
+                    listener.contactBegan(first, second);
+                    break;
+                case PERSISTED:
+                    listener.contactPersisted(first, second);
+                    break;
+                default:
+                    listener.contactEnded(first, second);
+                    break;
+            }
+        }
+        clearEvents(count);
+    }
+
+    /**
+     * Compare the pairs found this frame with the contacts, bringing the
+     * contacts up to date and queueing an event for each difference.
+     */
+    private void findChanges()
+    {
+        // The contacts of moved shapes that were found again persist; the
+        // rest have ended
+        int count = contacts.copyKeys();
+        contacts.sortCopiedKeys(count);
+        for (int i = 0; i < count; i++) {
+            long key = contacts.copiedKey(i);
+            int first = PairSet.first(key);
+            int second = PairSet.second(key);
+            if (! moved[first] && ! moved[second]) {
+                continue;
+            }
+
+            if (found.remove(key)) {
+                addEvent(PERSISTED, first, second);
+            }
+            else {
+                contacts.remove(key);
+                contactCounts[first]--;
+                contactCounts[second]--;
+                addEvent(ENDED, first, second);
+            }
+        }
+
+        // Whatever is left has just begun
+        count = found.copyKeys();
+        found.sortCopiedKeys(count);
+        for (int i = 0; i < count; i++) {
+            long key = found.copiedKey(i);
+            int first = PairSet.first(key);
+            int second = PairSet.second(key);
+            if (shapes[first] == null || shapes[second] == null) {
+                // One of the shapes was removed during the frame
+                continue;
+            }
+            contacts.add(key);
+            contactCounts[first]++;
+            contactCounts[second]++;
+            addEvent(BEGAN, first, second);
+        }
+        found.clear();
+
+        for (int i = 0; i < movedCount; i++) {
+            moved[movedIds[i]] = false;
+        }
+        movedCount = 0;
+    }
+
+    private void addEvent(byte kind, int first, int second)
+    {
+        if (eventCount == eventKinds.length) {
+            int length = eventCount * 2;
+            eventKinds = Arrays.copyOf(eventKinds, length);
+            eventFirsts = Arrays.copyOf(eventFirsts, length);
+            eventSeconds = Arrays.copyOf(eventSeconds, length);
+        }
+
+        // Put the moved shape first, if only one of them moved
+        if (! moved[first] && moved[second]) {
+            int t = first;
+            first = second;
+            second = t;
+        }
+        eventKinds[eventCount] = kind;
+        eventFirsts[eventCount] = shapes[first];
+        eventSeconds[eventCount] = shapes[second];
+        eventCount++;
+    }
+
+    private void clearEvents(int count)
+    {
+        for (int i = 0; i < count; i++) {
+            eventFirsts[i] = null;
+            eventSeconds[i] = null;
+        }
+    }
+
+    private int getId(Shape shape)
+    {
+        Integer id = ids.get(shape);
+        if (id != null) {
+            return id;
+        }
+
+        int newId;
+        if (freeIdCount > 0) {
+            newId = freeIds[--freeIdCount];
+        }
+        else {
+            newId = nextId++;
+            if (newId == shapes.length) {
+                int length = newId * 2;
+                shapes = Arrays.copyOf(shapes, length);
+                contactCounts = Arrays.copyOf(contactCounts, length);
+                moved = Arrays.copyOf(moved, length);
+            }
+        }
+        shapes[newId] = shape;
+        contactCounts[newId] = 0;
+        ids.put(shape, newId);
+        return newId;
+    }
+}
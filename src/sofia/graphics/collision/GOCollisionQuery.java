@@ -51,7 +51,8 @@ public class GOCollisionQuery
 
     /**
      * Checks if the other object collides with this object and if it is of
-     * the given class.
+     * the given class. Objects this object cannot collide with are not
+     * tested for intersection.
      */
     public boolean checkCollision(Shape other)
     {
@@ -61,6 +62,7 @@ public class GOCollisionQuery
         }
 
         return compareObject == null
-            || compareObject.intersects(other);
+            || (compareObject.canCollideWith(other)
+                && compareObject.intersects(other));
     }
 }
\ No newline at end of file
@@ -0,0 +1,877 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import sofia.graphics.internal.LongHashMap;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * A collision checker using a uniform grid (a spatial hash).
+ *
+ * <p>The plane is divided into square cells of a fixed size, and each shape
+ * is registered in every cell its bounds overlap.  Only occupied cells are
+ * stored, so the grid is unbounded.  Moving a shape within the same range of
+ * cells costs nothing beyond recomputing that range, which makes this
+ * checker a good fit for scenes with many similarly sized shapes that move
+ * every frame.  The cell size should be roughly the size of a typical shape.
+ *
+ * <p>Shapes that would cover more than {@link #MAX_CELLS_PER_SHAPE} cells are
+ * not spread across the grid; they are kept in a separate list that every
+ * query examines.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class GridColChecker implements CollisionChecker
+{
+    /** The cell size used by the no-argument constructor. */
+    public static final float DEFAULT_CELL_SIZE = 64;
+
+    /** The largest number of cells a single shape is registered in. */
+    public static final int MAX_CELLS_PER_SHAPE = 64;
+
+    private final float cellSize;
+
+    private LongHashMap<Cell> cells = new LongHashMap<Cell>();
+    private Map<Shape, CellRange> ranges = new HashMap<Shape, CellRange>();
+    private List<Shape> oversized = new ArrayList<Shape>();
+
+    private GOCollisionQuery shapeQuery = new GOCollisionQuery();
+    private NeighbourCollisionQuery neighbourQuery = new NeighbourCollisionQuery();
+    private PointCollisionQuery pointQuery = new PointCollisionQuery();
+    private InRangeQuery inRangeQuery = new InRangeQuery();
+    private Set<Shape> pairCandidates = new HashSet<Shape>();
+    /**
+     * The position of each moved shape in the pair search under way, kept
+     * between searches and cleared after each one.
+     */
+    private Map<Shape, Integer> pairOrder = new HashMap<Shape, Integer>();
+    /** The area searched by the query under way. */
+    private Rect searchArea = new Rect(0, 0, 0, 0);
+    private VisitorQuery.Pool visitorQueries = new VisitorQuery.Pool();
+
+    private final QueryCounters queryCounters = new QueryCounters();
+    /** The cells and shapes searched by the query under way. */
+    private int cellsVisited;
+    private int shapesTested;
+
+
+    /**
+     * Create a grid collision checker using {@link #DEFAULT_CELL_SIZE}.
+     */
+    public GridColChecker()
+    {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Create a grid collision checker.
+     *
+     * @param cellSize  The width and height of each grid cell, in pixels
+     */
+    public GridColChecker(float cellSize)
+    {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException(
+                "Cell size must be greater than 0. It was: " + cellSize);
+        }
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Get the width and height of each grid cell.
+     */
+    public float getCellSize()
+    {
+        return cellSize;
+    }
+
+    public synchronized void addObject(Shape shape)
+    {
+        if (ranges.containsKey(shape)) {
+            return;
+        }
+
+        CellRange range = new CellRange();
+        computeRange(getShapeBounds(shape), range);
+        ranges.put(shape, range);
+        insert(shape, range);
+    }
+
+    public synchronized void addObjects(Collection<Shape> shapes)
+    {
+        for (Shape shape : shapes) {
+            addObject(shape);
+        }
+    }
+
+    public synchronized void removeObject(Shape shape)
+    {
+        CellRange range = ranges.remove(shape);
+        if (range != null) {
+            remove(shape, range);
+        }
+    }
+
+    public synchronized void updateObjectLocation(Shape object)
+    {
+        updateObject(object);
+    }
+
+    public synchronized void updateObjectSize(Shape object)
+    {
+        updateObject(object);
+    }
+
+    /**
+     * Cells are not split up by collision category, so nothing needs to be
+     * updated; shapes are filtered as they are found.
+     */
+    public void updateObjectFilter(Shape object)
+    {
+        // Nothing to do
+    }
+
+    public void updateObjectStatic(Shape object)
+    {
+        // Nothing to do
+    }
+
+    /**
+     * A shape's position or size has changed - move it to its new cells,
+     * if they are different from the old ones.
+     */
+    private void updateObject(Shape shape)
+    {
+        CellRange range = ranges.get(shape);
+        if (range == null) {
+            // Not added yet (or already removed).
+            return;
+        }
+
+        Rect bounds = getShapeBounds(shape);
+        if (range.covers(bounds, cellSize)) {
+            return;
+        }
+
+        remove(shape, range);
+        computeRange(bounds, range);
+        insert(shape, range);
+    }
+
+    /**
+     * Get the box that picks the cells a shape is stored in, as described
+     * by {@link IndexedBounds}.
+     */
+    public final Rect getShapeBounds(Shape shape)
+    {
+        return IndexedBounds.of(shape);
+    }
+
+    /**
+     * Set the search area to a shape's rotated bounds.
+     */
+    private Rect searchArea(Shape shape)
+    {
+        RectF b = shape.getRotatedBounds();
+        return searchArea(b.left, b.top, b.right - b.left, b.bottom - b.top);
+    }
+
+    /**
+     * Set the search area to the one-pixel square at a point, the area
+     * every point query searches for shapes containing the point.
+     */
+    private Rect searchArea(float x, float y)
+    {
+        return searchArea(x, y, 1, 1);
+    }
+
+    private Rect searchArea(float x, float y, float width, float height)
+    {
+        searchArea.set(x, y, width, height);
+        return searchArea;
+    }
+
+    /**
+     * Compute the range of cells overlapped by the given area.
+     */
+    private void computeRange(Rect bounds, CellRange range)
+    {
+        range.minCol = cellIndex(bounds.getX());
+        range.minRow = cellIndex(bounds.getY());
+        range.maxCol = cellIndex(bounds.getRight());
+        range.maxRow = cellIndex(bounds.getTop());
+    }
+
+    private int cellIndex(float coordinate)
+    {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static long cellKey(int col, int row)
+    {
+        return ((long) col << 32) | (row & 0xffffffffL);
+    }
+
+    private void insert(Shape shape, CellRange range)
+    {
+        if (range.cellCount() > MAX_CELLS_PER_SHAPE) {
+            oversized.add(shape);
+            return;
+        }
+
+        for (int col = range.minCol; col <= range.maxCol; col++) {
+            for (int row = range.minRow; row <= range.maxRow; row++) {
+                long key = cellKey(col, row);
+                Cell cell = cells.get(key);
+                if (cell == null) {
+                    cell = new Cell(col, row);
+                    cells.put(key, cell);
+                }
+                cell.shapes.add(shape);
+            }
+        }
+    }
+
+    private void remove(Shape shape, CellRange range)
+    {
+        if (range.cellCount() > MAX_CELLS_PER_SHAPE) {
+            oversized.remove(shape);
+            return;
+        }
+
+        for (int col = range.minCol; col <= range.maxCol; col++) {
+            for (int row = range.minRow; row <= range.maxRow; row++) {
+                long key = cellKey(col, row);
+                Cell cell = cells.get(key);
+                if (cell != null) {
+                    cell.shapes.remove(shape);
+                    if (cell.shapes.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Collect every shape in the cells overlapping the given area (and every
+     * oversized shape) that matches the given query.
+     */
+    private void getIntersectingObjects(Rect r, CollisionQuery query, Set<Shape> resultSet)
+    {
+        shapesTested += oversized.size();
+        for (int i = 0; i < oversized.size(); i++) {
+            Shape shape = oversized.get(i);
+            if (query.checkCollision(shape)) {
+                resultSet.add(shape);
+            }
+        }
+
+        int minCol = cellIndex(r.getX());
+        int minRow = cellIndex(r.getY());
+        int maxCol = cellIndex(r.getRight());
+        int maxRow = cellIndex(r.getTop());
+
+        long span = ((long) maxCol - minCol + 1) * ((long) maxRow - minRow + 1);
+        if (span > cells.size()) {
+            // Cheaper to look at the occupied cells than at every cell in
+            // the area
+            for (int slot = 0; slot < cells.capacity(); slot++) {
+                Cell cell = cells.valueAt(slot);
+                if (cell == null) {
+                    continue;
+                }
+                if (cell.col >= minCol && cell.col <= maxCol
+                        && cell.row >= minRow && cell.row <= maxRow) {
+                    checkCell(cell, query, resultSet);
+                }
+            }
+            return;
+        }
+
+        for (int col = minCol; col <= maxCol; col++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                Cell cell = cells.get(cellKey(col, row));
+                if (cell != null) {
+                    checkCell(cell, query, resultSet);
+                }
+            }
+        }
+    }
+
+    private void checkCell(Cell cell, CollisionQuery query, Set<Shape> resultSet)
+    {
+        countCell(cell);
+        for (int i = 0; i < cell.shapes.size(); i++) {
+            Shape shape = cell.shapes.get(i);
+            if (query.checkCollision(shape)) {
+                resultSet.add(shape);
+            }
+        }
+    }
+
+    /**
+     * Find a single shape in the cells overlapping the given area which
+     * matches the given query.
+     *
+     * @param ignore  Do not return this shape
+     */
+    private Shape getOneIntersectingObject(Rect r, CollisionQuery query, Shape ignore)
+    {
+        shapesTested += oversized.size();
+        for (int i = 0; i < oversized.size(); i++) {
+            Shape shape = oversized.get(i);
+            if (shape != ignore && query.checkCollision(shape)) {
+                return shape;
+            }
+        }
+
+        int minCol = cellIndex(r.getX());
+        int minRow = cellIndex(r.getY());
+        int maxCol = cellIndex(r.getRight());
+        int maxRow = cellIndex(r.getTop());
+
+        long span = ((long) maxCol - minCol + 1) * ((long) maxRow - minRow + 1);
+        if (span > cells.size()) {
+            for (int slot = 0; slot < cells.capacity(); slot++) {
+                Cell cell = cells.valueAt(slot);
+                if (cell == null) {
+                    continue;
+                }
+                if (cell.col >= minCol && cell.col <= maxCol
+                        && cell.row >= minRow && cell.row <= maxRow) {
+                    Shape res = checkCellForOne(cell, query, ignore);
+                    if (res != null) {
+                        return res;
+                    }
+                }
+            }
+            return null;
+        }
+
+        for (int col = minCol; col <= maxCol; col++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                Cell cell = cells.get(cellKey(col, row));
+                if (cell != null) {
+                    Shape res = checkCellForOne(cell, query, ignore);
+                    if (res != null) {
+                        return res;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private Shape checkCellForOne(Cell cell, CollisionQuery query, Shape ignore)
+    {
+        countCell(cell);
+        for (int i = 0; i < cell.shapes.size(); i++) {
+            Shape shape = cell.shapes.get(i);
+            if (shape != ignore && query.checkCollision(shape)) {
+                return shape;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run a visiting query and return it to the pool.
+     *
+     * @return The number of shapes visited
+     */
+    private int visitObjects(VisitorQuery query)
+    {
+        int count;
+        try {
+            visitCells(query);
+        }
+        finally {
+            count = visitorQueries.release(query);
+            countQuery();
+        }
+        return count;
+    }
+
+    /**
+     * Offer every shape in the cells overlapping the query's area (and every
+     * oversized shape) to the query, until it is stopped.
+     */
+    private void visitCells(VisitorQuery query)
+    {
+        shapesTested += oversized.size();
+        for (int i = 0; i < oversized.size(); i++) {
+            if (! query.offer(oversized.get(i))) {
+                return;
+            }
+        }
+
+        int minCol = cellIndex(query.left);
+        int minRow = cellIndex(query.top);
+        int maxCol = cellIndex(query.right);
+        int maxRow = cellIndex(query.bottom);
+
+        long span = ((long) maxCol - minCol + 1) * ((long) maxRow - minRow + 1);
+        if (span > cells.size()) {
+            for (int slot = 0; slot < cells.capacity(); slot++) {
+                Cell cell = cells.valueAt(slot);
+                if (cell == null) {
+                    continue;
+                }
+                if (cell.col >= minCol && cell.col <= maxCol
+                        && cell.row >= minRow && cell.row <= maxRow
+                        && ! visitCell(cell, query, minCol, minRow)) {
+                    return;
+                }
+            }
+            return;
+        }
+
+        for (int col = minCol; col <= maxCol; col++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                Cell cell = cells.get(cellKey(col, row));
+                if (cell != null && ! visitCell(cell, query, minCol, minRow)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A shape that spans several cells is only offered from the first cell
+     * it shares with the search area, so that it is visited once without
+     * needing a set of visited shapes.
+     *
+     * @return False if the query has been stopped
+     */
+    private boolean visitCell(Cell cell, VisitorQuery query, int minCol, int minRow)
+    {
+        countCell(cell);
+        for (int i = 0; i < cell.shapes.size(); i++) {
+            Shape shape = cell.shapes.get(i);
+            CellRange range = ranges.get(shape);
+            if (cell.col == Math.max(range.minCol, minCol)
+                    && cell.row == Math.max(range.minRow, minRow)
+                    && ! query.offer(shape)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized <T extends Shape> int forEachObjectAt(float x, float y,
+            Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitorQuery query = visitorQueries.obtain();
+        query.initPoint(x, y, cls, visitor);
+        return visitObjects(query);
+    }
+
+    public synchronized <T extends Shape> int forEachIntersectingObject(Shape shape,
+            Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitorQuery query = visitorQueries.obtain();
+        query.initIntersecting(shape, cls, visitor);
+        return visitObjects(query);
+    }
+
+    public synchronized <T extends Shape> int forEachObjectInRange(float x, float y,
+            float r, Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitorQuery query = visitorQueries.obtain();
+        query.initInRange(x, y, r, cls, visitor);
+        return visitObjects(query);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getObjectsAt(float x, float y, Class<T> cls)
+    {
+        pointQuery.init(x, y, cls);
+        Set<Shape> result = new HashSet<Shape>();
+        getIntersectingObjects(searchArea(x, y), pointQuery, result);
+        countQuery();
+        return (Set<T>) result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getIntersectingObjects(Shape shape,
+            Class<T> cls)
+    {
+        shapeQuery.init(cls, shape);
+        Set<Shape> result = new HashSet<Shape>();
+        getIntersectingObjects(searchArea(shape), shapeQuery, result);
+        countQuery();
+        return (Set<T>) result;
+    }
+
+    /**
+     * Queries each moved shape in turn. A pair of moved shapes is only
+     * reported from the side of whichever comes first in the collection.
+     * Static shapes are stored with the others, but never paired with each
+     * other.
+     */
+    public synchronized void findCollidingPairs(Collection<Shape> moved,
+            PairVisitor visitor)
+    {
+        Map<Shape, Integer> order = pairOrder;
+        try {
+            for (Shape shape : moved) {
+                if (ranges.containsKey(shape) && ! order.containsKey(shape)) {
+                    order.put(shape, order.size());
+                }
+            }
+
+            for (Map.Entry<Shape, Integer> entry : order.entrySet()) {
+                Shape shape = entry.getKey();
+                shapeQuery.init(null, shape);
+                pairCandidates.clear();
+                getIntersectingObjects(searchArea(shape), shapeQuery,
+                        pairCandidates);
+
+                for (Shape other : pairCandidates) {
+                    Integer otherOrder = order.get(other);
+                    if ((otherOrder == null || otherOrder > entry.getValue())
+                            && ! (shape.isStatic() && other.isStatic())) {
+                        visitor.visitPair(shape, other);
+                    }
+                }
+            }
+        }
+        finally {
+            order.clear();
+            pairCandidates.clear();
+            // The pair search is not counted as queries
+            cellsVisited = 0;
+            shapesTested = 0;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getObjectsInRange(float x, float y, float r,
+            Class<T> cls)
+    {
+        float size = 2 * r;
+        Set<Shape> result = new HashSet<Shape>();
+        inRangeQuery.init(x, y, r, cls);
+        getIntersectingObjects(searchArea(x - r, y - r, size, size),
+            inRangeQuery, result);
+        countQuery();
+        return (Set<T>) result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getNeighbors(Shape shape, float distance,
+            boolean diag, Class<T> cls)
+    {
+        float x = shape.getX();
+        float y = shape.getY();
+
+        Rect r = searchArea(x - distance, y - distance, distance * 2 + 1,
+            distance * 2 + 1);
+
+        neighbourQuery.init(x, y, distance, diag, cls);
+        Set<Shape> result = new HashSet<Shape>();
+        getIntersectingObjects(r, neighbourQuery, result);
+        countQuery();
+        return (Set<T>) result;
+    }
+
+    public synchronized <T extends Shape> Set<T> getObjectsInDirection(float x,
+            float y, float angle, float length, Class<T> cls)
+    {
+        RayQuery query = new RayQuery(x, y, angle, length, cls, false);
+        raycast(query);
+        countQuery();
+        return query.getHits();
+    }
+
+    public synchronized <T extends Shape> RaycastHit<T> raycastFirst(float x,
+            float y, float angle, float length, Class<T> cls)
+    {
+        RayQuery query = new RayQuery(x, y, angle, length, cls, true);
+        raycast(query);
+        countQuery();
+        return query.getNearest();
+    }
+
+    public synchronized <T extends Shape> SweepHit<T> sweepFirst(Shape shape,
+            float dx, float dy, Class<T> cls)
+    {
+        SweepQuery sweep = new SweepQuery(shape, dx, dy);
+        VisitorQuery query = visitorQueries.obtain();
+        query.initSwept(shape, dx, dy, cls, sweep);
+        visitObjects(query);
+        return sweep.getFirst();
+    }
+
+    /**
+     * Offer the shapes in every cell the ray passes through to a raycast,
+     * stepping from cell to cell along the ray, and stopping once the next
+     * cell starts beyond the raycast's current limit.
+     */
+    private void raycast(RayQuery query)
+    {
+        shapesTested += oversized.size();
+        for (int i = 0; i < oversized.size(); i++) {
+            query.offer(oversized.get(i));
+        }
+
+        // A long ray through a sparse grid would step through many empty
+        // cells; it is cheaper to test every occupied cell instead
+        float steps = (Math.abs(query.dx) + Math.abs(query.dy))
+            * query.length / cellSize;
+        if (steps > cells.size()) {
+            for (int slot = 0; slot < cells.capacity(); slot++) {
+                Cell cell = cells.valueAt(slot);
+                if (cell == null) {
+                    continue;
+                }
+                if (query.enter(cell.col * cellSize, cell.row * cellSize,
+                        (cell.col + 1) * cellSize,
+                        (cell.row + 1) * cellSize) != RayQuery.MISS) {
+                    raycastCell(cell, query);
+                }
+            }
+            return;
+        }
+
+        int col = cellIndex(query.x);
+        int row = cellIndex(query.y);
+        int stepCol = (query.dx > 0) ? 1 : -1;
+        int stepRow = (query.dy > 0) ? 1 : -1;
+
+        // The distance along the ray to the next column and row boundary,
+        // and between successive boundaries
+        float nextCol = Float.POSITIVE_INFINITY;
+        float nextRow = Float.POSITIVE_INFINITY;
+        float colDelta = Float.POSITIVE_INFINITY;
+        float rowDelta = Float.POSITIVE_INFINITY;
+        if (query.dx != 0) {
+            float boundary = (col + (stepCol > 0 ? 1 : 0)) * cellSize;
+            nextCol = (boundary - query.x) / query.dx;
+            colDelta = cellSize / Math.abs(query.dx);
+        }
+        if (query.dy != 0) {
+            float boundary = (row + (stepRow > 0 ? 1 : 0)) * cellSize;
+            nextRow = (boundary - query.y) / query.dy;
+            rowDelta = cellSize / Math.abs(query.dy);
+        }
+
+        float entered = 0;
+        while (entered <= query.getLimit()) {
+            Cell cell = cells.get(cellKey(col, row));
+            if (cell != null) {
+                raycastCell(cell, query);
+            }
+
+            if (nextCol < nextRow) {
+                entered = nextCol;
+                nextCol += colDelta;
+                col += stepCol;
+            }
+            else {
+                entered = nextRow;
+                nextRow += rowDelta;
+                row += stepRow;
+            }
+        }
+    }
+
+    /**
+     * Find the shapes nearest a point by searching square rings of cells
+     * around it, one ring at a time. Nothing outside the rings searched so
+     * far can be nearer than the edge of the square they cover, so the
+     * shapes found within that distance are final after each ring.
+     */
+    public synchronized <T extends Shape> List<T> getNearestObjects(float x,
+            float y, int k, Class<T> cls)
+    {
+        NearestQuery query = new NearestQuery(x, y, k, cls);
+        shapesTested += oversized.size();
+        for (int i = 0; i < oversized.size(); i++) {
+            query.offer(oversized.get(i));
+        }
+
+        int col = cellIndex(x);
+        int row = cellIndex(y);
+        for (int ring = 0; ! query.isDone(); ring++) {
+            if (8L * ring > cells.size()) {
+                // The rings are now bigger than the grid itself; take all
+                // the remaining cells at once
+                for (int slot = 0; slot < cells.capacity(); slot++) {
+                    Cell cell = cells.valueAt(slot);
+                    if (cell == null) {
+                        continue;
+                    }
+                    if (Math.max(Math.abs(cell.col - col),
+                            Math.abs(cell.row - row)) >= ring) {
+                        nearestCell(cell, query);
+                    }
+                }
+                query.drain(Float.POSITIVE_INFINITY);
+                break;
+            }
+
+            if (ring == 0) {
+                nearestCell(cells.get(cellKey(col, row)), query);
+            }
+            else {
+                for (int c = col - ring; c <= col + ring; c++) {
+                    nearestCell(cells.get(cellKey(c, row - ring)), query);
+                    nearestCell(cells.get(cellKey(c, row + ring)), query);
+                }
+                for (int r = row - ring + 1; r < row + ring; r++) {
+                    nearestCell(cells.get(cellKey(col - ring, r)), query);
+                    nearestCell(cells.get(cellKey(col + ring, r)), query);
+                }
+            }
+
+            float edge = Math.min(
+                Math.min(x - (col - ring) * cellSize,
+                    (col + ring + 1) * cellSize - x),
+                Math.min(y - (row - ring) * cellSize,
+                    (row + ring + 1) * cellSize - y));
+            query.drain(edge * edge);
+        }
+        countQuery();
+        return query.getResults();
+    }
+
+    private void nearestCell(Cell cell, NearestQuery query)
+    {
+        if (cell != null) {
+            countCell(cell);
+            for (int i = 0; i < cell.shapes.size(); i++) {
+                query.offer(cell.shapes.get(i));
+            }
+        }
+    }
+
+    private void raycastCell(Cell cell, RayQuery query)
+    {
+        countCell(cell);
+        for (int i = 0; i < cell.shapes.size(); i++) {
+            query.offer(cell.shapes.get(i));
+        }
+    }
+
+    private void countCell(Cell cell)
+    {
+        cellsVisited++;
+        shapesTested += cell.shapes.size();
+    }
+
+    /**
+     * Count a query that has finished, along with the cells and shapes it
+     * searched.
+     */
+    private void countQuery()
+    {
+        queryCounters.countQuery();
+        queryCounters.record(cellsVisited, shapesTested);
+        cellsVisited = 0;
+        shapesTested = 0;
+    }
+
+    public QueryStats getQueryStats()
+    {
+        return queryCounters.getStats();
+    }
+
+    public void resetQueryStats()
+    {
+        queryCounters.reset();
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getObjects(Class<T> cls)
+    {
+        Set<T> set = new HashSet<T>();
+        for (Shape shape : ranges.keySet()) {
+            if (cls == null || cls.isInstance(shape)) {
+                set.add((T) shape);
+            }
+        }
+        return set;
+    }
+
+    public Set<Shape> getObjects()
+    {
+        return getObjects(null);
+    }
+
+    public final void startSequence()
+    {
+        // Nothing necessary.
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> T getOneObjectAt(Shape object, float dx, float dy,
+            Class<T> cls)
+    {
+        pointQuery.init(dx, dy, cls);
+        T found = (T) getOneIntersectingObject(searchArea(dx, dy),
+                pointQuery, object);
+        countQuery();
+        return found;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> T getOneIntersectingObject(Shape shape, Class<T> cls)
+    {
+        shapeQuery.init(cls, shape);
+        T found = (T) getOneIntersectingObject(searchArea(shape),
+                shapeQuery, shape);
+        countQuery();
+        return found;
+    }
+
+
+    /**
+     * The shapes registered in one occupied grid cell.
+     */
+    private static final class Cell
+    {
+        final int col;
+        final int row;
+        final List<Shape> shapes = new ArrayList<Shape>(4);
+
+        Cell(int col, int row)
+        {
+            this.col = col;
+            this.row = row;
+        }
+    }
+
+
+    /**
+     * The (inclusive) range of cells a shape is registered in.
+     */
+    private static final class CellRange
+    {
+        int minCol;
+        int minRow;
+        int maxCol;
+        int maxRow;
+
+        long cellCount()
+        {
+            return ((long) maxCol - minCol + 1) * ((long) maxRow - minRow + 1);
+        }
+
+        /**
+         * Check whether the given bounds still fall in exactly this range of
+         * cells.
+         */
+        boolean covers(Rect bounds, float cellSize)
+        {
+            return minCol == (int) Math.floor(bounds.getX() / cellSize)
+                && minRow == (int) Math.floor(bounds.getY() / cellSize)
+                && maxCol == (int) Math.floor(bounds.getRight() / cellSize)
+                && maxRow == (int) Math.floor(bounds.getTop() / cellSize);
+        }
+    }
+}
@@ -22,8 +22,13 @@
 package sofia.graphics.collision;
 
 import sofia.graphics.Shape;
+import android.graphics.RectF;
 import static sofia.graphics.ShapeAccessUtilities.*;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A collision checker using a Binary Space Partition tree.
@@ -32,6 +37,51 @@ import java.util.*;
  * two non-overlapping child nodes which together cover the same area as their
  * parent.
  *
+ * <p>Changes to the tree are made by one thread at a time, while holding this
+ * checker's lock. Queries never take the lock: they read an immutable
+ * {@link BSPSnapshot} of the tree instead, so a query on one thread never
+ * waits for, or sees a half-finished, change on another. A new snapshot is
+ * published by {@link #startSequence()}, and also whenever the thread that
+ * last changed the tree runs a query, so that thread always sees its own
+ * changes. Other threads see the tree as of the last published snapshot.
+ * Publishing copies only the nodes added or changed since the last
+ * snapshot, and shares the shape lists of all the others with it, so its
+ * cost follows how much of the tree has changed rather than its size;
+ * only the small per-node arrays of areas and links are copied whole.
+ * The whole tree is copied afresh only for the first snapshot, after a
+ * rebuild has been swapped in or the tree cleared, and when removed nodes
+ * have left more empty slots than the snapshot has nodes, to pack it
+ * again. Batching changes, as {@link sofia.graphics.ShapeView} does once
+ * per frame, still saves copying those arrays on every change.
+ *
+ * <p>The tree is only ever extended as shapes are added and move, so it
+ * becomes deeper and less even over time. Each time a snapshot is
+ * published, the checker's {@link RebalancePolicy} is shown the tree's
+ * {@link BSPTreeStats}, and may ask for the tree to be rebuilt from scratch.
+ * The new layout is worked out on the rebuild executor, from a copy of the
+ * shapes' bounds, while the old tree stays in use; it is swapped in when
+ * the next snapshot is published, so neither queries nor changes to the
+ * tree wait for the rebuild.
+ *
+ * <p>{@linkplain Shape#isStatic() Static} shapes are kept out of the tree,
+ * in a separate index that is laid out once, compactly, and only laid out
+ * again when a static shape is added, removed or moved. Queries search
+ * both. Static shapes are never paired with each other by
+ * {@link #findCollidingPairs(Collection, PairVisitor)}.
+ *
+ * <p>By default the tree's area doubles whenever a shape is added or moves
+ * outside it. When the extent of the world is known in advance, it can be
+ * given to {@link #setWorldBounds(RectF)} instead. The root then covers
+ * exactly that area, and shapes that are not wholly inside it are kept in
+ * a separate overflow list, which queries also scan, so shapes leaving
+ * the world never make the tree grow.
+ *
+ * <p>Shapes are placed in the tree by their {@linkplain Shape#getRotatedBounds()
+ * rotated bounds}, stretched to take in their location, and enlarged on
+ * every side by the {@linkplain #setIndexMargin(float) index margin}. A shape that moves,
+ * turns or wobbles without leaving that box is not moved in the tree at
+ * all; queries still test each shape against its true bounds.
+ *
  * @author Davin McCall
  */
 public class IBSPColChecker implements CollisionChecker
@@ -43,14 +93,105 @@ public class IBSPColChecker implements CollisionChecker
     public static final int PARENT_RIGHT = 1;
     public static final int PARENT_NONE = 3; // no particular side
 
+    /**
+     * How many levels deeper, or how many more shapes in one node, the tree
+     * may have than it had just after it was last built before
+     * {@link RebalancePolicy#DEFAULT} has it rebuilt.
+     */
     public static final int REBALANCE_THRESHOLD = 20;
 
-    private GOCollisionQuery shapeQuery = new GOCollisionQuery();
-    private NeighbourCollisionQuery neighbourQuery = new NeighbourCollisionQuery();
-    private PointCollisionQuery pointQuery = new PointCollisionQuery();
-    private InRangeQuery inRangeQuery = new InRangeQuery();
+    /**
+     * The fewest shapes {@link #addObjects(Collection)} lays out all at
+     * once, rather than adding one at a time.
+     */
+    public static final int BULK_LOAD_THRESHOLD = 64;
+
+    /**
+     * How far, by default, the box a shape is placed in the tree by extends
+     * beyond its bounds on every side.
+     */
+    public static final float DEFAULT_INDEX_MARGIN = 4;
+
+    private static ExecutorService sharedRebuildExecutor;
 
     private BSPNode bspTree;
+    private final BSPNodeCache nodeCache = new BSPNodeCache();
+
+    /** The shapes kept out of the tree because they are static. */
+    private final Set<Shape> staticShapes = new HashSet<Shape>();
+    /** The static shapes, laid out afresh; null when it must be rebuilt. */
+    private BSPSnapshot staticIndex;
+
+    /** The area the root covers, or null to grow it as needed. */
+    private Rect worldArea;
+    /** The shapes kept out of the tree because they leave the world. */
+    private final Set<Shape> overflow = new LinkedHashSet<Shape>();
+    /**
+     * The overflow shapes, listed flat for queries to scan; null when one
+     * has been added, removed or refiltered since.
+     */
+    private BSPSnapshot overflowIndex;
+
+    /** The snapshot queries read; replaced, never modified. */
+    private volatile BSPSnapshot snapshot = BSPSnapshot.EMPTY;
+    /** Incremented by every change to the tree. */
+    private volatile int version;
+    private volatile Thread lastWriter;
+
+    private volatile RebalancePolicy rebalancePolicy = RebalancePolicy.DEFAULT;
+    private volatile Executor rebuildExecutor;
+    /** A rebuild whose layout is being worked out in the background. */
+    private BSPRebuild runningRebuild;
+    /** A rebuild whose layout is ready to be swapped in. */
+    private BSPRebuild finishedRebuild;
+    private int rebuildCount;
+    private long lastRebuildNanos;
+    private BSPTreeStats lastRebuiltStats;
+    /** The number of times the root has been replaced by a larger one. */
+    private int rootGrowthCount;
+    private float indexMargin = DEFAULT_INDEX_MARGIN;
+    private final QueryCounters queryCounters = new QueryCounters();
+
+    /** Each thread's pooled state for visiting queries. */
+    private final ThreadLocal<VisitState> visitState = new ThreadLocal<VisitState>() {
+        protected VisitState initialValue()
+        {
+            return new VisitState();
+        }
+    };
+
+    // State for findCollidingPairs(). Each shape that has taken part in a
+    // pair search is given a small integer id, used to index the arrays
+    // below and to form pair keys.
+    private Map<Shape, Integer> pairIds = new HashMap<Shape, Integer>();
+    private int[] freePairIds = new int[16];
+    private int freePairIdCount;
+    private int nextPairId;
+    /** The bounds and rotation of each shape when its pairs were last found. */
+    private float[] recordedBounds = new float[16 * 5];
+    private boolean[] recorded = new boolean[16];
+    private boolean[] changed = new boolean[16];
+    /** One more than the shape's index in the moved array, or 0. */
+    private int[] movedIndex = new int[16];
+    /**
+     * The box each shape in the tree was placed by, also indexed by pair
+     * id, and whether it has one.
+     */
+    private float[] indexBounds = new float[16 * 4];
+    private boolean[] indexed = new boolean[16];
+    private Shape[] movedShapes = new Shape[16];
+    private Rect[] movedBounds = new Rect[16];
+    private int[] pairSearchStack = new int[64];
+    /** Pairs found intersecting, valid while both shapes are unchanged. */
+    private PairSet collidingPairs = new PairSet();
+    private PairSet reportedPairs = new PairSet();
+    private Set<Shape> pairCandidates = new HashSet<Shape>();
+    private Set<Shape> searchedOverflow = new HashSet<Shape>();
+    private GOCollisionQuery pairQuery = new GOCollisionQuery();
+    private Rect pairSearchArea = new Rect(0, 0, 0, 0);
+    private Set<Shape> movedStatics = new LinkedHashSet<Shape>();
+    private Set<Shape> movedOverflow = new LinkedHashSet<Shape>();
+    private List<BSPNode> treeSearchStack = new ArrayList<BSPNode>();
 
 
     /*
@@ -58,8 +199,171 @@ public class IBSPColChecker implements CollisionChecker
      */
     public synchronized void addObject(Shape shape)
     {
+        if (shape.isStatic()) {
+            modified();
+            staticShapes.add(shape);
+            staticIndex = null;
+            return;
+        }
+        addToTree(shape);
+    }
+
+    /**
+     * Adds the shapes one at a time if there are only a few of them
+     * compared with the shapes already in the tree. Otherwise the whole
+     * tree is laid out afresh, top-down, with the new shapes in it, which
+     * is both faster and better balanced than growing it one shape at a
+     * time.
+     */
+    public synchronized void addObjects(Collection<Shape> shapes)
+    {
+        List<Shape> added = new ArrayList<Shape>(shapes.size());
+        for (Shape shape : shapes) {
+            if (shape.isStatic() || ! isInWorld(getShapeBounds(shape))) {
+                addObject(shape);
+            }
+            else {
+                added.add(shape);
+            }
+        }
+
+        if (added.size() < BULK_LOAD_THRESHOLD
+                || added.size() < getTreeShapeCount() / 2) {
+            for (Shape shape : added) {
+                addToTree(shape);
+            }
+            return;
+        }
+
+        Set<Shape> all = new HashSet<Shape>(added);
+        collectTreeShapes(all);
+        layOut(all, added);
+    }
+
+    /**
+     * Lay the tree out afresh, in the calling thread, and publish it.
+     *
+     * @param shapes  The shapes to lay out, all of which must be inside the
+     *                world
+     * @param added   Those of the shapes that are not yet in the tree
+     */
+    private void layOut(Collection<Shape> shapes, Collection<Shape> added)
+    {
+        // Any rebuild under way would be out of date
+        runningRebuild = null;
+        finishedRebuild = null;
+
+        BSPRebuild rebuild = new BSPRebuild(shapes, worldArea, indexMargin);
+        rebuild.plan();
+        swapIn(rebuild, added);
+        snapshot = takeSnapshot();
+        lastRebuiltStats = getStats(snapshot);
+    }
+
+    /**
+     * Get the area the tree's root covers, if it is fixed.
+     *
+     * @return The world bounds, or null if the tree grows as needed
+     */
+    public synchronized RectF getWorldBounds()
+    {
+        if (worldArea == null) {
+            return null;
+        }
+        return new RectF(worldArea.getX(), worldArea.getY(),
+                worldArea.getRight(), worldArea.getTop());
+    }
+
+    /**
+     * Fix the area the tree's root covers. The tree is laid out afresh to
+     * cover the new area, and shapes that are not wholly inside it are
+     * moved to the overflow list.
+     *
+     * @param bounds  The extent of the world, or null to let the tree grow
+     *                to fit the shapes, as it does by default
+     */
+    public synchronized void setWorldBounds(RectF bounds)
+    {
+        if (bounds != null && (bounds.width() <= 0 || bounds.height() <= 0)) {
+            throw new IllegalArgumentException(
+                "The world bounds must not be empty.");
+        }
+
+        worldArea = (bounds == null) ? null : new Rect(bounds);
+        Set<Shape> shapes = new HashSet<Shape>();
+        collectTreeShapes(shapes);
+        List<Shape> entering = new ArrayList<Shape>(overflow);
+        shapes.addAll(overflow);
+        overflow.clear();
+        overflowIndex = null;
+
+        // Shapes left out of the layout are added in the usual way, which
+        // puts them in the overflow list
+        List<Shape> inside = new ArrayList<Shape>(shapes.size());
+        for (Shape shape : shapes) {
+            if (isInWorld(getShapeBounds(shape))) {
+                inside.add(shape);
+            }
+        }
+        layOut(inside, entering);
+    }
+
+    /**
+     * Get the number of shapes kept out of the tree because they are not
+     * wholly inside the world bounds.
+     */
+    public synchronized int getOverflowCount()
+    {
+        return overflow.size();
+    }
+
+    private boolean isInWorld(Rect bounds)
+    {
+        return worldArea == null || worldArea.contains(bounds);
+    }
+
+    /**
+     * Get a cheap estimate of the number of shapes in the tree: the number
+     * of entries in the latest snapshot.
+     */
+    private int getTreeShapeCount()
+    {
+        return snapshot.getEntryCount();
+    }
+
+    /**
+     * Add every shape in the live tree to a set.
+     */
+    private void collectTreeShapes(Set<Shape> result)
+    {
+        if (bspTree == null) {
+            return;
+        }
+
+        List<BSPNode> nodes = new ArrayList<BSPNode>();
+        nodes.add(bspTree);
+        for (int i = 0; i < nodes.size(); i++) {
+            BSPNode node = nodes.get(i);
+            for (int k = 0; k < node.numberShapes(); k++) {
+                result.add(node.getShape(k));
+            }
+            if (node.getLeft() != null) {
+                nodes.add(node.getLeft());
+            }
+            if (node.getRight() != null) {
+                nodes.add(node.getRight());
+            }
+        }
+    }
+
+    /**
+     * Insert a shape into the tree, growing the tree if it lies outside.
+     */
+    private void addToTree(Shape shape)
+    {
+        modified();
         // checkConsistency();
-        Rect bounds = getShapeBounds(shape);
+        Rect bounds = getIndexBounds(shape);
 
         // FIXME Hack hack hack hack hack hack hack
         // (The while loop below does NOT like shapes with zero width or zero
@@ -73,6 +377,16 @@ public class IBSPColChecker implements CollisionChecker
             bounds.setHeight(0.001f);
         }
 
+        if (! isInWorld(bounds)) {
+            overflow.add(shape);
+            overflowIndex = null;
+            // Its pairs are not kept up to date while it is outside
+            forgetPairs(shape);
+            forgetIndexBounds(shape);
+            return;
+        }
+        setIndexBounds(shape, bounds);
+
         if (bspTree == null) {
             // The tree is currently empty; just create a new node containing only the one actor
             int splitAxis;
@@ -85,7 +399,7 @@ public class IBSPColChecker implements CollisionChecker
                 splitAxis = Y_AXIS;
                 splitPos = bounds.getMiddleY();
             }
-            bspTree = BSPNodeCache.getBSPNode();
+            bspTree = nodeCache.getBSPNode();
             bspTree.getArea().copyFrom(bounds);
             bspTree.setSplitAxis(splitAxis);
             bspTree.setSplitPos(splitPos);
@@ -100,52 +414,56 @@ public class IBSPColChecker implements CollisionChecker
                     float bx = treeArea.getX() - treeArea.getWidth();
                     Rect newArea = new Rect(bx, treeArea.getY(),
                             treeArea.getRight() - bx, treeArea.getHeight());
-                    BSPNode newTop = BSPNodeCache.getBSPNode();
+                    BSPNode newTop = nodeCache.getBSPNode();
                     newTop.getArea().copyFrom(newArea);
                     newTop.setSplitAxis(X_AXIS);
                     newTop.setSplitPos(treeArea.getX());
                     newTop.setChild(PARENT_RIGHT, bspTree);
                     bspTree = newTop;
                     treeArea = newArea;
+                    rootGrowthCount++;
                 }
                 if (bounds.getRight() > treeArea.getRight()) {
                     // double the width out to the right
                     float bx = treeArea.getRight() + treeArea.getWidth();
                     Rect newArea = new Rect(treeArea.getX(), treeArea.getY(),
                             bx - treeArea.getX(), treeArea.getHeight());
-                    BSPNode newTop = BSPNodeCache.getBSPNode();
+                    BSPNode newTop = nodeCache.getBSPNode();
                     newTop.getArea().copyFrom(newArea);
                     newTop.setSplitAxis(X_AXIS);
                     newTop.setSplitPos(treeArea.getRight());
                     newTop.setChild(PARENT_LEFT, bspTree);
                     bspTree = newTop;
                     treeArea = newArea;
+                    rootGrowthCount++;
                 }
                 if (bounds.getY() < treeArea.getY()) {
                     // double the height out the top
                     float by = treeArea.getY() - treeArea.getHeight();
                     Rect newArea = new Rect(treeArea.getX(), by,
                             treeArea.getWidth(), treeArea.getTop() - by);
-                    BSPNode newTop = BSPNodeCache.getBSPNode();
+                    BSPNode newTop = nodeCache.getBSPNode();
                     newTop.getArea().copyFrom(newArea);
                     newTop.setSplitAxis(Y_AXIS);
                     newTop.setSplitPos(treeArea.getY());
                     newTop.setChild(PARENT_RIGHT, bspTree);
                     bspTree = newTop;
                     treeArea = newArea;
+                    rootGrowthCount++;
                 }
                 if (bounds.getTop() > treeArea.getTop()) {
                     // double the height out the bottom
                     float by = treeArea.getTop() + treeArea.getHeight();
                     Rect newArea = new Rect(treeArea.getX(), treeArea.getY(),
                             treeArea.getWidth(), by - treeArea.getY());
-                    BSPNode newTop = BSPNodeCache.getBSPNode();
+                    BSPNode newTop = nodeCache.getBSPNode();
                     newTop.getArea().copyFrom(newArea);
                     newTop.setSplitAxis(Y_AXIS);
                     newTop.setSplitPos(treeArea.getTop());
                     newTop.setChild(PARENT_LEFT, bspTree);
                     bspTree = newTop;
                     treeArea = newArea;
+                    rootGrowthCount++;
                 }
             }
 
@@ -265,17 +583,140 @@ public class IBSPColChecker implements CollisionChecker
             splitAxis = Y_AXIS;
             splitPos = area.getMiddleY();
         }
-        BSPNode newNode = BSPNodeCache.getBSPNode();
+        BSPNode newNode = nodeCache.getBSPNode();
         newNode.setArea(area);
         newNode.setSplitAxis(splitAxis);
         newNode.setSplitPos(splitPos);
         return newNode;
     }
 
+    /**
+     * Get the box a shape is indexed by: its rotated bounds, stretched to
+     * take in its location, as the range and neighbour queries find shapes
+     * by their location.
+     */
     public final Rect getShapeBounds(Shape shape)
     {
-        Rect r = new Rect(shape.getBounds());
-        return r;
+        return IndexedBounds.of(shape);
+    }
+
+    /**
+     * Set a rectangle to a shape's rotated bounds, the area searched for
+     * shapes intersecting it.
+     */
+    private static void setShapeBounds(Rect r, Shape shape)
+    {
+        RectF b = shape.getRotatedBounds();
+        r.set(b.left, b.top, b.right - b.left, b.bottom - b.top);
+    }
+
+    /**
+     * Set a rectangle to the one-pixel square at a point, the area every
+     * point query searches for shapes containing the point. A shape
+     * containing the point overlaps it, as it is no wider than a pixel.
+     */
+    private static void setPointArea(Rect r, float x, float y)
+    {
+        r.set(x, y, 1, 1);
+    }
+
+    /**
+     * Get the box a shape is placed in the tree by: its
+     * {@linkplain #getShapeBounds(Shape) indexed box}, enlarged by the
+     * index margin. While the shape is inside the world bounds, the box is
+     * cut down to fit inside them too.
+     */
+    private Rect getIndexBounds(Shape shape)
+    {
+        float shapeLeft = IndexedBounds.left(shape);
+        float shapeTop = IndexedBounds.top(shape);
+        float shapeRight = IndexedBounds.right(shape);
+        float shapeBottom = IndexedBounds.bottom(shape);
+        float left = shapeLeft - indexMargin;
+        float top = shapeTop - indexMargin;
+        float right = shapeRight + indexMargin;
+        float bottom = shapeBottom + indexMargin;
+        if (worldArea != null && worldArea.getX() <= shapeLeft
+                && worldArea.getY() <= shapeTop
+                && worldArea.getRight() >= shapeRight
+                && worldArea.getTop() >= shapeBottom) {
+            left = Math.max(left, worldArea.getX());
+            top = Math.max(top, worldArea.getY());
+            right = Math.min(right, worldArea.getRight());
+            bottom = Math.min(bottom, worldArea.getTop());
+        }
+        return new Rect(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Record the box a shape in the tree has been placed by.
+     */
+    void setIndexBounds(Shape shape, float left, float top, float right,
+            float bottom)
+    {
+        int id = getPairId(shape);
+        int i = id * 4;
+        indexBounds[i] = left;
+        indexBounds[i + 1] = top;
+        indexBounds[i + 2] = right;
+        indexBounds[i + 3] = bottom;
+        indexed[id] = true;
+    }
+
+    private void setIndexBounds(Shape shape, Rect bounds)
+    {
+        setIndexBounds(shape, bounds.getX(), bounds.getY(),
+                bounds.getRight(), bounds.getTop());
+    }
+
+    private void forgetIndexBounds(Shape shape)
+    {
+        Integer id = pairIds.get(shape);
+        if (id != null) {
+            indexed[id] = false;
+        }
+    }
+
+    /**
+     * Check whether a shape in the tree is still inside the box it was
+     * placed by, so that the tree need not change when it moves.
+     */
+    private boolean isIndexedWithin(Shape shape)
+    {
+        Integer id = pairIds.get(shape);
+        if (id == null || ! indexed[id]) {
+            return false;
+        }
+        int i = id * 4;
+        return IndexedBounds.isWithin(shape, indexBounds[i],
+            indexBounds[i + 1], indexBounds[i + 2], indexBounds[i + 3]);
+    }
+
+    /**
+     * Get how far the box a shape is placed in the tree by extends beyond
+     * its bounds on every side.
+     */
+    public synchronized float getIndexMargin()
+    {
+        return indexMargin;
+    }
+
+    /**
+     * Set how far the box a shape is placed in the tree by extends beyond
+     * its bounds on every side. A larger margin means shapes that move
+     * only a little are moved in the tree less often, but each is found by
+     * more queries that then have to test and reject it. Shapes already in
+     * the tree keep their boxes until they next leave them.
+     *
+     * @param margin  The margin, which must not be less than 0
+     */
+    public synchronized void setIndexMargin(float margin)
+    {
+        if (margin < 0) {
+            throw new IllegalArgumentException(
+                "The index margin must not be less than 0. It was: " + margin);
+        }
+        indexMargin = margin;
     }
 
 //    public static void printTree(BSPNode node, String indent, String lead)
@@ -315,7 +756,37 @@ public class IBSPColChecker implements CollisionChecker
 
     public synchronized void removeObject(Shape object)
     {
+        modified();
+        // checkConsistency();
+        if (staticShapes.remove(object)) {
+            staticIndex = null;
+        }
+        else {
+            removeFromTree(object);
+        }
+
+        Integer id = pairIds.remove(object);
+        if (id != null) {
+            // Any pairs still recorded for this id are ignored until the
+            // id's next owner has had its own pairs found
+            recorded[id] = false;
+            indexed[id] = false;
+            if (freePairIdCount == freePairIds.length) {
+                freePairIds = Arrays.copyOf(freePairIds, freePairIdCount * 2);
+            }
+            freePairIds[freePairIdCount++] = id;
+        }
         // checkConsistency();
+    }
+
+    private void removeFromTree(Shape object)
+    {
+        forgetIndexBounds(object);
+        if (overflow.remove(object)) {
+            overflowIndex = null;
+            return;
+        }
+
         ShapeNode node = getNodeForShape(object);
 
         while (node != null) {
@@ -324,7 +795,6 @@ public class IBSPColChecker implements CollisionChecker
             checkRemoveNode(bspNode);
             node = getNodeForShape(object);
         }
-        // checkConsistency();
     }
 
     /**
@@ -335,6 +805,10 @@ public class IBSPColChecker implements CollisionChecker
     {
         while (node != null && node.isEmpty()) {
             BSPNode parent = node.getParent();
+            if (parent == null && worldArea != null) {
+                // The root always covers the world
+                break;
+            }
             int side = (parent != null) ? parent.getChildSide(node) : PARENT_NONE;
             BSPNode left = node.getLeft();
             BSPNode right = node.getRight();
@@ -352,7 +826,7 @@ public class IBSPColChecker implements CollisionChecker
                     }
                 }
                 node.setChild(PARENT_RIGHT, null);
-                BSPNodeCache.returnNode(node);
+                nodeCache.returnNode(node);
                 node = parent;
             }
             else if (right == null) {
@@ -369,7 +843,7 @@ public class IBSPColChecker implements CollisionChecker
                     }
                 }
                 node.setChild(PARENT_LEFT, null);
-                BSPNodeCache.returnNode(node);
+                nodeCache.returnNode(node);
                 node = parent;
             }
             else {
@@ -405,6 +879,26 @@ public class IBSPColChecker implements CollisionChecker
      */
     private synchronized void updateObject(Shape object)
     {
+        if (isIndexedWithin(object)) {
+            // The nodes holding it still cover everywhere it can be found
+            return;
+        }
+        modified();
+        if (staticShapes.contains(object)) {
+            // The static shapes are laid out again when next needed
+            staticIndex = null;
+            return;
+        }
+        if (overflow.contains(object)) {
+            // The list is scanned whole, so it only changes if the shape
+            // has come back into the world
+            if (isInWorld(getShapeBounds(object))) {
+                overflow.remove(object);
+                overflowIndex = null;
+                addToTree(object);
+            }
+            return;
+        }
         //checkConsistency();
         ShapeNode node = getNodeForShape(object);
         if (node == null) {
@@ -413,7 +907,7 @@ public class IBSPColChecker implements CollisionChecker
             return;
         }
 
-        Rect newBounds = getShapeBounds(object);
+        Rect newBounds = getIndexBounds(object);
         if (! bspTree.getArea().contains(newBounds)) {
             // The actor has moved out of the existing tree area
             while (node != null) {
@@ -422,10 +916,12 @@ public class IBSPColChecker implements CollisionChecker
                 checkRemoveNode(rNode);
                 node = node.getNext();
             }
-            addObject(object);
+            addToTree(object);
             return;
         }
 
+        setIndexBounds(object, newBounds);
+
         // First process all existing actor nodes. We cull nodes which
         // no longer contain any part of the actor; also, if we find a
         // BSPNode which completely contains the actor, we just throw
@@ -480,7 +976,7 @@ public class IBSPColChecker implements CollisionChecker
                     node = node.getNext();
                 }
                 // Now: expand the tree
-                addObject(object);
+                addToTree(object);
                 return;
             }
         }
@@ -488,7 +984,7 @@ public class IBSPColChecker implements CollisionChecker
             bspNode = bspTree;
             if (bspNode == null)
             {
-                addObject(object);
+                addToTree(object);
                 return;
             }
         }
@@ -519,144 +1015,115 @@ public class IBSPColChecker implements CollisionChecker
         updateObject(object);
     }
 
-    public void updateObjectSize(Shape object)
+    public synchronized void updateObjectFilter(Shape object)
     {
-        updateObject(object);
-    }
+        ShapeNode node = getNodeForShape(object);
+        if (staticShapes.contains(object)) {
+            staticIndex = null;
+        }
+        else if (overflow.contains(object)) {
+            overflowIndex = null;
+        }
+        else if (node == null) {
+            return;
+        }
 
-    private Set<Shape> getIntersectingObjects(Rect r, CollisionQuery query)
-    {
-        Set<Shape> set = new HashSet<Shape>();
-        getIntersectingObjects(r, query, set, bspTree);
-        return set;
+        modified();
+        for (; node != null; node = node.getNext()) {
+            node.getBSPNode().addCategories(object.getCollisionCategories());
+        }
+        forgetPairs(object);
     }
 
-    private void getIntersectingObjects(Rect r, CollisionQuery query, Set<Shape> resultSet, BSPNode startNode)
+    /**
+     * Move a shape out of the tree into the static shapes' index, or back.
+     */
+    public synchronized void updateObjectStatic(Shape object)
     {
-        LinkedList<BSPNode> nodeStack = new LinkedList<BSPNode>();
-
-        if (startNode != null) {
-            nodeStack.add(startNode);
+        boolean isStatic = object.isStatic();
+        if (isStatic == staticShapes.contains(object)) {
+            return;
         }
 
-        while (! nodeStack.isEmpty()) {
-            BSPNode node = nodeStack.removeLast();
-            if (node.getArea().intersects(r)) {
-                for (Shape shape : node)
-                {
-                    if (query.checkCollision(shape)) {
-                        if (! resultSet.contains(shape)) {
-                            resultSet.add(shape);
-                        }
-                    }
-                }
-
-                BSPNode left = node.getLeft();
-                BSPNode right = node.getRight();
-                if (left != null) {
-                    nodeStack.add(left);
-                }
-                if (right != null) {
-                    nodeStack.add(right);
-                }
+        if (isStatic) {
+            if (getNodeForShape(object) == null && ! overflow.contains(object)) {
+                // Not in this checker
+                return;
             }
+            removeFromTree(object);
+            staticShapes.add(object);
+        }
+        else {
+            staticShapes.remove(object);
+            addToTree(object);
         }
+        modified();
+        staticIndex = null;
+        forgetPairs(object);
     }
 
     /**
-     * Check if there is at least one actor in the given BSPNode which matches
-     * the given collision query, and return it if so.
+     * Forget the pair results remembered for a shape, as pairs that were
+     * allowed may no longer be, or pairs that were skipped may now be.
      */
-    private Shape checkForOneCollision(Shape ignore, BSPNode node, CollisionQuery query)
+    private void forgetPairs(Shape object)
     {
-        for (Shape candidate : node)
-        {
-            if (ignore != candidate && query.checkCollision(candidate)) {
-                return candidate;
-            }
+        Integer id = pairIds.get(object);
+        if (id != null) {
+            recorded[id] = false;
         }
-
-        return null;
     }
 
     /**
-     * Search for a single object which matches the given collision
-     * query, starting from the given tree node and searching only
-     * down the tree.
+     * Get the index of the static shapes, laying it out afresh if they have
+     * changed since it was last built.
      *
-     * @param ignore - do not return this actor
-     * @param r  Bounds - do not search nodes which don't intersect this
-     * @param query  The query to check objects against
-     * @param startNode  The node to begin the search from
-     * @return  The actor found, or null
+     * @return The index, or null if there are no static shapes
      */
-    private Shape getOneObjectDownTree(Shape ignore, Rect r, CollisionQuery query, BSPNode startNode)
+    private BSPSnapshot getStaticIndex()
     {
-        if (startNode == null) {
-            return null;
-        }
-
-        LinkedList<BSPNode> nodeStack = new LinkedList<BSPNode>();
-        nodeStack.add(startNode);
-
-        while (! nodeStack.isEmpty()) {
-            BSPNode node = nodeStack.removeLast();
-            if (node.getArea().intersects(r)) {
-                Shape res = checkForOneCollision(ignore, node, query);
-                if (res != null) {
-                    return res;
-                }
-
-                BSPNode left = node.getLeft();
-                BSPNode right = node.getRight();
-                if (left != null) {
-                    nodeStack.add(left);
-                }
-                if (right != null) {
-                    nodeStack.add(right);
-                }
-            }
+        if (staticIndex == null && ! staticShapes.isEmpty()) {
+            BSPRebuild layout = new BSPRebuild(staticShapes);
+            layout.plan();
+            staticIndex = layout.toSnapshot(queryCounters);
         }
-
-        return null;
+        return staticIndex;
     }
 
     /**
-     * Search down the tree, but only so far as the last node which fully contains the area.
-     * @param r
-     * @param query
-     * @param shape
-     * @return
+     * Get the flat list of the overflow shapes, copying it afresh if one
+     * has been added, removed or refiltered since it was last copied.
+     *
+     * @return The list, or null if there are no overflow shapes
      */
-    private Shape getOneIntersectingDown(Rect r, CollisionQuery query, Shape shape)
+    private BSPSnapshot getOverflowIndex()
     {
-        if (bspTree == null) {
-            return null;
+        if (overflowIndex == null && ! overflow.isEmpty()) {
+            overflowIndex = BSPSnapshot.flat(overflow, queryCounters);
         }
+        return overflowIndex;
+    }
 
-        LinkedList<BSPNode> nodeStack = new LinkedList<BSPNode>();
-        nodeStack.add(bspTree);
-
-        while (! nodeStack.isEmpty()) {
-            BSPNode node = nodeStack.removeLast();
-            if (node.getArea().contains(r)) {
-                Shape res = checkForOneCollision(shape, node, query);
-                if (res != null) {
-                    return res;
-                }
-
-                BSPNode left = node.getLeft();
-                BSPNode right = node.getRight();
-                if (left != null) {
-                    nodeStack.add(left);
-                }
-                if (right != null) {
-                    nodeStack.add(right);
-                }
-            }
+    /**
+     * Get the indexes of the shapes kept out of the tree, for a snapshot to
+     * search along with the tree.
+     */
+    private BSPSnapshot[] getOtherIndexes()
+    {
+        BSPSnapshot statics = getStaticIndex();
+        BSPSnapshot outside = getOverflowIndex();
+        if (statics == null) {
+            return (outside == null)
+                ? BSPSnapshot.NO_OTHERS : new BSPSnapshot[] { outside };
         }
+        return (outside == null)
+            ? new BSPSnapshot[] { statics }
+            : new BSPSnapshot[] { statics, outside };
+    }
 
-        return null;
+    public void updateObjectSize(Shape object)
+    {
+        updateObject(object);
     }
 
     /**
@@ -678,108 +1145,886 @@ public class IBSPColChecker implements CollisionChecker
         return null;
     }
 
-    @SuppressWarnings("unchecked")
-    public <T extends Shape> Set<T> getObjectsAt(float x, float y, Class<T> cls)
+    private Shape checkForOneCollision(Shape ignore, BSPNode node, CollisionQuery query)
     {
-        synchronized (pointQuery) {
-            pointQuery.init(x, y, cls);
-            return (Set<T>) getIntersectingObjects(new Rect(x, y, 1, 1), pointQuery);
+        for (Shape candidate : node)
+        {
+            if (ignore != candidate && query.checkCollision(candidate)) {
+                return candidate;
+            }
         }
+
+        return null;
     }
 
-    @SuppressWarnings("unchecked")
-    public <T extends Shape> Set<T> getIntersectingObjects(Shape shape,
-            Class<T> cls)
+    /**
+     * Record a change to the tree. Called while holding the lock.
+     */
+    private void modified()
     {
-        Rect r = getShapeBounds(shape);
-
-        synchronized (shapeQuery) {
-            shapeQuery.init(cls, shape);
-            return (Set<T>) getIntersectingObjects(r, shapeQuery);
-        }
+        version++;
+        lastWriter = Thread.currentThread();
     }
 
-    @SuppressWarnings("unchecked")
-    public <T extends Shape> Set<T> getObjectsInRange(float x, float y, float r,
-            Class<T> cls)
+    /**
+     * Make all changes so far visible to queries on every thread, swapping
+     * in a finished rebuild first, and starting a new rebuild if the policy
+     * asks for one.
+     */
+    private synchronized BSPSnapshot publish()
     {
-        float size = 2 * r;
-
-        Rect rect = new Rect((x - r),
-                (y - r),
-                size,
-                size);
-
-        Set<T> result;
-        synchronized (shapeQuery) {
-            shapeQuery.init(cls, null);
-            result = (Set<T>) getIntersectingObjects(rect, shapeQuery);
+        boolean rebuilt = false;
+        if (finishedRebuild != null) {
+            swapIn(finishedRebuild, Collections.<Shape>emptyList());
+            finishedRebuild = null;
+            rebuilt = true;
         }
 
-        Iterator<T> i = result.iterator();
-        synchronized (inRangeQuery) {
-            inRangeQuery.init(x, y, r);
-            while (i.hasNext()) {
-                if (! inRangeQuery.checkCollision(i.next())) {
-                    i.remove();
+        BSPSnapshot current = snapshot;
+        if (current.version == version) {
+            return current;
+        }
+        current = takeSnapshot();
+        snapshot = current;
+
+        if (! rebuilt && runningRebuild == null
+                && rebalancePolicy.shouldRebalance(getStats(current), lastRebuiltStats)) {
+            Executor executor = rebuildExecutor;
+            if (executor == null) {
+                rebuildNow(current);
+                rebuilt = true;
+                current = snapshot;
+            }
+            else {
+                startRebuild(current, executor);
+            }
+        }
+
+        if (rebuilt) {
+            lastRebuiltStats = getStats(current);
+        }
+        return current;
+    }
+
+    /**
+     * Rebuild the tree from scratch, balancing it, and publish the result.
+     * This is done in the calling thread, regardless of the rebuild
+     * executor.
+     */
+    public synchronized void rebalance()
+    {
+        // Any rebuild already under way would be out of date
+        runningRebuild = null;
+        finishedRebuild = null;
+        rebuildNow(publish());
+        lastRebuiltStats = getStats(snapshot);
+    }
+
+    private void rebuildNow(BSPSnapshot current)
+    {
+        BSPRebuild rebuild = new BSPRebuild(getTreeShapes(current),
+                worldArea, indexMargin);
+        rebuild.plan();
+        swapIn(rebuild, Collections.<Shape>emptyList());
+        snapshot = takeSnapshot();
+    }
+
+    /**
+     * Take a snapshot of the tree as it is now. Unless the tree has been
+     * rebuilt since the latest snapshot, only the nodes that have been
+     * added or changed are copied, and the rest is shared with it.
+     */
+    private BSPSnapshot takeSnapshot()
+    {
+        boolean rebuilt = nodeCache.isReshaped(snapshot.getNodeCount());
+        BSPSnapshot taken = rebuilt
+            ? BSPSnapshot.build(bspTree, version, getOtherIndexes(),
+                queryCounters)
+            : snapshot.update(bspTree, version, nodeCache,
+                getOtherIndexes());
+        nodeCache.clearChanges(rebuilt);
+        return taken;
+    }
+
+    /**
+     * Copy the shapes' bounds and have the executor work out a new layout,
+     * to be swapped in by a later publish().
+     */
+    private void startRebuild(BSPSnapshot current, Executor executor)
+    {
+        final BSPRebuild rebuild = new BSPRebuild(getTreeShapes(current),
+                worldArea, indexMargin);
+        runningRebuild = rebuild;
+        executor.execute(new Runnable() {
+            public void run()
+            {
+                boolean planned = false;
+                try {
+                    rebuild.plan();
+                    planned = true;
+                }
+                finally {
+                    synchronized (IBSPColChecker.this) {
+                        if (runningRebuild == rebuild) {
+                            runningRebuild = null;
+                            finishedRebuild = planned ? rebuild : null;
+                        }
+                    }
                 }
             }
+        });
+    }
+
+    /**
+     * Replace the tree with a rebuilt one. Shapes added or moved since the
+     * rebuild started are then inserted in the usual way.
+     *
+     * @param added  Shapes being added to the checker, which are not in the
+     *               old tree but may be laid out in the new one
+     */
+    private void swapIn(BSPRebuild rebuild, Collection<Shape> added)
+    {
+        long start = System.nanoTime();
+        modified();
+        nodeCache.treeReshaped();
+
+        Set<Shape> present = new HashSet<Shape>(added);
+        List<BSPNode> oldNodes = new ArrayList<BSPNode>();
+        if (bspTree != null) {
+            oldNodes.add(bspTree);
+        }
+        for (int i = 0; i < oldNodes.size(); i++) {
+            BSPNode node = oldNodes.get(i);
+            for (int k = 0; k < node.numberShapes(); k++) {
+                Shape shape = node.getShape(k);
+                if (present.add(shape)) {
+                    setNodeForShape(shape, null);
+                }
+            }
+            node.clearShapes();
+            if (node.getLeft() != null) {
+                oldNodes.add(node.getLeft());
+            }
+            if (node.getRight() != null) {
+                oldNodes.add(node.getRight());
+            }
+        }
+        for (BSPNode node : oldNodes) {
+            node.setChild(PARENT_LEFT, null);
+            node.setChild(PARENT_RIGHT, null);
+            nodeCache.returnNode(node);
         }
 
-        return result;
+        List<Shape> unplaced = new ArrayList<Shape>();
+        bspTree = rebuild.apply(nodeCache, present, unplaced, this);
+        for (Shape shape : unplaced) {
+            addToTree(shape);
+        }
+
+        rebuildCount++;
+        lastRebuildNanos = rebuild.getPlanNanos() + (System.nanoTime() - start);
     }
 
-    @SuppressWarnings("unchecked")
-    public <T extends Shape> Set<T> getNeighbors(Shape shape, float distance,
-            boolean diag, Class<T> cls)
+    /**
+     * Get the shapes in the tree, leaving out the static shapes.
+     */
+    private Set<Shape> getTreeShapes(BSPSnapshot current)
     {
-        float x = shape.getX();
-        float y = shape.getY();
+        Set<Shape> shapes = new HashSet<Shape>();
+        current.collectAll(null, shapes);
+        shapes.removeAll(staticShapes);
+        shapes.removeAll(overflow);
+        return shapes;
+    }
 
-        Rect r = new Rect(x - distance, y - distance, distance * 2 + 1, distance * 2 + 1);
+    private BSPTreeStats getStats(BSPSnapshot current)
+    {
+        return new BSPTreeStats(current.shapeCount, current.getNodeCount(),
+                current.getEntryCount(), current.maxDepth, current.depthSum,
+                current.maxShapesPerNode,
+                current.getShapesPerNodeHistogram(),
+                rebuildCount, lastRebuildNanos, rootGrowthCount,
+                nodeCache.getRequestCount(), nodeCache.getHitCount());
+    }
 
-        synchronized (neighbourQuery) {
-            neighbourQuery.init(x, y, distance, diag, cls);
-            return (Set<T>) getIntersectingObjects(r, neighbourQuery);
+    /**
+     * Get measurements of the tree as of the latest snapshot.
+     */
+    public BSPTreeStats getTreeStats()
+    {
+        BSPSnapshot current = getSnapshot();
+        synchronized (this) {
+            return getStats(current);
         }
     }
 
-    public <T extends Shape> Set<T> getObjectsInDirection(float x, float y,
-            float angle, float length, Class<T> cls)
+    public QueryStats getQueryStats()
+    {
+        return queryCounters.getStats();
+    }
+
+    public void resetQueryStats()
+    {
+        queryCounters.reset();
+    }
+
+    /**
+     * Get the policy deciding when the tree is rebuilt.
+     */
+    public RebalancePolicy getRebalancePolicy()
+    {
+        return rebalancePolicy;
+    }
+
+    /**
+     * Set the policy deciding when the tree is rebuilt.
+     *
+     * @param policy  The new policy; {@link RebalancePolicy#NEVER} turns off
+     *                automatic rebuilds
+     */
+    public void setRebalancePolicy(RebalancePolicy policy)
+    {
+        if (policy == null) {
+            throw new IllegalArgumentException(
+                "The rebalance policy must not be null.");
+        }
+        rebalancePolicy = policy;
+    }
+
+    /**
+     * Get the executor that works out the layout of rebuilt trees.
+     */
+    public Executor getRebuildExecutor()
     {
-        // non-functional
-        // return new ArrayList<T>();
-        throw new UnsupportedOperationException("not implemented!");
+        return rebuildExecutor;
+    }
+
+    /**
+     * Set the executor that works out the layout of rebuilt trees. By
+     * default there is none, and the tree is rebuilt in whichever thread
+     * publishes the snapshot that calls for it. Pass
+     * {@link #getSharedRebuildExecutor()} to rebuild on a single background
+     * thread shared by all checkers instead.
+     *
+     * @param executor  The executor to use, or null to rebuild the tree
+     *                  in whichever thread publishes the snapshot that
+     *                  calls for it
+     */
+    public void setRebuildExecutor(Executor executor)
+    {
+        rebuildExecutor = executor;
+    }
+
+    /**
+     * Get an executor that runs rebuilds on a single background thread,
+     * shared by every checker using it. The thread is only started once
+     * this is first called.
+     */
+    public static synchronized Executor getSharedRebuildExecutor()
+    {
+        if (sharedRebuildExecutor == null) {
+            sharedRebuildExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "BSP rebuild");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return sharedRebuildExecutor;
+    }
+
+    /**
+     * Get the snapshot a query should read. The thread that last changed
+     * the tree publishes its changes first.
+     */
+    private BSPSnapshot getSnapshot()
+    {
+        BSPSnapshot current = snapshot;
+        if (current.version != version && lastWriter == Thread.currentThread()) {
+            current = publish();
+        }
+        return current;
+    }
+
+    /**
+     * Get the snapshot a query should read, counting the query.
+     */
+    private BSPSnapshot startQuery()
+    {
+        queryCounters.countQuery();
+        return getSnapshot();
     }
 
     @SuppressWarnings("unchecked")
-    public <T extends Shape> Set<T> getObjects(Class<T> cls)
+    public <T extends Shape> Set<T> getObjectsAt(float x, float y, Class<T> cls)
     {
-        Set<T> set = new HashSet<T>();
-        LinkedList<BSPNode> nodeStack = new LinkedList<BSPNode>();
+        VisitState state = visitState.get().acquire();
+        Set<Shape> result = new HashSet<Shape>();
+        try {
+            state.pointQuery.init(x, y, cls);
+            setPointArea(state.area, x, y);
+            startQuery().collect(state.area, state.pointQuery,
+                Shape.DEFAULT_COLLISION_MASK, result, state.stack);
+        }
+        finally {
+            state.release();
+        }
+        return (Set<T>) result;
+    }
 
-        if (bspTree != null) {
-            nodeStack.add(bspTree);
+    @SuppressWarnings("unchecked")
+    public <T extends Shape> Set<T> getIntersectingObjects(Shape shape,
+            Class<T> cls)
+    {
+        VisitState state = visitState.get().acquire();
+        Set<Shape> result = new HashSet<Shape>();
+        try {
+            state.shapeQuery.init(cls, shape);
+            setShapeBounds(state.area, shape);
+            startQuery().collect(state.area, state.shapeQuery,
+                shape.getCollisionMask(), result, state.stack);
+        }
+        finally {
+            state.release();
         }
+        return (Set<T>) result;
+    }
 
-        while (! nodeStack.isEmpty()) {
-            BSPNode node = nodeStack.removeLast();
-            for (Shape shape : node)
-            {
-                if (cls == null || cls.isInstance(shape)) {
-                    set.add((T) shape);
+    public <T extends Shape> int forEachObjectAt(float x, float y,
+            Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitState state = visitState.get();
+        VisitorQuery query = state.queries.obtain();
+        query.initPoint(x, y, cls, visitor);
+        return visitObjects(query, state);
+    }
+
+    public <T extends Shape> int forEachIntersectingObject(Shape shape,
+            Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitState state = visitState.get();
+        VisitorQuery query = state.queries.obtain();
+        query.initIntersecting(shape, cls, visitor);
+        return visitObjects(query, state);
+    }
+
+    public <T extends Shape> int forEachObjectInRange(float x, float y,
+            float r, Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitState state = visitState.get();
+        VisitorQuery query = state.queries.obtain();
+        query.initInRange(x, y, r, cls, visitor);
+        return visitObjects(query, state);
+    }
+
+    /**
+     * Run a visiting query over the current snapshot and return it to the
+     * pool.
+     *
+     * @return The number of shapes visited
+     */
+    private int visitObjects(VisitorQuery query, VisitState state)
+    {
+        int count;
+        try {
+            startQuery().visit(query, state.stack);
+        }
+        finally {
+            count = state.queries.release(query);
+        }
+        return count;
+    }
+
+    /**
+     * Find all intersecting pairs involving the moved shapes with a single
+     * walk of the tree. The moved shapes that overlap each node are carried
+     * down to it, and tested against the shapes stored there. A moved shape
+     * is not carried into a subtree that holds no shapes in the categories
+     * of its collision mask.
+     *
+     * <p>The result of each pair test is remembered, so when a moved shape's
+     * bounds and rotation turn out not to have changed since its pairs were
+     * last found, its pairs with other unchanged shapes are reported from the
+     * previous result instead of being tested again.
+     *
+     * <p>The search never publishes a snapshot itself. Moved static shapes
+     * are looked up in the one published by the last
+     * {@link #startSequence()}, which should be called first.
+     */
+    public synchronized void findCollidingPairs(Collection<Shape> moved,
+            PairVisitor visitor)
+    {
+        if (bspTree == null) {
+            // Static shapes never collide with each other
+            return;
+        }
+
+        if (movedShapes.length < moved.size()) {
+            movedShapes = new Shape[moved.size()];
+            movedBounds = new Rect[moved.size()];
+        }
+
+        int count = 0;
+        boolean completed = false;
+        try {
+            boolean anyChanged = false;
+            for (Shape shape : moved) {
+                if (staticShapes.contains(shape)) {
+                    movedStatics.add(shape);
+                    continue;
                 }
+                if (overflow.contains(shape)) {
+                    movedOverflow.add(shape);
+                    continue;
+                }
+                int id = getPairId(shape);
+                if (movedIndex[id] != 0 || getNodeForShape(shape) == null) {
+                    // Listed twice, or not in the tree
+                    continue;
+                }
+                movedShapes[count] = shape;
+                movedBounds[count] = getShapeBounds(shape);
+                movedIndex[id] = ++count;
+                changed[id] = ! isRecordedUnchanged(id, shape);
+                anyChanged |= changed[id];
             }
-            BSPNode left = node.getLeft();
-            BSPNode right = node.getRight();
-            if (left != null) {
-                nodeStack.add(left);
+
+            if (anyChanged) {
+                // Forget everything known about the pairs of shapes that
+                // changed; the walk below finds all of their current pairs
+                // again
+                collidingPairs.removeAll(changed);
             }
-            if (right != null) {
-                nodeStack.add(right);
+
+            ensurePairSearchStack(count);
+            int roots = 0;
+            for (int i = 0; i < count; i++) {
+                if (bspTree.getArea().intersects(movedBounds[i])
+                        && (bspTree.getCategories()
+                            & movedShapes[i].getCollisionMask()) != 0) {
+                    pairSearchStack[roots++] = i;
+                }
+            }
+            findCollidingPairs(bspTree, 0, roots, visitor);
+            reportedPairs.clear();
+            findOverflowPairs(count, visitor);
+            findStaticPairs(count, visitor);
+
+            completed = true;
+        }
+        finally {
+            if (! completed) {
+                // The visitor threw partway through, so the remembered
+                // results of the changed shapes' pairs are incomplete
+                collidingPairs.clear();
+                Arrays.fill(recorded, false);
+                reportedPairs.clear();
+                pairCandidates.clear();
+                searchedOverflow.clear();
+                movedOverflow.clear();
+                movedStatics.clear();
+            }
+            for (int i = 0; i < count; i++) {
+                Shape shape = movedShapes[i];
+                int id = pairIds.get(shape);
+                if (completed) {
+                    recordBounds(id, shape);
+                }
+                changed[id] = false;
+                movedIndex[id] = 0;
+                movedShapes[i] = null;
+                movedBounds[i] = null;
             }
         }
+    }
 
+    /**
+     * Find the pairs involving the overflow shapes: those between the moved
+     * shapes in the tree and any overflow shape, and those between a moved
+     * overflow shape and anything else. Pairs between moved overflow shapes
+     * and moved static shapes are left to
+     * {@link #findStaticPairs(int, PairVisitor)}.
+     *
+     * @param count  The number of moved shapes in the tree
+     */
+    private void findOverflowPairs(int count, PairVisitor visitor)
+    {
+        BSPSnapshot outside = getOverflowIndex();
+        if (outside == null) {
+            return;
+        }
+
+        GOCollisionQuery shapeQuery = pairQuery;
+        NodeStack stack = visitState.get().stack;
+        for (int i = 0; i < count; i++) {
+            Shape shape = movedShapes[i];
+            shapeQuery.init(null, shape);
+            outside.collect(movedBounds[i], shapeQuery,
+                shape.getCollisionMask(), pairCandidates, stack);
+            for (Shape other : pairCandidates) {
+                visitor.visitPair(shape, other);
+            }
+            pairCandidates.clear();
+        }
+
+        if (movedOverflow.isEmpty()) {
+            return;
+        }
+        BSPSnapshot statics = getStaticIndex();
+        Set<Shape> searched = searchedOverflow;
+        Rect bounds = pairSearchArea;
+        for (Shape shape : movedOverflow) {
+            setShapeBounds(bounds, shape);
+            int mask = shape.getCollisionMask();
+            shapeQuery.init(null, shape);
+            outside.collect(bounds, shapeQuery, mask, pairCandidates, stack);
+            if (statics != null) {
+                statics.collect(bounds, shapeQuery, mask, pairCandidates,
+                    stack);
+            }
+            if (worldArea.intersects(bounds)) {
+                collectFromTree(bounds, shapeQuery, mask, pairCandidates);
+            }
+
+            for (Shape other : pairCandidates) {
+                if (other == shape || searched.contains(other)
+                        || movedStatics.contains(other)) {
+                    // The shape itself, or a pair found from the other side
+                    continue;
+                }
+                Integer otherId = pairIds.get(other);
+                if (otherId != null && movedIndex[otherId] != 0) {
+                    // Found from the moved shape's side above
+                    continue;
+                }
+                visitor.visitPair(shape, other);
+            }
+            pairCandidates.clear();
+            searched.add(shape);
+        }
+        searched.clear();
+        movedOverflow.clear();
+    }
+
+    /**
+     * Add every shape in the live tree that overlaps an area and matches a
+     * query to a set, without publishing a snapshot.
+     */
+    private void collectFromTree(Rect r, CollisionQuery query, int mask,
+            Set<Shape> result)
+    {
+        List<BSPNode> stack = treeSearchStack;
+        stack.add(bspTree);
+        while (! stack.isEmpty()) {
+            BSPNode node = stack.remove(stack.size() - 1);
+            if (! node.getArea().intersects(r)
+                    || (node.getCategories() & mask) == 0) {
+                continue;
+            }
+            for (Shape other : node) {
+                if (query.checkCollision(other)) {
+                    result.add(other);
+                }
+            }
+            if (node.getLeft() != null) {
+                stack.add(node.getLeft());
+            }
+            if (node.getRight() != null) {
+                stack.add(node.getRight());
+            }
+        }
+    }
+
+    /**
+     * Find the pairs between the moved shapes and the static shapes. Pairs
+     * with static shapes are not remembered between frames, as static
+     * shapes are expected to move rarely; they are simply tested again.
+     *
+     * @param count  The number of moved shapes in the tree
+     */
+    private void findStaticPairs(int count, PairVisitor visitor)
+    {
+        BSPSnapshot statics = getStaticIndex();
+        if (statics == null) {
+            return;
+        }
+
+        GOCollisionQuery shapeQuery = pairQuery;
+        NodeStack stack = visitState.get().stack;
+        for (int i = 0; i < count; i++) {
+            Shape shape = movedShapes[i];
+            shapeQuery.init(null, shape);
+            statics.collect(movedBounds[i], shapeQuery,
+                shape.getCollisionMask(), pairCandidates, stack);
+            for (Shape other : pairCandidates) {
+                visitor.visitPair(shape, other);
+            }
+            pairCandidates.clear();
+        }
+
+        if (movedStatics.isEmpty()) {
+            return;
+        }
+        // Publishing here could swap a rebuilt tree in partway through the
+        // search, so the snapshot published by startSequence() is used
+        BSPSnapshot current = snapshot;
+        for (Shape shape : movedStatics) {
+            shapeQuery.init(null, shape);
+            setShapeBounds(pairSearchArea, shape);
+            current.collect(pairSearchArea, shapeQuery,
+                shape.getCollisionMask(), pairCandidates, stack);
+            for (Shape other : pairCandidates) {
+                if (staticShapes.contains(other)
+                        || (getNodeForShape(other) == null
+                        && ! overflow.contains(other))) {
+                    // Another static shape, or one removed since the
+                    // snapshot was published
+                    continue;
+                }
+                Integer otherId = pairIds.get(other);
+                if (otherId != null && movedIndex[otherId] != 0) {
+                    // Found from the moved shape's side above
+                    continue;
+                }
+                visitor.visitPair(shape, other);
+            }
+            pairCandidates.clear();
+        }
+        movedStatics.clear();
+    }
+
+    /**
+     * Test the shapes stored in a node against the moved shapes that overlap
+     * it, then recurse into the node's children.
+     *
+     * @param node   The node to search
+     * @param start  Where the indices of the moved shapes that overlap the
+     *               node start in the search stack
+     * @param count  How many moved shapes overlap the node
+     */
+    private void findCollidingPairs(BSPNode node, int start, int count,
+            PairVisitor visitor)
+    {
+        for (Shape other : node) {
+            int otherId = getPairId(other);
+            int otherIndex = movedIndex[otherId] - 1;
+
+            for (int k = start; k < start + count; k++) {
+                int index = pairSearchStack[k];
+                if (otherIndex >= 0 && otherIndex <= index) {
+                    // The shape itself, or a pair of moved shapes that is
+                    // found from the side of the earlier one
+                    continue;
+                }
+
+                Shape shape = movedShapes[index];
+                if (! shape.canCollideWith(other)) {
+                    continue;
+                }
+                int id = getPairId(shape);
+                long key = PairSet.key(id, otherId);
+                if (! reportedPairs.add(key)) {
+                    // Already tested in another node
+                    continue;
+                }
+
+                boolean colliding;
+                if (! changed[id] && (otherIndex >= 0 ? ! changed[otherId]
+                        : isRecordedUnchanged(otherId, other))) {
+                    colliding = collidingPairs.contains(key);
+                }
+                else {
+                    colliding = shape.intersects(other);
+                    if (colliding) {
+                        collidingPairs.add(key);
+                    }
+                    else {
+                        collidingPairs.remove(key);
+                    }
+                }
+
+                if (colliding) {
+                    visitor.visitPair(shape, other);
+                }
+            }
+        }
+
+        for (int side = PARENT_LEFT; side <= PARENT_RIGHT; side++) {
+            BSPNode child = (side == PARENT_LEFT) ? node.getLeft() : node.getRight();
+            if (child == null) {
+                continue;
+            }
+
+            // The child's list goes on the stack just above this node's
+            int childStart = start + count;
+            ensurePairSearchStack(childStart + count);
+            int childCount = 0;
+            Rect childArea = child.getArea();
+            int childCategories = child.getCategories();
+            for (int k = start; k < start + count; k++) {
+                int index = pairSearchStack[k];
+                if (childArea.intersects(movedBounds[index])
+                        && (childCategories
+                            & movedShapes[index].getCollisionMask()) != 0) {
+                    pairSearchStack[childStart + childCount++] = index;
+                }
+            }
+            if (childCount > 0) {
+                findCollidingPairs(child, childStart, childCount, visitor);
+            }
+        }
+    }
+
+    private int getPairId(Shape shape)
+    {
+        Integer id = pairIds.get(shape);
+        if (id != null) {
+            return id;
+        }
+
+        int newId;
+        if (freePairIdCount > 0) {
+            newId = freePairIds[--freePairIdCount];
+        }
+        else {
+            newId = nextPairId++;
+            if (newId == recorded.length) {
+                int length = newId * 2;
+                recordedBounds = Arrays.copyOf(recordedBounds, length * 5);
+                recorded = Arrays.copyOf(recorded, length);
+                indexBounds = Arrays.copyOf(indexBounds, length * 4);
+                indexed = Arrays.copyOf(indexed, length);
+                changed = Arrays.copyOf(changed, length);
+                movedIndex = Arrays.copyOf(movedIndex, length);
+            }
+        }
+        pairIds.put(shape, newId);
+        return newId;
+    }
+
+    /**
+     * Check whether a shape's bounds and rotation are the same as when its
+     * pairs were last found.
+     */
+    private boolean isRecordedUnchanged(int id, Shape shape)
+    {
+        if (! recorded[id]) {
+            return false;
+        }
+        int i = id * 5;
+        RectF bounds = shape.getBounds();
+        return recordedBounds[i] == bounds.left
+            && recordedBounds[i + 1] == bounds.top
+            && recordedBounds[i + 2] == bounds.right
+            && recordedBounds[i + 3] == bounds.bottom
+            && recordedBounds[i + 4] == shape.getRotation();
+    }
+
+    private void recordBounds(int id, Shape shape)
+    {
+        int i = id * 5;
+        RectF bounds = shape.getBounds();
+        recordedBounds[i] = bounds.left;
+        recordedBounds[i + 1] = bounds.top;
+        recordedBounds[i + 2] = bounds.right;
+        recordedBounds[i + 3] = bounds.bottom;
+        recordedBounds[i + 4] = shape.getRotation();
+        recorded[id] = true;
+    }
+
+    private void ensurePairSearchStack(int capacity)
+    {
+        if (capacity > pairSearchStack.length) {
+            pairSearchStack = Arrays.copyOf(pairSearchStack,
+                    Math.max(capacity, pairSearchStack.length * 2));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Shape> Set<T> getObjectsInRange(float x, float y, float r,
+            Class<T> cls)
+    {
+        float size = 2 * r;
+
+        VisitState state = visitState.get().acquire();
+        Set<Shape> result = new HashSet<Shape>();
+        try {
+            state.area.set(x - r, y - r, size, size);
+            state.inRangeQuery.init(x, y, r, cls);
+            startQuery().collect(state.area, state.inRangeQuery,
+                Shape.DEFAULT_COLLISION_MASK, result, state.stack);
+        }
+        finally {
+            state.release();
+        }
+
+        return (Set<T>) result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Shape> Set<T> getNeighbors(Shape shape, float distance,
+            boolean diag, Class<T> cls)
+    {
+        float x = shape.getX();
+        float y = shape.getY();
+
+        VisitState state = visitState.get().acquire();
+        Set<Shape> result = new HashSet<Shape>();
+        try {
+            state.area.set(x - distance, y - distance, distance * 2 + 1,
+                distance * 2 + 1);
+            state.neighbourQuery.init(x, y, distance, diag, cls);
+            startQuery().collect(state.area, state.neighbourQuery,
+                Shape.DEFAULT_COLLISION_MASK, result, state.stack);
+        }
+        finally {
+            state.release();
+        }
+        return (Set<T>) result;
+    }
+
+    public <T extends Shape> Set<T> getObjectsInDirection(float x, float y,
+            float angle, float length, Class<T> cls)
+    {
+        RayQuery query = new RayQuery(x, y, angle, length, cls, false);
+        startQuery().raycast(query, visitState.get().stack);
+        return query.getHits();
+    }
+
+    public <T extends Shape> RaycastHit<T> raycastFirst(float x, float y,
+            float angle, float length, Class<T> cls)
+    {
+        RayQuery query = new RayQuery(x, y, angle, length, cls, true);
+        startQuery().raycast(query, visitState.get().stack);
+        return query.getNearest();
+    }
+
+    public <T extends Shape> SweepHit<T> sweepFirst(Shape shape, float dx,
+            float dy, Class<T> cls)
+    {
+        VisitState state = visitState.get();
+        SweepQuery sweep = new SweepQuery(shape, dx, dy);
+        VisitorQuery query = state.queries.obtain();
+        query.initSwept(shape, dx, dy, cls, sweep);
+        visitObjects(query, state);
+        return sweep.getFirst();
+    }
+
+    public <T extends Shape> List<T> getNearestObjects(float x, float y, int k,
+            Class<T> cls)
+    {
+        NearestQuery query = new NearestQuery(x, y, k, cls);
+        startQuery().nearest(query);
+        return query.getResults();
+    }
+
+    public <T extends Shape> Set<T> getObjects(Class<T> cls)
+    {
+        Set<T> set = new HashSet<T>();
+        getSnapshot().collectAll(cls, set);
         return set;
     }
 
@@ -788,51 +2033,89 @@ public class IBSPColChecker implements CollisionChecker
         return getObjects(null);
     }
 
+    /**
+     * Publish a snapshot of the tree, making all changes so far visible to
+     * queries on every thread.
+     */
     public final void startSequence()
     {
-        // Nothing necessary.
+        publish();
     }
 
     @SuppressWarnings("unchecked")
     public <T extends Shape> T getOneObjectAt(Shape object, float dx, float dy,
             Class<T> cls)
     {
-        synchronized (pointQuery) {
-            float px = dx;
-            float py = dy;
-            pointQuery.init(px, py, cls);
-            CollisionQuery query = pointQuery;
-            if (cls != null) {
-                query = new ClassQuery(cls, pointQuery);
-            }
-            // Use of getOneIntersectingDown is ok, because the area is only 1x1 pixel
-            // in size - it will be contained by all nodes.
-            return (T) getOneIntersectingDown(new Rect(px, py, 1, 1), query, object);
+        VisitState state = visitState.get().acquire();
+        try {
+            state.pointQuery.init(dx, dy, cls);
+            setPointArea(state.area, dx, dy);
+            return (T) startQuery().findOne(state.area, state.pointQuery,
+                Shape.DEFAULT_COLLISION_MASK, object, state.stack);
+        }
+        finally {
+            state.release();
         }
     }
 
     @SuppressWarnings("unchecked")
     public <T extends Shape> T getOneIntersectingObject(Shape shape, Class<T> cls)
     {
-        Rect r = getShapeBounds(shape);
-        synchronized (shapeQuery) {
-            shapeQuery.init(cls, shape);
+        VisitState state = visitState.get().acquire();
+        try {
+            state.shapeQuery.init(cls, shape);
+            setShapeBounds(state.area, shape);
+            return (T) startQuery().findOne(state.area, state.shapeQuery,
+                shape.getCollisionMask(), shape, state.stack);
+        }
+        finally {
+            state.release();
+        }
+    }
 
-            ShapeNode node = getNodeForShape(shape);
-            do {
-                BSPNode bspNode = node.getBSPNode();
-                T ret = (T) getOneObjectDownTree(shape, r, shapeQuery, bspNode);
-                if (ret != null) {
-                    return ret;
-                }
-                ret = (T) getOneIntersectingUp(r, shapeQuery, shape, bspNode.getParent());
-                if (ret != null) {
-                    return ret;
-                }
-                node = node.getNext();
+
+    /**
+     * The pooled state a thread uses for queries, so that they do not
+     * allocate and can be nested.
+     *
+     * <p>The queries and area are used by the searches that do not take a
+     * visitor. Those searches can still be started from inside one another,
+     * by an overridden {@link Shape#intersects(Shape)} say, so a search
+     * finding them in use gets a fresh state of its own.
+     */
+    private static final class VisitState
+    {
+        final VisitorQuery.Pool queries = new VisitorQuery.Pool();
+        final NodeStack stack = new NodeStack();
+        final PointCollisionQuery pointQuery = new PointCollisionQuery();
+        final GOCollisionQuery shapeQuery = new GOCollisionQuery();
+        final InRangeQuery inRangeQuery = new InRangeQuery();
+        final NeighbourCollisionQuery neighbourQuery =
+            new NeighbourCollisionQuery();
+        final Rect area = new Rect(0, 0, 0, 0);
+        private boolean inUse;
+
+        /**
+         * Take this state's queries and area for a search, or a fresh state
+         * if they are already in use.
+         */
+        VisitState acquire()
+        {
+            if (inUse) {
+                return new VisitState();
             }
-            while (node != null);
-            return (T) getOneIntersectingDown(r, shapeQuery, shape);
+            inUse = true;
+            return this;
+        }
+
+        /**
+         * Hand the queries and area back, dropping the shape the search
+         * compared against.
+         */
+        void release()
+        {
+            shapeQuery.init(null, null);
+            inUse = false;
         }
     }
 }
@@ -38,32 +38,43 @@ public class InRangeQuery
     private float y;
     /** radius of the circle. In pixels. */
     private float r;
+    private Class<?> cls;
 
     /**
      * Initialise with the given circle. Units are in pixels!
      */
     public void init(float x, float y, float r)
+    {
+        init(x, y, r, null);
+    }
+
+    /**
+     * Initialise with the given circle, only accepting shapes of the given
+     * class, or any shape if it is null.
+     */
+    public void init(float x, float y, float r, Class<?> cls)
     {
         this.x = x;
         this.y = y;
         this.r = r;
+        this.cls = cls;
     }
 
     /**
-     * Return true if the distance from some point on the actor to the center of
-     * the circle, is less than or equal to the radius of the circle.
+     * Return true if the shape is of the given class and the distance from
+     * its logical location to the center of the circle is less than or
+     * equal to the radius of the circle.
      */
     public boolean checkCollision(Shape shape)
     {
-        throw new UnsupportedOperationException("not yet implemented");
-//        int actorX = ActorVisitor.toPixel(actor, ActorVisitor.getX(actor));
-//        int actorY = ActorVisitor.toPixel(actor, ActorVisitor.getY(actor));
-//
-//        int dx = actorX - x;
-//        int dy = actorY - y;
-//        int dist = (int) Math.sqrt(dx * dx + dy * dy);
-//
-//        return (dist) <= r;
+        if (cls != null && !cls.isInstance(shape)) {
+            return false;
+        }
+
+        float dx = shape.getX() - x;
+        float dy = shape.getY() - y;
+
+        return dx * dx + dy * dy <= r * r;
     }
 
 }
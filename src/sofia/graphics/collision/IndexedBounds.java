@@ -0,0 +1,104 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import android.graphics.RectF;
+
+//-------------------------------------------------------------------------
+/**
+ * The box the collision checkers index a shape by: its rotated bounds,
+ * stretched where need be to take in the one-pixel square at its location,
+ * the point given by {@link Shape#getX()} and {@link Shape#getY()}.
+ *
+ * <p>The range and neighbour queries find shapes by their location, not by
+ * their outline. A rotated shape's location is a corner of its unrotated
+ * bounds, which can lie outside its rotated bounds, so a checker indexing
+ * the rotated bounds alone would leave such a shape out of every search
+ * around its location. The square is the same one every point query
+ * searches, so that a location on the box's far edge is still found.
+ *
+ * <p>A transformed shape's box is also widened by {@link #SLACK} on every
+ * side. {@link Shape#contains(float, float)} maps the point back through
+ * the shape's transform, so it can accept a point on the far edge of the
+ * rotated bounds, as it does for a shape turned half way round, or a
+ * rounding error beyond it.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class IndexedBounds
+{
+    /** How far a transformed shape's box is widened on each side. */
+    static final float SLACK = 1;
+
+    private IndexedBounds()
+    {
+        // Only static methods
+    }
+
+
+    /**
+     * Get the box a shape is indexed by, in a new rectangle.
+     */
+    static Rect of(Shape shape)
+    {
+        Rect r = new Rect(0, 0, 0, 0);
+        set(r, shape);
+        return r;
+    }
+
+    /**
+     * Set a rectangle to the box a shape is indexed by.
+     */
+    static void set(Rect r, Shape shape)
+    {
+        float left = left(shape);
+        float top = top(shape);
+        r.set(left, top, right(shape) - left, bottom(shape) - top);
+    }
+
+    static float left(Shape shape)
+    {
+        return Math.min(shape.getRotatedBounds().left - slack(shape),
+            shape.getX());
+    }
+
+    static float top(Shape shape)
+    {
+        return Math.min(shape.getRotatedBounds().top - slack(shape),
+            shape.getY());
+    }
+
+    static float right(Shape shape)
+    {
+        return Math.max(shape.getRotatedBounds().right + slack(shape),
+            shape.getX() + 1);
+    }
+
+    static float bottom(Shape shape)
+    {
+        return Math.max(shape.getRotatedBounds().bottom + slack(shape),
+            shape.getY() + 1);
+    }
+
+    /**
+     * Check whether a shape's indexed box lies within a box it was placed
+     * by.
+     */
+    static boolean isWithin(Shape shape, float left, float top, float right,
+            float bottom)
+    {
+        RectF b = shape.getRotatedBounds();
+        float slack = slack(shape);
+        float x = shape.getX();
+        float y = shape.getY();
+        return Math.min(b.left - slack, x) >= left
+            && Math.min(b.top - slack, y) >= top
+            && Math.max(b.right + slack, x + 1) <= right
+            && Math.max(b.bottom + slack, y + 1) <= bottom;
+    }
+
+    private static float slack(Shape shape)
+    {
+        return (shape.getTransform() == null) ? 0 : SLACK;
+    }
+}
@@ -0,0 +1,233 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * The state of one nearest-neighbour search: the point searched from, and a
+ * priority queue of nodes, cells and shapes ordered by their (squared)
+ * distance from it. A node's distance is the distance to its area, which
+ * is never more than the distance to any shape inside it, so a shape taken
+ * off the front of the queue is always nearer than anything not yet found.
+ *
+ * <p>Distances are measured to a shape's bounding box, with the shape's
+ * rotation taken into account, and are 0 for shapes containing the point.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class NearestQuery
+{
+    final float x;
+    final float y;
+
+    private final int k;
+    private final Class<?> cls;
+    private final List<Shape> results;
+    private final Set<Shape> seen = new HashSet<Shape>();
+
+    private float[] keys = new float[32];
+    private Object[] items = new Object[32];
+    private int[] nodes = new int[32];
+    private int size;
+
+    /** The entry most recently taken off the queue. */
+    Object poppedItem;
+    int poppedNode;
+
+    private Matrix inverse;
+    private float[] point;
+
+
+    /**
+     * Create a search.
+     *
+     * @param x    The x-coordinate of the point to search from
+     * @param y    The y-coordinate of the point to search from
+     * @param k    The number of shapes to find
+     * @param cls  The class of shapes to look for, or null for all
+     */
+    NearestQuery(float x, float y, int k, Class<?> cls)
+    {
+        this.x = x;
+        this.y = y;
+        this.k = k;
+        this.cls = cls;
+        results = new ArrayList<Shape>(Math.max(0, Math.min(k, 16)));
+    }
+
+    /**
+     * Check whether enough shapes have been found.
+     */
+    boolean isDone()
+    {
+        return results.size() >= k;
+    }
+
+    /**
+     * Get the squared distance from the point to an area.
+     */
+    float boxDistance(float left, float top, float right, float bottom)
+    {
+        return squaredDistance(x, y, left, top, right, bottom);
+    }
+
+    /**
+     * Queue a node or cell, identified by an object, an index, or both.
+     */
+    void push(float key, Object item, int node)
+    {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            items = Arrays.copyOf(items, size * 2);
+            nodes = Arrays.copyOf(nodes, size * 2);
+        }
+
+        // Sift up
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            keys[i] = keys[parent];
+            items[i] = items[parent];
+            nodes[i] = nodes[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        items[i] = item;
+        nodes[i] = node;
+    }
+
+    /**
+     * Queue a shape, unless it has been queued before or is of the wrong
+     * class.
+     */
+    void offer(Shape shape)
+    {
+        if (cls != null && ! cls.isInstance(shape)) {
+            return;
+        }
+        if (seen.add(shape)) {
+            push(shapeDistance(shape), shape, -1);
+        }
+    }
+
+    /**
+     * Take the nearest entry off the queue into {@link #poppedItem} and
+     * {@link #poppedNode}. A shape taken off the queue is added to the
+     * results, and popped as null.
+     *
+     * @return False if the queue was empty
+     */
+    boolean pop()
+    {
+        if (size == 0) {
+            return false;
+        }
+
+        Object item = items[0];
+        poppedNode = nodes[0];
+
+        // Sift the last entry down from the top
+        size--;
+        float key = keys[size];
+        Object lastItem = items[size];
+        int lastNode = nodes[size];
+        items[size] = null;
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            keys[i] = keys[child];
+            items[i] = items[child];
+            nodes[i] = nodes[child];
+            i = child;
+        }
+        if (size > 0) {
+            keys[i] = key;
+            items[i] = lastItem;
+            nodes[i] = lastNode;
+        }
+
+        if (item instanceof Shape) {
+            results.add((Shape) item);
+            poppedItem = null;
+        }
+        else {
+            poppedItem = item;
+        }
+        return true;
+    }
+
+    /**
+     * Move queued shapes into the results, nearest first, while the nearest
+     * entry on the queue is a shape no further away than the given squared
+     * distance.
+     */
+    void drain(float bound)
+    {
+        while (! isDone() && size > 0 && keys[0] <= bound
+                && items[0] instanceof Shape) {
+            pop();
+        }
+    }
+
+    /**
+     * Get the shapes found, nearest first.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Shape> List<T> getResults()
+    {
+        return (List<T>) results;
+    }
+
+    /**
+     * Get the squared distance from the point to a shape's bounding box. A
+     * rotated shape is measured by carrying the point into the shape's
+     * unrotated frame, which leaves distances unchanged.
+     */
+    private float shapeDistance(Shape shape)
+    {
+        RectF bounds = shape.getBounds();
+        Matrix xform = shape.getTransform();
+        if (xform == null) {
+            return boxDistance(bounds.left, bounds.top, bounds.right,
+                    bounds.bottom);
+        }
+
+        if (inverse == null) {
+            inverse = new Matrix();
+            point = new float[2];
+        }
+        if (! xform.invert(inverse)) {
+            return Float.POSITIVE_INFINITY;
+        }
+        // The transform is relative to the bounding box's top left corner
+        point[0] = x - bounds.left;
+        point[1] = y - bounds.top;
+        inverse.mapPoints(point);
+        return squaredDistance(point[0], point[1], 0, 0, bounds.width(),
+                bounds.height());
+    }
+
+    private static float squaredDistance(float px, float py, float left,
+            float top, float right, float bottom)
+    {
+        float dx = Math.max(0, Math.max(left - px, px - right));
+        float dy = Math.max(0, Math.max(top - py, py - bottom));
+        return dx * dx + dy * dy;
+    }
+}
@@ -0,0 +1,49 @@
+package sofia.graphics.collision;
+
+import java.util.Arrays;
+
+//-------------------------------------------------------------------------
+/**
+ * A growable stack of node indices, used to walk the flattened trees in
+ * {@link BSPSnapshot} without allocating.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class NodeStack
+{
+    private int[] items = new int[32];
+    private int top;
+
+
+    void push(int node)
+    {
+        if (top == items.length) {
+            items = Arrays.copyOf(items, top * 2);
+        }
+        items[top++] = node;
+    }
+
+    int pop()
+    {
+        return items[--top];
+    }
+
+    /**
+     * Get the number of entries on the stack. A walk that starts with the
+     * stack non-empty runs until the stack is back down to this size, so
+     * walks can be nested.
+     */
+    int size()
+    {
+        return top;
+    }
+
+    /**
+     * Discard entries down to the given size.
+     */
+    void truncate(int size)
+    {
+        top = size;
+    }
+}
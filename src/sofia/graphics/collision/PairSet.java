@@ -0,0 +1,221 @@
+package sofia.graphics.collision;
+
+import java.util.Arrays;
+
+//-------------------------------------------------------------------------
+/**
+ * A set of unordered pairs of non-negative integer ids, stored as
+ * {@code long} keys in an open-addressing hash table so that adding,
+ * removing and looking up pairs never allocates.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class PairSet
+{
+    /** Marks an empty slot; no valid key can be negative. */
+    private static final long EMPTY = -1L;
+
+    private long[] keys;
+    private int size;
+    private int mask;
+    private long[] scratch = new long[0];
+
+
+    PairSet()
+    {
+        keys = new long[16];
+        Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+    }
+
+    /**
+     * Get the key for the unordered pair of the two given ids.
+     */
+    static long key(int id1, int id2)
+    {
+        if (id1 > id2) {
+            int t = id1;
+            id1 = id2;
+            id2 = t;
+        }
+        return ((long) id1 << 32) | id2;
+    }
+
+    /**
+     * Get the smaller id of the pair held in a key.
+     */
+    static int first(long key)
+    {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Get the larger id of the pair held in a key.
+     */
+    static int second(long key)
+    {
+        return (int) key;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean contains(long key)
+    {
+        int i = slot(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Add a key, returning false if it was already present.
+     */
+    boolean add(long key)
+    {
+        int i = slot(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        if (++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Remove a key, returning false if it was not present.
+     */
+    boolean remove(long key)
+    {
+        int i = slot(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                deleteSlot(i);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Remove every pair that includes an id for which the given flags are
+     * set.
+     */
+    void removeAll(boolean[] idFlags)
+    {
+        int count = copyKeys();
+        clear();
+        for (int i = 0; i < count; i++) {
+            long key = scratch[i];
+            if (! isFlagged(idFlags, first(key))
+                && ! isFlagged(idFlags, second(key))) {
+                add(key);
+            }
+        }
+    }
+
+    void clear()
+    {
+        if (size > 0) {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    /**
+     * Copy the keys currently in the set into an internal scratch array,
+     * which can then be read with {@link #copiedKey(int)} while the set is
+     * modified.
+     *
+     * @return The number of keys copied
+     */
+    int copyKeys()
+    {
+        if (scratch.length < size) {
+            scratch = new long[keys.length];
+        }
+        int count = 0;
+        for (long key : keys) {
+            if (key != EMPTY) {
+                scratch[count++] = key;
+            }
+        }
+        return count;
+    }
+
+    long copiedKey(int index)
+    {
+        return scratch[index];
+    }
+
+    /**
+     * Sort the first few copied keys into ascending order.
+     */
+    void sortCopiedKeys(int count)
+    {
+        Arrays.sort(scratch, 0, count);
+    }
+
+    private static boolean isFlagged(boolean[] idFlags, int id)
+    {
+        return id < idFlags.length && idFlags[id];
+    }
+
+    private int slot(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    /**
+     * Empty a slot, shifting back any later entries in the same probe run
+     * so that lookups never stop early at the hole.
+     */
+    private void deleteSlot(int hole)
+    {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            long key = keys[i];
+            if (key == EMPTY) {
+                break;
+            }
+            int home = slot(key);
+            // Move the entry into the hole unless its home slot lies
+            // cyclically between the hole and its current position
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = key;
+                hole = i;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+    }
+
+    private void resize(int capacity)
+    {
+        long[] old = keys;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+        for (long key : old) {
+            if (key != EMPTY) {
+                add(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+
+//-------------------------------------------------------------------------
+/**
+ * Receives pairs of shapes found by a broadphase collision search. Each
+ * unordered pair is reported once per search.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public interface PairVisitor
+{
+    /**
+     * Called for each pair of shapes found.
+     *
+     * @param first   One shape of the pair
+     * @param second  The other shape of the pair
+     */
+    public void visitPair(Shape first, Shape second);
+}
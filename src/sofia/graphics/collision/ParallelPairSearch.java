@@ -0,0 +1,323 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+//-------------------------------------------------------------------------
+/**
+ * Finds the colliding pairs involving a large number of moved shapes on
+ * several threads at once.
+ *
+ * <p>The moved shapes are split into chunks, each of which is searched on
+ * its own thread by querying the collision checker for the shapes each
+ * moved shape intersects. The checker must not be changed while the search
+ * runs; {@link IBSPColChecker} answers the queries from its last published
+ * snapshot, so {@link CollisionChecker#startSequence()} should be called
+ * first. The other checkers lock each query, so they gain nothing from
+ * running in parallel, but give the same results.
+ *
+ * <p>Each chunk keeps the pairs it finds in order, and once every chunk is
+ * done the pairs are passed to the visitor on the calling thread, one chunk
+ * after another. The pairs, and the order they are reported in, therefore
+ * depend only on the order of the moved shapes, never on how the threads
+ * were scheduled. They are the same pairs
+ * {@link CollisionChecker#findCollidingPairs(Collection, PairVisitor)}
+ * finds, which is used instead when fewer shapes than the threshold moved.
+ *
+ * <p>Since the shapes are tested on several threads at once, their
+ * {@link Shape#intersects(Shape)} and {@link Shape#canCollideWith(Shape)}
+ * methods must be safe to call concurrently. Those of the built-in shapes
+ * are, as long as the shapes are not changed during the search; a subclass
+ * that overrides either must keep that true.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class ParallelPairSearch
+{
+    /**
+     * The number of moved shapes at which the search is split across
+     * threads, by default.
+     */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    /** The smallest number of moved shapes worth searching on a thread. */
+    private static final int MIN_CHUNK_SIZE = 32;
+
+    private static ExecutorService sharedExecutor;
+
+    /** The executor, once one has been set; until then, the shared one. */
+    private volatile Executor executor;
+    private volatile boolean executorSet;
+    private volatile int threshold = DEFAULT_THRESHOLD;
+
+    private Shape[] shapes = new Shape[16];
+    /** Each moved shape's index in the shapes array. */
+    private Map<Shape, Integer> order = new HashMap<Shape, Integer>();
+    private Chunk[] chunks = new Chunk[0];
+
+
+    /**
+     * Get the number of moved shapes at which the search is split across
+     * threads.
+     */
+    public int getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * Set the number of moved shapes at which the search is split across
+     * threads.
+     *
+     * @param threshold  The threshold, which must be at least 1
+     */
+    public void setThreshold(int threshold)
+    {
+        if (threshold < 1) {
+            throw new IllegalArgumentException(
+                "The threshold must be at least 1.");
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Get the executor that chunks of the search are run on.
+     */
+    public Executor getExecutor()
+    {
+        return executorSet ? executor : getSharedExecutor();
+    }
+
+    /**
+     * Set the executor that chunks of the search are run on. A null
+     * executor searches every chunk on the calling thread.
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+        executorSet = true;
+    }
+
+    /**
+     * Find every pair of intersecting shapes in which at least one of the
+     * shapes has moved, as
+     * {@link CollisionChecker#findCollidingPairs(Collection, PairVisitor)}
+     * does.
+     *
+     * @param checker  The collision checker holding the shapes
+     * @param moved    The shapes that have moved
+     * @param visitor  Receives each intersecting pair, on the calling thread
+     */
+    public synchronized void findCollidingPairs(CollisionChecker checker,
+            Collection<Shape> moved, PairVisitor visitor)
+    {
+        if (moved.size() < threshold) {
+            checker.findCollidingPairs(moved, visitor);
+            return;
+        }
+
+        int count = 0;
+        for (Shape shape : moved) {
+            if (order.containsKey(shape)) {
+                continue;
+            }
+            if (count == shapes.length) {
+                shapes = Arrays.copyOf(shapes, count * 2);
+            }
+            order.put(shape, count);
+            shapes[count++] = shape;
+        }
+
+        Executor exec = getExecutor();
+        int chunkCount = 1;
+        if (exec != null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            chunkCount = Math.max(1,
+                Math.min(threads * 4, count / MIN_CHUNK_SIZE));
+        }
+        if (chunks.length < chunkCount) {
+            int old = chunks.length;
+            chunks = Arrays.copyOf(chunks, chunkCount);
+            for (int i = old; i < chunkCount; i++) {
+                chunks[i] = new Chunk();
+            }
+        }
+
+        CountDownLatch done = new CountDownLatch(chunkCount - 1);
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i].init(checker, count * i / chunkCount,
+                count * (i + 1) / chunkCount, done);
+        }
+        try {
+            // This thread searches the first chunk itself
+            for (int i = 1; i < chunkCount; i++) {
+                try {
+                    exec.execute(chunks[i]);
+                }
+                catch (RejectedExecutionException e) {
+                    chunks[i].run();
+                }
+            }
+            chunks[0].search();
+            awaitQuietly(done);
+
+            for (int i = 0; i < chunkCount; i++) {
+                chunks[i].report(visitor);
+            }
+        }
+        finally {
+            for (int i = 0; i < chunkCount; i++) {
+                chunks[i].clear();
+            }
+            Arrays.fill(shapes, 0, count, null);
+            order.clear();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch)
+    {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized Executor getSharedExecutor()
+    {
+        if (sharedExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            sharedExecutor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "Pair search");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return sharedExecutor;
+    }
+
+
+    /**
+     * One run of moved shapes, and the pairs found for them.
+     */
+    private class Chunk
+        implements Runnable, ShapeVisitor<Shape>
+    {
+        private CollisionChecker checker;
+        private int start;
+        private int end;
+        private CountDownLatch done;
+        private Throwable failure;
+
+        private Shape[] firsts = new Shape[16];
+        private Shape[] seconds = new Shape[16];
+        private int pairCount;
+
+        /** The moved shape being queried, and its index. */
+        private Shape shape;
+        private int index;
+
+        void init(CollisionChecker checker, int start, int end,
+                CountDownLatch done)
+        {
+            this.checker = checker;
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        public void run()
+        {
+            try {
+                search();
+            }
+            finally {
+                done.countDown();
+            }
+        }
+
+        void search()
+        {
+            try {
+                for (index = start; index < end; index++) {
+                    shape = shapes[index];
+                    checker.forEachIntersectingObject(shape, null, this);
+                }
+            }
+            catch (RuntimeException e) {
+                failure = e;
+            }
+            catch (Error e) {
+                failure = e;
+            }
+            finally {
+                shape = null;
+            }
+        }
+
+        public boolean visit(Shape other)
+        {
+            if (other == shape || (shape.isStatic() && other.isStatic())) {
+                return true;
+            }
+
+            Integer otherIndex = order.get(other);
+            if (otherIndex != null && otherIndex < index) {
+                // A pair of moved shapes is found from the side of the
+                // earlier one
+                return true;
+            }
+
+            if (pairCount == firsts.length) {
+                firsts = Arrays.copyOf(firsts, pairCount * 2);
+                seconds = Arrays.copyOf(seconds, pairCount * 2);
+            }
+            firsts[pairCount] = shape;
+            seconds[pairCount] = other;
+            pairCount++;
+            return true;
+        }
+
+        void report(PairVisitor visitor)
+        {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            for (int i = 0; i < pairCount; i++) {
+                visitor.visitPair(firsts[i], seconds[i]);
+            }
+        }
+
+        void clear()
+        {
+            Arrays.fill(firsts, 0, pairCount, null);
+            Arrays.fill(seconds, 0, pairCount, null);
+            pairCount = 0;
+            checker = null;
+            done = null;
+            failure = null;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * Remembers the results of location queries until the shapes next change,
+ * so that the same query asked several times in one frame (such as by
+ * several actors about the same tile) is only answered once.
+ *
+ * <p>Results are keyed by the kind of query, its class and its parameters.
+ * A query about a shape also takes in the shape's current bounds and
+ * rotation, so it misses once the shape has moved. Every change to the
+ * collision checker must be followed by a call to {@link #invalidate()},
+ * which starts a new epoch and forgets every result.
+ *
+ * <p>The same result object is handed to everyone who asks the same query
+ * in an epoch, so results should be stored unmodifiable.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class QueryCache
+{
+    /** The shapes at a point. */
+    public static final int SHAPES_AT = 0;
+    /** The shapes intersecting a shape. */
+    public static final int INTERSECTING = 1;
+    /** The shapes within a circle. */
+    public static final int IN_RANGE = 2;
+    /** The neighbours of a shape. */
+    public static final int NEIGHBORS = 3;
+    /** The shapes along a line. */
+    public static final int IN_DIRECTION = 4;
+
+    private Map<Key, Object> results = new HashMap<Key, Object>();
+    /** Reused for lookups, so that a hit allocates nothing. */
+    private Key probe = new Key();
+    private int epoch;
+    private long hits;
+    private long misses;
+
+
+    /**
+     * Look up the result of a query.
+     *
+     * @param kind   The kind of query
+     * @param shape  The shape the query is about, or null
+     * @param cls    The class of shapes the query looks for, or null
+     * @param a      The query's first parameter
+     * @param b      The query's second parameter
+     * @param c      The query's third parameter
+     * @param d      The query's fourth parameter
+     * @return The result remembered this epoch, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T lookup(int kind, Shape shape, Class<?> cls,
+            float a, float b, float c, float d)
+    {
+        probe.set(kind, shape, cls, a, b, c, d);
+        Object result = results.get(probe);
+        if (result != null) {
+            hits++;
+        }
+        else {
+            misses++;
+        }
+        return (T) result;
+    }
+
+    /**
+     * Remember the result of a query for the rest of this epoch. The
+     * parameters are the same as for
+     * {@link #lookup(int, Shape, Class, float, float, float, float)}.
+     */
+    public synchronized void put(int kind, Shape shape, Class<?> cls,
+            float a, float b, float c, float d, Object result)
+    {
+        Key key = new Key();
+        key.set(kind, shape, cls, a, b, c, d);
+        results.put(key, result);
+    }
+
+    /**
+     * Forget every result, starting a new epoch.
+     */
+    public synchronized void invalidate()
+    {
+        epoch++;
+        if (! results.isEmpty()) {
+            results.clear();
+        }
+    }
+
+    /**
+     * Get the number of times the shapes have changed since the cache was
+     * created.
+     */
+    public synchronized int getEpoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * Get the number of lookups that found a result.
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups that found nothing, so the query had to be
+     * run.
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Set the hit and miss counts back to 0.
+     */
+    public synchronized void resetCounts()
+    {
+        hits = 0;
+        misses = 0;
+    }
+
+
+    /**
+     * The kind and parameters of a query.
+     */
+    private static final class Key
+    {
+        private int kind;
+        private Shape shape;
+        private Class<?> cls;
+        /** The query's parameters, then the shape's bounds and rotation. */
+        private final float[] params = new float[9];
+        private int hash;
+
+        void set(int kind, Shape shape, Class<?> cls, float a, float b,
+                float c, float d)
+        {
+            this.kind = kind;
+            this.shape = shape;
+            this.cls = cls;
+            params[0] = a;
+            params[1] = b;
+            params[2] = c;
+            params[3] = d;
+            if (shape != null) {
+                RectF bounds = shape.getBounds();
+                params[4] = bounds.left;
+                params[5] = bounds.top;
+                params[6] = bounds.right;
+                params[7] = bounds.bottom;
+                params[8] = shape.getRotation();
+            }
+            else {
+                Arrays.fill(params, 4, params.length, 0);
+            }
+
+            int h = kind;
+            h = h * 31 + System.identityHashCode(shape);
+            h = h * 31 + ((cls == null) ? 0 : cls.hashCode());
+            for (float param : params) {
+                h = h * 31 + Float.floatToIntBits(param);
+            }
+            hash = h;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (! (other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            if (key.hash != hash || key.kind != kind || key.shape != shape
+                    || key.cls != cls) {
+                return false;
+            }
+            for (int i = 0; i < params.length; i++) {
+                if (Float.floatToIntBits(key.params[i])
+                        != Float.floatToIntBits(params[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
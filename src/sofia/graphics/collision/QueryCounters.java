@@ -0,0 +1,119 @@
+package sofia.graphics.collision;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+//-------------------------------------------------------------------------
+/**
+ * Counts the queries a collision checker answers and the work they do, for
+ * {@link CollisionChecker#getQueryStats()}. Queries may run on several
+ * threads at once, so each query counts its work locally and adds it here
+ * once, when it is done.
+ *
+ * <p>Each thread adds to counts of its own, which no other thread writes,
+ * so that threads querying at the same time do not contend for the same
+ * counts; they are summed when the stats are asked for. A thread's counts
+ * are kept after it ends, so that its work is still reported.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class QueryCounters
+{
+    private static final Counts[] NO_COUNTS = new Counts[0];
+
+    /** The counts of every thread that has counted anything. */
+    private Counts[] allCounts = NO_COUNTS;
+    private final ThreadLocal<Counts> threadCounts = new ThreadLocal<Counts>() {
+        protected Counts initialValue()
+        {
+            return register(new Counts());
+        }
+    };
+
+
+    /**
+     * One thread's counts. Only that thread adds to them, so each count is
+     * read and then written with an ordered store rather than updated
+     * atomically.
+     */
+    private static final class Counts
+    {
+        final AtomicLong queries = new AtomicLong();
+        final AtomicLong nodes = new AtomicLong();
+        final AtomicLong candidates = new AtomicLong();
+
+        /** The counts when they were last reset, guarded by the counters. */
+        long queriesAtReset;
+        long nodesAtReset;
+        long candidatesAtReset;
+    }
+
+
+    /**
+     * Count the start of a query.
+     */
+    void countQuery()
+    {
+        AtomicLong queries = threadCounts.get().queries;
+        queries.lazySet(queries.get() + 1);
+    }
+
+    /**
+     * Add the work done by (part of) a query.
+     *
+     * @param nodeCount       The number of nodes searched
+     * @param candidateCount  The number of shapes tested
+     */
+    void record(int nodeCount, int candidateCount)
+    {
+        if (nodeCount == 0 && candidateCount == 0) {
+            return;
+        }
+        Counts counts = threadCounts.get();
+        counts.nodes.lazySet(counts.nodes.get() + nodeCount);
+        counts.candidates.lazySet(counts.candidates.get() + candidateCount);
+    }
+
+    /**
+     * Get the counts so far. Queries still running on other threads may or
+     * may not be counted yet.
+     */
+    synchronized QueryStats getStats()
+    {
+        long queries = 0;
+        long nodes = 0;
+        long candidates = 0;
+        for (Counts counts : allCounts) {
+            queries += counts.queries.get() - counts.queriesAtReset;
+            nodes += counts.nodes.get() - counts.nodesAtReset;
+            candidates += counts.candidates.get() - counts.candidatesAtReset;
+        }
+        return new QueryStats(queries, nodes, candidates);
+    }
+
+    /**
+     * Set the counts back to 0. As only its own thread writes each count,
+     * the counts are not cleared, but what they hold now is subtracted
+     * from them from now on.
+     */
+    synchronized void reset()
+    {
+        for (Counts counts : allCounts) {
+            counts.queriesAtReset = counts.queries.get();
+            counts.nodesAtReset = counts.nodes.get();
+            counts.candidatesAtReset = counts.candidates.get();
+        }
+    }
+
+    /**
+     * Add a thread's new counts to those summed.
+     */
+    private synchronized Counts register(Counts counts)
+    {
+        Counts[] all = Arrays.copyOf(allCounts, allCounts.length + 1);
+        all[all.length - 1] = counts;
+        allCounts = all;
+        return counts;
+    }
+}
@@ -0,0 +1,79 @@
+package sofia.graphics.collision;
+
+//-------------------------------------------------------------------------
+/**
+ * The amount of work a collision checker's queries have done since its
+ * counts were last reset. A node is whatever unit the checker searches
+ * through: a node of a tree, or a cell of a grid. A candidate is a shape
+ * found in a node and tested against a query.
+ *
+ * <p>The search made by
+ * {@link CollisionChecker#findCollidingPairs(java.util.Collection, PairVisitor)}
+ * is not counted, and neither are requests to list every shape.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public final class QueryStats
+{
+    private final long queryCount;
+    private final long nodesVisited;
+    private final long candidatesTested;
+
+
+    QueryStats(long queryCount, long nodesVisited, long candidatesTested)
+    {
+        this.queryCount = queryCount;
+        this.nodesVisited = nodesVisited;
+        this.candidatesTested = candidatesTested;
+    }
+
+    /**
+     * Get the number of queries made.
+     */
+    public long getQueryCount()
+    {
+        return queryCount;
+    }
+
+    /**
+     * Get the number of nodes the queries searched.
+     */
+    public long getNodesVisited()
+    {
+        return nodesVisited;
+    }
+
+    /**
+     * Get the number of shapes the queries tested.
+     */
+    public long getCandidatesTested()
+    {
+        return candidatesTested;
+    }
+
+    /**
+     * Get the number of nodes searched per query, or 0 if no queries have
+     * been made.
+     */
+    public float getAverageNodesVisited()
+    {
+        return (queryCount == 0) ? 0 : (float) nodesVisited / queryCount;
+    }
+
+    /**
+     * Get the number of shapes tested per query, or 0 if no queries have
+     * been made.
+     */
+    public float getAverageCandidatesTested()
+    {
+        return (queryCount == 0) ? 0 : (float) candidatesTested / queryCount;
+    }
+
+    public String toString()
+    {
+        return queryCount + " queries, " + getAverageNodesVisited()
+            + " nodes and " + getAverageCandidatesTested()
+            + " candidates per query";
+    }
+}
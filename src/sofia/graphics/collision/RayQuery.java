@@ -0,0 +1,230 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * The state of one raycast: the ray, the shapes hit so far, and how far
+ * along the ray a node or cell may start and still be worth searching.
+ * Checkers walk their nodes or cells nearest first and ask
+ * {@link #enter(float, float, float, float)} before searching each one; once
+ * a first-hit query has found a shape, anything that starts beyond it is
+ * skipped.
+ *
+ * <p>A shape is hit if the ray touches its bounding box, with the shape's
+ * rotation taken into account.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class RayQuery
+{
+    /** Returned by {@link #enter} for areas not worth searching. */
+    static final float MISS = -1;
+
+    /** The start of the ray. */
+    final float x;
+    final float y;
+    /** The unit direction of the ray. */
+    final float dx;
+    final float dy;
+    final float length;
+
+    private final Class<?> cls;
+    private final boolean firstOnly;
+
+    private Shape nearest;
+    private float nearestDistance;
+    private Map<Shape, Float> hits;
+
+    private Matrix inverse;
+    private float[] points;
+
+
+    /**
+     * Create a raycast.
+     *
+     * @param x          The x-coordinate of the start of the ray
+     * @param y          The y-coordinate of the start of the ray
+     * @param angle      The direction of the ray, in degrees clockwise from
+     *                   the positive x-axis
+     * @param length     The length of the ray
+     * @param cls        The class of shapes to look for, or null for all
+     * @param firstOnly  True to find only the nearest shape, false to find
+     *                   every shape the ray hits
+     */
+    RayQuery(float x, float y, float angle, float length, Class<?> cls,
+            boolean firstOnly)
+    {
+        this.x = x;
+        this.y = y;
+        this.dx = (float) Math.cos(Math.toRadians(angle));
+        this.dy = (float) Math.sin(Math.toRadians(angle));
+        this.length = length;
+        this.cls = cls;
+        this.firstOnly = firstOnly;
+        nearestDistance = length;
+        if (! firstOnly) {
+            hits = new HashMap<Shape, Float>();
+        }
+    }
+
+    /**
+     * Get the distance beyond which nothing more needs to be searched:
+     * the nearest hit so far for a first-hit query, otherwise the length
+     * of the ray.
+     */
+    float getLimit()
+    {
+        return firstOnly ? nearestDistance : length;
+    }
+
+    /**
+     * Get the distance along the ray at which it enters an area (edges
+     * included), or {@link #MISS} if it misses the area or only enters it
+     * beyond {@link #getLimit()}.
+     */
+    float enter(float left, float top, float right, float bottom)
+    {
+        return slab(x, y, dx, dy, getLimit(), left, top, right, bottom);
+    }
+
+    /**
+     * Test a shape against the ray, recording it if it is hit.
+     */
+    void offer(Shape shape)
+    {
+        if (cls != null && ! cls.isInstance(shape)) {
+            return;
+        }
+        if (firstOnly && shape == nearest) {
+            return;
+        }
+
+        float distance = hitDistance(shape);
+        if (distance == MISS) {
+            return;
+        }
+
+        if (firstOnly) {
+            if (nearest == null || distance < nearestDistance) {
+                nearest = shape;
+                nearestDistance = distance;
+            }
+        }
+        else {
+            hits.put(shape, distance);
+        }
+    }
+
+    /**
+     * Get the nearest shape hit, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Shape> RaycastHit<T> getNearest()
+    {
+        if (nearest == null) {
+            return null;
+        }
+        return new RaycastHit<T>((T) nearest, nearestDistance,
+                x + dx * nearestDistance, y + dy * nearestDistance);
+    }
+
+    /**
+     * Get every shape hit, nearest first.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Shape> Set<T> getHits()
+    {
+        List<Map.Entry<Shape, Float>> sorted =
+            new ArrayList<Map.Entry<Shape, Float>>(hits.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<Shape, Float>>() {
+            public int compare(Map.Entry<Shape, Float> a,
+                    Map.Entry<Shape, Float> b)
+            {
+                return Float.compare(a.getValue(), b.getValue());
+            }
+        });
+
+        Set<T> result = new LinkedHashSet<T>();
+        for (Map.Entry<Shape, Float> hit : sorted) {
+            result.add((T) hit.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Get the distance along the ray at which it first touches a shape, or
+     * {@link #MISS}. A rotated shape is tested by carrying the ray into the
+     * shape's unrotated frame, which leaves distances along it unchanged.
+     */
+    private float hitDistance(Shape shape)
+    {
+        RectF bounds = shape.getBounds();
+        Matrix xform = shape.getTransform();
+        if (xform == null) {
+            return slab(x, y, dx, dy, getLimit(),
+                    bounds.left, bounds.top, bounds.right, bounds.bottom);
+        }
+
+        if (inverse == null) {
+            inverse = new Matrix();
+            points = new float[4];
+        }
+        if (! xform.invert(inverse)) {
+            return MISS;
+        }
+        // The transform is relative to the bounding box's top left corner
+        points[0] = x - bounds.left;
+        points[1] = y - bounds.top;
+        points[2] = points[0] + dx;
+        points[3] = points[1] + dy;
+        inverse.mapPoints(points);
+        return slab(points[0], points[1], points[2] - points[0],
+                points[3] - points[1], getLimit(),
+                0, 0, bounds.width(), bounds.height());
+    }
+
+    /**
+     * Intersect a ray with a box, one pair of parallel edges at a time.
+     *
+     * @return The distance at which the ray enters the box (0 if it starts
+     *         inside), or {@link #MISS} if it misses or enters beyond the
+     *         limit
+     */
+    private static float slab(float ox, float oy, float dx, float dy,
+            float limit, float left, float top, float right, float bottom)
+    {
+        float near = 0;
+        float far = limit;
+
+        if (dx == 0) {
+            if (ox < left || ox > right) {
+                return MISS;
+            }
+        }
+        else {
+            float t1 = (left - ox) / dx;
+            float t2 = (right - ox) / dx;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+
+        if (dy == 0) {
+            if (oy < top || oy > bottom) {
+                return MISS;
+            }
+        }
+        else {
+            float t1 = (top - oy) / dy;
+            float t2 = (bottom - oy) / dy;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+
+        return (near <= far) ? near : MISS;
+    }
+}
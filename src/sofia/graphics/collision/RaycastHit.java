@@ -0,0 +1,70 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+
+//-------------------------------------------------------------------------
+/**
+ * The nearest shape hit by a ray, as found by
+ * {@link CollisionChecker#raycastFirst(float, float, float, float, Class)}.
+ *
+ * @param <T>  The type of shape hit
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public final class RaycastHit<T extends Shape>
+{
+    private final T shape;
+    private final float distance;
+    private final float x;
+    private final float y;
+
+
+    RaycastHit(T shape, float distance, float x, float y)
+    {
+        this.shape = shape;
+        this.distance = distance;
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Get the shape that was hit.
+     */
+    public T getShape()
+    {
+        return shape;
+    }
+
+    /**
+     * Get the distance along the ray from its start to the point where it
+     * first touches the shape. This is 0 if the ray starts inside the shape.
+     */
+    public float getDistance()
+    {
+        return distance;
+    }
+
+    /**
+     * Get the x-coordinate of the point where the ray first touches the
+     * shape.
+     */
+    public float getX()
+    {
+        return x;
+    }
+
+    /**
+     * Get the y-coordinate of the point where the ray first touches the
+     * shape.
+     */
+    public float getY()
+    {
+        return y;
+    }
+
+    public String toString()
+    {
+        return "hit " + shape + " at " + distance;
+    }
+}
@@ -0,0 +1,62 @@
+package sofia.graphics.collision;
+
+//-------------------------------------------------------------------------
+/**
+ * Decides when an {@link IBSPColChecker} should rebuild its tree. The tree
+ * is only ever extended as shapes are added and move, so as shapes drift it
+ * grows deeper and less even than a tree built from scratch would be; the
+ * checker asks its policy each time it publishes a new snapshot.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public interface RebalancePolicy
+{
+    /**
+     * Rebuilds the tree once it has become more than
+     * {@link IBSPColChecker#REBALANCE_THRESHOLD} levels deeper, or has a
+     * node holding more than that many more shapes, than either a balanced
+     * tree or the tree as it was just after the last rebuild. Comparing with
+     * the last rebuild keeps a tree that cannot be improved (such as one
+     * with many shapes piled on the same spot) from being rebuilt over and
+     * over.
+     */
+    public static final RebalancePolicy DEFAULT = new RebalancePolicy() {
+        public boolean shouldRebalance(BSPTreeStats current,
+                BSPTreeStats lastRebuilt)
+        {
+            int depth = current.getBalancedDepth();
+            int crowding = 1;
+            if (lastRebuilt != null) {
+                depth = Math.max(depth, lastRebuilt.getMaxDepth());
+                crowding = Math.max(crowding, lastRebuilt.getMaxShapesPerNode());
+            }
+            return current.getMaxDepth() > depth + IBSPColChecker.REBALANCE_THRESHOLD
+                || current.getMaxShapesPerNode()
+                    > crowding + IBSPColChecker.REBALANCE_THRESHOLD;
+        }
+    };
+
+    /**
+     * Never rebuilds the tree, except when
+     * {@link IBSPColChecker#rebalance()} is called.
+     */
+    public static final RebalancePolicy NEVER = new RebalancePolicy() {
+        public boolean shouldRebalance(BSPTreeStats current,
+                BSPTreeStats lastRebuilt)
+        {
+            return false;
+        }
+    };
+
+
+    /**
+     * Decide whether the tree should be rebuilt.
+     *
+     * @param current      The tree as it is now
+     * @param lastRebuilt  The tree as it was just after it was last rebuilt,
+     *                     or null if it never has been
+     * @return True to rebuild the tree
+     */
+    public boolean shouldRebalance(BSPTreeStats current, BSPTreeStats lastRebuilt);
+}
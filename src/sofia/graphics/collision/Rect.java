@@ -44,6 +44,14 @@ final public class Rect
         this.height = height;
     }
 
+    public void set(float x, float y, float width, float height)
+    {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
     public void copyFrom(Rect other)
     {
         this.x = other.x;
@@ -0,0 +1,502 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * A collision checker that keeps no spatial structure at all, and answers
+ * every query by scanning the bounds of every shape.
+ *
+ * <p>The bounds are kept in four parallel arrays of floats (left, top,
+ * right and bottom), which are updated in place when a shape moves, so
+ * moving a shape costs a map lookup and four stores. A scan compares a
+ * search area against each entry without branching, writing the index of
+ * each entry that overlaps into a list of hits, and only the hits are
+ * tested against the query. For a few hundred shapes or fewer this is
+ * faster than walking a tree; {@link AdaptiveColChecker} switches between
+ * this checker and a tree as the number of shapes changes.
+ *
+ * <p>The scan is written as a plain counted loop over primitive arrays,
+ * which the JIT on desktop JVMs and ART on Android can unroll and, where
+ * the hardware allows, vectorize.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class ScanColChecker implements CollisionChecker
+{
+    private Shape[] shapes = new Shape[16];
+    private float[] lefts = new float[16];
+    private float[] tops = new float[16];
+    private float[] rights = new float[16];
+    private float[] bottoms = new float[16];
+    private int count;
+    /** Each shape's index in the arrays. */
+    private Map<Shape, Integer> slots = new HashMap<Shape, Integer>();
+
+    /** The entries found by the last scan. */
+    private int[] hits = new int[16];
+    /** Each entry's position among the moved shapes, or -1. */
+    private int[] movedOrder = new int[0];
+    private int[] movedSlots = new int[16];
+
+    private GOCollisionQuery shapeQuery = new GOCollisionQuery();
+    private NeighbourCollisionQuery neighbourQuery = new NeighbourCollisionQuery();
+    private PointCollisionQuery pointQuery = new PointCollisionQuery();
+    private InRangeQuery inRangeQuery = new InRangeQuery();
+    /** The area searched by the query under way. */
+    private Rect searchArea = new Rect(0, 0, 0, 0);
+    private VisitorQuery.Pool visitorQueries = new VisitorQuery.Pool();
+
+    private final QueryCounters queryCounters = new QueryCounters();
+
+
+    /**
+     * Get the number of shapes held.
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    public synchronized void addObject(Shape shape)
+    {
+        if (slots.containsKey(shape)) {
+            return;
+        }
+
+        if (count == shapes.length) {
+            int length = count * 2;
+            shapes = Arrays.copyOf(shapes, length);
+            lefts = Arrays.copyOf(lefts, length);
+            tops = Arrays.copyOf(tops, length);
+            rights = Arrays.copyOf(rights, length);
+            bottoms = Arrays.copyOf(bottoms, length);
+            hits = new int[length];
+        }
+        shapes[count] = shape;
+        slots.put(shape, count);
+        store(count, shape);
+        count++;
+    }
+
+    public synchronized void addObjects(Collection<Shape> shapes)
+    {
+        for (Shape shape : shapes) {
+            addObject(shape);
+        }
+    }
+
+    /**
+     * The last entry is moved into the removed shape's place, so the arrays
+     * stay packed.
+     */
+    public synchronized void removeObject(Shape shape)
+    {
+        Integer slot = slots.remove(shape);
+        if (slot == null) {
+            return;
+        }
+
+        int last = --count;
+        if (slot != last) {
+            Shape moved = shapes[last];
+            shapes[slot] = moved;
+            lefts[slot] = lefts[last];
+            tops[slot] = tops[last];
+            rights[slot] = rights[last];
+            bottoms[slot] = bottoms[last];
+            slots.put(moved, slot);
+        }
+        shapes[last] = null;
+    }
+
+    public synchronized void updateObjectLocation(Shape object)
+    {
+        updateObject(object);
+    }
+
+    public synchronized void updateObjectSize(Shape object)
+    {
+        updateObject(object);
+    }
+
+    /**
+     * Shapes are not split up by collision category, so nothing needs to be
+     * updated; shapes are filtered as they are found.
+     */
+    public void updateObjectFilter(Shape object)
+    {
+        // Nothing to do
+    }
+
+    public void updateObjectStatic(Shape object)
+    {
+        // Nothing to do
+    }
+
+    private void updateObject(Shape shape)
+    {
+        Integer slot = slots.get(shape);
+        if (slot != null) {
+            store(slot, shape);
+        }
+    }
+
+    private void store(int slot, Shape shape)
+    {
+        lefts[slot] = IndexedBounds.left(shape);
+        tops[slot] = IndexedBounds.top(shape);
+        rights[slot] = IndexedBounds.right(shape);
+        bottoms[slot] = IndexedBounds.bottom(shape);
+    }
+
+    /**
+     * Find every entry whose bounds overlap an area, with the same edge
+     * rules as Rect.intersects(), leaving their indexes at the start of
+     * {@link #hits}.
+     *
+     * @return The number of entries found
+     */
+    private int scan(float left, float top, float right, float bottom)
+    {
+        float[] ls = lefts;
+        float[] ts = tops;
+        float[] rs = rights;
+        float[] bs = bottoms;
+        int[] found = hits;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            found[n] = i;
+            n += (ls[i] < right & left < rs[i] & ts[i] < bottom
+                & top < bs[i]) ? 1 : 0;
+        }
+        return n;
+    }
+
+    private int scan(Rect r)
+    {
+        return scan(r.getX(), r.getY(), r.getRight(), r.getTop());
+    }
+
+    /**
+     * Set the search area to a shape's rotated bounds.
+     */
+    private Rect searchArea(Shape shape)
+    {
+        RectF b = shape.getRotatedBounds();
+        return searchArea(b.left, b.top, b.right - b.left, b.bottom - b.top);
+    }
+
+    /**
+     * Set the search area to the one-pixel square at a point, the area
+     * every point query searches for shapes containing the point.
+     */
+    private Rect searchArea(float x, float y)
+    {
+        return searchArea(x, y, 1, 1);
+    }
+
+    private Rect searchArea(float x, float y, float width, float height)
+    {
+        searchArea.set(x, y, width, height);
+        return searchArea;
+    }
+
+    private void collect(Rect r, CollisionQuery query, Set<Shape> resultSet)
+    {
+        int n = scan(r);
+        for (int i = 0; i < n; i++) {
+            Shape shape = shapes[hits[i]];
+            if (query.checkCollision(shape)) {
+                resultSet.add(shape);
+            }
+        }
+        countQuery(n);
+    }
+
+    private Shape findOne(Rect r, CollisionQuery query, Shape ignore)
+    {
+        int n = scan(r);
+        Shape found = null;
+        for (int i = 0; i < n && found == null; i++) {
+            Shape shape = shapes[hits[i]];
+            if (shape != ignore && query.checkCollision(shape)) {
+                found = shape;
+            }
+        }
+        countQuery(n);
+        return found;
+    }
+
+    /**
+     * Run a visiting query and return it to the pool. The visitor may run
+     * queries of its own, so the entries are offered as they are found
+     * rather than gathered into the shared list of hits first.
+     *
+     * @return The number of shapes visited
+     */
+    private int visitObjects(VisitorQuery query)
+    {
+        int tested = 0;
+        int visited;
+        try {
+            float left = query.left;
+            float top = query.top;
+            float right = query.right;
+            float bottom = query.bottom;
+            for (int i = 0; i < count; i++) {
+                if (lefts[i] < right && left < rights[i]
+                        && tops[i] < bottom && top < bottoms[i]) {
+                    tested++;
+                    if (! query.offer(shapes[i])) {
+                        break;
+                    }
+                }
+            }
+        }
+        finally {
+            visited = visitorQueries.release(query);
+            countQuery(tested);
+        }
+        return visited;
+    }
+
+    public synchronized <T extends Shape> int forEachObjectAt(float x, float y,
+            Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitorQuery query = visitorQueries.obtain();
+        query.initPoint(x, y, cls, visitor);
+        return visitObjects(query);
+    }
+
+    public synchronized <T extends Shape> int forEachIntersectingObject(Shape shape,
+            Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitorQuery query = visitorQueries.obtain();
+        query.initIntersecting(shape, cls, visitor);
+        return visitObjects(query);
+    }
+
+    public synchronized <T extends Shape> int forEachObjectInRange(float x, float y,
+            float r, Class<T> cls, ShapeVisitor<? super T> visitor)
+    {
+        VisitorQuery query = visitorQueries.obtain();
+        query.initInRange(x, y, r, cls, visitor);
+        return visitObjects(query);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getObjectsAt(float x, float y, Class<T> cls)
+    {
+        pointQuery.init(x, y, cls);
+        Set<Shape> result = new HashSet<Shape>();
+        collect(searchArea(x, y), pointQuery, result);
+        return (Set<T>) result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getIntersectingObjects(Shape shape,
+            Class<T> cls)
+    {
+        shapeQuery.init(cls, shape);
+        Set<Shape> result = new HashSet<Shape>();
+        collect(searchArea(shape), shapeQuery, result);
+        return (Set<T>) result;
+    }
+
+    /**
+     * Scans once for each moved shape. A pair of moved shapes is only
+     * reported from the side of whichever comes first in the collection,
+     * and two static shapes are never paired.
+     */
+    public synchronized void findCollidingPairs(Collection<Shape> moved,
+            PairVisitor visitor)
+    {
+        if (movedOrder.length < shapes.length) {
+            movedOrder = new int[shapes.length];
+            Arrays.fill(movedOrder, -1);
+        }
+
+        int movedCount = 0;
+        for (Shape shape : moved) {
+            Integer slot = slots.get(shape);
+            if (slot == null || movedOrder[slot] >= 0) {
+                continue;
+            }
+            if (movedCount == movedSlots.length) {
+                movedSlots = Arrays.copyOf(movedSlots, movedCount * 2);
+            }
+            movedOrder[slot] = movedCount;
+            movedSlots[movedCount++] = slot;
+        }
+
+        try {
+            for (int k = 0; k < movedCount; k++) {
+                int slot = movedSlots[k];
+                Shape shape = shapes[slot];
+                shapeQuery.init(null, shape);
+                int n = scan(lefts[slot], tops[slot], rights[slot],
+                    bottoms[slot]);
+                for (int i = 0; i < n; i++) {
+                    int other = hits[i];
+                    if (other == slot
+                            || (movedOrder[other] >= 0 && movedOrder[other] < k)) {
+                        continue;
+                    }
+                    Shape otherShape = shapes[other];
+                    if (! (shape.isStatic() && otherShape.isStatic())
+                            && shapeQuery.checkCollision(otherShape)) {
+                        visitor.visitPair(shape, otherShape);
+                    }
+                }
+            }
+        }
+        finally {
+            for (int k = 0; k < movedCount; k++) {
+                movedOrder[movedSlots[k]] = -1;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getObjectsInRange(float x, float y, float r,
+            Class<T> cls)
+    {
+        float size = 2 * r;
+        Rect rect = searchArea(x - r, y - r, size, size);
+
+        Set<Shape> result = new HashSet<Shape>();
+        inRangeQuery.init(x, y, r, cls);
+        collect(rect, inRangeQuery, result);
+        return (Set<T>) result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getNeighbors(Shape shape, float distance,
+            boolean diag, Class<T> cls)
+    {
+        float x = shape.getX();
+        float y = shape.getY();
+
+        Rect r = searchArea(x - distance, y - distance, distance * 2 + 1,
+            distance * 2 + 1);
+
+        neighbourQuery.init(x, y, distance, diag, cls);
+        Set<Shape> result = new HashSet<Shape>();
+        collect(r, neighbourQuery, result);
+        return (Set<T>) result;
+    }
+
+    public synchronized <T extends Shape> Set<T> getObjectsInDirection(float x,
+            float y, float angle, float length, Class<T> cls)
+    {
+        RayQuery query = new RayQuery(x, y, angle, length, cls, false);
+        raycast(query);
+        return query.getHits();
+    }
+
+    public synchronized <T extends Shape> RaycastHit<T> raycastFirst(float x,
+            float y, float angle, float length, Class<T> cls)
+    {
+        RayQuery query = new RayQuery(x, y, angle, length, cls, true);
+        raycast(query);
+        return query.getNearest();
+    }
+
+    public synchronized <T extends Shape> SweepHit<T> sweepFirst(Shape shape,
+            float dx, float dy, Class<T> cls)
+    {
+        SweepQuery sweep = new SweepQuery(shape, dx, dy);
+        VisitorQuery query = visitorQueries.obtain();
+        query.initSwept(shape, dx, dy, cls, sweep);
+        visitObjects(query);
+        return sweep.getFirst();
+    }
+
+    /**
+     * Offer every shape whose bounds the ray enters to a raycast.
+     */
+    private void raycast(RayQuery query)
+    {
+        int tested = 0;
+        for (int i = 0; i < count; i++) {
+            if (query.enter(lefts[i], tops[i], rights[i], bottoms[i])
+                    != RayQuery.MISS) {
+                tested++;
+                query.offer(shapes[i]);
+            }
+        }
+        countQuery(tested);
+    }
+
+    public synchronized <T extends Shape> List<T> getNearestObjects(float x,
+            float y, int k, Class<T> cls)
+    {
+        NearestQuery query = new NearestQuery(x, y, k, cls);
+        for (int i = 0; i < count; i++) {
+            query.offer(shapes[i]);
+        }
+        query.drain(Float.POSITIVE_INFINITY);
+        countQuery(count);
+        return query.getResults();
+    }
+
+    /**
+     * Count a query that has finished. The whole array is one node.
+     */
+    private void countQuery(int tested)
+    {
+        queryCounters.countQuery();
+        queryCounters.record(1, tested);
+    }
+
+    public QueryStats getQueryStats()
+    {
+        return queryCounters.getStats();
+    }
+
+    public void resetQueryStats()
+    {
+        queryCounters.reset();
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> Set<T> getObjects(Class<T> cls)
+    {
+        Set<T> set = new HashSet<T>();
+        for (int i = 0; i < count; i++) {
+            if (cls == null || cls.isInstance(shapes[i])) {
+                set.add((T) shapes[i]);
+            }
+        }
+        return set;
+    }
+
+    public Set<Shape> getObjects()
+    {
+        return getObjects(null);
+    }
+
+    public final void startSequence()
+    {
+        // Nothing necessary.
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> T getOneObjectAt(Shape object, float dx, float dy,
+            Class<T> cls)
+    {
+        pointQuery.init(dx, dy, cls);
+        return (T) findOne(searchArea(dx, dy), pointQuery, object);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Shape> T getOneIntersectingObject(Shape shape, Class<T> cls)
+    {
+        shapeQuery.init(cls, shape);
+        return (T) findOne(searchArea(shape), shapeQuery, shape);
+    }
+}
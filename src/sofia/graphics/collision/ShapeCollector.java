@@ -0,0 +1,86 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import java.util.Collection;
+
+//-------------------------------------------------------------------------
+/**
+ * A {@link ShapeVisitor} that adds the shapes it visits to a caller-supplied
+ * collection, stopping the query once a given number have been found. A
+ * collector can be kept and reused with {@link #reset(Collection, int)}, so
+ * that a query run every frame into a cleared {@code ArrayList} produces no
+ * garbage once the list has grown to size.
+ *
+ * @param <T>  The type of shape collected
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class ShapeCollector<T extends Shape>
+    implements ShapeVisitor<T>
+{
+    private Collection<? super T> buffer;
+    private int limit;
+    private int count;
+
+
+    /**
+     * Create a collector with no limit on the number of shapes collected.
+     *
+     * @param buffer  The collection that shapes are added to
+     */
+    public ShapeCollector(Collection<? super T> buffer)
+    {
+        this(buffer, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a collector.
+     *
+     * @param buffer  The collection that shapes are added to
+     * @param limit   The number of shapes after which the query is stopped
+     */
+    public ShapeCollector(Collection<? super T> buffer, int limit)
+    {
+        reset(buffer, limit);
+    }
+
+    /**
+     * Prepare this collector for another query. The buffer is not cleared.
+     *
+     * @param buffer  The collection that shapes are added to
+     * @param limit   The number of shapes after which the query is stopped
+     */
+    public void reset(Collection<? super T> buffer, int limit)
+    {
+        if (limit < 1) {
+            throw new IllegalArgumentException(
+                "Limit must be at least 1. It was: " + limit);
+        }
+        this.buffer = buffer;
+        this.limit = limit;
+        count = 0;
+    }
+
+    /**
+     * Get the number of shapes collected since the last reset.
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Check whether the limit has been reached.
+     */
+    public boolean isFull()
+    {
+        return count >= limit;
+    }
+
+    public boolean visit(T shape)
+    {
+        buffer.add(shape);
+        return ++count < limit;
+    }
+}
@@ -37,8 +37,18 @@ public final class ShapeNode
     private ShapeNode next;
     private ShapeNode prev;
     private boolean mark;
+    private int index;  // where this is in the BSPNode's arrays
 
     public ShapeNode(Shape shape, BSPNode node)
+    {
+        init(shape, node);
+    }
+
+    /**
+     * Set up this ActorNode, which may be new or taken from a cache, and
+     * add it to the front of the actor's list.
+     */
+    void init(Shape shape, BSPNode node)
     {
         this.shape = shape;
         this.node = node;
@@ -46,6 +56,7 @@ public final class ShapeNode
         // insert into linked list
         ShapeNode first = IBSPColChecker.getNodeForShape(shape);
         this.next = first;
+        this.prev = null;
         IBSPColChecker.setNodeForShape(shape, this);
         if (next != null) {
             next.prev = this;
@@ -54,6 +65,27 @@ public final class ShapeNode
         mark = true;
     }
 
+    /**
+     * Let go of the actor and node, when this ActorNode is returned to a
+     * cache. The link to the next ActorNode is kept, as callers may still
+     * follow it after removing this one.
+     */
+    void release()
+    {
+        shape = null;
+        node = null;
+    }
+
+    int getIndex()
+    {
+        return index;
+    }
+
+    void setIndex(int index)
+    {
+        this.index = index;
+    }
+
     /**
      * Clar the mark on this ActorNode. This is used by the collision
      * checker when actors reposition or resize.
@@ -112,7 +144,7 @@ public final class ShapeNode
     public void remove()
     {
         removed();
-        node.shapeRemoved(shape);
+        node.shapeRemoved(this);
     }
 
     /**
@@ -0,0 +1,29 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+
+//-------------------------------------------------------------------------
+/**
+ * Receives the shapes found by a visiting query, such as
+ * {@link CollisionChecker#forEachObjectAt(float, float, Class, ShapeVisitor)},
+ * one at a time as they are found. Unlike the queries that return a set,
+ * visiting queries do not allocate, and can be stopped early.
+ *
+ * <p>A visitor must not add, remove or move shapes while it is being called.
+ * It may run other queries.
+ *
+ * @param <T>  The type of shape visited
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public interface ShapeVisitor<T extends Shape>
+{
+    /**
+     * Called for each shape found.
+     *
+     * @param shape  The shape found
+     * @return True to continue the query, or false to stop it
+     */
+    public boolean visit(T shape);
+}
@@ -0,0 +1,370 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import android.graphics.RectF;
+import java.util.*;
+
+//-------------------------------------------------------------------------
+/**
+ * A sweep-and-prune broadphase that finds every pair of shapes whose
+ * bounds overlap.
+ *
+ * <p>The start and end of each shape's bounds are kept in one sorted
+ * interval list per axis. Between frames, shapes usually move only a
+ * little, so the lists are nearly sorted already and an insertion sort puts
+ * them back in order in close to linear time. Whenever the start of one
+ * shape's interval passes the end of another's, the pair may have begun or
+ * stopped overlapping, and only that pair is re-checked. The set of
+ * overlapping pairs is therefore carried from frame to frame and updated
+ * incrementally, rather than rebuilt.
+ *
+ * <p>When many shapes are added at once (such as when a level is loaded),
+ * the lists are sorted from scratch and the pair set rebuilt with a single
+ * sweep instead.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class SweepAndPrune
+{
+    private static final int X_AXIS = IBSPColChecker.X_AXIS;
+    private static final int Y_AXIS = IBSPColChecker.Y_AXIS;
+
+    /**
+     * Once more than this fraction of the endpoints are new since the last
+     * search, the lists are re-sorted from scratch.
+     */
+    private static final int REBUILD_DIVISOR = 4;
+
+    private Map<Shape, Proxy> proxies = new HashMap<Shape, Proxy>();
+    private Proxy[] proxiesById = new Proxy[16];
+    private int[] freeIds = new int[16];
+    private int freeIdCount;
+    private int nextId;
+
+    private Endpoint[][] endpoints = { new Endpoint[32], new Endpoint[32] };
+    private int endpointCount;
+    private int addedSinceSort;
+
+    private Set<Long> pairs = new HashSet<Long>();
+
+
+    /**
+     * Start tracking a shape.
+     */
+    public synchronized void addObject(Shape shape)
+    {
+        if (proxies.containsKey(shape)) {
+            return;
+        }
+
+        Proxy proxy = new Proxy(shape, allocateId());
+        proxy.refresh();
+        proxies.put(shape, proxy);
+        proxiesById[proxy.id] = proxy;
+
+        // New endpoints go at the end of each list, where they are "after"
+        // every other interval and so overlap nothing; the next sort moves
+        // them into place and discovers their pairs.
+        ensureEndpointCapacity(endpointCount + 2);
+        for (int axis = X_AXIS; axis <= Y_AXIS; axis++) {
+            endpoints[axis][endpointCount] = new Endpoint(proxy, false);
+            endpoints[axis][endpointCount + 1] = new Endpoint(proxy, true);
+        }
+        endpointCount += 2;
+        addedSinceSort += 2;
+    }
+
+    /**
+     * Stop tracking a shape, discarding any pairs it was part of.
+     */
+    public synchronized void removeObject(Shape shape)
+    {
+        Proxy proxy = proxies.remove(shape);
+        if (proxy == null) {
+            return;
+        }
+
+        for (int axis = X_AXIS; axis <= Y_AXIS; axis++) {
+            Endpoint[] list = endpoints[axis];
+            int dest = 0;
+            for (int i = 0; i < endpointCount; i++) {
+                if (list[i].proxy != proxy) {
+                    list[dest++] = list[i];
+                }
+            }
+            Arrays.fill(list, dest, endpointCount, null);
+        }
+        endpointCount -= 2;
+
+        if (proxy.pairCount > 0) {
+            Iterator<Long> i = pairs.iterator();
+            while (i.hasNext()) {
+                long key = i.next();
+                if ((int) (key >>> 32) == proxy.id || (int) key == proxy.id) {
+                    i.remove();
+                    proxiesById[otherId(key, proxy.id)].pairCount--;
+                }
+            }
+        }
+
+        proxiesById[proxy.id] = null;
+        releaseId(proxy.id);
+    }
+
+    /**
+     * Record that a shape's position or size has changed. The interval
+     * lists are brought up to date by the next call to
+     * {@link #findOverlappingPairs(PairVisitor)}.
+     */
+    public synchronized void updateObject(Shape shape)
+    {
+        Proxy proxy = proxies.get(shape);
+        if (proxy != null) {
+            proxy.refresh();
+        }
+    }
+
+    /**
+     * Bring the interval lists up to date and report every pair of shapes
+     * whose bounds currently overlap.
+     *
+     * @param visitor  Receives each overlapping pair once
+     */
+    public synchronized void findOverlappingPairs(PairVisitor visitor)
+    {
+        if (addedSinceSort * REBUILD_DIVISOR > endpointCount) {
+            rebuild();
+        }
+        else {
+            sortAxis(X_AXIS);
+            sortAxis(Y_AXIS);
+        }
+        addedSinceSort = 0;
+
+        for (long key : pairs) {
+            visitor.visitPair(
+                proxiesById[(int) (key >>> 32)].shape,
+                proxiesById[(int) key].shape);
+        }
+    }
+
+    /**
+     * Get the number of overlapping pairs found by the last search.
+     */
+    public synchronized int getPairCount()
+    {
+        return pairs.size();
+    }
+
+    /**
+     * Restore the order of one axis list with an insertion sort, re-checking
+     * every pair whose intervals change order along the way.
+     */
+    private void sortAxis(int axis)
+    {
+        Endpoint[] list = endpoints[axis];
+        for (int i = 0; i < endpointCount; i++) {
+            list[i].refresh(axis);
+        }
+
+        for (int i = 1; i < endpointCount; i++) {
+            Endpoint e = list[i];
+            int j = i - 1;
+            while (j >= 0 && e.sortsBefore(list[j])) {
+                Endpoint other = list[j];
+                if (e.isMax != other.isMax && e.proxy != other.proxy) {
+                    // The start of one interval has passed the end of the
+                    // other, so the pair may have begun or stopped overlapping
+                    updatePair(e.proxy, other.proxy);
+                }
+                list[j + 1] = other;
+                j--;
+            }
+            list[j + 1] = e;
+        }
+    }
+
+    /**
+     * Re-sort both axis lists from scratch and rebuild the pair set with a
+     * single sweep along the x axis.
+     */
+    private void rebuild()
+    {
+        for (int axis = X_AXIS; axis <= Y_AXIS; axis++) {
+            Endpoint[] list = endpoints[axis];
+            for (int i = 0; i < endpointCount; i++) {
+                list[i].refresh(axis);
+            }
+            Arrays.sort(list, 0, endpointCount, ENDPOINT_ORDER);
+        }
+
+        pairs.clear();
+        for (Proxy proxy : proxies.values()) {
+            proxy.pairCount = 0;
+        }
+
+        List<Proxy> active = new ArrayList<Proxy>();
+        Endpoint[] list = endpoints[X_AXIS];
+        for (int i = 0; i < endpointCount; i++) {
+            Endpoint e = list[i];
+            if (e.isMax) {
+                active.remove(e.proxy);
+            }
+            else {
+                for (Proxy other : active) {
+                    if (e.proxy.overlaps(other)) {
+                        addPair(e.proxy, other);
+                    }
+                }
+                active.add(e.proxy);
+            }
+        }
+    }
+
+    private void updatePair(Proxy a, Proxy b)
+    {
+        if (a.overlaps(b)) {
+            addPair(a, b);
+        }
+        else if (pairs.remove(pairKey(a.id, b.id))) {
+            a.pairCount--;
+            b.pairCount--;
+        }
+    }
+
+    private void addPair(Proxy a, Proxy b)
+    {
+        if (pairs.add(pairKey(a.id, b.id))) {
+            a.pairCount++;
+            b.pairCount++;
+        }
+    }
+
+    private static long pairKey(int id1, int id2)
+    {
+        int low = Math.min(id1, id2);
+        int high = Math.max(id1, id2);
+        return ((long) low << 32) | (high & 0xffffffffL);
+    }
+
+    private static int otherId(long key, int id)
+    {
+        int low = (int) (key >>> 32);
+        return (low == id) ? (int) key : low;
+    }
+
+    private int allocateId()
+    {
+        if (freeIdCount > 0) {
+            return freeIds[--freeIdCount];
+        }
+        if (nextId == proxiesById.length) {
+            proxiesById = Arrays.copyOf(proxiesById, nextId * 2);
+        }
+        return nextId++;
+    }
+
+    private void releaseId(int id)
+    {
+        if (freeIdCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+        }
+        freeIds[freeIdCount++] = id;
+    }
+
+    private void ensureEndpointCapacity(int capacity)
+    {
+        if (capacity > endpoints[X_AXIS].length) {
+            int newLength = Math.max(capacity, endpoints[X_AXIS].length * 2);
+            endpoints[X_AXIS] = Arrays.copyOf(endpoints[X_AXIS], newLength);
+            endpoints[Y_AXIS] = Arrays.copyOf(endpoints[Y_AXIS], newLength);
+        }
+    }
+
+
+    private static final Comparator<Endpoint> ENDPOINT_ORDER =
+        new Comparator<Endpoint>() {
+            public int compare(Endpoint a, Endpoint b)
+            {
+                if (a.sortsBefore(b)) {
+                    return -1;
+                }
+                else if (b.sortsBefore(a)) {
+                    return 1;
+                }
+                return 0;
+            }
+        };
+
+
+    /**
+     * The bounds of one tracked shape.
+     */
+    private static final class Proxy
+    {
+        final Shape shape;
+        final int id;
+        final float[] min = new float[2];
+        final float[] max = new float[2];
+        int pairCount;
+
+        Proxy(Shape shape, int id)
+        {
+            this.shape = shape;
+            this.id = id;
+        }
+
+        void refresh()
+        {
+            RectF bounds = shape.getRotatedBounds();
+            min[X_AXIS] = bounds.left;
+            min[Y_AXIS] = bounds.top;
+            max[X_AXIS] = bounds.right;
+            max[Y_AXIS] = bounds.bottom;
+        }
+
+        /**
+         * The same test as RectF.intersects(): touching edges do not count
+         * as an overlap.
+         */
+        boolean overlaps(Proxy other)
+        {
+            return min[X_AXIS] < other.max[X_AXIS] && other.min[X_AXIS] < max[X_AXIS]
+                && min[Y_AXIS] < other.max[Y_AXIS] && other.min[Y_AXIS] < max[Y_AXIS];
+        }
+    }
+
+
+    /**
+     * The start (min) or end (max) of a shape's interval on one axis.
+     */
+    private static final class Endpoint
+    {
+        final Proxy proxy;
+        final boolean isMax;
+        float value;
+
+        Endpoint(Proxy proxy, boolean isMax)
+        {
+            this.proxy = proxy;
+            this.isMax = isMax;
+        }
+
+        void refresh(int axis)
+        {
+            value = isMax ? proxy.max[axis] : proxy.min[axis];
+        }
+
+        /**
+         * Endpoints are ordered by value; where values are equal, ends come
+         * before starts, so that touching intervals are not in overlapping
+         * order, matching {@link Proxy#overlaps(Proxy)}.
+         */
+        boolean sortsBefore(Endpoint other)
+        {
+            return value < other.value
+                || (value == other.value && isMax && ! other.isMax);
+        }
+    }
+}
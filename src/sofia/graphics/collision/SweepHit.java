@@ -0,0 +1,71 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+
+//-------------------------------------------------------------------------
+/**
+ * The first shape hit by a moving shape, as found by
+ * {@link CollisionChecker#sweepFirst(Shape, float, float, Class)}.
+ *
+ * @param <T>  The type of shape hit
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public final class SweepHit<T extends Shape>
+{
+    private final T shape;
+    private final float time;
+    private final float x;
+    private final float y;
+
+
+    SweepHit(T shape, float time, float x, float y)
+    {
+        this.shape = shape;
+        this.time = time;
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Get the shape that was hit.
+     */
+    public T getShape()
+    {
+        return shape;
+    }
+
+    /**
+     * Get the fraction of the displacement, from 0 up to but not including
+     * 1, that the moving shape covers before it first touches the shape
+     * hit.
+     */
+    public float getTime()
+    {
+        return time;
+    }
+
+    /**
+     * Get the x-coordinate of the moving shape's position when it first
+     * touches the shape hit.
+     */
+    public float getX()
+    {
+        return x;
+    }
+
+    /**
+     * Get the y-coordinate of the moving shape's position when it first
+     * touches the shape hit.
+     */
+    public float getY()
+    {
+        return y;
+    }
+
+    public String toString()
+    {
+        return "hit " + shape + " at " + time;
+    }
+}
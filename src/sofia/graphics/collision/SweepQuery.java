@@ -0,0 +1,107 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import android.graphics.RectF;
+
+//-------------------------------------------------------------------------
+/**
+ * The state of one sweep: the moving shape, its displacement, and the
+ * first shape it hits so far. Checkers find the shapes in the area the
+ * moving shape sweeps through with a visiting query, and hand each to
+ * this visitor, which keeps the one with the earliest time of impact.
+ * Shapes whose bounds the moving shape's bounds would only reach after the
+ * earliest impact so far are skipped without testing their outlines.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ * @see Shape#getTimeOfImpact(Shape, float, float)
+ */
+final class SweepQuery
+    implements ShapeVisitor<Shape>
+{
+    private final Shape shape;
+    private final float dx;
+    private final float dy;
+    private final RectF bounds;
+
+    private Shape first;
+    private float firstTime;
+
+
+    /**
+     * Create a sweep.
+     *
+     * @param shape  The moving shape
+     * @param dx     The horizontal distance it moves
+     * @param dy     The vertical distance it moves
+     */
+    SweepQuery(Shape shape, float dx, float dy)
+    {
+        this.shape = shape;
+        this.dx = dx;
+        this.dy = dy;
+        bounds = new RectF(shape.getRotatedBounds());
+    }
+
+    public boolean visit(Shape candidate)
+    {
+        if (! reachesBefore(candidate.getRotatedBounds(),
+                (first == null) ? 1 : firstTime)) {
+            return true;
+        }
+
+        float time = shape.getTimeOfImpact(candidate, dx, dy);
+        if (time >= 0 && (first == null || time < firstTime)) {
+            first = candidate;
+            firstTime = time;
+        }
+
+        // Nothing can be hit sooner than straight away
+        return first == null || firstTime > 0;
+    }
+
+    /**
+     * Check whether the moving shape's bounds overlap another shape's
+     * bounds at some time before the given one, one axis at a time.
+     */
+    private boolean reachesBefore(RectF other, float limit)
+    {
+        float[] window = { 0, limit };
+        return narrow(bounds.left, bounds.right, dx, other.left, other.right,
+                    window)
+            && narrow(bounds.top, bounds.bottom, dy, other.top, other.bottom,
+                    window)
+            && window[0] < window[1];
+    }
+
+    /**
+     * Narrow a span of time to when a moving interval overlaps a still one.
+     *
+     * @return False if they never overlap
+     */
+    private static boolean narrow(float min, float max, float speed,
+            float otherMin, float otherMax, float[] window)
+    {
+        if (speed == 0) {
+            return min < otherMax && otherMin < max;
+        }
+        float t1 = (otherMin - max) / speed;
+        float t2 = (otherMax - min) / speed;
+        window[0] = Math.max(window[0], Math.min(t1, t2));
+        window[1] = Math.min(window[1], Math.max(t1, t2));
+        return true;
+    }
+
+    /**
+     * Get the first shape hit, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Shape> SweepHit<T> getFirst()
+    {
+        if (first == null) {
+            return null;
+        }
+        return new SweepHit<T>((T) first, firstTime,
+                shape.getX() + dx * firstTime, shape.getY() + dy * firstTime);
+    }
+}
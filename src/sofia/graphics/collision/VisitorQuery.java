@@ -0,0 +1,227 @@
+package sofia.graphics.collision;
+
+import sofia.graphics.Shape;
+import android.graphics.RectF;
+
+//-------------------------------------------------------------------------
+/**
+ * The state of one visiting query: the area to search, the test each
+ * candidate shape must pass, and the visitor to hand matches to. Checkers
+ * keep finished queries on a free list and reuse them, so visiting queries
+ * do not allocate once warmed up, even when a visitor runs further queries
+ * of its own.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class VisitorQuery
+{
+    private static final int POINT = 0;
+    private static final int INTERSECTING = 1;
+    private static final int IN_RANGE = 2;
+    private static final int SWEPT = 3;
+
+    /** The area to search, with the same edge rules as Rect.intersects(). */
+    float left;
+    float top;
+    float right;
+    float bottom;
+
+    /** The collision categories a shape must be in to be found. */
+    int mask;
+
+    private int kind;
+    private Shape shape;
+    private float x;
+    private float y;
+    private float r;
+    private Class<?> cls;
+    private ShapeVisitor<Shape> visitor;
+    private int count;
+    private boolean stopped;
+
+    /** The next query on the free list. */
+    private VisitorQuery next;
+
+
+    /**
+     * Look for shapes containing a point, searching the one-pixel square
+     * at the point, as every other point query does.
+     */
+    void initPoint(float px, float py, Class<?> type, ShapeVisitor<?> v)
+    {
+        init(POINT, type, v);
+        setArea(px, py, px + 1, py + 1);
+        x = px;
+        y = py;
+    }
+
+    /**
+     * Look for shapes intersecting the given shape, other than the shape
+     * itself.
+     */
+    void initIntersecting(Shape s, Class<?> type, ShapeVisitor<?> v)
+    {
+        init(INTERSECTING, type, v);
+        RectF bounds = s.getRotatedBounds();
+        setArea(bounds.left, bounds.top, bounds.right, bounds.bottom);
+        shape = s;
+        mask = s.getCollisionMask();
+    }
+
+    /**
+     * Look for shapes that the given shape can collide with, other than the
+     * shape itself, anywhere in the area it sweeps through as it moves by a
+     * displacement. The visitor decides which of them it actually hits.
+     */
+    void initSwept(Shape s, float dx, float dy, Class<?> type,
+            ShapeVisitor<?> v)
+    {
+        init(SWEPT, type, v);
+        RectF bounds = s.getRotatedBounds();
+        setArea(Math.min(bounds.left, bounds.left + dx),
+                Math.min(bounds.top, bounds.top + dy),
+                Math.max(bounds.right, bounds.right + dx),
+                Math.max(bounds.bottom, bounds.bottom + dy));
+        shape = s;
+        mask = s.getCollisionMask();
+    }
+
+    /**
+     * Look for shapes whose location lies within a circle.
+     */
+    void initInRange(float cx, float cy, float radius, Class<?> type,
+            ShapeVisitor<?> v)
+    {
+        init(IN_RANGE, type, v);
+        setArea(cx - radius, cy - radius, cx + radius, cy + radius);
+        x = cx;
+        y = cy;
+        r = radius;
+    }
+
+    /**
+     * Check whether an area overlaps the search area.
+     */
+    boolean overlaps(Rect area)
+    {
+        return overlaps(area.getX(), area.getY(), area.getRight(), area.getTop());
+    }
+
+    /**
+     * Check whether an area overlaps the search area.
+     */
+    boolean overlaps(float l, float t, float rt, float b)
+    {
+        return l < right && left < rt && t < bottom && top < b;
+    }
+
+    /**
+     * Hand a candidate to the visitor if it passes this query's test.
+     *
+     * @return False once the visitor has asked for the query to stop
+     */
+    boolean offer(Shape candidate)
+    {
+        if (stopped) {
+            return false;
+        }
+        if (cls != null && ! cls.isInstance(candidate)) {
+            return true;
+        }
+
+        boolean matches;
+        switch (kind) {
+            case POINT:
+                matches = candidate.contains(x, y);
+                break;
+            case INTERSECTING:
+                matches = candidate != shape && shape.canCollideWith(candidate)
+                    && shape.intersects(candidate);
+                break;
+            case SWEPT:
+                matches = candidate != shape && shape.canCollideWith(candidate);
+                break;
+            default:
+                float dx = candidate.getX() - x;
+                float dy = candidate.getY() - y;
+                matches = dx * dx + dy * dy <= r * r;
+                break;
+        }
+
+        if (matches) {
+            count++;
+            stopped = ! visitor.visit(candidate);
+        }
+        return ! stopped;
+    }
+
+    boolean isStopped()
+    {
+        return stopped;
+    }
+
+    /**
+     * Get the number of shapes visited, and release the references this
+     * query holds.
+     */
+    int finish()
+    {
+        shape = null;
+        cls = null;
+        visitor = null;
+        return count;
+    }
+
+    /**
+     * A free list of queries. Each checker has its own, used while holding
+     * the checker's lock.
+     */
+    static final class Pool
+    {
+        private VisitorQuery free;
+
+        VisitorQuery obtain()
+        {
+            VisitorQuery query = free;
+            if (query == null) {
+                return new VisitorQuery();
+            }
+            free = query.next;
+            query.next = null;
+            return query;
+        }
+
+        /**
+         * Return a query to the pool.
+         *
+         * @return The number of shapes the query visited
+         */
+        int release(VisitorQuery query)
+        {
+            int count = query.finish();
+            query.next = free;
+            free = query;
+            return count;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void init(int queryKind, Class<?> type, ShapeVisitor<?> v)
+    {
+        kind = queryKind;
+        cls = type;
+        mask = Shape.DEFAULT_COLLISION_MASK;
+        visitor = (ShapeVisitor<Shape>) v;
+        count = 0;
+        stopped = false;
+    }
+
+    private void setArea(float l, float t, float rt, float b)
+    {
+        left = l;
+        top = t;
+        right = rt;
+        bottom = b;
+    }
+}
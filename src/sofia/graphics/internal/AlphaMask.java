@@ -0,0 +1,310 @@
+package sofia.graphics.internal;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import android.graphics.Bitmap;
+
+// -------------------------------------------------------------------------
+/**
+ * A one-bit-per-pixel map of which pixels of a bitmap are opaque, used to
+ * test collisions and touches against what is actually drawn.
+ *
+ * <p>Each row is packed into 64-bit words, with the leftmost pixel in the
+ * lowest bit, so two masks are compared 64 pixels at a time by ANDing
+ * words together. Masks are built once per bitmap and shared by every
+ * shape that draws it.
+ *
+ * <p>Each mask can also give a coarser copy of itself, half the width and
+ * height, in which a pixel is opaque if any of the four it covers is. These
+ * are used for shapes drawn much smaller than their bitmaps, so that a test
+ * never looks at many more pixels than are on the screen.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public final class AlphaMask
+{
+    //~ Instance/static variables .............................................
+
+    /** The lowest alpha value at which a pixel counts as opaque. */
+    public static final int ALPHA_THRESHOLD = 128;
+
+    private static final Map<Bitmap, AlphaMask> masks =
+        new WeakHashMap<Bitmap, AlphaMask>();
+
+    /** Stands in the cache for bitmaps that have no transparent pixels. */
+    private static final AlphaMask OPAQUE = new AlphaMask(0, 0);
+
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] bits;
+    private AlphaMask coarser;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    private AlphaMask(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        wordsPerRow = (width + 63) >>> 6;
+        bits = new long[wordsPerRow * height];
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the mask of a bitmap, building it the first time it is asked
+     * for.
+     *
+     * @param bitmap the bitmap
+     * @return the bitmap's mask, or null if none of its pixels are
+     *         transparent
+     */
+    public static AlphaMask forBitmap(Bitmap bitmap)
+    {
+        AlphaMask mask;
+        synchronized (masks)
+        {
+            mask = masks.get(bitmap);
+        }
+
+        if (mask == null)
+        {
+            // Built outside the lock; at worst two threads both build it
+            mask = build(bitmap);
+            synchronized (masks)
+            {
+                masks.put(bitmap, mask);
+            }
+        }
+        return (mask == OPAQUE) ? null : mask;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Forgets the mask of a bitmap whose pixels have changed, so that it is
+     * built again when next asked for.
+     *
+     * @param bitmap the bitmap
+     */
+    public static void forget(Bitmap bitmap)
+    {
+        synchronized (masks)
+        {
+            masks.remove(bitmap);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static AlphaMask build(Bitmap bitmap)
+    {
+        if (!bitmap.hasAlpha())
+        {
+            return OPAQUE;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        AlphaMask mask = new AlphaMask(width, height);
+        int[] row = new int[width];
+        boolean opaque = true;
+        for (int y = 0; y < height; y++)
+        {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            int start = y * mask.wordsPerRow;
+            for (int x = 0; x < width; x++)
+            {
+                if ((row[x] >>> 24) >= ALPHA_THRESHOLD)
+                {
+                    mask.bits[start + (x >>> 6)] |= 1L << x;
+                }
+                else
+                {
+                    opaque = false;
+                }
+            }
+        }
+        return opaque ? OPAQUE : mask;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the width of the mask, in pixels.
+     *
+     * @return the width of the mask
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the height of the mask, in pixels.
+     *
+     * @return the height of the mask
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether a pixel is opaque. Pixels outside the
+     * mask are transparent.
+     *
+     * @param x the x-coordinate of the pixel
+     * @param y the y-coordinate of the pixel
+     * @return true if the pixel is opaque
+     */
+    public boolean isOpaque(int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+        {
+            return false;
+        }
+        return (bits[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets 64 pixels of a row, starting at a given one, with the first in
+     * the lowest bit. Pixels outside the mask are transparent.
+     *
+     * @param x the x-coordinate of the first pixel
+     * @param y the row
+     * @return the pixels, one bit each, set where they are opaque
+     */
+    public long getBits(int x, int y)
+    {
+        if (y < 0 || y >= height || x >= width || x <= -64)
+        {
+            return 0;
+        }
+
+        int start = y * wordsPerRow;
+        if (x < 0)
+        {
+            return bits[start] << -x;
+        }
+
+        int word = x >>> 6;
+        int shift = x & 63;
+        long result = bits[start + word] >>> shift;
+        if (shift != 0 && word + 1 < wordsPerRow)
+        {
+            result |= bits[start + word + 1] << (64 - shift);
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether this mask and another, offset from
+     * it by a whole number of pixels, have an opaque pixel in common within
+     * an area.
+     *
+     * @param other the other mask
+     * @param dx the x-coordinate in the other mask of this mask's left edge
+     * @param dy the y-coordinate in the other mask of this mask's top edge
+     * @param left the left edge of the area to test, in this mask
+     * @param top the top edge of the area to test, in this mask
+     * @param right the right edge (exclusive) of the area to test
+     * @param bottom the bottom edge (exclusive) of the area to test
+     * @return true if the masks overlap within the area
+     */
+    public boolean overlaps(AlphaMask other, int dx, int dy,
+        int left, int top, int right, int bottom)
+    {
+        left = Math.max(left, Math.max(0, -dx));
+        top = Math.max(top, Math.max(0, -dy));
+        right = Math.min(right, Math.min(width, other.width - dx));
+        bottom = Math.min(bottom, Math.min(height, other.height - dy));
+
+        for (int y = top; y < bottom; y++)
+        {
+            for (int x = left; x < right; x += 64)
+            {
+                long common = getBits(x, y) & other.getBits(x + dx, y + dy);
+                int count = right - x;
+                if (count < 64)
+                {
+                    common &= (1L << count) - 1;
+                }
+                if (common != 0)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a coarser copy of this mask, a given number of times smaller.
+     * Each level halves the width and height, and a pixel is opaque if any
+     * of the pixels it covers is.
+     *
+     * @param level the number of times to halve the mask; 0 gives this mask
+     * @return the coarser mask
+     */
+    public AlphaMask getLevel(int level)
+    {
+        AlphaMask mask = this;
+        for (int i = 0; i < level && (mask.width > 1 || mask.height > 1); i++)
+        {
+            synchronized (mask)
+            {
+                if (mask.coarser == null)
+                {
+                    mask.coarser = mask.halve();
+                }
+                mask = mask.coarser;
+            }
+        }
+        return mask;
+    }
+
+
+    // ----------------------------------------------------------
+    private AlphaMask halve()
+    {
+        AlphaMask half = new AlphaMask((width + 1) / 2, (height + 1) / 2);
+        for (int y = 0; y < height; y++)
+        {
+            int start = (y / 2) * half.wordsPerRow;
+            for (int w = 0; w < wordsPerRow; w++)
+            {
+                long word = bits[y * wordsPerRow + w];
+
+                // Each pair of bits becomes one, the OR of the two
+                long pairs = (word | (word >>> 1)) & 0x5555555555555555L;
+                for (int bit = 0; pairs != 0; bit++)
+                {
+                    if ((pairs & 1) != 0)
+                    {
+                        int x = w * 32 + bit;
+                        half.bits[start + (x >>> 6)] |= 1L << x;
+                    }
+                    pairs >>>= 2;
+                }
+            }
+        }
+        return half;
+    }
+}
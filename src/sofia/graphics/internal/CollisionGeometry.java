@@ -0,0 +1,1198 @@
+package sofia.graphics.internal;
+
+import android.graphics.RectF;
+
+// -------------------------------------------------------------------------
+/**
+ * The outline of a shape in view coordinates, as used to test exactly
+ * whether two shapes intersect.
+ *
+ * <p>A shape's outline is an axis-aligned box, a convex polygon, a line
+ * segment (a polygon with two points) or an ellipse, held as a flat array
+ * of coordinates along with a bounding circle. {@link #intersects} first
+ * compares the bounding circles, which rejects most pairs of shapes that
+ * are merely near each other with a few multiplies, and only then runs the
+ * exact test for the two kinds of outline:</p>
+ * <ul>
+ * <li>two boxes are compared edge by edge;</li>
+ * <li>two polygons, or a polygon and a segment, are tested for a
+ * separating axis among their edge normals;</li>
+ * <li>a polygon or segment and an ellipse are tested in the space where
+ * the ellipse is the unit circle, by the distance from its centre to the
+ * polygon;</li>
+ * <li>two ellipses are tested in the space where one of them is the unit
+ * circle, by the distance from its centre to the other.</li>
+ * </ul>
+ *
+ * <p>As with {@code RectF.intersects}, outlines that only touch do not
+ * intersect.</p>
+ *
+ * <p>{@link #timeOfImpact} finds how far one outline can move along a
+ * displacement before it first intersects another, so that fast shapes
+ * can be stopped at the first thing in their way rather than passing
+ * through it between frames. Boxes and polygons are swept exactly, by
+ * finding on each separating axis the span of time over which their
+ * projections overlap. An ellipse is swept against a polygon in its
+ * unit-circle space, by when its centre first comes within 1 of an edge.
+ * Two circles are swept by their radii, and other pairs of ellipses by
+ * searching for the first time the distance between them falls to 1,
+ * which is found from below, so the time is never late.</p>
+ *
+ * <p>Outlines are immutable once built. A shape builds a new one whenever
+ * its position, size or rotation has changed, and stamps it with a
+ * version number, and the bounds it was built from, so that it can tell
+ * when its cached outline is out of date.</p>
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public final class CollisionGeometry
+{
+    //~ Instance/static variables .............................................
+
+    private static final int BOX = 0;
+    private static final int POLYGON = 1;
+    private static final int ELLIPSE = 2;
+
+    /** Returned by {@link #timeOfImpact} when there is no impact. */
+    public static final float NO_IMPACT = -1;
+
+    /** The most bisection steps taken to find a distance to an ellipse. */
+    private static final int MAX_ELLIPSE_ITERATIONS = 64;
+
+    /** The most search steps taken to sweep one ellipse against another. */
+    private static final int MAX_SWEEP_ITERATIONS = 48;
+
+    /** How closely, as a fraction of the displacement, a sweep is found. */
+    private static final double SWEEP_TOLERANCE = 1e-6;
+
+    private static final double GOLDEN_RATIO = (Math.sqrt(5) - 1) / 2;
+
+    private final int kind;
+    /**
+     * BOX: left, top, right, bottom. POLYGON: x and y of each point, in
+     * order around the edge. ELLIPSE: the radius along the ellipse's own
+     * x-axis and y-axis, and the cosine and sine of its rotation.
+     */
+    private final float[] coords;
+    private final float centerX;
+    private final float centerY;
+    private final float radius;
+    /**
+     * The corners of a box, or of the box around an ellipse, worked out
+     * when first needed. An outline is only used for one version of its
+     * shape, so they never go out of date.
+     */
+    private volatile float[] points;
+    private int version;
+    private float left;
+    private float top;
+    private float right;
+    private float bottom;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    private CollisionGeometry(int kind, float[] coords, float centerX,
+        float centerY, float radius)
+    {
+        this.kind = kind;
+        this.coords = coords;
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.radius = radius;
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates the outline of an axis-aligned box.
+     *
+     * @param left the left edge of the box
+     * @param top the top edge of the box
+     * @param right the right edge of the box
+     * @param bottom the bottom edge of the box
+     * @return the outline
+     */
+    public static CollisionGeometry box(
+        float left, float top, float right, float bottom)
+    {
+        float halfWidth = Math.abs(right - left) / 2;
+        float halfHeight = Math.abs(bottom - top) / 2;
+        return new CollisionGeometry(BOX,
+            new float[] {
+                Math.min(left, right), Math.min(top, bottom),
+                Math.max(left, right), Math.max(top, bottom) },
+            (left + right) / 2, (top + bottom) / 2,
+            (float) Math.sqrt(halfWidth * halfWidth + halfHeight * halfHeight));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates the outline of a convex polygon. A polygon with two points is
+     * a line segment.
+     *
+     * @param points the x- and y-coordinates of each corner in turn, in
+     *     order around the edge, either clockwise or anticlockwise; the
+     *     array is kept, and must not be changed afterwards
+     * @return the outline
+     */
+    public static CollisionGeometry polygon(float... points)
+    {
+        if (points.length < 4 || points.length % 2 != 0)
+        {
+            throw new IllegalArgumentException("A polygon needs at least two "
+                + "points, each with an x- and y-coordinate.");
+        }
+
+        float sumX = 0;
+        float sumY = 0;
+        int count = points.length / 2;
+        for (int i = 0; i < points.length; i += 2)
+        {
+            sumX += points[i];
+            sumY += points[i + 1];
+        }
+        float cx = sumX / count;
+        float cy = sumY / count;
+
+        float farthest = 0;
+        for (int i = 0; i < points.length; i += 2)
+        {
+            float dx = points[i] - cx;
+            float dy = points[i + 1] - cy;
+            farthest = Math.max(farthest, dx * dx + dy * dy);
+        }
+        return new CollisionGeometry(
+            POLYGON, points, cx, cy, (float) Math.sqrt(farthest));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates the outline of a line segment.
+     *
+     * @param x1 the x-coordinate of the first end
+     * @param y1 the y-coordinate of the first end
+     * @param x2 the x-coordinate of the second end
+     * @param y2 the y-coordinate of the second end
+     * @return the outline
+     */
+    public static CollisionGeometry segment(
+        float x1, float y1, float x2, float y2)
+    {
+        return polygon(x1, y1, x2, y2);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates the outline of an ellipse.
+     *
+     * @param centerX the x-coordinate of the centre
+     * @param centerY the y-coordinate of the centre
+     * @param radiusX the radius along the ellipse's own x-axis
+     * @param radiusY the radius along the ellipse's own y-axis
+     * @param rotation the angle the ellipse is turned by, in degrees
+     *     clockwise
+     * @return the outline
+     */
+    public static CollisionGeometry ellipse(float centerX, float centerY,
+        float radiusX, float radiusY, float rotation)
+    {
+        radiusX = Math.abs(radiusX);
+        radiusY = Math.abs(radiusY);
+        double angle = Math.toRadians(rotation);
+        return new CollisionGeometry(ELLIPSE,
+            new float[] {
+                radiusX, radiusY,
+                (float) Math.cos(angle), (float) Math.sin(angle) },
+            centerX, centerY, Math.max(radiusX, radiusY));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether this outline was built from a given
+     * version of a shape's position, size and rotation, and its bounds are
+     * still the same.
+     *
+     * @param currentVersion the shape's current version
+     * @param bounds the shape's current bounds
+     * @return true if the outline is up to date
+     */
+    public boolean isCurrent(int currentVersion, RectF bounds)
+    {
+        return version == currentVersion
+            && left == bounds.left && top == bounds.top
+            && right == bounds.right && bottom == bounds.bottom;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stamps this outline with the version of the shape's position, size
+     * and rotation, and the bounds, that it was built from. This should be
+     * called once, before the outline is shared.
+     *
+     * @param builtVersion the shape's version
+     * @param bounds the shape's bounds
+     */
+    public void stamp(int builtVersion, RectF bounds)
+    {
+        version = builtVersion;
+        left = bounds.left;
+        top = bounds.top;
+        right = bounds.right;
+        bottom = bounds.bottom;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the x-coordinate of the centre of the outline's bounding circle.
+     *
+     * @return the x-coordinate of the centre
+     */
+    public float getCenterX()
+    {
+        return centerX;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the y-coordinate of the centre of the outline's bounding circle.
+     *
+     * @return the y-coordinate of the centre
+     */
+    public float getCenterY()
+    {
+        return centerY;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the radius of the outline's bounding circle.
+     *
+     * @return the radius
+     */
+    public float getRadius()
+    {
+        return radius;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether two outlines intersect.
+     *
+     * @param a one outline
+     * @param b the other outline
+     * @return true if the outlines overlap by more than touching
+     */
+    public static boolean intersects(CollisionGeometry a, CollisionGeometry b)
+    {
+        if (a.kind == BOX && b.kind == BOX)
+        {
+            float[] p = a.coords;
+            float[] q = b.coords;
+            return p[0] < q[2] && q[0] < p[2] && p[1] < q[3] && q[1] < p[3];
+        }
+
+        float dx = b.centerX - a.centerX;
+        float dy = b.centerY - a.centerY;
+        float reach = a.radius + b.radius;
+        if (dx * dx + dy * dy >= reach * reach)
+        {
+            return false;
+        }
+
+        if (a.kind == ELLIPSE)
+        {
+            return (b.kind == ELLIPSE)
+                ? ellipsesOverlap(a, b)
+                : ellipseOverlapsPolygon(a, b.getPoints());
+        }
+        else if (b.kind == ELLIPSE)
+        {
+            return ellipseOverlapsPolygon(b, a.getPoints());
+        }
+        else
+        {
+            float[] p = a.getPoints();
+            float[] q = b.getPoints();
+            return !hasSeparatingAxis(p, q) && !hasSeparatingAxis(q, p);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the fraction of a displacement at which one outline, moved along
+     * it, first intersects another. Outlines that already intersect, or
+     * only touch along the way, have no impact.
+     *
+     * @param a the outline that moves
+     * @param dx the horizontal displacement of the first outline
+     * @param dy the vertical displacement of the first outline
+     * @param b the outline that stays still
+     * @return the fraction of the displacement, from 0 up to but not
+     *     including 1, at which the outlines begin to intersect, or
+     *     {@link #NO_IMPACT} if they do not
+     */
+    public static float timeOfImpact(
+        CollisionGeometry a, float dx, float dy, CollisionGeometry b)
+    {
+        if ((dx == 0 && dy == 0) || intersects(a, b))
+        {
+            return NO_IMPACT;
+        }
+
+        // The bounding circles, which are exact for two circles
+        double first = circleEntry(a.centerX - b.centerX,
+            a.centerY - b.centerY, dx, dy, a.radius + b.radius);
+        if (first >= 1)
+        {
+            return NO_IMPACT;
+        }
+
+        double time;
+        if (a.kind == ELLIPSE && b.kind == ELLIPSE)
+        {
+            time = (a.isCircle() && b.isCircle())
+                ? first : ellipsesEntry(a, dx, dy, b, first);
+        }
+        else if (a.kind == ELLIPSE)
+        {
+            time = ellipseEntry(a, dx, dy, b.getPoints());
+        }
+        else if (b.kind == ELLIPSE)
+        {
+            time = ellipseEntry(b, -dx, -dy, a.getPoints());
+        }
+        else
+        {
+            time = separatingAxesEntry(a.getPoints(), dx, dy, b.getPoints());
+        }
+        float fraction = (float) Math.max(0, time);
+        return (fraction < 1) ? fraction : NO_IMPACT;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the corners of a box or polygon, in order around the edge, or of
+     * the box around an ellipse, turned with it.
+     */
+    private float[] getPoints()
+    {
+        if (kind == POLYGON)
+        {
+            return coords;
+        }
+
+        float[] result = points;
+        if (result == null)
+        {
+            if (kind == BOX)
+            {
+                result = new float[] {
+                    coords[0], coords[1], coords[2], coords[1],
+                    coords[2], coords[3], coords[0], coords[3] };
+            }
+            else
+            {
+                // The ellipse's own axes, scaled by its radii
+                float ax = coords[2] * coords[0];
+                float ay = coords[3] * coords[0];
+                float bx = -coords[3] * coords[1];
+                float by = coords[2] * coords[1];
+                result = new float[] {
+                    centerX + ax + bx, centerY + ay + by,
+                    centerX - ax + bx, centerY - ay + by,
+                    centerX - ax - bx, centerY - ay - by,
+                    centerX + ax - bx, centerY + ay - by };
+            }
+
+            // Threads racing here build equal arrays, so either will do
+            points = result;
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private boolean isCircle()
+    {
+        return kind == ELLIPSE && coords[0] == coords[1];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Checks whether the normal of any edge of one polygon is an axis on
+     * which the two polygons' projections do not overlap.
+     */
+    private static boolean hasSeparatingAxis(float[] p, float[] q)
+    {
+        int count = p.length / 2;
+
+        // A segment's two edges have the same normal
+        int edges = (count == 2) ? 1 : count;
+        for (int i = 0; i < edges; i++)
+        {
+            int j = (i + 1 == count) ? 0 : i + 1;
+            float nx = p[i * 2 + 1] - p[j * 2 + 1];
+            float ny = p[j * 2] - p[i * 2];
+            if (nx == 0 && ny == 0)
+            {
+                continue;
+            }
+
+            float minP = Float.POSITIVE_INFINITY;
+            float maxP = Float.NEGATIVE_INFINITY;
+            for (int k = 0; k < p.length; k += 2)
+            {
+                float d = nx * p[k] + ny * p[k + 1];
+                minP = Math.min(minP, d);
+                maxP = Math.max(maxP, d);
+            }
+
+            float minQ = Float.POSITIVE_INFINITY;
+            float maxQ = Float.NEGATIVE_INFINITY;
+            for (int k = 0; k < q.length; k += 2)
+            {
+                float d = nx * q[k] + ny * q[k + 1];
+                minQ = Math.min(minQ, d);
+                maxQ = Math.max(maxQ, d);
+            }
+
+            if (maxP <= minQ || maxQ <= minP)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the time at which a moving polygon begins to overlap a still
+     * one, as the latest time at which their projections begin to overlap
+     * on any edge normal, provided it comes before the earliest time at
+     * which they stop.
+     *
+     * @return the time, which may be 1 or more, or infinity if they never
+     *     overlap
+     */
+    private static double separatingAxesEntry(
+        float[] moving, float dx, float dy, float[] still)
+    {
+        double[] window = { Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY };
+        if (!findWindow(moving, dx, dy, still, window))
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        return window[0];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Finds the span of time over which a moving polygon overlaps a still
+     * one, by narrowing it on each edge normal of both.
+     *
+     * @param window the earliest and latest times, narrowed in place
+     * @return false if the polygons never overlap, or only before time 0
+     */
+    private static boolean findWindow(
+        float[] moving, float dx, float dy, float[] still, double[] window)
+    {
+        return narrowWindow(moving, moving, dx, dy, still, window)
+            && narrowWindow(still, moving, dx, dy, still, window)
+            && window[0] < window[1] && window[1] > 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Narrows the span of time over which two polygons, one of them
+     * moving, may overlap, to the span over which their projections overlap
+     * on each edge normal of one of them.
+     *
+     * @param axes the polygon whose edge normals are used
+     * @param window the earliest and latest times, narrowed in place
+     * @return false if the projections never overlap on some normal
+     */
+    private static boolean narrowWindow(float[] axes, float[] moving,
+        float dx, float dy, float[] still, double[] window)
+    {
+        int count = axes.length / 2;
+
+        // A segment's two edges have the same normal
+        int edges = (count == 2) ? 1 : count;
+        for (int i = 0; i < edges; i++)
+        {
+            int j = (i + 1 == count) ? 0 : i + 1;
+            float nx = axes[i * 2 + 1] - axes[j * 2 + 1];
+            float ny = axes[j * 2] - axes[i * 2];
+            if (nx == 0 && ny == 0)
+            {
+                continue;
+            }
+
+            double minP = Double.POSITIVE_INFINITY;
+            double maxP = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < moving.length; k += 2)
+            {
+                double d = (double) nx * moving[k] + (double) ny * moving[k + 1];
+                minP = Math.min(minP, d);
+                maxP = Math.max(maxP, d);
+            }
+
+            double minQ = Double.POSITIVE_INFINITY;
+            double maxQ = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < still.length; k += 2)
+            {
+                double d = (double) nx * still[k] + (double) ny * still[k + 1];
+                minQ = Math.min(minQ, d);
+                maxQ = Math.max(maxQ, d);
+            }
+
+            double speed = (double) nx * dx + (double) ny * dy;
+            if (speed == 0)
+            {
+                if (maxP <= minQ || maxQ <= minP)
+                {
+                    return false;
+                }
+            }
+            else
+            {
+                double t1 = (minQ - maxP) / speed;
+                double t2 = (maxQ - minP) / speed;
+                window[0] = Math.max(window[0], Math.min(t1, t2));
+                window[1] = Math.min(window[1], Math.max(t1, t2));
+            }
+        }
+        return true;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the time at which a moving ellipse begins to overlap a still
+     * polygon. In the space where the ellipse is the unit circle, its
+     * centre moves in a straight line, and the ellipse overlaps the polygon
+     * once the centre comes within 1 of one of the polygon's edges: the
+     * earliest time it enters the capsule around any edge.
+     *
+     * @return the time, which may be 1 or more, or infinity if they never
+     *     overlap
+     */
+    private static double ellipseEntry(
+        CollisionGeometry ellipse, float dx, float dy, float[] points)
+    {
+        float[] e = ellipse.coords;
+        if (e[0] == 0 || e[1] == 0)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        // The polygon, and the centre's path, in the unit space. Each point
+        // is moved there as its edges are reached, rather than all at once
+        // into an array
+        double vx = (dx * e[2] + dy * e[3]) / e[0];
+        double vy = (dy * e[2] - dx * e[3]) / e[1];
+        int count = points.length / 2;
+        int edges = (count == 2) ? 1 : count;
+        double x1 = unitX(ellipse, points[0], points[1]);
+        double y1 = unitY(ellipse, points[0], points[1]);
+        double firstX = x1;
+        double firstY = y1;
+
+        double first = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < edges; i++)
+        {
+            double x2 = firstX;
+            double y2 = firstY;
+            if (i + 1 < count)
+            {
+                x2 = unitX(ellipse, points[i * 2 + 2], points[i * 2 + 3]);
+                y2 = unitY(ellipse, points[i * 2 + 2], points[i * 2 + 3]);
+            }
+            first = Math.min(first, capsuleEntry(x1, y1, x2, y2, vx, vy));
+            x1 = x2;
+            y1 = y2;
+        }
+        return first;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the time at which the origin, moving with a velocity, first
+     * comes within 1 of a segment: the earliest time it enters the circle
+     * around either end or the band alongside the segment.
+     */
+    private static double capsuleEntry(
+        double x1, double y1, double x2, double y2, double vx, double vy)
+    {
+        double first = Math.min(
+            circleEntry(-x1, -y1, vx, vy, 1), circleEntry(-x2, -y2, vx, vy, 1));
+
+        double ex = x2 - x1;
+        double ey = y2 - y1;
+        double length = Math.sqrt(ex * ex + ey * ey);
+        if (length == 0)
+        {
+            return first;
+        }
+        ex /= length;
+        ey /= length;
+
+        // The band, with the segment along its length and 1 either side
+        double[] window = { Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY };
+        if (narrowSlab(-x1 * ex - y1 * ey, vx * ex + vy * ey, 0, length, window)
+            && narrowSlab(x1 * ey - y1 * ex, vy * ex - vx * ey, -1, 1, window)
+            && window[0] < window[1] && window[1] > 0)
+        {
+            first = Math.min(first, Math.max(0, window[0]));
+        }
+        return first;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Narrows the span of time over which a moving coordinate lies strictly
+     * between two values.
+     *
+     * @return false if it never does
+     */
+    private static boolean narrowSlab(double start, double speed,
+        double low, double high, double[] window)
+    {
+        if (speed == 0)
+        {
+            return low < start && start < high;
+        }
+
+        double t1 = (low - start) / speed;
+        double t2 = (high - start) / speed;
+        window[0] = Math.max(window[0], Math.min(t1, t2));
+        window[1] = Math.min(window[1], Math.max(t1, t2));
+        return true;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the time at which a point, starting at an offset from the centre
+     * of a circle and moving with a velocity, first comes closer to the
+     * centre than the radius.
+     *
+     * @return the time, which is 0 if the point starts inside and may be 1
+     *     or more, or infinity if it never enters
+     */
+    private static double circleEntry(
+        double x, double y, double vx, double vy, double radius)
+    {
+        double c = x * x + y * y - radius * radius;
+        if (c < 0)
+        {
+            return 0;
+        }
+
+        double a = vx * vx + vy * vy;
+        double b = x * vx + y * vy;
+        double discriminant = b * b - a * c;
+        if (a == 0 || b >= 0 || discriminant <= 0)
+        {
+            // Standing still, moving away, or only grazing the circle
+            return Double.POSITIVE_INFINITY;
+        }
+        return (-b - Math.sqrt(discriminant)) / a;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Checks whether an ellipse and a polygon or segment overlap, by moving
+     * the polygon into the space where the ellipse is the unit circle. That
+     * leaves the polygon convex, and it overlaps the circle if it holds the
+     * circle's centre or passes less than 1 from it.
+     */
+    private static boolean ellipseOverlapsPolygon(
+        CollisionGeometry ellipse, float[] points)
+    {
+        float[] e = ellipse.coords;
+        if (e[0] == 0 || e[1] == 0)
+        {
+            return false;
+        }
+
+        // Each point is moved into the unit space as its edges are reached,
+        // rather than all at once into an array
+        int count = points.length / 2;
+        double x1 = unitX(ellipse, points[0], points[1]);
+        double y1 = unitY(ellipse, points[0], points[1]);
+        double firstX = x1;
+        double firstY = y1;
+
+        boolean allLeft = true;
+        boolean allRight = true;
+        double nearest = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < count; i++)
+        {
+            double x2 = firstX;
+            double y2 = firstY;
+            if (i + 1 < count)
+            {
+                x2 = unitX(ellipse, points[i * 2 + 2], points[i * 2 + 3]);
+                y2 = unitY(ellipse, points[i * 2 + 2], points[i * 2 + 3]);
+            }
+
+            double cross = x1 * y2 - y1 * x2;
+            allLeft &= cross > 0;
+            allRight &= cross < 0;
+            nearest = Math.min(nearest, distanceSquaredToSegment(x1, y1, x2, y2));
+            x1 = x2;
+            y1 = y2;
+        }
+
+        // A segment holds no area, so cannot hold the centre
+        return nearest < 1 || (count > 2 && (allLeft || allRight));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the x-coordinate of a point in the space where an ellipse is the
+     * unit circle about the origin.
+     */
+    private static double unitX(CollisionGeometry ellipse, float x, float y)
+    {
+        float[] e = ellipse.coords;
+        double dx = x - ellipse.centerX;
+        double dy = y - ellipse.centerY;
+        return (dx * e[2] + dy * e[3]) / e[0];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the y-coordinate of a point in the space where an ellipse is the
+     * unit circle about the origin.
+     */
+    private static double unitY(CollisionGeometry ellipse, float x, float y)
+    {
+        float[] e = ellipse.coords;
+        double dx = x - ellipse.centerX;
+        double dy = y - ellipse.centerY;
+        return (dy * e[2] - dx * e[3]) / e[1];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the squared distance from the origin to a segment.
+     */
+    private static double distanceSquaredToSegment(
+        double x1, double y1, double x2, double y2)
+    {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = (lengthSquared == 0)
+            ? 0 : Math.max(0, Math.min(1, -(x1 * dx + y1 * dy) / lengthSquared));
+        double px = x1 + t * dx;
+        double py = y1 + t * dy;
+        return px * px + py * py;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Checks whether two ellipses overlap, by moving the second into the
+     * space where the first is the unit circle, where it is still an
+     * ellipse. They overlap if that ellipse holds the origin or passes less
+     * than 1 from it.
+     */
+    private static boolean ellipsesOverlap(
+        CollisionGeometry a, CollisionGeometry b)
+    {
+        float[] p = a.coords;
+        float[] q = b.coords;
+        if (p[0] == 0 || p[1] == 0 || q[0] == 0 || q[1] == 0)
+        {
+            return false;
+        }
+
+        if (p[0] == p[1] && q[0] == q[1])
+        {
+            // Two circles, which the bounding circles have already tested
+            return true;
+        }
+
+        return distanceInUnitSpace(inUnitSpace(a, b), 0, 0) < 1;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the time at which a moving ellipse begins to overlap a still
+     * one. The ellipses can only overlap while the boxes around them do,
+     * which is found exactly, so most near misses cost no more than two
+     * boxes. Within that span, in the space where the moving ellipse is
+     * the unit circle, its centre moves in a straight line, and the
+     * distance from it to the still ellipse is convex over time. So a time
+     * at which the distance is less than 1 is found by golden-section
+     * search for the closest approach, and then the time at which the
+     * distance first falls to 1 by closing in on it from both sides.
+     *
+     * @param start a time at which the ellipses do not yet overlap, such as
+     *     when their bounding circles first touch
+     * @return the time, which may be 1 or more, or infinity if they never
+     *     overlap
+     */
+    private static double ellipsesEntry(CollisionGeometry a, float dx,
+        float dy, CollisionGeometry b, double start)
+    {
+        float[] p = a.coords;
+        float[] q = b.coords;
+        if (p[0] == 0 || p[1] == 0 || q[0] == 0 || q[1] == 0)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double[] window = { start, 1 };
+        if (!findWindow(a.getPoints(), dx, dy, b.getPoints(), window))
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double[] other = inUnitSpace(a, b);
+        double vx = (dx * p[2] + dy * p[3]) / p[0];
+        double vy = (dy * p[2] - dx * p[3]) / p[1];
+
+        // Each step keeps one of the two inner times, so measures only one,
+        // and stops once the distance is sure to stay at least 1
+        double low = window[0];
+        double high = window[1];
+        double lowDistance = distanceInUnitSpace(other, vx * low, vy * low);
+        double highDistance = distanceInUnitSpace(other, vx * high, vy * high);
+        double t1 = high - GOLDEN_RATIO * (high - low);
+        double t2 = low + GOLDEN_RATIO * (high - low);
+        double d1 = distanceInUnitSpace(other, vx * t1, vy * t1);
+        double d2 = distanceInUnitSpace(other, vx * t2, vy * t2);
+        for (int i = 0; i < MAX_SWEEP_ITERATIONS && d1 >= 1 && d2 >= 1; i++)
+        {
+            if (high - low <= SWEEP_TOLERANCE || lowestConvex(low, lowDistance,
+                t1, d1, t2, d2, high, highDistance) >= 1)
+            {
+                return Double.POSITIVE_INFINITY;
+            }
+
+            if (d1 <= d2)
+            {
+                high = t2;
+                highDistance = d2;
+                t2 = t1;
+                d2 = d1;
+                t1 = high - GOLDEN_RATIO * (high - low);
+                d1 = distanceInUnitSpace(other, vx * t1, vy * t1);
+            }
+            else
+            {
+                low = t1;
+                lowDistance = d1;
+                t1 = t2;
+                d1 = d2;
+                t2 = low + GOLDEN_RATIO * (high - low);
+                d2 = distanceInUnitSpace(other, vx * t2, vy * t2);
+            }
+        }
+
+        if (d1 >= 1 && d2 >= 1)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        // The distance falls from at least 1 at low to less than 1 at
+        // high. Being convex, it lies below the chord between them, so the
+        // chord crosses 1 at or after the time sought, and above the line
+        // through two earlier times, which crosses 1 at or before it. Each
+        // step tries both, so closes in from both sides.
+        low = window[0];
+        lowDistance = distanceInUnitSpace(other, vx * low, vy * low);
+        double before = Double.NaN;
+        double beforeDistance = Double.NaN;
+        high = (d1 < 1) ? t1 : t2;
+        highDistance = Math.min(d1, d2);
+        for (int i = 0; i < MAX_SWEEP_ITERATIONS
+            && high - low > SWEEP_TOLERANCE; i++)
+        {
+            double t = high - (high - low)
+                * (1 - highDistance) / (lowDistance - highDistance);
+            if (!(t > low && t < high))
+            {
+                t = (low + high) / 2;
+            }
+            double d = distanceInUnitSpace(other, vx * t, vy * t);
+            if (d < 1)
+            {
+                high = t;
+                highDistance = d;
+            }
+            else
+            {
+                before = low;
+                beforeDistance = lowDistance;
+                low = t;
+                lowDistance = d;
+            }
+
+            t = (beforeDistance > lowDistance)
+                ? low + (low - before)
+                    * (lowDistance - 1) / (beforeDistance - lowDistance)
+                : (low + high) / 2;
+            if (!(t > low && t < high))
+            {
+                t = (low + high) / 2;
+            }
+            d = distanceInUnitSpace(other, vx * t, vy * t);
+            if (d < 1)
+            {
+                high = t;
+                highDistance = d;
+            }
+            else
+            {
+                before = low;
+                beforeDistance = lowDistance;
+                low = t;
+                lowDistance = d;
+            }
+        }
+        return low;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the lowest value that a convex function can take between two
+     * times, given its values there and at two times between them. Between
+     * the inner times, it lies above the lines through the outer pairs of
+     * times; outside them, above the line through the inner pair.
+     */
+    private static double lowestConvex(double t0, double f0, double t1,
+        double f1, double t2, double f2, double t3, double f3)
+    {
+        double innerSlope = (f2 - f1) / (t2 - t1);
+        double lowest = Math.min(
+            Math.min(f1, f1 + innerSlope * (t0 - t1)),
+            Math.min(f2, f2 + innerSlope * (t3 - t2)));
+
+        // Both lines through the outer pairs are below the function between
+        // the inner times, so it is above the higher of the two
+        double leftSlope = (f1 - f0) / (t1 - t0);
+        double rightSlope = (f3 - f2) / (t3 - t2);
+        double middle = Math.min(
+            Math.max(f1, f2 + rightSlope * (t1 - t2)),
+            Math.max(f1 + leftSlope * (t2 - t1), f2));
+        if (leftSlope != rightSlope)
+        {
+            double cross = (f2 - f1 + leftSlope * t1 - rightSlope * t2)
+                / (leftSlope - rightSlope);
+            cross = Math.max(t1, Math.min(t2, cross));
+            middle = Math.min(middle, Math.max(f1 + leftSlope * (cross - t1),
+                f2 + rightSlope * (cross - t2)));
+        }
+        return Math.min(lowest, middle);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Moves one ellipse into the space where another is the unit circle,
+     * centred on the origin, where it is still an ellipse.
+     *
+     * @return the centre of the moved ellipse, its larger and smaller
+     *     radii, and the unit direction of its larger radius
+     */
+    private static double[] inUnitSpace(CollisionGeometry a, CollisionGeometry b)
+    {
+        float[] p = a.coords;
+        float[] q = b.coords;
+
+        // The second ellipse is { c + M u : |u| <= 1 }, where M turns the
+        // unit circle into it and c is its centre, both in the first's
+        // unit space
+        double dx = b.centerX - a.centerX;
+        double dy = b.centerY - a.centerY;
+        double cx = (dx * p[2] + dy * p[3]) / p[0];
+        double cy = (dy * p[2] - dx * p[3]) / p[1];
+
+        // The second ellipse's own axes, scaled by its radii, in view
+        // coordinates
+        double ax = q[2] * q[0];
+        double ay = q[3] * q[0];
+        double bx = -q[3] * q[1];
+        double by = q[2] * q[1];
+
+        double m00 = (ax * p[2] + ay * p[3]) / p[0];
+        double m10 = (ay * p[2] - ax * p[3]) / p[1];
+        double m01 = (bx * p[2] + by * p[3]) / p[0];
+        double m11 = (by * p[2] - bx * p[3]) / p[1];
+
+        // The ellipse's axes are the eigenvectors of M M^T, and its radii
+        // the square roots of the eigenvalues
+        double s00 = m00 * m00 + m01 * m01;
+        double s01 = m00 * m10 + m01 * m11;
+        double s11 = m10 * m10 + m11 * m11;
+        double mean = (s00 + s11) / 2;
+        double spread = Math.sqrt((s00 - s11) * (s00 - s11) / 4 + s01 * s01);
+        double major = Math.sqrt(mean + spread);
+        double minor = Math.sqrt(Math.max(0, mean - spread));
+
+        double vx;
+        double vy;
+        if (spread == 0)
+        {
+            vx = 1;
+            vy = 0;
+        }
+        else if (s00 >= s11)
+        {
+            vx = mean + spread - s11;
+            vy = s01;
+        }
+        else
+        {
+            vx = s01;
+            vy = mean + spread - s00;
+        }
+        double length = Math.sqrt(vx * vx + vy * vy);
+        return new double[] { cx, cy, major, minor, vx / length, vy / length };
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the distance from a point to an ellipse, as given by
+     * {@link #inUnitSpace}, or 0 if the point is inside it.
+     */
+    private static double distanceInUnitSpace(
+        double[] ellipse, double x, double y)
+    {
+        // The point, seen from the ellipse's centre along its own axes
+        double px = x - ellipse[0];
+        double py = y - ellipse[1];
+        double ox = px * ellipse[4] + py * ellipse[5];
+        double oy = py * ellipse[4] - px * ellipse[5];
+
+        double major = ellipse[2];
+        double minor = ellipse[3];
+        if (minor > 0)
+        {
+            double ux = ox / major;
+            double uy = oy / minor;
+            if (ux * ux + uy * uy <= 1)
+            {
+                return 0;
+            }
+        }
+        return distanceToEllipse(major, minor, Math.abs(ox), Math.abs(oy));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the distance from a point outside an axis-aligned ellipse to the
+     * ellipse, by bisecting for the nearest point, after D. Eberly,
+     * "Distance from a Point to an Ellipse, an Ellipsoid, or a
+     * Hyperellipsoid".
+     *
+     * @param e0 the larger radius, along the x-axis
+     * @param e1 the smaller radius, along the y-axis
+     * @param y0 the x-coordinate of the point, at least 0
+     * @param y1 the y-coordinate of the point, at least 0
+     */
+    private static double distanceToEllipse(
+        double e0, double e1, double y0, double y1)
+    {
+        if (e1 == 0)
+        {
+            // A flattened ellipse is a segment from -e0 to e0
+            double x = Math.max(0, y0 - e0);
+            return Math.sqrt(x * x + y1 * y1);
+        }
+
+        if (y1 > 0)
+        {
+            if (y0 > 0)
+            {
+                double z0 = y0 / e0;
+                double z1 = y1 / e1;
+                double g = z0 * z0 + z1 * z1 - 1;
+                if (g == 0)
+                {
+                    return 0;
+                }
+
+                double r0 = (e0 / e1) * (e0 / e1);
+                double n0 = r0 * z0;
+                double s0 = z1 - 1;
+                double s1 = (g < 0) ? 0 : Math.sqrt(n0 * n0 + z1 * z1) - 1;
+                double s = 0;
+                for (int i = 0; i < MAX_ELLIPSE_ITERATIONS; i++)
+                {
+                    s = (s0 + s1) / 2;
+                    if (s == s0 || s == s1)
+                    {
+                        break;
+                    }
+                    double ratio0 = n0 / (s + r0);
+                    double ratio1 = z1 / (s + 1);
+                    g = ratio0 * ratio0 + ratio1 * ratio1 - 1;
+                    if (g > 0)
+                    {
+                        s0 = s;
+                    }
+                    else if (g < 0)
+                    {
+                        s1 = s;
+                    }
+                    else
+                    {
+                        break;
+                    }
+                }
+
+                double x0 = r0 * y0 / (s + r0);
+                double x1 = y1 / (s + 1);
+                return Math.sqrt((x0 - y0) * (x0 - y0) + (x1 - y1) * (x1 - y1));
+            }
+            return Math.abs(y1 - e1);
+        }
+
+        double numer0 = e0 * y0;
+        double denom0 = e0 * e0 - e1 * e1;
+        if (numer0 < denom0)
+        {
+            double xde0 = numer0 / denom0;
+            double x0 = e0 * xde0;
+            double x1 = e1 * Math.sqrt(1 - xde0 * xde0);
+            return Math.sqrt((x0 - y0) * (x0 - y0) + x1 * x1);
+        }
+        return Math.abs(y0 - e0);
+    }
+}
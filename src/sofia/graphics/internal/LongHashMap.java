@@ -0,0 +1,260 @@
+package sofia.graphics.internal;
+
+import java.util.Arrays;
+
+// -------------------------------------------------------------------------
+/**
+ * A hash map from primitive {@code long} keys to values, for the cell maps
+ * of the spatial grids, where boxing each key in a {@code Long} would
+ * allocate on every lookup.
+ *
+ * <p>Entries are kept in open-addressed arrays, probed linearly from a
+ * slot picked by multiplying the key by a large odd constant. Removing an
+ * entry shifts later entries of the same run back into the gap, so there
+ * are no tombstones and lookups never slow down as entries come and go.
+ * The entries can be walked without an iterator by going through every
+ * slot up to {@link #capacity()} and skipping those where
+ * {@link #valueAt(int)} is null. Null values cannot be stored.
+ *
+ * @param <V> the type of the values
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class LongHashMap<V>
+{
+    //~ Instance/static variables .............................................
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    /** The number of bits the hash is shifted right by to pick a slot. */
+    private int shift;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty map.
+     */
+    public LongHashMap()
+    {
+        allocate(MIN_CAPACITY);
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the value stored under a key.
+     *
+     * @param key the key to look up
+     * @return the value, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        int mask = keys.length - 1;
+        for (int slot = slotFor(key); values[slot] != null;
+            slot = (slot + 1) & mask)
+        {
+            if (keys[slot] == key)
+            {
+                return (V) values[slot];
+            }
+        }
+        return null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stores a value under a key, replacing any value already there.
+     *
+     * @param key the key
+     * @param value the value, which must not be null
+     * @return the value that was replaced, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value)
+    {
+        if (value == null)
+        {
+            throw new NullPointerException("value");
+        }
+
+        int mask = keys.length - 1;
+        int slot = slotFor(key);
+        for (; values[slot] != null; slot = (slot + 1) & mask)
+        {
+            if (keys[slot] == key)
+            {
+                V old = (V) values[slot];
+                values[slot] = value;
+                return old;
+            }
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length)
+        {
+            resize(keys.length * 2);
+        }
+        return null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Removes the value stored under a key.
+     *
+     * @param key the key
+     * @return the value that was removed, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key)
+    {
+        int mask = keys.length - 1;
+        int slot = slotFor(key);
+        for (; values[slot] != null; slot = (slot + 1) & mask)
+        {
+            if (keys[slot] == key)
+            {
+                break;
+            }
+        }
+        V old = (V) values[slot];
+        if (old == null)
+        {
+            return null;
+        }
+
+        // Move each later entry of the run whose own slot is not between
+        // the gap and where it sits back into the gap
+        int gap = slot;
+        for (int next = (gap + 1) & mask; values[next] != null;
+            next = (next + 1) & mask)
+        {
+            int home = slotFor(keys[next]);
+            boolean between = (gap <= next)
+                ? (gap < home && home <= next)
+                : (gap < home || home <= next);
+            if (!between)
+            {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        values[gap] = null;
+        size--;
+        return old;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of entries in the map.
+     *
+     * @return the number of entries
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether the map is empty.
+     *
+     * @return true if the map has no entries
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Removes every entry, keeping the space they took.
+     */
+    public void clear()
+    {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of slots, for walking the entries with
+     * {@link #valueAt(int)}. Storing an entry may change it.
+     *
+     * @return the number of slots
+     */
+    public int capacity()
+    {
+        return values.length;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the value in a slot.
+     *
+     * @param slot the slot, from 0 up to {@link #capacity()}
+     * @return the value in the slot, or null if it is empty
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot)
+    {
+        return (V) values[slot];
+    }
+
+
+    // ----------------------------------------------------------
+    private int slotFor(long key)
+    {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+
+    // ----------------------------------------------------------
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+
+    // ----------------------------------------------------------
+    private void resize(int capacity)
+    {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++)
+        {
+            if (oldValues[i] != null)
+            {
+                int slot = slotFor(oldKeys[i]);
+                while (values[slot] != null)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package sofia.graphics.internal;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import sofia.graphics.Shape;
+import android.graphics.RectF;
+
+// -------------------------------------------------------------------------
+/**
+ * Finds the shapes at a point in the order they are drawn in, from front to
+ * back, for hit-testing touches.
+ *
+ * <p>The view is divided into square cells, and each shape is listed in
+ * every cell its bounds overlap, as in a uniform grid. Each cell's list is
+ * kept sorted front to back by the view's drawing order, so finding the
+ * shapes at a point means walking one short list and testing each shape in
+ * turn, and the front-most shape is found by stopping at the first hit.
+ * Shapes that would cover more than {@link #MAX_CELLS_PER_SHAPE} cells are
+ * kept in a single sorted list instead, which is merged into the walk.
+ *
+ * <p>By default the index only holds shapes that handle touches, that is,
+ * whose class has an {@code onTouchDown}, {@code onTouchMove} or
+ * {@code onTouchUp} method, so that scenery costs nothing to keep up to
+ * date. It can be made to hold every shape instead.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class TouchIndex
+{
+    //~ Instance/static variables .............................................
+
+    /** The width and height of each cell, in pixels. */
+    public static final float CELL_SIZE = 64;
+
+    /** The largest number of cells a single shape is listed in. */
+    public static final int MAX_CELLS_PER_SHAPE = 64;
+
+    private static final Map<Class<?>, Boolean> touchableClasses =
+        new HashMap<Class<?>, Boolean>();
+
+    private Comparator<Shape> order;
+    private boolean touchableOnly = true;
+    private LongHashMap<Cell> cells = new LongHashMap<Cell>();
+    private Map<Shape, int[]> ranges = new HashMap<Shape, int[]>();
+    private Cell oversized = new Cell();
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty touch index, which only indexes shapes that
+     * handle touches.
+     *
+     * @param order the drawing order, in which later shapes are in front
+     */
+    public TouchIndex(Comparator<Shape> order)
+    {
+        this.order = order;
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether a shape's class handles touches, by
+     * having an {@code onTouchDown}, {@code onTouchMove} or {@code onTouchUp}
+     * method.
+     *
+     * @param shape the shape to check
+     * @return true if the shape handles touches
+     */
+    public static boolean isTouchable(Shape shape)
+    {
+        Class<?> cls = shape.getClass();
+        synchronized (touchableClasses)
+        {
+            Boolean touchable = touchableClasses.get(cls);
+            if (touchable == null)
+            {
+                touchable = false;
+                for (Method method : cls.getMethods())
+                {
+                    String name = method.getName();
+                    if (name.equals("onTouchDown")
+                        || name.equals("onTouchMove")
+                        || name.equals("onTouchUp"))
+                    {
+                        touchable = true;
+                        break;
+                    }
+                }
+                touchableClasses.put(cls, touchable);
+            }
+            return touchable;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether only shapes that handle touches are
+     * indexed.
+     *
+     * @return true if only shapes that handle touches are indexed
+     */
+    public synchronized boolean isTouchableOnly()
+    {
+        return touchableOnly;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets whether only shapes that handle touches are indexed. The index
+     * is emptied, and the shapes must be added again.
+     *
+     * @param touchableOnly true to index only shapes that handle touches
+     */
+    public synchronized void setTouchableOnly(boolean touchableOnly)
+    {
+        this.touchableOnly = touchableOnly;
+        cells.clear();
+        ranges.clear();
+        oversized = new Cell();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the drawing order, sorting every cell again if it has changed.
+     *
+     * @param newOrder the drawing order, in which later shapes are in front
+     */
+    public synchronized void setOrder(Comparator<Shape> newOrder)
+    {
+        if (newOrder == order)
+        {
+            return;
+        }
+
+        order = newOrder;
+        for (int slot = 0; slot < cells.capacity(); slot++)
+        {
+            Cell cell = cells.valueAt(slot);
+            if (cell != null)
+            {
+                cell.sort(order);
+            }
+        }
+        oversized.sort(order);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Adds a shape to the index, unless it is already there or does not
+     * handle touches when only those are indexed.
+     *
+     * @param shape the shape to add
+     */
+    public synchronized void add(Shape shape)
+    {
+        if (ranges.containsKey(shape)
+            || (touchableOnly && !isTouchable(shape)))
+        {
+            return;
+        }
+
+        int[] range = new int[4];
+        computeRange(shape.getRotatedBounds(), range);
+        ranges.put(shape, range);
+        insert(shape, range);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Removes a shape from the index.
+     *
+     * @param shape the shape to remove
+     */
+    public synchronized void remove(Shape shape)
+    {
+        int[] range = ranges.remove(shape);
+        if (range != null)
+        {
+            delete(shape, range);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Moves a shape to the cells its bounds now overlap, if they have
+     * changed.
+     *
+     * @param shape the shape whose bounds have changed
+     */
+    public synchronized void update(Shape shape)
+    {
+        int[] range = ranges.get(shape);
+        if (range == null)
+        {
+            return;
+        }
+
+        RectF bounds = shape.getRotatedBounds();
+        if (range[0] == cellIndex(bounds.left)
+            && range[1] == cellIndex(bounds.top)
+            && range[2] == cellIndex(bounds.right)
+            && range[3] == cellIndex(bounds.bottom))
+        {
+            return;
+        }
+
+        delete(shape, range);
+        computeRange(bounds, range);
+        insert(shape, range);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Moves a shape to its new place in the drawing order, after its
+     * z-index has changed.
+     *
+     * @param shape the shape whose z-index has changed
+     */
+    public synchronized void reorder(Shape shape)
+    {
+        int[] range = ranges.get(shape);
+        if (range != null)
+        {
+            delete(shape, range);
+            insert(shape, range);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the front-most shape of a type at a point, stopping at the first
+     * shape found.
+     *
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @param cls the class of shape to look for, or null for any shape
+     * @param <MyShape> the type of shape to look for
+     * @return the front-most shape at the point, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <MyShape extends Shape> MyShape getShapeAt(
+        float x, float y, Class<MyShape> cls)
+    {
+        return (MyShape) walk(x, y, cls, null);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets every shape of a type at a point, from front to back.
+     *
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @param cls the class of shape to look for, or null for any shape
+     * @param result the list to add the shapes to
+     * @param <MyShape> the type of shape to look for
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <MyShape extends Shape> void getShapesAt(
+        float x, float y, Class<MyShape> cls, List<? super MyShape> result)
+    {
+        walk(x, y, cls, (List<Shape>) result);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Walks the shapes listed in the cell holding a point from front to
+     * back, merging in the oversized shapes, and tests each against the
+     * point.
+     *
+     * @param result the list to add every shape found to, or null to stop
+     *               at the first
+     * @return the first shape found, if result is null
+     */
+    private Shape walk(float x, float y, Class<?> cls, List<Shape> result)
+    {
+        Cell cell = cells.get(cellKey(cellIndex(x), cellIndex(y)));
+        int cellSize = (cell == null) ? 0 : cell.size;
+        int i = 0;
+        int j = 0;
+        while (i < cellSize || j < oversized.size)
+        {
+            Shape shape;
+            if (j == oversized.size || (i < cellSize
+                && order.compare(cell.shapes[i], oversized.shapes[j]) >= 0))
+            {
+                shape = cell.shapes[i++];
+            }
+            else
+            {
+                shape = oversized.shapes[j++];
+            }
+
+            if ((cls == null || cls.isInstance(shape))
+                && shape.contains(x, y))
+            {
+                if (result == null)
+                {
+                    return shape;
+                }
+                result.add(shape);
+            }
+        }
+        return null;
+    }
+
+
+    // ----------------------------------------------------------
+    private void computeRange(RectF bounds, int[] range)
+    {
+        range[0] = cellIndex(bounds.left);
+        range[1] = cellIndex(bounds.top);
+        range[2] = cellIndex(bounds.right);
+        range[3] = cellIndex(bounds.bottom);
+    }
+
+
+    // ----------------------------------------------------------
+    private static int cellIndex(float coordinate)
+    {
+        return (int) Math.floor(coordinate / CELL_SIZE);
+    }
+
+
+    // ----------------------------------------------------------
+    private static long cellKey(int col, int row)
+    {
+        return ((long) col << 32) | (row & 0xffffffffL);
+    }
+
+
+    // ----------------------------------------------------------
+    private static boolean isOversized(int[] range)
+    {
+        return ((long) range[2] - range[0] + 1)
+            * ((long) range[3] - range[1] + 1) > MAX_CELLS_PER_SHAPE;
+    }
+
+
+    // ----------------------------------------------------------
+    private void insert(Shape shape, int[] range)
+    {
+        if (isOversized(range))
+        {
+            oversized.insert(shape, order);
+            return;
+        }
+
+        for (int col = range[0]; col <= range[2]; col++)
+        {
+            for (int row = range[1]; row <= range[3]; row++)
+            {
+                long key = cellKey(col, row);
+                Cell cell = cells.get(key);
+                if (cell == null)
+                {
+                    cell = new Cell();
+                    cells.put(key, cell);
+                }
+                cell.insert(shape, order);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void delete(Shape shape, int[] range)
+    {
+        if (isOversized(range))
+        {
+            oversized.delete(shape);
+            return;
+        }
+
+        for (int col = range[0]; col <= range[2]; col++)
+        {
+            for (int row = range[1]; row <= range[3]; row++)
+            {
+                long key = cellKey(col, row);
+                Cell cell = cells.get(key);
+                if (cell != null)
+                {
+                    cell.delete(shape);
+                    if (cell.size == 0)
+                    {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * The shapes listed in one cell, sorted front to back.
+     */
+    private static final class Cell
+    {
+        Shape[] shapes = new Shape[4];
+        int size;
+
+
+        // ----------------------------------------------------------
+        /**
+         * Inserts a shape behind every shape in front of it.
+         */
+        void insert(Shape shape, Comparator<Shape> order)
+        {
+            int low = 0;
+            int high = size;
+            while (low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if (order.compare(shapes[mid], shape) >= 0)
+                {
+                    low = mid + 1;
+                }
+                else
+                {
+                    high = mid;
+                }
+            }
+
+            if (size == shapes.length)
+            {
+                shapes = Arrays.copyOf(shapes, size * 2);
+            }
+            System.arraycopy(shapes, low, shapes, low + 1, size - low);
+            shapes[low] = shape;
+            size++;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Removes a shape, found by identity, since its place in the order
+         * may no longer match its z-index.
+         */
+        void delete(Shape shape)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                if (shapes[i] == shape)
+                {
+                    System.arraycopy(shapes, i + 1, shapes, i, size - i - 1);
+                    shapes[--size] = null;
+                    return;
+                }
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        void sort(Comparator<Shape> order)
+        {
+            List<Shape> sorted = new ArrayList<Shape>(Arrays.asList(shapes)
+                .subList(0, size));
+            size = 0;
+            for (Shape shape : sorted)
+            {
+                insert(shape, order);
+            }
+        }
+    }
+}
@@ -3,11 +3,19 @@ package sofia.graphics.internal.animation;
 import sofia.graphics.MotionStep;
 import sofia.graphics.PropertyTransformer;
 import sofia.graphics.Shape;
+import sofia.graphics.ShapeView;
+import sofia.graphics.collision.SweepHit;
 import android.graphics.PointF;
 
 // ----------------------------------------------------------
 public class MotionStepTransformer implements PropertyTransformer
 {
+    /**
+     * How far, in pixels, a bullet is moved into the shape it hits, so that
+     * the two intersect and the collision is reported.
+     */
+    private static final float CONTACT_DEPTH = 0.5f;
+
     private Shape shape;
     private float lastT;
     private MotionStep step;
@@ -40,8 +48,40 @@ public class MotionStepTransformer implements PropertyTransformer
         float fraction = timeChange;
 
         PointF point = shape.getPosition();
+        float startX = point.x;
+        float startY = point.y;
         step.step(fraction, point);
+        if (shape.isBullet())
+        {
+            stopAtFirstContact(startX, startY, point);
+        }
         shape.setPosition(point);
         lastT = t;
     }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Pulls the end of a bullet's step back to just inside the first shape
+     * in its way, if there is one, so that it cannot pass through thin
+     * shapes between frames.
+     */
+    private void stopAtFirstContact(float startX, float startY, PointF point)
+    {
+        ShapeView view = shape.getParentView();
+        float dx = point.x - startX;
+        float dy = point.y - startY;
+        if (view == null || (dx == 0 && dy == 0))
+        {
+            return;
+        }
+
+        SweepHit<Shape> hit = view.sweepFirst(shape, dx, dy, null);
+        if (hit != null)
+        {
+            float length = (float) Math.sqrt(dx * dx + dy * dy);
+            float time = Math.min(1, hit.getTime() + CONTACT_DEPTH / length);
+            point.set(startX + dx * time, startY + dy * time);
+        }
+    }
 }
\ No newline at end of file